@@ -0,0 +1,14 @@
+-- Outbox of health information notifications, needed with NOTIFICATION_OUTBOX_ENABLED=true.
+-- Run against health_information_user once the schema from hiu-db-initializer is in place.
+CREATE TABLE IF NOT EXISTS health_info_notification_outbox (
+    transaction_id      text        NOT NULL,
+    part_number         integer     NOT NULL,
+    page_count          integer     NOT NULL,
+    consent_id          text,
+    consent_manager_id  text,
+    status_notification jsonb       NOT NULL,
+    enqueued_at         timestamptz NOT NULL,
+    attempts            integer     NOT NULL DEFAULT 0,
+    next_attempt_at     timestamptz NOT NULL,
+    PRIMARY KEY (transaction_id, part_number)
+);
@@ -0,0 +1,55 @@
+package in.org.projecteka.hiu.dataflow;
+
+import in.org.projecteka.hiu.dataflow.model.DataFlowRequestKeyMaterial;
+import in.org.projecteka.hiu.dataflow.model.KeyMaterial;
+import in.org.projecteka.hiu.dataflow.model.KeyStructure;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of decrypting one entry of a transaction: deriving the key for every entry, as before, against reusing the
+ * key derived for the first entry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DecryptorBenchmark {
+    private static final String TRANSACTION_ID = "transactionId";
+    private static final String ENCRYPTED_ENTRY = "cMTT+FiiDMVXdK1nbBXmnNXP2doSbWQ11Sl8rs1d5SzVDA==";
+
+    private Decryptor decryptor;
+    private KeyMaterial receivedKeyMaterial;
+    private DataFlowRequestKeyMaterial savedKeyMaterial;
+
+    @Setup
+    public void setUp() {
+        decryptor = new Decryptor();
+        receivedKeyMaterial = KeyMaterial.builder()
+                .dhPublicKey(KeyStructure.builder()
+                        .keyValue("MIIBMTCB6gYHKoZIzj0CATCB3gIBATArBgcqhkjOPQEBAiB/////////////////////////////////////////7TBEBCAqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqYSRShRAQge0Je0Je0Je0Je0Je0Je0Je0Je0Je0Je0JgtenHcQyGQEQQQqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqq0kWiCuGaG4oIa04B7dLHdI0UySPU1+bXxhsinpxaJ+ztPZAiAQAAAAAAAAAAAAAAAAAAAAFN753qL3nNZYEmMaXPXT7QIBCANCAARfpkcbh0Y6Z1xcck4D2pNKLQ2DwLOxI9bO2sy8zlbJ4391xJpwYNG2STnmP9cwz0+V74B3mbcykl5J1gsXtNe+")
+                        .build())
+                .nonce("xXrM6PfCsBX0Q238uxZCP8YBpPXxsiZvbE++jX5GV5c=")
+                .build();
+        savedKeyMaterial = DataFlowRequestKeyMaterial.builder()
+                .privateKey("DrDDUf+HIXB59/ym4GxrM/TfeULHyiUVzHWkq9rFkJI=")
+                .randomKey("pk5xT1Xk+KUlf/LC1LZawKECPNvOvIzhZNEyIdh7oJE=")
+                .build();
+    }
+
+    @Benchmark
+    public String deriveKeyForEveryEntry() throws Exception {
+        return decryptor.decrypt(receivedKeyMaterial, savedKeyMaterial, ENCRYPTED_ENTRY);
+    }
+
+    @Benchmark
+    public String reuseKeyDerivedForTransaction() throws Exception {
+        return decryptor.decrypt(TRANSACTION_ID, receivedKeyMaterial, savedKeyMaterial, ENCRYPTED_ENTRY);
+    }
+}
@@ -0,0 +1,91 @@
+package in.org.projecteka.hiu.dataprocessor.model;
+
+import in.org.projecteka.hiu.dataprocessor.CompositionResourceProcessor;
+import in.org.projecteka.hiu.dataprocessor.HITypeResourceProcessor;
+import in.org.projecteka.hiu.dataprocessor.ObservationResourceProcessor;
+import in.org.projecteka.hiu.dataprocessor.ResourceProcessorRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Composition;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of walking a bundle whose Composition references every Observation in it: each Observation is reached once
+ * from the Composition and once as a bundle entry. The list based tracking replays the lookups BundleContext used to
+ * do against an ArrayList.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BundleContextBenchmark {
+    @Param({"10000"})
+    private int entries;
+
+    private Bundle bundle;
+    private ResourceProcessorRegistry resourceProcessors;
+
+    @Setup
+    public void setUp() {
+        bundle = new Bundle().setType(Bundle.BundleType.DOCUMENT);
+        var composition = new Composition();
+        composition.setId("Composition/1");
+        bundle.addEntry().setFullUrl("Composition/1").setResource(composition);
+        var section = composition.addSection();
+        for (int i = 0; i < entries - 1; i++) {
+            var observation = new Observation();
+            observation.setId("Observation/" + i);
+            bundle.addEntry().setFullUrl("Observation/" + i).setResource(observation);
+            section.addEntry(new Reference(observation));
+        }
+        resourceProcessors = new ResourceProcessorRegistry(
+                List.of(new CompositionResourceProcessor(), new ObservationResourceProcessor()),
+                new SimpleMeterRegistry());
+    }
+
+    @Benchmark
+    public BundleContext identityTracking() {
+        var bundleContext = new BundleContext(bundle, resourceProcessors::get);
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            HITypeResourceProcessor processor = resourceProcessors.get(entry.getResource().getResourceType());
+            if (processor != null) {
+                processor.process(entry.getResource(), null, bundleContext, null);
+            }
+        }
+        bundleContext.getDocumentType();
+        bundleContext.getOrigins();
+        return bundleContext;
+    }
+
+    @Benchmark
+    public List<Resource> listTracking() {
+        List<Resource> processed = new ArrayList<>();
+        var composition = (Composition) bundle.getEntry().get(0).getResource();
+        for (Reference reference : composition.getSectionFirstRep().getEntry()) {
+            track(processed, (Resource) reference.getResource());
+        }
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            track(processed, entry.getResource());
+        }
+        return processed;
+    }
+
+    private static void track(List<Resource> processed, Resource resource) {
+        if (!processed.contains(resource)) {
+            processed.add(resource);
+        }
+    }
+}
@@ -12,6 +12,8 @@ import static in.org.projecteka.hiu.ErrorCode.INVALID_TOKEN;
 import static in.org.projecteka.hiu.ErrorCode.NETWORK_SERVICE_ERROR;
 import static in.org.projecteka.hiu.ErrorCode.NO_RESULT_FROM_GATEWAY;
 import static in.org.projecteka.hiu.ErrorCode.QUEUE_NOT_FOUND;
+import static in.org.projecteka.hiu.ErrorCode.SERVICE_DOWN;
+import static in.org.projecteka.hiu.ErrorCode.TOO_MANY_DATA_TRANSFERS;
 import static in.org.projecteka.hiu.ErrorCode.UNAUTHORIZED_REQUESTER;
 import static in.org.projecteka.hiu.ErrorCode.UNKNOWN_ERROR;
 import static in.org.projecteka.hiu.ErrorCode.VALIDATION_FAILED;
@@ -19,6 +21,8 @@ import static org.springframework.http.HttpStatus.BAD_REQUEST;
 import static org.springframework.http.HttpStatus.GATEWAY_TIMEOUT;
 import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
 import static org.springframework.http.HttpStatus.NOT_FOUND;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+import static org.springframework.http.HttpStatus.TOO_MANY_REQUESTS;
 import static org.springframework.http.HttpStatus.UNAUTHORIZED;
 
 @Getter
@@ -29,10 +33,16 @@ public class ClientError extends Throwable {
             "please try later.";
     private final HttpStatus httpStatus;
     private final ErrorRepresentation error;
+    private final Integer retryAfterSeconds;
 
     public ClientError(HttpStatus httpStatus, ErrorRepresentation errorRepresentation) {
+        this(httpStatus, errorRepresentation, null);
+    }
+
+    public ClientError(HttpStatus httpStatus, ErrorRepresentation errorRepresentation, Integer retryAfterSeconds) {
         this.httpStatus = httpStatus;
         error = errorRepresentation;
+        this.retryAfterSeconds = retryAfterSeconds;
     }
 
     public static ClientError consentRequestNotFound() {
@@ -127,8 +137,21 @@ public class ClientError extends Throwable {
                 new ErrorRepresentation(new Error(NETWORK_SERVICE_ERROR, CANNOT_PROCESS_REQUEST_TRY_LATER)));
     }
 
-    public static ClientError paginationNotSupported() {
+    public static ClientError invalidDataPage() {
         return new ClientError(BAD_REQUEST,
-                new ErrorRepresentation(new Error(INVALID_REQUEST, "Multi page data transfer is not supported yet.")));
+                new ErrorRepresentation(new Error(INVALID_REQUEST, "Page number must be between 1 and page count.")));
+    }
+
+    public static ClientError dataTransferThrottled(int retryAfterSeconds) {
+        return new ClientError(TOO_MANY_REQUESTS,
+                new ErrorRepresentation(new Error(TOO_MANY_DATA_TRANSFERS,
+                        "Too many data transfers in progress, please retry later.")),
+                retryAfterSeconds);
+    }
+
+    public static ClientError dataTransferServiceBusy(int retryAfterSeconds) {
+        return new ClientError(SERVICE_UNAVAILABLE,
+                new ErrorRepresentation(new Error(SERVICE_DOWN, CANNOT_PROCESS_REQUEST_TRY_LATER)),
+                retryAfterSeconds);
     }
 }
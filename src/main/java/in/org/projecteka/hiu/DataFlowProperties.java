@@ -17,4 +17,6 @@ import org.springframework.context.annotation.Configuration;
 public class DataFlowProperties {
     private int offsetInDays;
     private boolean usingGateway;
+    private int keyMaterialLowWatermark;
+    private int keyMaterialHighWatermark;
 }
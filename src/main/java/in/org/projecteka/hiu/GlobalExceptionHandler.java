@@ -6,6 +6,7 @@ import org.springframework.boot.autoconfigure.web.WebProperties;
 import org.springframework.boot.autoconfigure.web.reactive.error.AbstractErrorWebExceptionHandler;
 import org.springframework.boot.web.reactive.error.ErrorAttributes;
 import org.springframework.context.ApplicationContext;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ReactiveHttpOutputMessage;
@@ -57,6 +58,13 @@ public class GlobalExceptionHandler extends AbstractErrorWebExceptionHandler {
         if (error instanceof ClientError) {
             status = ((ClientError) error).getHttpStatus();
             bodyInserter = fromValue(((ClientError) error).getError());
+            Integer retryAfterSeconds = ((ClientError) error).getRetryAfterSeconds();
+            if (retryAfterSeconds != null) {
+                return ServerResponse.status(status)
+                        .header(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds))
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .body(bodyInserter);
+            }
         }
 
         if (error instanceof WebExchangeBindException) {
@@ -36,6 +36,9 @@ import in.org.projecteka.hiu.common.cache.RedisGenericAdapter;
 import in.org.projecteka.hiu.common.heartbeat.CacheHealth;
 import in.org.projecteka.hiu.common.heartbeat.Heartbeat;
 import in.org.projecteka.hiu.common.heartbeat.RabbitMQOptions;
+import in.org.projecteka.hiu.common.storage.DeflateStorageCodec;
+import in.org.projecteka.hiu.common.storage.PlainStorageCodec;
+import in.org.projecteka.hiu.common.storage.StorageCodec;
 import in.org.projecteka.hiu.consent.ConceptValidator;
 import in.org.projecteka.hiu.consent.ConsentRepository;
 import in.org.projecteka.hiu.consent.ConsentService;
@@ -46,6 +49,7 @@ import in.org.projecteka.hiu.consent.HealthInformationPublisher;
 import in.org.projecteka.hiu.consent.PatientHIUCertService;
 import in.org.projecteka.hiu.consent.PatientConsentRepository;
 import in.org.projecteka.hiu.consent.PatientConsentService;
+import in.org.projecteka.hiu.dataflow.AdmissionProperties;
 import in.org.projecteka.hiu.dataflow.DataAvailabilityPublisher;
 import in.org.projecteka.hiu.dataflow.DataFlowClient;
 import in.org.projecteka.hiu.dataflow.DataFlowDeleteListener;
@@ -53,14 +57,42 @@ import in.org.projecteka.hiu.dataflow.DataFlowRepository;
 import in.org.projecteka.hiu.dataflow.DataFlowRequestListener;
 import in.org.projecteka.hiu.dataflow.DataFlowService;
 import in.org.projecteka.hiu.dataflow.DataFlowServiceProperties;
+import in.org.projecteka.hiu.dataflow.DataNotificationSpooler;
+import in.org.projecteka.hiu.dataflow.DataPartDeduplicator;
+import in.org.projecteka.hiu.dataflow.DataPartStore;
+import in.org.projecteka.hiu.dataflow.DataTransferAdmission;
 import in.org.projecteka.hiu.dataflow.Decryptor;
 import in.org.projecteka.hiu.dataflow.HealthInfoManager;
 import in.org.projecteka.hiu.dataflow.HealthInformationRepository;
+import in.org.projecteka.hiu.dataflow.KeyMaterialPool;
 import in.org.projecteka.hiu.dataflow.LocalDataStore;
+import in.org.projecteka.hiu.dataflow.SegmentedLogStore;
+import in.org.projecteka.hiu.dataflow.SpoolWriter;
+import in.org.projecteka.hiu.dataflow.TransactionContexts;
 import in.org.projecteka.hiu.dataflow.model.DataFlowRequestKeyMaterial;
 import in.org.projecteka.hiu.dataflow.model.PatientHealthInfoStatus;
+import in.org.projecteka.hiu.dataprocessor.AttachmentDownloadProperties;
+import in.org.projecteka.hiu.dataprocessor.AttachmentDownloader;
+import in.org.projecteka.hiu.dataprocessor.BinaryResourceProcessor;
+import in.org.projecteka.hiu.dataprocessor.CompositionResourceProcessor;
+import in.org.projecteka.hiu.dataprocessor.ConditionResourceProcessor;
 import in.org.projecteka.hiu.dataprocessor.DataAvailabilityListener;
+import in.org.projecteka.hiu.dataprocessor.DataPartProcessor;
+import in.org.projecteka.hiu.dataprocessor.DiagnosticReportResourceProcessor;
+import in.org.projecteka.hiu.dataprocessor.DocumentReferenceResourceProcessor;
+import in.org.projecteka.hiu.dataprocessor.EntryProcessingPool;
+import in.org.projecteka.hiu.dataprocessor.FhirParsingEngine;
+import in.org.projecteka.hiu.dataprocessor.HITypeResourceProcessor;
 import in.org.projecteka.hiu.dataprocessor.HealthDataRepository;
+import in.org.projecteka.hiu.dataprocessor.ImmunizationRecommendationProcessor;
+import in.org.projecteka.hiu.dataprocessor.ImmunizationResourceProcessor;
+import in.org.projecteka.hiu.dataprocessor.MedicationRequestResourceProcessor;
+import in.org.projecteka.hiu.dataprocessor.NotificationOutboxProperties;
+import in.org.projecteka.hiu.dataprocessor.NotificationOutboxRepository;
+import in.org.projecteka.hiu.dataprocessor.NotificationRelay;
+import in.org.projecteka.hiu.dataprocessor.ObservationResourceProcessor;
+import in.org.projecteka.hiu.dataprocessor.ResourceProcessorRegistry;
+import in.org.projecteka.hiu.dicomweb.OrthancDicomWebServer;
 import in.org.projecteka.hiu.patient.PatientService;
 import in.org.projecteka.hiu.patient.model.PatientSearchGatewayResponse;
 import in.org.projecteka.hiu.user.JWTGenerator;
@@ -68,6 +100,7 @@ import in.org.projecteka.hiu.user.SessionService;
 import in.org.projecteka.hiu.user.UserRepository;
 import io.lettuce.core.ClientOptions;
 import io.lettuce.core.SocketOptions;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
 import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
@@ -127,6 +160,7 @@ import reactor.netty.resources.ConnectionProvider;
 import javax.net.ssl.SSLException;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.file.Paths;
 import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
@@ -138,9 +172,11 @@ import java.time.Duration;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
+import java.util.zip.Deflater;
 
 import static in.org.projecteka.hiu.common.Constants.EMPTY_STRING;
 import static io.lettuce.core.ReadFrom.MASTER_PREFERRED;
@@ -459,6 +495,38 @@ public class HiuConfiguration {
         return new LoadingCacheGenericAdapter<>(stringStringLoadingCache, EMPTY_STRING);
     }
 
+    @Bean
+    @ConditionalOnProperty(value = "hiu.cache-method", havingValue = "guava", matchIfMissing = true)
+    public LoadingCache<String, String> receivedDataPartLoadingCache() {
+        return CacheBuilder
+                .newBuilder()
+                .maximumSize(100000)
+                .expireAfterWrite(1, TimeUnit.DAYS)
+                .build(new CacheLoader<>() {
+                    public String load(String key) {
+                        return EMPTY_STRING;
+                    }
+                });
+    }
+
+    @Bean("receivedDataPartCache")
+    @ConditionalOnProperty(value = "hiu.cache-method", havingValue = "guava", matchIfMissing = true)
+    public CacheAdapter<String, String> receivedDataPartCacheAdapter(
+            LoadingCache<String, String> receivedDataPartLoadingCache) {
+        return new LoadingCacheGenericAdapter<>(receivedDataPartLoadingCache, EMPTY_STRING);
+    }
+
+    @ConditionalOnProperty(value = "hiu.cache-method", havingValue = "redis")
+    @Bean("receivedDataPartCache")
+    public CacheAdapter<String, String> redisReceivedDataPartAdapter(
+            ReactiveRedisOperations<String, String> stringReactiveRedisOperations,
+            RedisOptions redisOptions) {
+        return new RedisGenericAdapter<>(stringReactiveRedisOperations,
+                ofDays(1),
+                "hiu-received-data-part",
+                redisOptions.getRetry());
+    }
+
     @ConditionalOnProperty(value = "hiu.cache-method", havingValue = "redis")
     @Bean
     ReactiveRedisOperations<String, String> stringReactiveRedisOperations(ReactiveRedisConnectionFactory factory) {
@@ -597,8 +665,18 @@ public class HiuConfiguration {
     @Bean
     public MessageListenerContainerFactory messageListenerContainerFactory(
             ConnectionFactory connectionFactory,
-            Jackson2JsonMessageConverter jackson2JsonMessageConverter) {
-        return new MessageListenerContainerFactory(connectionFactory, jackson2JsonMessageConverter);
+            Jackson2JsonMessageConverter jackson2JsonMessageConverter,
+            ListenerProperties listenerProperties,
+            RabbitQueueNames queueNames,
+            MeterRegistry meterRegistry) {
+        var consumersByQueue = Map.of(
+                queueNames.getDataFlowRequestQueue(), listenerProperties.getDataFlowRequest(),
+                queueNames.getDataFlowProcessQueue(), listenerProperties.getDataFlowProcess(),
+                queueNames.getDataFlowDeleteQueue(), listenerProperties.getDataFlowDelete());
+        return new MessageListenerContainerFactory(connectionFactory,
+                jackson2JsonMessageConverter,
+                consumersByQueue,
+                meterRegistry);
     }
 
     @Bean
@@ -620,8 +698,18 @@ public class HiuConfiguration {
     }
 
     @Bean
-    public Decryptor decryptor() {
-        return new Decryptor();
+    public Decryptor decryptor(DataFlowServiceProperties dataFlowServiceProperties) {
+        return new Decryptor(Duration.ofMinutes(dataFlowServiceProperties.getDerivedKeyExpiryMinutes()));
+    }
+
+    @Bean
+    public KeyMaterialPool keyMaterialPool(Decryptor decryptor,
+                                           DataFlowProperties dataFlowProperties,
+                                           MeterRegistry meterRegistry) {
+        return new KeyMaterialPool(decryptor,
+                dataFlowProperties.getKeyMaterialLowWatermark(),
+                dataFlowProperties.getKeyMaterialHighWatermark(),
+                meterRegistry);
     }
 
     @Bean
@@ -630,7 +718,7 @@ public class HiuConfiguration {
             DestinationsConfig destinationsConfig,
             DataFlowClient dataFlowClient,
             DataFlowRepository dataFlowRepository,
-            Decryptor decryptor,
+            KeyMaterialPool keyMaterialPool,
             DataFlowProperties dataFlowProperties,
             Gateway gateway,
             CacheAdapter<String, DataFlowRequestKeyMaterial> dataFlowCache,
@@ -641,7 +729,7 @@ public class HiuConfiguration {
                 destinationsConfig,
                 dataFlowClient,
                 dataFlowRepository,
-                decryptor,
+                keyMaterialPool,
                 dataFlowProperties,
                 gateway,
                 dataFlowCache,
@@ -656,7 +744,7 @@ public class HiuConfiguration {
             DataFlowRepository dataFlowRepository,
             HealthInformationRepository healthInformationRepository,
             DataFlowServiceProperties dataFlowServiceProperties,
-            LocalDataStore localDataStore,
+            DataPartStore dataPartStore,
             RabbitQueueNames queueNames) {
         return new DataFlowDeleteListener(
                 messageListenerContainerFactory,
@@ -664,27 +752,104 @@ public class HiuConfiguration {
                 dataFlowRepository,
                 healthInformationRepository,
                 dataFlowServiceProperties,
-                localDataStore,
+                dataPartStore,
                 queueNames);
     }
 
     @Bean
-    public LocalDataStore localDataStore() {
-        return new LocalDataStore();
+    public SpoolWriter spoolWriter(DataFlowServiceProperties dataFlowServiceProperties, MeterRegistry meterRegistry) {
+        return new SpoolWriter(Duration.ofMillis(dataFlowServiceProperties.getSpoolCommitWindowMillis()),
+                dataFlowServiceProperties.getSpoolCommitMaxBatch(),
+                meterRegistry);
+    }
+
+    @Bean
+    @ConditionalOnProperty(value = "hiu.dataflowservice.storage-engine", havingValue = "files", matchIfMissing = true)
+    public LocalDataStore localDataStore(SpoolWriter spoolWriter) {
+        return new LocalDataStore(spoolWriter);
+    }
+
+    @Bean
+    @ConditionalOnProperty(value = "hiu.dataflowservice.storage-engine", havingValue = "segmented")
+    public SegmentedLogStore segmentedLogStore(DataFlowServiceProperties dataFlowServiceProperties,
+                                               SpoolWriter spoolWriter) {
+        return new SegmentedLogStore(Paths.get(dataFlowServiceProperties.getLocalStoragePath(), ".segments"),
+                dataFlowServiceProperties.getSegmentSizeBytes(),
+                dataFlowServiceProperties.getSegmentCompactionThreshold(),
+                Duration.ofMinutes(dataFlowServiceProperties.getSegmentCompactionIntervalMinutes()),
+                spoolWriter,
+                new LocalDataStore(spoolWriter));
+    }
+
+    @Bean
+    @ConditionalOnProperty(value = "hiu.dataflowservice.storage-codec", havingValue = "plain", matchIfMissing = true)
+    public StorageCodec plainStorageCodec() {
+        return new PlainStorageCodec();
+    }
+
+    // Stored content is mostly base64 ciphertext, which only entropy coding shrinks, so the fastest level is enough.
+    @Bean
+    @ConditionalOnProperty(value = "hiu.dataflowservice.storage-codec", havingValue = "deflate")
+    public StorageCodec deflateStorageCodec() {
+        return new DeflateStorageCodec(Deflater.BEST_SPEED);
+    }
+
+    @Bean
+    public DataNotificationSpooler dataNotificationSpooler(DataFlowServiceProperties dataFlowServiceProperties,
+                                                           StorageCodec storageCodec) {
+        return new DataNotificationSpooler(dataFlowServiceProperties.isRawSpooling(), storageCodec);
+    }
+
+    @Bean
+    public DataTransferAdmission dataTransferAdmission(AdmissionProperties admissionProperties,
+                                                       AmqpAdmin amqpAdmin,
+                                                       RabbitQueueNames queueNames,
+                                                       DataFlowServiceProperties dataFlowServiceProperties,
+                                                       MeterRegistry meterRegistry) {
+        return new DataTransferAdmission(admissionProperties,
+                amqpAdmin,
+                queueNames.getDataFlowProcessQueue(),
+                Paths.get(dataFlowServiceProperties.getLocalStoragePath()),
+                meterRegistry);
     }
 
     @Bean
     public DataFlowService dataFlowService(DataFlowRepository dataFlowRepository,
                                            DataAvailabilityPublisher dataAvailabilityPublisher,
                                            DataFlowServiceProperties properties,
-                                           LocalDataStore localDataStore,
-                                           CacheAdapter<String, DataFlowRequestKeyMaterial> dataFlowCache) {
+                                           DataPartStore dataPartStore,
+                                           CacheAdapter<String, DataFlowRequestKeyMaterial> dataFlowCache,
+                                           DataNotificationSpooler dataNotificationSpooler,
+                                           DataTransferAdmission dataTransferAdmission,
+                                           DataPartProcessor dataPartProcessor,
+                                           DataPartDeduplicator dataPartDeduplicator,
+                                           TransactionContexts transactionContexts) {
         return new DataFlowService(
                 dataFlowRepository,
                 dataAvailabilityPublisher,
                 properties,
-                localDataStore,
-                dataFlowCache);
+                dataPartStore,
+                dataFlowCache,
+                dataNotificationSpooler,
+                dataTransferAdmission,
+                dataPartProcessor,
+                dataPartDeduplicator,
+                transactionContexts);
+    }
+
+    @Bean
+    public TransactionContexts transactionContexts(DataFlowRepository dataFlowRepository,
+                                                   DataFlowServiceProperties dataFlowServiceProperties) {
+        return new TransactionContexts(dataFlowRepository,
+                dataFlowServiceProperties.getTransactionContextCacheSize(),
+                Duration.ofMinutes(dataFlowServiceProperties.getTransactionContextExpiryMinutes()));
+    }
+
+    @Bean
+    public DataPartDeduplicator dataPartDeduplicator(
+            @Qualifier("receivedDataPartCache") CacheAdapter<String, String> receivedDataPartCache,
+            MeterRegistry meterRegistry) {
+        return new DataPartDeduplicator(receivedDataPartCache, meterRegistry);
     }
 
     @Bean
@@ -701,8 +866,34 @@ public class HiuConfiguration {
     }
 
     @Bean
-    public HealthDataRepository healthDataRepository(@Qualifier("readWriteClient") PgPool readWriteClient) {
-        return new HealthDataRepository(readWriteClient);
+    public HealthDataRepository healthDataRepository(@Qualifier("readWriteClient") PgPool readWriteClient,
+                                                     DataFlowServiceProperties dataFlowServiceProperties) {
+        return new HealthDataRepository(readWriteClient,
+                dataFlowServiceProperties.getBulkLoadThresholdRows(),
+                dataFlowServiceProperties.getBulkLoadChunkRows());
+    }
+
+    @Bean
+    public NotificationOutboxRepository notificationOutboxRepository(
+            @Qualifier("readWriteClient") PgPool readWriteClient) {
+        return new NotificationOutboxRepository(readWriteClient);
+    }
+
+    @Bean
+    public NotificationRelay notificationRelay(NotificationOutboxRepository notificationOutboxRepository,
+                                               HealthInformationClient healthInformationClient,
+                                               Gateway gateway,
+                                               HiuProperties hiuProperties,
+                                               Decryptor decryptor,
+                                               NotificationOutboxProperties notificationOutboxProperties,
+                                               MeterRegistry meterRegistry) {
+        return new NotificationRelay(notificationOutboxRepository,
+                healthInformationClient,
+                gateway,
+                hiuProperties,
+                decryptor,
+                notificationOutboxProperties,
+                meterRegistry);
     }
 
     @Bean
@@ -712,29 +903,127 @@ public class HiuConfiguration {
         return new DataAvailabilityPublisher(amqpTemplate, destinationsConfig, queueNames);
     }
 
+    @Bean
+    public CompositionResourceProcessor compositionResourceProcessor() {
+        return new CompositionResourceProcessor();
+    }
+
+    @Bean
+    public DiagnosticReportResourceProcessor diagnosticReportResourceProcessor(
+            LocalDicomServerProperties dicomServerProperties) {
+        return new DiagnosticReportResourceProcessor(new OrthancDicomWebServer(dicomServerProperties));
+    }
+
+    @Bean
+    public DocumentReferenceResourceProcessor documentReferenceResourceProcessor() {
+        return new DocumentReferenceResourceProcessor();
+    }
+
+    @Bean
+    public MedicationRequestResourceProcessor medicationRequestResourceProcessor() {
+        return new MedicationRequestResourceProcessor();
+    }
+
+    @Bean
+    public ConditionResourceProcessor conditionResourceProcessor() {
+        return new ConditionResourceProcessor();
+    }
+
+    @Bean
+    public ObservationResourceProcessor observationResourceProcessor() {
+        return new ObservationResourceProcessor();
+    }
+
+    @Bean
+    public BinaryResourceProcessor binaryResourceProcessor() {
+        return new BinaryResourceProcessor();
+    }
+
+    @Bean
+    public ImmunizationResourceProcessor immunizationResourceProcessor() {
+        return new ImmunizationResourceProcessor();
+    }
+
+    @Bean
+    public ImmunizationRecommendationProcessor immunizationRecommendationProcessor() {
+        return new ImmunizationRecommendationProcessor();
+    }
+
+    @Bean
+    public ResourceProcessorRegistry resourceProcessorRegistry(List<HITypeResourceProcessor> resourceProcessors,
+                                                               MeterRegistry meterRegistry) {
+        return new ResourceProcessorRegistry(resourceProcessors, meterRegistry);
+    }
+
+    @Bean
+    public DataPartProcessor dataPartProcessor(HealthDataRepository healthDataRepository,
+                                               DataFlowRepository dataFlowRepository,
+                                               Decryptor decryptor,
+                                               ResourceProcessorRegistry resourceProcessorRegistry,
+                                               HealthInformationClient healthInformationClient,
+                                               Gateway gateway,
+                                               HiuProperties hiuProperties,
+                                               TransactionContexts transactionContexts,
+                                               StorageCodec storageCodec,
+                                               AttachmentDownloader attachmentDownloader,
+                                               DataPartStore dataPartStore,
+                                               DataPartDeduplicator dataPartDeduplicator,
+                                               FhirParsingEngine fhirParsingEngine,
+                                               EntryProcessingPool entryProcessingPool,
+                                               DataFlowServiceProperties dataFlowServiceProperties,
+                                               NotificationOutboxProperties notificationOutboxProperties,
+                                               DataAvailabilityPublisher dataAvailabilityPublisher,
+                                               MeterRegistry meterRegistry) {
+        return new DataPartProcessor(healthDataRepository,
+                dataFlowRepository,
+                decryptor,
+                resourceProcessorRegistry,
+                healthInformationClient,
+                gateway,
+                hiuProperties,
+                transactionContexts,
+                storageCodec,
+                attachmentDownloader,
+                dataPartStore,
+                dataPartDeduplicator,
+                fhirParsingEngine,
+                entryProcessingPool,
+                dataFlowServiceProperties.getStreamingBundleThresholdBytes(),
+                notificationOutboxProperties.isEnabled(),
+                dataAvailabilityPublisher,
+                dataFlowServiceProperties.getInlineProcessingThresholdBytes(),
+                dataFlowServiceProperties.getInlineProcessingConcurrency(),
+                meterRegistry);
+    }
+
+    @Bean
+    public EntryProcessingPool entryProcessingPool(DataFlowServiceProperties dataFlowServiceProperties,
+                                                   MeterRegistry meterRegistry) {
+        return new EntryProcessingPool(dataFlowServiceProperties.getEntryProcessingThreads(), meterRegistry);
+    }
+
+    @Bean
+    public AttachmentDownloader attachmentDownloader(AttachmentDownloadProperties attachmentDownloadProperties,
+                                                     MeterRegistry meterRegistry) {
+        return new AttachmentDownloader(attachmentDownloadProperties, meterRegistry);
+    }
+
+    @Bean
+    public FhirParsingEngine fhirParsingEngine(DataFlowServiceProperties dataFlowServiceProperties) {
+        return new FhirParsingEngine(dataFlowServiceProperties.getFhirParserPoolSize());
+    }
+
     @Bean
     public DataAvailabilityListener dataAvailabilityListener(
             MessageListenerContainerFactory messageListenerContainerFactory,
             DestinationsConfig destinationsConfig,
-            HealthDataRepository healthDataRepository,
-            DataFlowRepository dataFlowRepository,
-            LocalDicomServerProperties dicomServerProperties,
-            HealthInformationClient healthInformationClient,
-            Gateway gateway,
-            HiuProperties hiuProperties,
-            ConsentRepository consentRepository,
-            RabbitQueueNames queueNames) {
+            RabbitQueueNames queueNames,
+            DataPartProcessor dataPartProcessor) {
         return new DataAvailabilityListener(
                 messageListenerContainerFactory,
                 destinationsConfig,
-                healthDataRepository,
-                dataFlowRepository,
-                dicomServerProperties,
-                healthInformationClient,
-                gateway,
-                hiuProperties,
-                consentRepository,
-                queueNames);
+                queueNames,
+                dataPartProcessor);
     }
 
     @Bean
@@ -887,8 +1176,9 @@ public class HiuConfiguration {
     @Bean
     public Heartbeat heartbeat(RabbitMQOptions rabbitMQOptions,
                                DatabaseProperties databaseProperties,
-                               CacheHealth cacheHealth) {
-        return new Heartbeat(rabbitMQOptions, databaseProperties, cacheHealth);
+                               CacheHealth cacheHealth,
+                               FhirParsingEngine fhirParsingEngine) {
+        return new Heartbeat(rabbitMQOptions, databaseProperties, cacheHealth, fhirParsingEngine);
     }
 
     @Bean("hiuHttpConnector")
@@ -0,0 +1,41 @@
+package in.org.projecteka.hiu;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Consumers of each queue the HIU listens on. A queue starts with concurrentConsumers and adds consumers, up to
+ * maxConcurrentConsumers, while its consumers keep receiving messages back to back, that is while messages are
+ * waiting in the queue; consumers left idle are stopped again.
+ */
+@Configuration
+@ConfigurationProperties(prefix = "hiu.listeners")
+@Getter
+@Setter
+@NoArgsConstructor(access = AccessLevel.PACKAGE)
+@AllArgsConstructor
+public class ListenerProperties {
+    private ConsumerProperties dataFlowRequest = new ConsumerProperties();
+    private ConsumerProperties dataFlowProcess = new ConsumerProperties();
+    private ConsumerProperties dataFlowDelete = new ConsumerProperties();
+
+    @Getter
+    @Setter
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class ConsumerProperties {
+        private int concurrentConsumers = 1;
+        private int maxConcurrentConsumers = 1;
+        //Unacknowledged messages a consumer holds, for the process queue this bounds the data parts in flight
+        private int prefetchCount = 250;
+        private int consecutiveActiveTrigger = 10;
+        private int consecutiveIdleTrigger = 10;
+        private long startConsumerMinIntervalMillis = 10000;
+        private long stopConsumerMinIntervalMillis = 60000;
+    }
+}
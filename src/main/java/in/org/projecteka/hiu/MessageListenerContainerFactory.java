@@ -1,24 +1,73 @@
 package in.org.projecteka.hiu;
 
+import in.org.projecteka.hiu.ListenerProperties.ConsumerProperties;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.AllArgsConstructor;
+import org.springframework.amqp.core.AcknowledgeMode;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
 import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
 import org.springframework.amqp.rabbit.listener.adapter.MessageListenerAdapter;
 import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
 
+import java.util.Map;
+
 @AllArgsConstructor
 public class MessageListenerContainerFactory {
+    private static final ConsumerProperties DEFAULT_CONSUMERS = new ConsumerProperties();
+
     private final ConnectionFactory connectionFactory;
     private final Jackson2JsonMessageConverter converter;
+    private final Map<String, ConsumerProperties> consumersByQueue;
+    private final MeterRegistry meterRegistry;
 
     public MessageListenerContainer createMessageListenerContainer(String queueName) {
+        return createMessageListenerContainer(queueName, AcknowledgeMode.AUTO);
+    }
+
+    /**
+     * With {@link AcknowledgeMode#MANUAL} the listener acks each message itself, possibly after it has returned.
+     */
+    public MessageListenerContainer createMessageListenerContainer(String queueName, AcknowledgeMode acknowledgeMode) {
         SimpleMessageListenerContainer container = new SimpleMessageListenerContainer(connectionFactory);
         container.addQueueNames(queueName);
+        container.setAcknowledgeMode(acknowledgeMode);
+        ConsumerProperties consumers = consumersByQueue.getOrDefault(queueName, DEFAULT_CONSUMERS);
+        configureConsumers(container, consumers);
+        registerUtilisation(container, queueName, maxConsumers(consumers));
 
         MessageListenerAdapter messageListenerAdapter = new MessageListenerAdapter();
         messageListenerAdapter.setMessageConverter(converter);
         container.setMessageListener(messageListenerAdapter);
         return container;
     }
-}
\ No newline at end of file
+
+    private static void configureConsumers(SimpleMessageListenerContainer container, ConsumerProperties consumers) {
+        container.setConcurrentConsumers(Math.max(consumers.getConcurrentConsumers(), 1));
+        container.setMaxConcurrentConsumers(maxConsumers(consumers));
+        container.setPrefetchCount(Math.max(consumers.getPrefetchCount(), 1));
+        container.setConsecutiveActiveTrigger(Math.max(consumers.getConsecutiveActiveTrigger(), 1));
+        container.setConsecutiveIdleTrigger(Math.max(consumers.getConsecutiveIdleTrigger(), 1));
+        container.setStartConsumerMinInterval(consumers.getStartConsumerMinIntervalMillis());
+        container.setStopConsumerMinInterval(consumers.getStopConsumerMinIntervalMillis());
+    }
+
+    private static int maxConsumers(ConsumerProperties consumers) {
+        return Math.max(consumers.getMaxConcurrentConsumers(), Math.max(consumers.getConcurrentConsumers(), 1));
+    }
+
+    private void registerUtilisation(SimpleMessageListenerContainer container, String queueName, int maxConsumers) {
+        Gauge.builder("hiu.queue.consumers.active", container, SimpleMessageListenerContainer::getActiveConsumerCount)
+                .description("Consumers currently running for the queue")
+                .tag("queue", queueName)
+                .strongReference(true)
+                .register(meterRegistry);
+        Gauge.builder("hiu.queue.consumers.utilisation", container,
+                c -> (double) c.getActiveConsumerCount() / maxConsumers)
+                .description("Running consumers of the queue as a fraction of the most it may scale to")
+                .tag("queue", queueName)
+                .strongReference(true)
+                .register(meterRegistry);
+    }
+}
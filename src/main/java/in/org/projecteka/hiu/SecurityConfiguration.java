@@ -9,6 +9,8 @@ import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
 import org.springframework.http.HttpMethod;
 import org.springframework.security.authentication.ReactiveAuthenticationManager;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
@@ -19,6 +21,7 @@ import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.context.SecurityContext;
 import org.springframework.security.core.context.SecurityContextImpl;
 import org.springframework.security.web.server.SecurityWebFilterChain;
+import org.springframework.security.web.server.context.NoOpServerSecurityContextRepository;
 import org.springframework.security.web.server.context.ServerSecurityContextRepository;
 import org.springframework.util.AntPathMatcher;
 import org.springframework.web.server.ServerWebExchange;
@@ -51,6 +54,8 @@ import static java.util.stream.Stream.of;
 import static org.apache.commons.lang3.StringUtils.isEmpty;
 import static org.slf4j.LoggerFactory.getLogger;
 import static org.springframework.http.HttpHeaders.AUTHORIZATION;
+import static org.springframework.security.web.server.util.matcher.ServerWebExchangeMatcher.MatchResult.match;
+import static org.springframework.security.web.server.util.matcher.ServerWebExchangeMatcher.MatchResult.notMatch;
 import static reactor.core.publisher.Mono.empty;
 import static reactor.core.publisher.Mono.error;
 
@@ -90,6 +95,27 @@ public class SecurityConfiguration {
             "/sessions",
             "/config"};
 
+    /**
+     * Actuator endpoints are served on the management port, which is reachable by the metrics scrapers but not
+     * routed publicly, so requests to it are let through without a token.
+     */
+    @Bean
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public SecurityWebFilterChain managementWebFilterChain(ServerHttpSecurity httpSecurity,
+                                                           @Value("${management.server.port:-1}") int managementPort) {
+        httpSecurity.securityMatcher(exchange -> isOnPort(exchange, managementPort) ? match() : notMatch());
+        httpSecurity.httpBasic().disable().formLogin().disable().csrf().disable().logout().disable();
+        httpSecurity.authorizeExchange().anyExchange().permitAll();
+        return httpSecurity
+                .securityContextRepository(NoOpServerSecurityContextRepository.getInstance())
+                .build();
+    }
+
+    private static boolean isOnPort(ServerWebExchange exchange, int port) {
+        var localAddress = exchange.getRequest().getLocalAddress();
+        return localAddress != null && localAddress.getPort() == port;
+    }
+
     @Bean
     public SecurityWebFilterChain securityWebFilterChain(
             ServerHttpSecurity httpSecurity,
@@ -7,6 +7,13 @@ public interface CacheAdapter<K, V> {
 
     Mono<Void> put(K key, V value);
 
+    /**
+     * Puts the value only when the key is absent, as one atomic operation.
+     *
+     * @return true when the value was put, false when the key was already present
+     */
+    Mono<Boolean> putIfAbsent(K key, V value);
+
     Mono<Void> invalidate(K key);
 
     Mono<Boolean> exists(K key);
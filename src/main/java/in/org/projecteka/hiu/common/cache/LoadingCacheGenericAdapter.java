@@ -22,6 +22,18 @@ public class LoadingCacheGenericAdapter<T> implements CacheAdapter<String, T> {
         return fromRunnable(() -> loadingCache.put(key, value));
     }
 
+    /**
+     * A key loaded with the fallback value counts as absent, as it does for {@link #get}.
+     */
+    @Override
+    public Mono<Boolean> putIfAbsent(String key, T value) {
+        return fromCallable(() -> {
+            T existing = loadingCache.asMap().putIfAbsent(key, value);
+            return existing == null
+                    || existing.equals(fallbackValue) && loadingCache.asMap().replace(key, existing, value);
+        });
+    }
+
     @Override
     public Mono<Void> invalidate(String key) {
         return fromRunnable(() -> loadingCache.invalidate(key));
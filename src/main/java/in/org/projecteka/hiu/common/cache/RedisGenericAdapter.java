@@ -64,6 +64,15 @@ public class RedisGenericAdapter<T> implements CacheAdapter<String, T> {
         return retryable(redisOperations.opsForValue().set(prefixThe(key), value, expiration)).then();
     }
 
+    /**
+     * Not retried: should the reply to a successful SET NX be lost, trying again would report the key as present.
+     */
+    @Override
+    public Mono<Boolean> putIfAbsent(String key, T value) {
+        return redisOperations.opsForValue().setIfAbsent(prefixThe(key), value, expiration)
+                .doOnError(error -> logger.error(error.getMessage(), error));
+    }
+
     @Override
     public Mono<Void> invalidate(String key) {
         return retryable(redisOperations.expire(prefixThe(key), ofMinutes(0))).then();
@@ -4,6 +4,7 @@ import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
 import in.org.projecteka.hiu.DatabaseProperties;
 import in.org.projecteka.hiu.common.heartbeat.model.HeartbeatResponse;
+import in.org.projecteka.hiu.dataprocessor.FhirParsingEngine;
 import lombok.AllArgsConstructor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,10 +32,11 @@ public class Heartbeat {
     private final RabbitMQOptions rabbitMQOptions;
     private final DatabaseProperties databaseProperties;
     private final CacheHealth cacheHealth;
+    private final FhirParsingEngine fhirParsingEngine;
 
     public Mono<HeartbeatResponse> getStatus() {
         try {
-            if (cacheHealth.isUp() && isRabbitMQUp() && isPostgresUp()) {
+            if (fhirParsingEngine.isReady() && cacheHealth.isUp() && isRabbitMQUp() && isPostgresUp()) {
                 return just(HeartbeatResponse.builder().timeStamp(now(UTC)).status(UP).build());
             }
             return just(HeartbeatResponse.builder().timeStamp(now(UTC)).status(DOWN).error(of(SERVICE_DOWN)).build());
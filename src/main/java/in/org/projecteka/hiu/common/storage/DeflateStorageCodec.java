@@ -0,0 +1,234 @@
+package in.org.projecteka.hiu.common.storage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Framed block format: after the magic, the content is cut into blocks of at most {@code blockSize} bytes and
+ * each block is deflated on its own, prefixed by its plain and compressed lengths. A block with plain length 0
+ * ends the file. Readers inflate one block at a time, so memory use does not depend on the file size.
+ */
+public class DeflateStorageCodec implements StorageCodec {
+    public static final String NAME = "deflate";
+    static final byte[] MAGIC = "HIUZ1".getBytes(StandardCharsets.US_ASCII);
+    private static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+    private final int level;
+    private final int blockSize;
+
+    public DeflateStorageCodec(int level) {
+        this(level, DEFAULT_BLOCK_SIZE);
+    }
+
+    public DeflateStorageCodec(int level, int blockSize) {
+        this.level = level;
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] getMagic() {
+        return MAGIC.clone();
+    }
+
+    @Override
+    public OutputStream encoder(OutputStream out) {
+        return new BlockDeflaterOutputStream(out, level, blockSize);
+    }
+
+    @Override
+    public InputStream decoder(InputStream in) {
+        return new BlockInflaterInputStream(in);
+    }
+
+    private static class BlockDeflaterOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final Deflater deflater;
+        private final byte[] block;
+        private byte[] compressed;
+        private int position;
+        private boolean closed;
+
+        BlockDeflaterOutputStream(OutputStream out, int level, int blockSize) {
+            this.out = new DataOutputStream(out);
+            this.deflater = new Deflater(level);
+            this.block = new byte[blockSize];
+            this.compressed = new byte[blockSize + blockSize / 8 + 64];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (position == block.length) {
+                writeBlock();
+            }
+            block[position++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (position == block.length) {
+                    writeBlock();
+                }
+                int count = Math.min(length, block.length - position);
+                System.arraycopy(bytes, offset, block, position, count);
+                position += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                writeBlock();
+                out.writeInt(0);
+                out.writeInt(0);
+            } finally {
+                try {
+                    out.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            if (position == 0) {
+                return;
+            }
+            deflater.reset();
+            deflater.setInput(block, 0, position);
+            deflater.finish();
+            int compressedLength = 0;
+            while (!deflater.finished()) {
+                if (compressedLength == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+            }
+            out.writeInt(position);
+            out.writeInt(compressedLength);
+            out.write(compressed, 0, compressedLength);
+            position = 0;
+        }
+    }
+
+    private static class BlockInflaterInputStream extends InputStream {
+        private final DataInputStream in;
+        private final Inflater inflater = new Inflater();
+        private byte[] block = new byte[0];
+        private byte[] compressed = new byte[0];
+        private int position;
+        private int limit;
+        private boolean ended;
+
+        BlockInflaterInputStream(InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return block[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int count = Math.min(length, limit - position);
+            System.arraycopy(block, position, bytes, offset, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return limit - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            in.close();
+        }
+
+        private boolean fill() throws IOException {
+            while (position == limit) {
+                if (ended) {
+                    return false;
+                }
+                readBlock();
+            }
+            return true;
+        }
+
+        private void readBlock() throws IOException {
+            int plainLength;
+            int compressedLength;
+            try {
+                plainLength = in.readInt();
+                compressedLength = in.readInt();
+            } catch (EOFException e) {
+                throw new IOException("Compressed file is truncated", e);
+            }
+            if (plainLength == 0) {
+                ended = true;
+                return;
+            }
+            if (plainLength < 0 || compressedLength < 0) {
+                throw new IOException("Compressed file has a corrupt block header");
+            }
+            if (block.length < plainLength) {
+                block = new byte[plainLength];
+            }
+            if (compressed.length < compressedLength) {
+                compressed = new byte[compressedLength];
+            }
+            in.readFully(compressed, 0, compressedLength);
+            inflater.reset();
+            inflater.setInput(compressed, 0, compressedLength);
+            try {
+                int inflated = 0;
+                while (inflated < plainLength && !inflater.finished()) {
+                    int count = inflater.inflate(block, inflated, plainLength - inflated);
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    inflated += count;
+                }
+                if (inflated != plainLength) {
+                    throw new IOException("Compressed file has a corrupt block");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Compressed file has a corrupt block", e);
+            }
+            position = 0;
+            limit = plainLength;
+        }
+    }
+}
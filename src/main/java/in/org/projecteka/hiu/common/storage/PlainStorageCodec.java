@@ -0,0 +1,29 @@
+package in.org.projecteka.hiu.common.storage;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class PlainStorageCodec implements StorageCodec {
+    public static final String NAME = "plain";
+    private static final byte[] NO_MAGIC = new byte[0];
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] getMagic() {
+        return NO_MAGIC;
+    }
+
+    @Override
+    public OutputStream encoder(OutputStream out) {
+        return out;
+    }
+
+    @Override
+    public InputStream decoder(InputStream in) {
+        return in;
+    }
+}
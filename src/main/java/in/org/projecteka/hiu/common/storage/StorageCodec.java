@@ -0,0 +1,22 @@
+package in.org.projecteka.hiu.common.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * On-disk format of data part files and attachments kept under the local storage path.
+ * <p>
+ * Every encoded file starts with the codec's magic bytes, so a file can be decoded without knowing which codec
+ * was configured when it was written. Plain files have no header at all, which keeps files written before any
+ * codec existed readable.
+ */
+public interface StorageCodec {
+    String getName();
+
+    byte[] getMagic();
+
+    OutputStream encoder(OutputStream out) throws IOException;
+
+    InputStream decoder(InputStream in) throws IOException;
+}
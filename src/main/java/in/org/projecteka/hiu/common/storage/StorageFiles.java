@@ -0,0 +1,88 @@
+package in.org.projecteka.hiu.common.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.Deflater;
+
+public final class StorageFiles {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final List<StorageCodec> ENCODED_FORMATS = List.of(
+            new DeflateStorageCodec(Deflater.DEFAULT_COMPRESSION));
+    private static final int MAX_MAGIC_LENGTH = ENCODED_FORMATS.stream()
+            .mapToInt(codec -> codec.getMagic().length)
+            .max()
+            .orElse(0);
+
+    private StorageFiles() {
+
+    }
+
+    /**
+     * Opens a file to be written with the given codec, creating its directory on first use.
+     */
+    public static OutputStream newOutputStream(StorageCodec codec, Path path, OpenOption... options)
+            throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        OutputStream out = new BufferedOutputStream(Files.newOutputStream(path, options), BUFFER_SIZE);
+        try {
+            out.write(codec.getMagic());
+            return codec.encoder(out);
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a stored file for reading, decoding it with whichever codec wrote it. Files without a known header are
+     * returned as they are.
+     */
+    public static InputStream newInputStream(Path path) throws IOException {
+        return decode(Files.newInputStream(path));
+    }
+
+    /**
+     * Same as {@link #newInputStream(Path)}, for stored content read from somewhere other than its own file.
+     */
+    public static InputStream decode(InputStream stored) throws IOException {
+        InputStream in = new BufferedInputStream(stored, BUFFER_SIZE);
+        try {
+            Optional<StorageCodec> codec = detect(in);
+            return codec.isPresent() ? codec.get().decoder(in) : in;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    public static boolean isEncoded(Path path) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path), MAX_MAGIC_LENGTH)) {
+            return detect(in).isPresent();
+        }
+    }
+
+    // Consumes the header when a codec matches, otherwise leaves the stream where it was.
+    private static Optional<StorageCodec> detect(InputStream in) throws IOException {
+        in.mark(MAX_MAGIC_LENGTH);
+        byte[] header = in.readNBytes(MAX_MAGIC_LENGTH);
+        for (StorageCodec codec : ENCODED_FORMATS) {
+            byte[] magic = codec.getMagic();
+            if (header.length >= magic.length && Arrays.equals(header, 0, magic.length, magic, 0, magic.length)) {
+                in.reset();
+                in.readNBytes(magic.length);
+                return Optional.of(codec);
+            }
+        }
+        in.reset();
+        return Optional.empty();
+    }
+}
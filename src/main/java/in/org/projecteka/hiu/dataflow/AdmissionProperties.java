@@ -0,0 +1,29 @@
+package in.org.projecteka.hiu.dataflow;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Limits applied to data transfers pushed by HIPs. A limit of 0 turns that check off.
+ */
+@Configuration
+@ConfigurationProperties(prefix = "hiu.dataflowservice.admission")
+@Getter
+@Setter
+@NoArgsConstructor(access = AccessLevel.PACKAGE)
+@AllArgsConstructor
+public class AdmissionProperties {
+    private int maxInFlightTransfers;
+    private long maxInFlightBytes;
+    private int maxInFlightTransfersPerHip;
+    private long maxInFlightBytesPerHip;
+    private long queueDepthHighWatermark;
+    private double diskUsageHighWatermark;
+    private int watermarkCheckIntervalSeconds = 5;
+    private int retryAfterSeconds = 30;
+}
@@ -1,15 +1,17 @@
 package in.org.projecteka.hiu.dataflow;
 
-import in.org.projecteka.hiu.ClientError;
 import in.org.projecteka.hiu.common.Constants;
 import in.org.projecteka.hiu.dataflow.model.DataFlowRequestResult;
-import in.org.projecteka.hiu.dataflow.model.DataNotificationRequest;
 import lombok.AllArgsConstructor;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import javax.validation.Valid;
@@ -21,11 +23,10 @@ public class DataFlowController {
 
     @ResponseStatus(HttpStatus.ACCEPTED)
     @PostMapping(Constants.PATH_DATA_TRANSFER)
-    public Mono<Void> dataNotification(@RequestBody DataNotificationRequest dataNotificationRequest) {
-        if (dataNotificationRequest.getPageCount() > 1){
-            return Mono.error(ClientError.paginationNotSupported());
-        }
-        return dataFlowService.handleNotification(dataNotificationRequest);
+    public Mono<Void> dataNotification(@RequestHeader(value = HttpHeaders.CONTENT_LENGTH, required = false)
+                                               Long contentLength,
+                                       @RequestBody Flux<DataBuffer> body) {
+        return dataFlowService.handleNotification(body, contentLength == null ? 0 : contentLength);
     }
 
     @ResponseStatus(HttpStatus.ACCEPTED)
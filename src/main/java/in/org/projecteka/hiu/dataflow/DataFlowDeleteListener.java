@@ -37,7 +37,7 @@ public class DataFlowDeleteListener {
     private final DataFlowRepository dataFlowRepository;
     private final HealthInformationRepository healthInformationRepository;
     private final DataFlowServiceProperties dataFlowServiceProperties;
-    private final LocalDataStore localDataStore;
+    private final DataPartStore dataPartStore;
     private final RabbitQueueNames queueNames;
 
     @PostConstruct
@@ -69,7 +69,7 @@ public class DataFlowDeleteListener {
                     Path pathToTransactionDirectory = Paths.get(dataFlowServiceProperties.getLocalStoragePath(),
                             getLocalDirectoryName(dataFlowDelete.getConsentRequestId()),
                             getLocalDirectoryName(transactionId));
-                    localDataStore.deleteExpiredConsentData(pathToTransactionDirectory);
+                    dataPartStore.deleteTransaction(transactionId, pathToTransactionDirectory);
                 }
             }, () -> logger.info("Failed to delete data flow message"));
             MDC.clear();
@@ -6,8 +6,12 @@ import in.org.projecteka.hiu.dataflow.model.DataPartDetail;
 import in.org.projecteka.hiu.dataflow.model.HealthInfoStatus;
 import in.org.projecteka.hiu.dataflow.model.RequestStatus;
 import in.org.projecteka.hiu.dataflow.model.PatientDataRequestDetail;
+import in.org.projecteka.hiu.dataflow.model.TransactionContext;
+import io.vertx.core.Future;
 import io.vertx.pgclient.PgPool;
 import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.RowSet;
+import io.vertx.sqlclient.SqlClient;
 import io.vertx.sqlclient.Tuple;
 import lombok.AllArgsConstructor;
 import org.apache.logging.log4j.LogManager;
@@ -16,6 +20,7 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -53,8 +58,26 @@ public class DataFlowRepository {
                     "WHERE dfr.transaction_id=$1";
     private static final String UPDATE_HEALTH_DATA_AVAILABILITY = "UPDATE data_flow_parts SET status = $1, errors = " +
             "$2, latest_res_date = $3 WHERE transaction_id = $4 AND part_number = $5";
+    private static final String SELECT_DATA_PART_STATUSES = "SELECT status FROM data_flow_parts WHERE " +
+            "transaction_id = $1";
+    private static final String SELECT_STATUSES_OF_DATA_PART = "SELECT status FROM data_flow_parts WHERE " +
+            "transaction_id = $1 AND part_number = $2";
+    private static final String LOCK_DATA_FLOW_REQUEST = "SELECT transaction_id FROM data_flow_request WHERE " +
+            "transaction_id = $1 FOR UPDATE";
     private static final String SELECT_CONSENT_ID = "SELECT consent_artefact_id FROM data_flow_request WHERE " +
             "transaction_id = $1";
+    private static final String SELECT_HIP_ID = "SELECT ca.consent_artefact -> 'hip' ->> 'id' FROM " +
+            "data_flow_request dfr " +
+            "INNER JOIN consent_artefact ca ON dfr.consent_artefact_id = ca.consent_artefact_id " +
+            "WHERE dfr.transaction_id = $1";
+    private static final String SELECT_TRANSACTION_CONTEXT = "SELECT dfr.consent_artefact_id, " +
+            "ca.consent_artefact -> 'hip' ->> 'id' AS hip_id, " +
+            "ca.consent_artefact -> 'consentManager' ->> 'id' AS consent_manager_id, " +
+            "dfrk.key_pairs " +
+            "FROM data_flow_request dfr " +
+            "LEFT JOIN consent_artefact ca ON dfr.consent_artefact_id = ca.consent_artefact_id " +
+            "LEFT JOIN data_flow_request_keys dfrk ON dfr.transaction_id = dfrk.transaction_id " +
+            "WHERE dfr.transaction_id = $1 LIMIT 1";
 
     private static final String FETCH_DATA_PART_DETAILS = "select " +
             "ca.consent_artefact -> 'hip' ->> 'id' as hipId, " +
@@ -194,6 +217,55 @@ public class DataFlowRepository {
                         }));
     }
 
+    public Mono<String> getHipId(String transactionId) {
+        return Mono.create(monoSink -> readOnlyClient.preparedQuery(SELECT_HIP_ID)
+                .execute(Tuple.of(transactionId),
+                        handler -> {
+                            if (handler.failed()) {
+                                logger.error(handler.cause().getMessage(), handler.cause());
+                                monoSink.error(dbOperationFailure("Failed to get hip Id from transaction Id"));
+                                return;
+                            }
+                            var iterator = handler.result().iterator();
+                            if (!iterator.hasNext()) {
+                                monoSink.success();
+                                return;
+                            }
+                            monoSink.success(iterator.next().getString(0));
+                        }));
+    }
+
+    /**
+     * Read from the primary, as the context is read right after the keys are added.
+     */
+    public Mono<TransactionContext> getTransactionContext(String transactionId) {
+        return Mono.create(monoSink -> readWriteClient.preparedQuery(SELECT_TRANSACTION_CONTEXT)
+                .execute(Tuple.of(transactionId),
+                        handler -> {
+                            if (handler.failed()) {
+                                logger.error(handler.cause().getMessage(), handler.cause());
+                                monoSink.error(dbOperationFailure("Failed to get context of transaction"));
+                                return;
+                            }
+                            var iterator = handler.result().iterator();
+                            if (!iterator.hasNext()) {
+                                logger.error(format("Could not find data flow request for %s", transactionId));
+                                monoSink.success();
+                                return;
+                            }
+                            var row = iterator.next();
+                            var keyPairs = row.getValue("key_pairs");
+                            monoSink.success(TransactionContext.builder()
+                                    .transactionId(transactionId)
+                                    .consentId(row.getString("consent_artefact_id"))
+                                    .hipId(row.getString("hip_id"))
+                                    .consentManagerId(row.getString("consent_manager_id"))
+                                    .keyMaterial(keyPairs == null
+                                                 ? null
+                                                 : to(keyPairs.toString(), DataFlowRequestKeyMaterial.class))
+                                    .build());
+                        }));
+    }
 
     public Mono<Map<String, Object>> retrieveDataFlowRequest(String transactionId) {
         return Mono.create(monoSink -> readOnlyClient.preparedQuery(SELECT_DATA_FLOW_REQUEST_FOR_TRANSACTION)
@@ -237,15 +309,76 @@ public class DataFlowRepository {
 
     public Mono<Void> updateDataFlowWithStatus(String transactionId, String dataPartNumber, String allErrors,
                                                HealthInfoStatus status, LocalDateTime latestResourceDate) {
-        return Mono.create(monoSink -> readWriteClient.preparedQuery(UPDATE_HEALTH_DATA_AVAILABILITY)
-                .execute(Tuple.of(status.toString(), allErrors, latestResourceDate, transactionId, dataPartNumber),
+        return Mono.create(monoSink -> updateDataPartStatus(readWriteClient,
+                transactionId, dataPartNumber, allErrors, status, latestResourceDate)
+                .onComplete(handler -> {
+                    if (handler.failed()) {
+                        logger.error(handler.cause().getMessage(), handler.cause());
+                        monoSink.error(dbOperationFailure("Failed to update health data availability"));
+                        return;
+                    }
+                    monoSink.success();
+                }));
+    }
+
+    /**
+     * The status update of a data part, on a connection of the caller when it is to be in the same transaction as
+     * other writes.
+     */
+    public static Future<RowSet<Row>> updateDataPartStatus(SqlClient client,
+                                                           String transactionId,
+                                                           String dataPartNumber,
+                                                           String allErrors,
+                                                           HealthInfoStatus status,
+                                                           LocalDateTime latestResourceDate) {
+        return client.preparedQuery(UPDATE_HEALTH_DATA_AVAILABILITY)
+                .execute(Tuple.of(status.toString(), allErrors, latestResourceDate, transactionId, dataPartNumber));
+    }
+
+    /**
+     * Locks the data flow request of the transaction until the transaction of the caller ends, so that the status
+     * updates of the parts of a transaction commit one after the other.
+     */
+    public static Future<RowSet<Row>> lockDataFlowRequest(SqlClient client, String transactionId) {
+        return client.preparedQuery(LOCK_DATA_FLOW_REQUEST).execute(Tuple.of(transactionId));
+    }
+
+    /**
+     * The statuses of the parts of the transaction, on a connection of the caller so that its own uncommitted status
+     * update is among them.
+     */
+    public static Future<List<HealthInfoStatus>> getDataPartStatuses(SqlClient client, String transactionId) {
+        return client.preparedQuery(SELECT_DATA_PART_STATUSES)
+                .execute(Tuple.of(transactionId))
+                .map(rows -> {
+                    List<HealthInfoStatus> statuses = new ArrayList<>();
+                    for (Row row : rows) {
+                        var status = HealthInfoStatus.fromString(row.getString("status"));
+                        if (status != null) {
+                            statuses.add(status);
+                        }
+                    }
+                    return statuses;
+                });
+    }
+
+    /**
+     * The statuses of the data part, one for each time it was received.
+     */
+    public Mono<List<HealthInfoStatus>> getStatusesOfDataPart(String transactionId, String dataPartNumber) {
+        return Mono.create(monoSink -> readWriteClient.preparedQuery(SELECT_STATUSES_OF_DATA_PART)
+                .execute(Tuple.of(transactionId, dataPartNumber),
                         handler -> {
                             if (handler.failed()) {
                                 logger.error(handler.cause().getMessage(), handler.cause());
-                                monoSink.error(dbOperationFailure("Failed to update health data availability"));
+                                monoSink.error(dbOperationFailure("Failed to fetch data part statuses"));
                                 return;
                             }
-                            monoSink.success();
+                            List<HealthInfoStatus> statuses = new ArrayList<>();
+                            for (Row row : handler.result()) {
+                                statuses.add(HealthInfoStatus.fromString(row.getString("status")));
+                            }
+                            monoSink.success(statuses);
                         }));
     }
 
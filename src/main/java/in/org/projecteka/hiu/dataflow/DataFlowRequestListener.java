@@ -45,7 +45,7 @@ public class DataFlowRequestListener {
     private final DestinationsConfig destinationsConfig;
     private final DataFlowClient dataFlowClient;
     private final DataFlowRepository dataFlowRepository;
-    private final Decryptor decryptor;
+    private final KeyMaterialPool keyMaterialPool;
     private final DataFlowProperties dataFlowProperties;
     private final Gateway gateway;
     private final CacheAdapter<String, DataFlowRequestKeyMaterial> dataFlowCache;
@@ -74,7 +74,7 @@ public class DataFlowRequestListener {
             MDC.put(Constants.CORRELATION_ID, correlationId);
             logger.info("Received data flow request with consent id : {}", consentId);
             try {
-                var dataRequestKeyMaterial = dataFlowRequestKeyMaterial();
+                var dataRequestKeyMaterial = keyMaterialPool.take();
                 var keyMaterial = keyMaterial(dataRequestKeyMaterial);
                 dataFlowRequest.setKeyMaterial(keyMaterial);
 
@@ -121,17 +121,6 @@ public class DataFlowRequestListener {
         return patientId.split("@")[1];
     }
 
-    private DataFlowRequestKeyMaterial dataFlowRequestKeyMaterial() throws Exception {
-        var keyPair = decryptor.generateKeyPair();
-        var privateKey = decryptor.getBase64String(decryptor.getEncodedPrivateKey(keyPair.getPrivate()));
-        var publicKey = decryptor.getBase64String(decryptor.getEncodedPublicKey(keyPair.getPublic()));
-        return DataFlowRequestKeyMaterial.builder()
-                .privateKey(privateKey)
-                .publicKey(publicKey)
-                .randomKey(decryptor.generateRandomKey())
-                .build();
-    }
-
     private KeyMaterial keyMaterial(DataFlowRequestKeyMaterial dataFlowKeyMaterial) {
         logger.info("Creating KeyMaterials");
         return KeyMaterial.builder()
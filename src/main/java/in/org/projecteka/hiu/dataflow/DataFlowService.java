@@ -5,20 +5,23 @@ import in.org.projecteka.hiu.common.cache.CacheAdapter;
 import in.org.projecteka.hiu.consent.TokenUtils;
 import in.org.projecteka.hiu.dataflow.model.DataFlowRequestKeyMaterial;
 import in.org.projecteka.hiu.dataflow.model.DataFlowRequestResult;
-import in.org.projecteka.hiu.dataflow.model.DataNotificationRequest;
-import in.org.projecteka.hiu.dataflow.model.Entry;
 import in.org.projecteka.hiu.dataflow.model.HealthInfoStatus;
+import in.org.projecteka.hiu.dataflow.model.SpooledDataPart;
+import in.org.projecteka.hiu.dataprocessor.DataPartProcessor;
+import in.org.projecteka.hiu.dataprocessor.model.DataAvailableMessage;
 import lombok.AllArgsConstructor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 import java.util.stream.Collectors;
 
 import static reactor.core.publisher.Mono.defer;
@@ -27,30 +30,96 @@ import static reactor.core.publisher.Mono.defer;
 public class DataFlowService {
     public static final String TRANSACTION_ID = "transactionId";
     public static final String PATH_TO_FILE = "pathToFile";
+    public static final String PAGE_COUNT = "pageCount";
+    public static final String SEGMENT_REFERENCE = "segmentReference";
+    public static final String REJECTED_ENTRIES = "rejectedEntries";
+    public static final String ENTRIES_CHECKSUM = "entriesChecksum";
     private static final String DATA_PART_NUMBER = "partNumber";
+    private static final String SPOOL_DIRECTORY = ".spool";
     private final DataFlowRepository dataFlowRepository;
     private final DataAvailabilityPublisher dataAvailabilityPublisher;
     private final DataFlowServiceProperties dataFlowServiceProperties;
-    private final LocalDataStore localDataStore;
+    private final DataPartStore dataPartStore;
     private final CacheAdapter<String, DataFlowRequestKeyMaterial> dataFlowCache;
+    private final DataNotificationSpooler dataNotificationSpooler;
+    private final DataTransferAdmission dataTransferAdmission;
+    private final DataPartProcessor dataPartProcessor;
+    private final DataPartDeduplicator dataPartDeduplicator;
+    private final TransactionContexts transactionContexts;
 
     private static final Logger logger = LoggerFactory.getLogger(DataFlowService.class);
 
-    public Mono<Void> handleNotification(DataNotificationRequest dataNotificationRequest) {
-        logger.info("[DataFlowService] Received data transfer for transactionId={}", dataNotificationRequest.getTransactionId());
-        List<Entry> invalidEntries = dataNotificationRequest.getEntries().parallelStream().filter(entry ->
-                !(hasLink(entry) || hasContent(entry))).collect(Collectors.toList());
+    /**
+     * @param declaredLength Content-Length of the body, or 0 when it was not declared
+     */
+    public Mono<Void> handleNotification(Flux<DataBuffer> body, long declaredLength) {
+        return Mono.usingWhen(dataTransferAdmission.admit(declaredLength),
+                ticket -> spoolAndHandle(body, ticket),
+                ticket -> Mono.fromRunnable(ticket::release));
+    }
+
+    private Mono<Void> spoolAndHandle(Flux<DataBuffer> body, DataTransferAdmission.Ticket ticket) {
+        Path spoolFile = Paths.get(dataFlowServiceProperties.getLocalStoragePath(),
+                SPOOL_DIRECTORY,
+                String.format("%s.json", UUID.randomUUID()));
+        return dataNotificationSpooler.spool(body, spoolFile, admissionObserver(ticket))
+                .flatMap(dataPart -> handleDataPart(dataPart)
+                        .doOnError(throwable -> dataPartStore.discard(dataPart.getSpoolFile())));
+    }
+
+    private DataNotificationSpooler.Observer admissionObserver(DataTransferAdmission.Ticket ticket) {
+        return new DataNotificationSpooler.Observer() {
+            @Override
+            public void onBytesReceived(int bytes) throws ClientError {
+                ticket.onBytesReceived(bytes);
+            }
+
+            @Override
+            public Mono<Void> onTransactionId(String transactionId) {
+                if (!dataTransferAdmission.hasHipLimits()) {
+                    return Mono.empty();
+                }
+                return dataFlowRepository.getHipId(transactionId)
+                        .<Void>flatMap(hipId -> {
+                            try {
+                                ticket.assignHip(hipId);
+                                return Mono.empty();
+                            } catch (ClientError clientError) {
+                                return Mono.error(clientError);
+                            }
+                        });
+            }
+        };
+    }
 
-        if (!invalidEntries.isEmpty()) {
-            return Mono.error(ClientError.invalidEntryError("Entry must either have content or provide a link."));
+    private Mono<Void> handleDataPart(SpooledDataPart dataPart) {
+        if (!isValidPage(dataPart)) {
+            return Mono.error(ClientError.invalidDataPage());
         }
+        int dataFlowPartNo = partNumberOf(dataPart);
+        logger.info("[DataFlowService] Received data transfer for transactionId={}, part {} of {}, entries={}",
+                dataPart.getTransactionId(),
+                dataFlowPartNo,
+                pageCountOf(dataPart),
+                dataPart.getNumberOfEntries());
 
-        int dataFlowPartNo = 1;
-        return validateAndRetrieveRequestedConsent(dataNotificationRequest.getTransactionId())
-                .flatMap(consentRequestId -> serializeDataTransferred(dataNotificationRequest, consentRequestId,
-                        dataFlowPartNo))
+        return validateAndRetrieveRequestedConsent(dataPart.getTransactionId())
+                .flatMap(consentRequestId -> dataPartDeduplicator.claim(dataPart, dataFlowPartNo)
+                        .flatMap(claimed -> {
+                            if (!claimed) {
+                                dataPartStore.discard(dataPart.getSpoolFile());
+                                return Mono.empty();
+                            }
+                            return storeAndDispatch(dataPart, consentRequestId, dataFlowPartNo)
+                                    .onErrorResume(throwable -> dataPartDeduplicator.release(dataPart, dataFlowPartNo)
+                                            .then(Mono.error(throwable)));
+                        }));
+    }
+
+    private Mono<Void> storeAndDispatch(SpooledDataPart dataPart, String consentRequestId, int dataFlowPartNo) {
+        return storeDataTransferred(dataPart, consentRequestId, dataFlowPartNo)
                 .flatMap(contentReference -> saveDataAvailability(contentReference, dataFlowPartNo))
-                .flatMap(this::notifyDataProcessor);
+                .flatMap(contentReference -> dispatch(contentReference, dataPart));
     }
 
     private Mono<Map<String, String>> saveDataAvailability(Map<String, String> contentReference, int partNumber) {
@@ -61,6 +130,24 @@ public class DataFlowService {
                 .thenReturn(contentReference);
     }
 
+    /**
+     * Small parts are processed in-process once they are stored and marked received, everything else (and small
+     * parts that find the inline pool busy) goes through the process queue.
+     */
+    private Mono<Void> dispatch(Map<String, String> contentRef, SpooledDataPart dataPart) {
+        var message = new DataAvailableMessage(contentRef.get(TRANSACTION_ID),
+                contentRef.get(PATH_TO_FILE),
+                contentRef.get(DATA_PART_NUMBER),
+                Integer.parseInt(contentRef.get(PAGE_COUNT)),
+                contentRef.get(SEGMENT_REFERENCE),
+                contentRef.get(REJECTED_ENTRIES),
+                contentRef.get(ENTRIES_CHECKSUM));
+        if (dataPartProcessor.tryProcessInline(message, contentRef, dataPart.getSizeInBytes())) {
+            return Mono.empty();
+        }
+        return notifyDataProcessor(contentRef);
+    }
+
     private Mono<Void> notifyDataProcessor(Map<String, String> contentRef) {
         return dataAvailabilityPublisher.broadcastDataAvailability(contentRef);
     }
@@ -88,29 +175,48 @@ public class DataFlowService {
         return dataFlowRepository.updateDataRequest(transactionId, sessionStatus, requestId)
                 .then(defer(() -> dataFlowCache.get(requestId)))
                 .flatMap(dataFlowRequestKeyMaterial ->
-                        dataFlowRepository.addKeys(transactionId, dataFlowRequestKeyMaterial));
+                        dataFlowRepository.addKeys(transactionId, dataFlowRequestKeyMaterial))
+                .then(defer(() -> transactionContexts.load(transactionId)
+                        .then()
+                        .onErrorResume(throwable -> {
+                            logger.warn("[DataFlowService] Could not load context of transactionId={}, it is read " +
+                                    "when its first data part is processed", transactionId);
+                            return Mono.empty();
+                        })));
     }
 
-    private Mono<Map<String, String>> serializeDataTransferred(DataNotificationRequest dataNotificationRequest,
-                                                               String consentRequestId, int dataFlowPartNo) {
+    private Mono<Map<String, String>> storeDataTransferred(SpooledDataPart dataPart,
+                                                           String consentRequestId, int dataFlowPartNo) {
         Path pathToFile = Paths.get(dataFlowServiceProperties.getLocalStoragePath(),
                 getLocalDirectoryName(consentRequestId),
-                getLocalDirectoryName(dataNotificationRequest.getTransactionId()),
-                localFileNameToSave(dataNotificationRequest.getTransactionId(), dataFlowPartNo));
-        return localDataStore.serializeDataToFile(dataNotificationRequest, pathToFile)
-                .thenReturn(createContentAvailabilityRef(dataNotificationRequest, pathToFile));
+                getLocalDirectoryName(dataPart.getTransactionId()),
+                localFileNameToSave(dataPart.getTransactionId(), dataFlowPartNo));
+        return dataPartStore.store(dataPart.getSpoolFile(), pathToFile, dataPart.getTransactionId(), dataFlowPartNo)
+                .map(segmentReference -> {
+                    Map<String, String> contentRef = createContentAvailabilityRef(dataPart, pathToFile);
+                    contentRef.put(SEGMENT_REFERENCE, segmentReference.toString());
+                    return contentRef;
+                })
+                .switchIfEmpty(Mono.fromSupplier(() -> createContentAvailabilityRef(dataPart, pathToFile)));
     }
 
-    private Map<String, String> createContentAvailabilityRef(DataNotificationRequest dataNotificationRequest,
-                                                             Path pathToFile) {
+    private Map<String, String> createContentAvailabilityRef(SpooledDataPart dataPart, Path pathToFile) {
         Map<String, String> contentRef = new HashMap<>();
-        contentRef.put(TRANSACTION_ID, dataNotificationRequest.getTransactionId());
+        contentRef.put(TRANSACTION_ID, dataPart.getTransactionId());
         contentRef.put(PATH_TO_FILE, pathToFile.toString());
+        contentRef.put(PAGE_COUNT, String.valueOf(pageCountOf(dataPart)));
+        if (dataPart.getRejectedEntries() != null && !dataPart.getRejectedEntries().isEmpty()) {
+            contentRef.put(REJECTED_ENTRIES, dataPart.getRejectedEntries().stream()
+                    .map(String::valueOf)
+                    .collect(Collectors.joining(",")));
+        }
+        if (dataPart.getEntriesChecksum() != null) {
+            contentRef.put(ENTRIES_CHECKSUM, dataPart.getEntriesChecksum());
+        }
         return contentRef;
     }
 
     private String localFileNameToSave(String transactionId, int dataFlowPartNo) {
-        //TODO: potentially append part (e.g. page number)
         return String.format("%s_%d.json", TokenUtils.encode(transactionId), dataFlowPartNo);
     }
 
@@ -126,15 +232,28 @@ public class DataFlowService {
                 .doOnError(throwable -> logger.error(throwable.getMessage(), throwable));
     }
 
-    private boolean hasConsentArtefactExpired(LocalDateTime dataEraseAt) {
-        return dataEraseAt != null && dataEraseAt.isBefore(LocalDateTime.now());
+    private boolean isValidPage(SpooledDataPart dataPart) {
+        int pageCount = dataPart.getPageCount();
+        int pageNumber = dataPart.getPageNumber();
+        if (pageCount <= 1) {
+            return pageNumber <= 1;
+        }
+        return pageNumber >= 1 && pageNumber <= pageCount;
+    }
+
+    /**
+     * HIPs that do not paginate send pageNumber/pageCount as 0 (or leave them out), which is treated as
+     * the only part of the transfer. Pages can arrive in any order, each page is stored as its own part.
+     */
+    private int partNumberOf(SpooledDataPart dataPart) {
+        return Math.max(dataPart.getPageNumber(), 1);
     }
 
-    private boolean hasContent(Entry entry) {
-        return (entry.getContent() != null) && !entry.getContent().isBlank();
+    private int pageCountOf(SpooledDataPart dataPart) {
+        return Math.max(dataPart.getPageCount(), 1);
     }
 
-    private boolean hasLink(Entry entry) {
-        return (entry.getLink() != null) && !entry.getLink().isBlank();
+    private boolean hasConsentArtefactExpired(LocalDateTime dataEraseAt) {
+        return dataEraseAt != null && dataEraseAt.isBefore(LocalDateTime.now());
     }
 }
@@ -20,4 +20,20 @@ public class DataFlowServiceProperties {
     private String localStoragePath;
     private int dataFlowRequestWaitTime;
     private int dataPartWaitTime;
+    private boolean rawSpooling;
+    private int spoolCommitWindowMillis;
+    private int spoolCommitMaxBatch;
+    private long segmentSizeBytes;
+    private double segmentCompactionThreshold;
+    private int segmentCompactionIntervalMinutes;
+    private long inlineProcessingThresholdBytes;
+    private int inlineProcessingConcurrency;
+    private int fhirParserPoolSize;
+    private int entryProcessingThreads;
+    private long streamingBundleThresholdBytes;
+    private int bulkLoadThresholdRows;
+    private int bulkLoadChunkRows;
+    private int derivedKeyExpiryMinutes = 30;
+    private int transactionContextCacheSize = 10000;
+    private int transactionContextExpiryMinutes = 60;
 }
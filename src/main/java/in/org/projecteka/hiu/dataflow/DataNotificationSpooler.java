@@ -0,0 +1,471 @@
+package in.org.projecteka.hiu.dataflow;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import in.org.projecteka.hiu.ClientError;
+import in.org.projecteka.hiu.common.storage.PlainStorageCodec;
+import in.org.projecteka.hiu.common.storage.StorageCodec;
+import in.org.projecteka.hiu.common.storage.StorageFiles;
+import in.org.projecteka.hiu.dataflow.model.SpooledDataPart;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.CoderResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Writes a data transfer body to a spool file while it is being received, instead of binding it to a
+ * {@link in.org.projecteka.hiu.dataflow.model.DataNotificationRequest} first.
+ * <p>
+ * The body is tokenized with Jackson's non-blocking parser, so the memory held per transfer is bounded by the
+ * largest single token (usually one entry's content) and a few network chunks, not by the size of the payload.
+ * Entries are validated as each of them closes.
+ * <p>
+ * In raw mode the received buffers are written to the file as they are, and the parser is only used to validate;
+ * otherwise the parsed tokens are written back through a generator. Either way the file is encoded with the
+ * configured {@link StorageCodec}; with the plain codec raw buffers go to the file channel without a copy.
+ * <p>
+ * The checksums of the entries are hashed together as they go by, so a part that is pushed again can be recognised
+ * without reading it back. Each entry's content is also digested with the algorithm of the entry's checksum and
+ * checked against it; entries that do not match are reported with the part instead of failing the transfer, so
+ * they are not decrypted and parsed later only to fail. When the content comes before the checksum, as it does in
+ * most payloads, its encoded bytes are kept until the entry closes and the algorithm is known, so that memory is
+ * bounded by the largest content as well. Entries without a checksum are not digested.
+ */
+public class DataNotificationSpooler {
+    private static final Logger logger = LoggerFactory.getLogger(DataNotificationSpooler.class);
+    private static final int PREFETCH = 8;
+    private static final int DIGEST_BUFFER_SIZE = 8192;
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final boolean rawSpooling;
+    private final StorageCodec storageCodec;
+
+    public DataNotificationSpooler(boolean rawSpooling, StorageCodec storageCodec) {
+        this.rawSpooling = rawSpooling;
+        this.storageCodec = storageCodec;
+    }
+
+    public Mono<SpooledDataPart> spool(Flux<DataBuffer> body, Path spoolFile) {
+        return spool(body, spoolFile, Observer.NONE);
+    }
+
+    public Mono<SpooledDataPart> spool(Flux<DataBuffer> body, Path spoolFile, Observer observer) {
+        return Mono.using(() -> new SpoolingTokenStream(spoolFile),
+                tokenStream -> body
+                        .publishOn(Schedulers.boundedElastic(), PREFETCH)
+                        .doOnDiscard(DataBuffer.class, DataBufferUtils::release)
+                        .<Void>concatMap(dataBuffer -> {
+                            try {
+                                observer.onBytesReceived(dataBuffer.readableByteCount());
+                                tokenStream.feed(dataBuffer);
+                            } catch (ClientError clientError) {
+                                return Mono.error(clientError);
+                            } catch (JsonProcessingException e) {
+                                return Mono.error(malformedPayload(e));
+                            } catch (IOException e) {
+                                return Mono.error(e);
+                            } finally {
+                                DataBufferUtils.release(dataBuffer);
+                            }
+                            // Whatever the observer waits on completes elsewhere, the file is only written from here.
+                            return tokenStream.takeTransactionId()
+                                    .map(transactionId -> observer.onTransactionId(transactionId)
+                                            .publishOn(Schedulers.boundedElastic()))
+                                    .orElse(Mono.empty());
+                        }, 1)
+                        .then(Mono.defer(() -> {
+                            try {
+                                return Mono.just(tokenStream.finish());
+                            } catch (ClientError clientError) {
+                                return Mono.error(clientError);
+                            } catch (JsonProcessingException e) {
+                                return Mono.error(malformedPayload(e));
+                            } catch (IOException e) {
+                                return Mono.error(e);
+                            }
+                        })),
+                SpoolingTokenStream::close);
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ClientError malformedPayload(JsonProcessingException e) {
+        logger.error("Could not parse data transfer payload: {}", e.getOriginalMessage());
+        return ClientError.invalidEntryError("Data transfer payload is not valid JSON.");
+    }
+
+    /**
+     * Told about a transfer while it is being spooled; an error from either callback stops the transfer.
+     */
+    public interface Observer {
+        Observer NONE = new Observer() {
+            @Override
+            public void onBytesReceived(int bytes) {
+            }
+
+            @Override
+            public Mono<Void> onTransactionId(String transactionId) {
+                return Mono.empty();
+            }
+        };
+
+        /**
+         * Called before a received chunk is written.
+         */
+        void onBytesReceived(int bytes) throws ClientError;
+
+        /**
+         * Called once, as soon as the transaction id has been read; the rest of the body waits until it completes.
+         */
+        Mono<Void> onTransactionId(String transactionId);
+    }
+
+    private class SpoolingTokenStream {
+        private static final String ENTRIES = "entries";
+        private static final String PAGE_NUMBER = "pageNumber";
+        private static final String PAGE_COUNT = "pageCount";
+        private static final String TRANSACTION_ID = "transactionId";
+        private static final String CONTENT = "content";
+        private static final String LINK = "link";
+        private static final String CHECKSUM = "checksum";
+        private static final int ROOT_DEPTH = 1;
+        private static final int ENTRY_DEPTH = 3;
+
+        private final Path spoolFile;
+        private final JsonParser parser;
+        private final ByteArrayFeeder feeder;
+        private final JsonGenerator generator;
+        private final WritableByteChannel rawChannel;
+        private final SpooledDataPart.SpooledDataPartBuilder dataPart;
+        private int depth;
+        private int numberOfEntries;
+        private long sizeInBytes;
+        private String rootField;
+        private String entryField;
+        private boolean entryHasData;
+        private String entryChecksum;
+        private boolean entryWithoutChecksum;
+        private final Hasher entriesChecksum = Hashing.sha256().newHasher();
+        private byte[] entryContentDigest;
+        private ByteBuffer pendingContent;
+        private boolean contentPending;
+        private final List<Integer> rejectedEntries = new ArrayList<>();
+        private final Map<String, MessageDigest> digests = new HashMap<>();
+        private final CharsetEncoder contentEncoder = UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final ByteBuffer digestBuffer = ByteBuffer.allocate(DIGEST_BUFFER_SIZE);
+        private boolean rootClosed;
+        private boolean finished;
+        private String transactionId;
+        private boolean transactionIdTaken;
+
+        SpoolingTokenStream(Path spoolFile) throws IOException {
+            Files.createDirectories(spoolFile.getParent());
+            this.spoolFile = spoolFile;
+            this.parser = jsonFactory.createNonBlockingByteArrayParser();
+            this.feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+            if (rawSpooling) {
+                this.rawChannel = storageCodec instanceof PlainStorageCodec
+                        ? FileChannel.open(spoolFile, CREATE_NEW, WRITE)
+                        : Channels.newChannel(StorageFiles.newOutputStream(storageCodec, spoolFile, CREATE_NEW, WRITE));
+                this.generator = null;
+            } else {
+                this.rawChannel = null;
+                this.generator = jsonFactory.createGenerator(
+                        StorageFiles.newOutputStream(storageCodec, spoolFile, CREATE_NEW, WRITE),
+                        JsonEncoding.UTF8);
+            }
+            this.dataPart = SpooledDataPart.builder().spoolFile(spoolFile);
+        }
+
+        void feed(DataBuffer dataBuffer) throws IOException, ClientError {
+            ByteBuffer received = dataBuffer.asByteBuffer();
+            sizeInBytes += received.remaining();
+            if (rawSpooling) {
+                ByteBuffer toWrite = received.duplicate();
+                while (toWrite.hasRemaining()) {
+                    rawChannel.write(toWrite);
+                }
+            }
+            // The parser only borrows the array until it is drained below, so a heap buffer is fed without a copy.
+            if (received.hasArray()) {
+                int start = received.arrayOffset() + received.position();
+                feeder.feedInput(received.array(), start, start + received.remaining());
+            } else {
+                byte[] chunk = new byte[received.remaining()];
+                received.get(chunk);
+                feeder.feedInput(chunk, 0, chunk.length);
+            }
+            drain();
+        }
+
+        SpooledDataPart finish() throws IOException, ClientError {
+            feeder.endOfInput();
+            drain();
+            if (!rootClosed) {
+                throw ClientError.invalidEntryError("Data transfer payload is incomplete.");
+            }
+            closeOutput();
+            finished = true;
+            return dataPart.numberOfEntries(numberOfEntries)
+                    .sizeInBytes(sizeInBytes)
+                    .entriesChecksum(numberOfEntries == 0 || entryWithoutChecksum
+                                     ? null
+                                     : entriesChecksum.hash().toString())
+                    .rejectedEntries(List.copyOf(rejectedEntries))
+                    .build();
+        }
+
+        Optional<String> takeTransactionId() {
+            if (transactionIdTaken || transactionId == null) {
+                return Optional.empty();
+            }
+            transactionIdTaken = true;
+            return Optional.of(transactionId);
+        }
+
+        void close() {
+            try {
+                parser.close();
+                closeOutput();
+            } catch (IOException e) {
+                logger.error(e.getMessage());
+            }
+            if (finished) {
+                return;
+            }
+            try {
+                Files.deleteIfExists(spoolFile);
+            } catch (IOException e) {
+                logger.error("Could not delete spool file {}", spoolFile, e);
+            }
+        }
+
+        private void closeOutput() throws IOException {
+            if (rawSpooling) {
+                rawChannel.close();
+            } else {
+                generator.close();
+            }
+        }
+
+        private void drain() throws IOException, ClientError {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+                if (rootClosed) {
+                    throw ClientError.invalidEntryError("Data transfer payload must be a single JSON object.");
+                }
+                track(token);
+                if (!rawSpooling) {
+                    generator.copyCurrentEvent(parser);
+                }
+            }
+        }
+
+        private void track(JsonToken token) throws IOException, ClientError {
+            switch (token) {
+                case START_OBJECT:
+                case START_ARRAY:
+                    if (depth == 0 && token != JsonToken.START_OBJECT) {
+                        throw ClientError.invalidEntryError("Data transfer payload must be a JSON object.");
+                    }
+                    depth++;
+                    if (depth == ENTRY_DEPTH && inEntries() && token == JsonToken.START_OBJECT) {
+                        entryHasData = false;
+                        entryField = null;
+                        entryChecksum = null;
+                        entryContentDigest = null;
+                        contentPending = false;
+                    }
+                    return;
+                case END_OBJECT:
+                case END_ARRAY:
+                    if (depth == ENTRY_DEPTH && inEntries() && token == JsonToken.END_OBJECT) {
+                        if (!entryHasData) {
+                            throw ClientError.invalidEntryError("Entry must either have content or provide a link.");
+                        }
+                        verifyEntryChecksum();
+                        numberOfEntries++;
+                        addToEntriesChecksum();
+                    }
+                    depth--;
+                    rootClosed = depth == 0;
+                    return;
+                case FIELD_NAME:
+                    if (depth == ROOT_DEPTH) {
+                        rootField = parser.getCurrentName();
+                    } else if (depth == ENTRY_DEPTH && inEntries()) {
+                        entryField = parser.getCurrentName();
+                    }
+                    return;
+                default:
+                    trackValue(token);
+            }
+        }
+
+        private void trackValue(JsonToken token) throws IOException {
+            if (depth == ROOT_DEPTH) {
+                if (PAGE_NUMBER.equals(rootField) && token == JsonToken.VALUE_NUMBER_INT) {
+                    dataPart.pageNumber(parser.getIntValue());
+                } else if (PAGE_COUNT.equals(rootField) && token == JsonToken.VALUE_NUMBER_INT) {
+                    dataPart.pageCount(parser.getIntValue());
+                } else if (TRANSACTION_ID.equals(rootField) && token == JsonToken.VALUE_STRING) {
+                    transactionId = parser.getText();
+                    dataPart.transactionId(transactionId);
+                }
+                return;
+            }
+            if (depth != ENTRY_DEPTH || !inEntries() || token != JsonToken.VALUE_STRING) {
+                return;
+            }
+            if (CHECKSUM.equals(entryField)) {
+                entryChecksum = parser.getText();
+            } else if ((CONTENT.equals(entryField) || LINK.equals(entryField)) && !isBlankText()) {
+                entryHasData = true;
+                if (CONTENT.equals(entryField)) {
+                    digestContent();
+                }
+            }
+        }
+
+        /**
+         * Digests the content when the checksum came before it, otherwise keeps it for
+         * {@link #verifyEntryChecksum()}.
+         */
+        private void digestContent() throws IOException {
+            if (entryChecksum == null) {
+                bufferContent();
+                return;
+            }
+            Optional<DeclaredChecksum> declared = DeclaredChecksum.parse(entryChecksum);
+            if (declared.isPresent()) {
+                MessageDigest digest = digests.computeIfAbsent(declared.get().getAlgorithm(),
+                        DataNotificationSpooler::newDigest);
+                encodeContent(digest::update);
+                entryContentDigest = digest.digest();
+            }
+        }
+
+        private void bufferContent() throws IOException {
+            int length = parser.getTextLength();
+            if (pendingContent == null || pendingContent.capacity() < length) {
+                pendingContent = ByteBuffer.allocate(length);
+            }
+            pendingContent.clear();
+            encodeContent(encoded -> {
+                if (pendingContent.remaining() < encoded.remaining()) {
+                    int capacity = Math.max(pendingContent.capacity() * 2,
+                            pendingContent.position() + encoded.remaining());
+                    pendingContent = ByteBuffer.allocate(capacity).put(pendingContent.flip());
+                }
+                pendingContent.put(encoded);
+            });
+            pendingContent.flip();
+            contentPending = true;
+        }
+
+        private void encodeContent(Consumer<ByteBuffer> sink) throws IOException {
+            CharBuffer content = CharBuffer.wrap(parser.getTextCharacters(),
+                    parser.getTextOffset(),
+                    parser.getTextLength());
+            contentEncoder.reset();
+            CoderResult result;
+            do {
+                result = contentEncoder.encode(content, digestBuffer, true);
+                drainDigestBuffer(sink);
+            } while (result.isOverflow());
+            while (contentEncoder.flush(digestBuffer).isOverflow()) {
+                drainDigestBuffer(sink);
+            }
+            drainDigestBuffer(sink);
+        }
+
+        private void drainDigestBuffer(Consumer<ByteBuffer> sink) {
+            digestBuffer.flip();
+            sink.accept(digestBuffer);
+            digestBuffer.clear();
+        }
+
+        private void verifyEntryChecksum() {
+            DeclaredChecksum.parse(entryChecksum).ifPresent(declared -> {
+                byte[] digest = entryContentDigest;
+                if (contentPending) {
+                    MessageDigest contentDigest = digests.computeIfAbsent(declared.getAlgorithm(),
+                            DataNotificationSpooler::newDigest);
+                    contentDigest.update(pendingContent);
+                    digest = contentDigest.digest();
+                }
+                if (digest != null && !declared.matches(digest)) {
+                    logger.warn("Checksum of entry {} of transaction {} does not match its content",
+                            numberOfEntries, transactionId);
+                    rejectedEntries.add(numberOfEntries);
+                }
+            });
+        }
+
+        private void addToEntriesChecksum() {
+            if (entryChecksum == null || entryChecksum.isBlank()) {
+                entryWithoutChecksum = true;
+                return;
+            }
+            entriesChecksum.putString(entryChecksum, UTF_8).putByte((byte) 0);
+        }
+
+        private boolean inEntries() {
+            return ENTRIES.equals(rootField);
+        }
+
+        // Looks at the parser's own buffer, so a multi-megabyte content is not copied into a String to be checked.
+        private boolean isBlankText() throws IOException {
+            char[] text = parser.getTextCharacters();
+            int end = parser.getTextOffset() + parser.getTextLength();
+            for (int i = parser.getTextOffset(); i < end; i++) {
+                if (!Character.isWhitespace(text[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package in.org.projecteka.hiu.dataflow;
+
+import in.org.projecteka.hiu.common.cache.CacheAdapter;
+import in.org.projecteka.hiu.dataflow.model.SpooledDataPart;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+
+/**
+ * Remembers which data parts were received, keyed by transaction id, part number and the checksums of the part's
+ * entries, so that a part a HIP pushes again (usually after timing out on the first push) is not stored and
+ * processed twice.
+ * <p>
+ * A part is claimed before it is stored rather than after it is processed, which also catches a retry that arrives
+ * while the first push is still in progress, and two pushes arriving together claim it as one: the claim is a single
+ * put-if-absent on the cache. The claim is given up if storing the part fails, or if processing it fails, so that
+ * the HIP pushing it again has it processed again. Parts with an entry that
+ * carries no checksum are never treated as duplicates.
+ */
+public class DataPartDeduplicator {
+    private static final Logger logger = LoggerFactory.getLogger(DataPartDeduplicator.class);
+
+    private final CacheAdapter<String, String> receivedParts;
+    private final Counter duplicateParts;
+
+    public DataPartDeduplicator(CacheAdapter<String, String> receivedParts, MeterRegistry meterRegistry) {
+        this.receivedParts = receivedParts;
+        this.duplicateParts = meterRegistry.counter("hiu.data.part.duplicates");
+    }
+
+    /**
+     * @return false when the same part was already received for the transaction
+     */
+    public Mono<Boolean> claim(SpooledDataPart dataPart, int partNumber) {
+        if (dataPart.getEntriesChecksum() == null) {
+            return Mono.just(true);
+        }
+        return receivedParts.putIfAbsent(keyOf(dataPart, partNumber), dataPart.getTransactionId())
+                .map(claimed -> {
+                    if (!Boolean.TRUE.equals(claimed)) {
+                        duplicateParts.increment();
+                        logger.info("Part {} of transaction {} was already received, ignoring it",
+                                partNumber, dataPart.getTransactionId());
+                        return false;
+                    }
+                    return true;
+                });
+    }
+
+    public Mono<Void> release(SpooledDataPart dataPart, int partNumber) {
+        return release(dataPart.getTransactionId(), partNumber, dataPart.getEntriesChecksum());
+    }
+
+    public Mono<Void> release(String transactionId, int partNumber, String entriesChecksum) {
+        if (entriesChecksum == null) {
+            return Mono.empty();
+        }
+        return receivedParts.invalidate(keyOf(transactionId, partNumber, entriesChecksum));
+    }
+
+    private static String keyOf(SpooledDataPart dataPart, int partNumber) {
+        return keyOf(dataPart.getTransactionId(), partNumber, dataPart.getEntriesChecksum());
+    }
+
+    private static String keyOf(String transactionId, int partNumber, String entriesChecksum) {
+        return String.format("%s:%d:%s", transactionId, partNumber, entriesChecksum);
+    }
+}
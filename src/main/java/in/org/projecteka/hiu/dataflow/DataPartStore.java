@@ -0,0 +1,35 @@
+package in.org.projecteka.hiu.dataflow;
+
+import in.org.projecteka.hiu.dataflow.model.SegmentReference;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * Storage engine for received data parts, chosen with hiu.dataflowservice.storage-engine.
+ */
+public interface DataPartStore {
+    /**
+     * Takes a fully spooled data part in. Completes once the part is durable, with its segment reference when the
+     * engine keeps one; otherwise the part is at {@code pathToFile}.
+     */
+    Mono<SegmentReference> store(Path spoolFile, Path pathToFile, String transactionId, int partNumber);
+
+    /**
+     * Opens a part stored under a segment reference, decoded: at the reference, or where the part was moved to
+     * since it was stored.
+     */
+    InputStream open(String transactionId, int partNumber, SegmentReference reference) throws IOException;
+
+    /**
+     * Deletes a spool file that is not going to be stored.
+     */
+    void discard(Path spoolFile);
+
+    /**
+     * Drops everything kept for a transaction, including the attachments under its directory.
+     */
+    void deleteTransaction(String transactionId, Path transactionDirectory);
+}
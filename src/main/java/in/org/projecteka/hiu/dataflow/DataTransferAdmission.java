@@ -0,0 +1,280 @@
+package in.org.projecteka.hiu.dataflow;
+
+import in.org.projecteka.hiu.ClientError;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.QueueInformation;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a data transfer pushed by a HIP is taken in, before any of its body is read.
+ * <p>
+ * Every admitted transfer holds a {@link Ticket} until it has been handed over to the data processor. The ticket
+ * counts the transfer and its bytes against the global limits and, once the transaction tells which HIP sent it,
+ * against that HIP's limits as well. Bytes are reserved as they arrive (or all at once when a Content-Length was
+ * declared), so a transfer that outgrows the limits is cut off midway. A limit never turns away a transfer when
+ * nothing else is holding it, so one oversized transfer is slowed down but not starved.
+ * <p>
+ * Transfers going over a limit get a 429. When the process queue or the disk under the local storage path is
+ * above its high watermark, every transfer gets a 503 until it comes back down. Both carry a Retry-After.
+ * The limits are kept per instance.
+ */
+public class DataTransferAdmission {
+    public static final String REJECTED_TRANSFERS = "hiu.data.transfer.rejected";
+    static final String TRANSFERS = "transfers";
+    static final String BYTES = "bytes";
+    static final String HIP_TRANSFERS = "hip_transfers";
+    static final String HIP_BYTES = "hip_bytes";
+    static final String QUEUE_DEPTH = "queue_depth";
+    static final String DISK_USAGE = "disk_usage";
+    private static final Logger logger = LoggerFactory.getLogger(DataTransferAdmission.class);
+
+    private final AdmissionProperties properties;
+    private final AmqpAdmin amqpAdmin;
+    private final String processQueue;
+    private final Path storagePath;
+    private final MeterRegistry meterRegistry;
+    private final AtomicLong inFlightTransfers;
+    private final AtomicLong inFlightBytes;
+    private final AtomicLong queueDepth;
+    private final Map<String, HipUsage> hipUsages = new ConcurrentHashMap<>();
+    private volatile double diskUsage;
+    private Disposable watermarkCheck;
+
+    public DataTransferAdmission(AdmissionProperties properties,
+                                 AmqpAdmin amqpAdmin,
+                                 String processQueue,
+                                 Path storagePath,
+                                 MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.amqpAdmin = amqpAdmin;
+        this.processQueue = processQueue;
+        this.storagePath = storagePath;
+        this.meterRegistry = meterRegistry;
+        this.inFlightTransfers = meterRegistry.gauge("hiu.data.transfer.in.flight", new AtomicLong());
+        this.inFlightBytes = meterRegistry.gauge("hiu.data.transfer.in.flight.bytes", new AtomicLong());
+        this.queueDepth = meterRegistry.gauge("hiu.data.transfer.process.queue.depth", new AtomicLong());
+        meterRegistry.gauge("hiu.data.transfer.storage.disk.usage", this, admission -> admission.diskUsage);
+    }
+
+    @PostConstruct
+    public void startWatermarkCheck() {
+        if (properties.getQueueDepthHighWatermark() <= 0 && properties.getDiskUsageHighWatermark() <= 0) {
+            return;
+        }
+        refreshWatermarks();
+        watermarkCheck = Flux.interval(Duration.ofSeconds(properties.getWatermarkCheckIntervalSeconds()),
+                Schedulers.boundedElastic())
+                .subscribe(tick -> refreshWatermarks());
+    }
+
+    @PreDestroy
+    public void stopWatermarkCheck() {
+        if (watermarkCheck != null) {
+            watermarkCheck.dispose();
+        }
+    }
+
+    public boolean hasHipLimits() {
+        return properties.getMaxInFlightTransfersPerHip() > 0 || properties.getMaxInFlightBytesPerHip() > 0;
+    }
+
+    /**
+     * @param declaredBytes Content-Length of the transfer, or 0 when it was not declared
+     */
+    public Mono<Ticket> admit(long declaredBytes) {
+        return Mono.defer(() -> {
+            if (properties.getQueueDepthHighWatermark() > 0
+                    && queueDepth.get() >= properties.getQueueDepthHighWatermark()) {
+                return Mono.error(rejected(QUEUE_DEPTH,
+                        ClientError.dataTransferServiceBusy(properties.getRetryAfterSeconds())));
+            }
+            if (properties.getDiskUsageHighWatermark() > 0 && diskUsage >= properties.getDiskUsageHighWatermark()) {
+                return Mono.error(rejected(DISK_USAGE,
+                        ClientError.dataTransferServiceBusy(properties.getRetryAfterSeconds())));
+            }
+            if (!tryAdd(inFlightTransfers, 1, properties.getMaxInFlightTransfers())) {
+                return Mono.error(throttled(TRANSFERS));
+            }
+            var ticket = new Ticket();
+            try {
+                ticket.reserve(declaredBytes);
+            } catch (ClientError clientError) {
+                ticket.release();
+                return Mono.error(clientError);
+            }
+            return Mono.just(ticket);
+        });
+    }
+
+    void refreshWatermarks() {
+        if (properties.getQueueDepthHighWatermark() > 0) {
+            try {
+                QueueInformation queueInfo = amqpAdmin.getQueueInfo(processQueue);
+                queueDepth.set(queueInfo == null ? 0 : queueInfo.getMessageCount());
+            } catch (RuntimeException e) {
+                logger.error("Could not read depth of queue {}", processQueue, e);
+            }
+        }
+        if (properties.getDiskUsageHighWatermark() > 0) {
+            try {
+                FileStore fileStore = Files.getFileStore(existingAncestorOf(storagePath));
+                diskUsage = 1 - (double) fileStore.getUsableSpace() / fileStore.getTotalSpace();
+            } catch (IOException e) {
+                logger.error("Could not read disk usage of {}", storagePath, e);
+            }
+        }
+    }
+
+    private static Path existingAncestorOf(Path path) {
+        Path existing = path.toAbsolutePath();
+        while (existing.getParent() != null && !Files.exists(existing)) {
+            existing = existing.getParent();
+        }
+        return existing;
+    }
+
+    private static boolean tryAdd(AtomicLong counter, long amount, long limit) {
+        while (true) {
+            long current = counter.get();
+            if (limit > 0 && current > 0 && current + amount > limit) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current + amount)) {
+                return true;
+            }
+        }
+    }
+
+    private String tryAddForHip(String hipId, long transfers, long bytes) {
+        String[] rejection = new String[1];
+        hipUsages.compute(hipId, (id, usage) -> {
+            HipUsage current = usage == null ? new HipUsage() : usage;
+            rejection[0] = current.rejectionFor(transfers, bytes);
+            if (rejection[0] == null) {
+                current.add(transfers, bytes);
+            }
+            return current.isIdle() ? null : current;
+        });
+        return rejection[0];
+    }
+
+    private void releaseForHip(String hipId, long transfers, long bytes) {
+        hipUsages.computeIfPresent(hipId, (id, usage) -> {
+            usage.add(-transfers, -bytes);
+            return usage.isIdle() ? null : usage;
+        });
+    }
+
+    private ClientError throttled(String reason) {
+        return rejected(reason, ClientError.dataTransferThrottled(properties.getRetryAfterSeconds()));
+    }
+
+    private ClientError rejected(String reason, ClientError error) {
+        meterRegistry.counter(REJECTED_TRANSFERS, "reason", reason).increment();
+        logger.warn("Rejected data transfer, limit reached: {}", reason);
+        return error;
+    }
+
+    private class HipUsage {
+        private long transfers;
+        private long bytes;
+
+        String rejectionFor(long moreTransfers, long moreBytes) {
+            long maxTransfers = properties.getMaxInFlightTransfersPerHip();
+            long maxBytes = properties.getMaxInFlightBytesPerHip();
+            if (moreTransfers > 0 && maxTransfers > 0 && transfers > 0 && transfers + moreTransfers > maxTransfers) {
+                return HIP_TRANSFERS;
+            }
+            if (moreBytes > 0 && maxBytes > 0 && bytes > 0 && bytes + moreBytes > maxBytes) {
+                return HIP_BYTES;
+            }
+            return null;
+        }
+
+        void add(long moreTransfers, long moreBytes) {
+            transfers += moreTransfers;
+            bytes += moreBytes;
+        }
+
+        boolean isIdle() {
+            return transfers == 0 && bytes == 0;
+        }
+    }
+
+    /**
+     * Holds the share of the limits taken by one transfer, until it is released.
+     */
+    public class Ticket {
+        private long reservedBytes;
+        private long receivedBytes;
+        private String hipId;
+        private boolean released;
+
+        private Ticket() {
+        }
+
+        public synchronized void onBytesReceived(int bytes) throws ClientError {
+            receivedBytes += bytes;
+            if (receivedBytes > reservedBytes) {
+                reserve(receivedBytes - reservedBytes);
+            }
+        }
+
+        public synchronized void assignHip(String hipId) throws ClientError {
+            if (this.hipId != null || released) {
+                return;
+            }
+            String rejection = tryAddForHip(hipId, 1, reservedBytes);
+            if (rejection != null) {
+                throw throttled(rejection);
+            }
+            this.hipId = hipId;
+        }
+
+        public synchronized void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            inFlightTransfers.decrementAndGet();
+            inFlightBytes.addAndGet(-reservedBytes);
+            if (hipId != null) {
+                releaseForHip(hipId, 1, reservedBytes);
+            }
+        }
+
+        private void reserve(long bytes) throws ClientError {
+            if (bytes <= 0) {
+                return;
+            }
+            if (!tryAdd(inFlightBytes, bytes, properties.getMaxInFlightBytes())) {
+                throw throttled(BYTES);
+            }
+            if (hipId != null) {
+                String rejection = tryAddForHip(hipId, 0, bytes);
+                if (rejection != null) {
+                    inFlightBytes.addAndGet(-bytes);
+                    throw throttled(rejection);
+                }
+            }
+            reservedBytes += bytes;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package in.org.projecteka.hiu.dataflow;
+
+import com.google.common.io.BaseEncoding;
+
+import java.security.MessageDigest;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * The checksum a HIP sent with an entry, over the entry's content as sent.
+ * <p>
+ * The algorithm is either declared with a prefix ({@code sha256:...}) or recognised from the length of the value,
+ * which may be hex or base64 encoded. A checksum that cannot be read this way is not verified.
+ */
+class DeclaredChecksum {
+    private static final Map<String, String> PREFIXES = Map.of(
+            "md5", "MD5",
+            "sha1", "SHA-1",
+            "sha-1", "SHA-1",
+            "sha256", "SHA-256",
+            "sha-256", "SHA-256",
+            "sha512", "SHA-512",
+            "sha-512", "SHA-512");
+    private static final Map<Integer, String> DIGEST_LENGTHS = Map.of(
+            16, "MD5",
+            20, "SHA-1",
+            32, "SHA-256",
+            64, "SHA-512");
+
+    private final String algorithm;
+    private final byte[] expected;
+
+    private DeclaredChecksum(String algorithm, byte[] expected) {
+        this.algorithm = algorithm;
+        this.expected = expected;
+    }
+
+    static Optional<DeclaredChecksum> parse(String checksum) {
+        if (checksum == null || checksum.isBlank()) {
+            return Optional.empty();
+        }
+        String value = checksum.trim();
+        String declaredAlgorithm = null;
+        int separator = value.indexOf(':');
+        if (separator > 0) {
+            declaredAlgorithm = PREFIXES.get(value.substring(0, separator).toLowerCase(Locale.ROOT));
+            if (declaredAlgorithm == null) {
+                return Optional.empty();
+            }
+            value = value.substring(separator + 1);
+        }
+        byte[] digest = decode(value);
+        if (digest == null) {
+            return Optional.empty();
+        }
+        String algorithm = DIGEST_LENGTHS.get(digest.length);
+        if (algorithm == null || (declaredAlgorithm != null && !declaredAlgorithm.equals(algorithm))) {
+            return Optional.empty();
+        }
+        return Optional.of(new DeclaredChecksum(algorithm, digest));
+    }
+
+    String getAlgorithm() {
+        return algorithm;
+    }
+
+    boolean matches(byte[] digest) {
+        return MessageDigest.isEqual(expected, digest);
+    }
+
+    private static byte[] decode(String value) {
+        BaseEncoding hex = BaseEncoding.base16().lowerCase();
+        String lowerCase = value.toLowerCase(Locale.ROOT);
+        if (hex.canDecode(lowerCase)) {
+            return hex.decode(lowerCase);
+        }
+        if (BaseEncoding.base64().canDecode(value)) {
+            return BaseEncoding.base64().decode(value);
+        }
+        return null;
+    }
+}
@@ -1,7 +1,11 @@
 package in.org.projecteka.hiu.dataflow;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
 import in.org.projecteka.hiu.dataflow.model.DataFlowRequestKeyMaterial;
 import in.org.projecteka.hiu.dataflow.model.KeyMaterial;
+import lombok.Value;
 import org.bouncycastle.asn1.x9.X9ECParameters;
 import org.bouncycastle.crypto.DataLengthException;
 import org.bouncycastle.crypto.InvalidCipherTextException;
@@ -9,6 +13,8 @@ import org.bouncycastle.crypto.digests.SHA256Digest;
 import org.bouncycastle.crypto.ec.CustomNamedCurves;
 import org.bouncycastle.crypto.engines.AESEngine;
 import org.bouncycastle.crypto.generators.HKDFBytesGenerator;
+import org.bouncycastle.crypto.io.CipherInputStream;
+import org.bouncycastle.crypto.io.InvalidCipherTextIOException;
 import org.bouncycastle.crypto.modes.GCMBlockCipher;
 import org.bouncycastle.crypto.params.AEADParameters;
 import org.bouncycastle.crypto.params.HKDFParameters;
@@ -22,6 +28,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.crypto.KeyAgreement;
+import java.io.InputStream;
 import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidAlgorithmParameterException;
@@ -35,7 +42,11 @@ import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.Security;
 import java.security.spec.X509EncodedKeySpec;
+import java.time.Duration;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class Decryptor {
     public static final String ALGORITHM = "ECDH";
@@ -44,9 +55,25 @@ public class Decryptor {
     public static final String EH_PUBLIC_KEY_PARAMETER = "Ephemeral public key";
 
     private static final Logger logger = LoggerFactory.getLogger(Decryptor.class);
+    private static final Duration DERIVED_KEY_EXPIRY = Duration.ofMinutes(30);
+    private static final long MAX_DERIVED_KEYS = 10000;
+
+    private final Cache<DerivedKeyId, DerivedKey> derivedKeys;
 
     public Decryptor(){
+        this(DERIVED_KEY_EXPIRY);
+    }
+
+    /**
+     * @param derivedKeyExpiry how long the key derived for a transaction is kept after its last use
+     */
+    public Decryptor(Duration derivedKeyExpiry){
         Security.addProvider(new BouncyCastleProvider());
+        derivedKeys = CacheBuilder.newBuilder()
+                .expireAfterAccess(derivedKeyExpiry)
+                .maximumSize(MAX_DERIVED_KEYS)
+                .removalListener((RemovalListener<DerivedKeyId, DerivedKey>) removed -> removed.getValue().destroy())
+                .build();
     }
 
     public String generateRandomKey() {
@@ -82,14 +109,81 @@ public class Decryptor {
     public String decrypt(KeyMaterial receivedKeyMaterial,
                           DataFlowRequestKeyMaterial savedKeyMaterial,
                           String encryptedMessage) throws Exception {
+        return decrypt(getBytesForBase64String(encryptedMessage), newCipher(receivedKeyMaterial, savedKeyMaterial));
+    }
+
+    /**
+     * Same as {@link #decrypt(KeyMaterial, DataFlowRequestKeyMaterial, String)}, but the AES key and IV derived for
+     * the transaction are kept and reused for its other entries, all of which are encrypted with the same key
+     * material.
+     */
+    public String decrypt(String transactionId,
+                          KeyMaterial receivedKeyMaterial,
+                          DataFlowRequestKeyMaterial savedKeyMaterial,
+                          String encryptedMessage) throws Exception {
+        return decrypt(getBytesForBase64String(encryptedMessage),
+                transactionCipher(transactionId, receivedKeyMaterial, savedKeyMaterial));
+    }
+
+    /**
+     * Decrypts the base64 encoded message as it is read, without holding the whole ciphertext or plaintext.
+     * <p>
+     * The authentication tag is only checked once the end of the stream is reached, where a mismatch fails the read
+     * with an {@link InvalidCipherTextIOException}; content read before that must not be relied on until then.
+     */
+    public InputStream decryptStream(String transactionId,
+                                     KeyMaterial receivedKeyMaterial,
+                                     DataFlowRequestKeyMaterial savedKeyMaterial,
+                                     String encryptedMessage) throws Exception {
+        InputStream encryptedBytes = Base64.getMimeDecoder().wrap(new CharactersInputStream(encryptedMessage));
+        return new CipherInputStream(encryptedBytes,
+                transactionCipher(transactionId, receivedKeyMaterial, savedKeyMaterial));
+    }
+
+    /**
+     * Wipes the keys derived for the transaction, once all of its parts are processed.
+     */
+    public void forget(String transactionId) {
+        derivedKeys.asMap().keySet().removeIf(derivedKeyId -> derivedKeyId.getTransactionId().equals(transactionId));
+    }
+
+    private GCMBlockCipher transactionCipher(String transactionId,
+                                             KeyMaterial receivedKeyMaterial,
+                                             DataFlowRequestKeyMaterial savedKeyMaterial) throws Exception {
+        var derivedKeyId = new DerivedKeyId(transactionId,
+                receivedKeyMaterial.getDhPublicKey().getKeyValue(),
+                receivedKeyMaterial.getNonce());
+        GCMBlockCipher cipher = derivedKeys.get(derivedKeyId, () -> deriveKey(receivedKeyMaterial, savedKeyMaterial))
+                .newCipher();
+        if (cipher != null) {
+            return cipher;
+        }
+        // evicted and wiped between lookup and use
+        return newCipher(receivedKeyMaterial, savedKeyMaterial);
+    }
+
+    private GCMBlockCipher newCipher(KeyMaterial receivedKeyMaterial,
+                                     DataFlowRequestKeyMaterial savedKeyMaterial) throws Exception {
+        DerivedKey derivedKey = deriveKey(receivedKeyMaterial, savedKeyMaterial);
+        try {
+            return derivedKey.newCipher();
+        } finally {
+            derivedKey.destroy();
+        }
+    }
+
+    private DerivedKey deriveKey(KeyMaterial receivedKeyMaterial,
+                                 DataFlowRequestKeyMaterial savedKeyMaterial) throws Exception {
         var senderPublicKey = receivedKeyMaterial.getDhPublicKey().getKeyValue();
         var randomKeySender = receivedKeyMaterial.getNonce();
-        String sharedKey = doECDH(getBytesForBase64String(savedKeyMaterial.getPrivateKey())
+        byte[] sharedKey = doECDH(getBytesForBase64String(savedKeyMaterial.getPrivateKey())
                 , getBytesForBase64String(senderPublicKey));
         byte[] xorOfRandoms = xorOfRandom(randomKeySender, savedKeyMaterial.getRandomKey());
         byte[] iv = Arrays.copyOfRange(xorOfRandoms, xorOfRandoms.length - 12, xorOfRandoms.length);
         var aesKey = generateAesKey(xorOfRandoms, sharedKey);
-        return decrypt(getBytesForBase64String(encryptedMessage), aesKey,iv);
+        Arrays.fill(sharedKey, (byte) 0);
+        Arrays.fill(xorOfRandoms, (byte) 0);
+        return new DerivedKey(aesKey, iv);
     }
 
     private PrivateKey loadPrivateKey (byte [] data) throws Exception
@@ -110,13 +204,12 @@ public class Decryptor {
         return publicKey;
     }
 
-    private String doECDH (byte[] dataPrv, byte[] dataPub) throws Exception
+    private byte[] doECDH (byte[] dataPrv, byte[] dataPub) throws Exception
     {
         KeyAgreement ka = KeyAgreement.getInstance(Decryptor.ALGORITHM, Decryptor.PROVIDER);
         ka.init(loadPrivateKey(dataPrv));
         ka.doPhase(loadPublicKey(dataPub), true);
-        byte [] secret = ka.generateSecret();
-        return getBase64String(secret);
+        return ka.generateSecret();
     }
 
     private byte [] xorOfRandom(String randomKeySender, String randomKeyReceiver)
@@ -136,10 +229,10 @@ public class Decryptor {
         return new String(org.bouncycastle.util.encoders.Base64.encode(value));
     }
 
-    private byte [] generateAesKey(byte[] xorOfRandoms, String sharedKey ){
+    private byte [] generateAesKey(byte[] xorOfRandoms, byte[] sharedKey ){
         byte[] salt = Arrays.copyOfRange(xorOfRandoms, 0, 20);
         HKDFBytesGenerator hkdfBytesGenerator = new HKDFBytesGenerator(new SHA256Digest());
-        HKDFParameters hkdfParameters = new HKDFParameters(getBytesForBase64String(sharedKey), salt, null);
+        HKDFParameters hkdfParameters = new HKDFParameters(sharedKey, salt, null);
         hkdfBytesGenerator.init(hkdfParameters);
         byte[] aesKey = new byte[32];
         hkdfBytesGenerator.generateBytes(aesKey, 0, 32);
@@ -150,14 +243,9 @@ public class Decryptor {
         return org.bouncycastle.util.encoders.Base64.decode(value);
     }
 
-    private static String decrypt(byte[] encryptedBytes, byte[] key, byte[] iv) {
+    private static String decrypt(byte[] encryptedBytes, GCMBlockCipher cipher) {
         String decryptedData = "";
         try {
-            GCMBlockCipher cipher = new GCMBlockCipher(new AESEngine());
-            AEADParameters parameters =
-                    new AEADParameters(new KeyParameter(key), 128, iv, null);
-
-            cipher.init(false, parameters);
             byte[] plainBytes = new byte[cipher.getOutputSize(encryptedBytes.length)];
             int retLen = cipher.processBytes
                     (encryptedBytes, 0, encryptedBytes.length, plainBytes, 0);
@@ -170,4 +258,87 @@ public class Decryptor {
         }
         return decryptedData;
     }
+
+    @Value
+    private static class DerivedKeyId {
+        String transactionId;
+        String senderPublicKey;
+        String senderNonce;
+    }
+
+    /**
+     * An AES key and IV, zeroed when destroyed. Entries of a transaction set up their ciphers with it concurrently,
+     * destroying waits for them.
+     */
+    private static class DerivedKey {
+        private final byte[] aesKey;
+        private final byte[] iv;
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private boolean destroyed;
+
+        private DerivedKey(byte[] aesKey, byte[] iv) {
+            this.aesKey = aesKey;
+            this.iv = iv;
+        }
+
+        /**
+         * @return a cipher initialised for decryption, or null when the key has been destroyed
+         */
+        GCMBlockCipher newCipher() {
+            lock.readLock().lock();
+            try {
+                if (destroyed) {
+                    return null;
+                }
+                GCMBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+                cipher.init(false, new AEADParameters(new KeyParameter(aesKey), 128, iv, null));
+                return cipher;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        void destroy() {
+            lock.writeLock().lock();
+            try {
+                Arrays.fill(aesKey, (byte) 0);
+                Arrays.fill(iv, (byte) 0);
+                destroyed = true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * The bytes of base64 text, read straight from the String rather than from an encoded copy of it.
+     */
+    private static class CharactersInputStream extends InputStream {
+        private final String characters;
+        private int position;
+
+        private CharactersInputStream(String characters) {
+            this.characters = characters;
+        }
+
+        @Override
+        public int read() {
+            return position < characters.length() ? characters.charAt(position++) & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            int count = Math.min(length, characters.length() - position);
+            if (count <= 0) {
+                return -1;
+            }
+            for (int i = 0; i < count; i++) {
+                buffer[offset + i] = (byte) characters.charAt(position++);
+            }
+            return count;
+        }
+    }
 }
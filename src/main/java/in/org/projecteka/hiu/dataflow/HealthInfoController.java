@@ -1,6 +1,7 @@
 package in.org.projecteka.hiu.dataflow;
 
 import in.org.projecteka.hiu.Caller;
+import in.org.projecteka.hiu.common.storage.StorageFiles;
 import in.org.projecteka.hiu.consent.TokenUtils;
 import in.org.projecteka.hiu.dataflow.model.HealthInformation;
 import in.org.projecteka.hiu.dataflow.model.HealthInformationFetchRequest;
@@ -10,6 +11,8 @@ import in.org.projecteka.hiu.dataflow.model.DataRequestStatusCheckRequest;
 import lombok.AllArgsConstructor;
 import lombok.SneakyThrows;
 import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -72,7 +75,7 @@ public class HealthInfoController {
     }
 
     @GetMapping(value = {API_PATH_GET_ATTACHMENT, CM_API_PATH_GET_ATTACHMENT})
-    public Mono<ResponseEntity<FileSystemResource>> fetchHealthInformation(
+    public Mono<ResponseEntity<Resource>> fetchHealthInformation(
             @PathVariable(value = "consent-request-id") String consentRequestId,
             @PathVariable(value = "file-name") String fileName) {
         return ReactiveSecurityContextHolder.getContext()
@@ -92,7 +95,7 @@ public class HealthInfoController {
                     return ResponseEntity.ok()
                             .header(HttpHeaders.CONTENT_DISPOSITION, contentDispositionHeaderValue)
                             .contentType(responseContentType(filePath))
-                            .body(new FileSystemResource(filePath));
+                            .body(attachmentResource(filePath));
                 })
                 .switchIfEmpty(Mono.just(ResponseEntity.notFound().build()));
 
@@ -108,6 +111,15 @@ public class HealthInfoController {
                 .map(DataRequestStatusResponse::new);
     }
 
+    // Plain files are served straight from disk; files written by an encoding codec are decoded while streaming.
+    @SneakyThrows
+    private Resource attachmentResource(Path filePath) {
+        if (StorageFiles.isEncoded(filePath)) {
+            return new InputStreamResource(StorageFiles.newInputStream(filePath));
+        }
+        return new FileSystemResource(filePath);
+    }
+
     @SneakyThrows
     private MediaType responseContentType(Path filePath) {
         String contentType = Files.probeContentType(filePath);
@@ -0,0 +1,109 @@
+package in.org.projecteka.hiu.dataflow;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import in.org.projecteka.hiu.dataflow.model.DataFlowRequestKeyMaterial;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Key pairs and nonces for data flow requests, generated ahead of demand on a background thread.
+ * <p>
+ * Once fewer than lowWatermark are left the pool is refilled up to highWatermark. When it runs dry the key material
+ * is generated on the caller's thread, as it used to be. Each key material is handed out once and is only kept in
+ * memory: what is left in the pool is dropped on shutdown.
+ */
+public class KeyMaterialPool {
+    private static final Logger logger = LoggerFactory.getLogger(KeyMaterialPool.class);
+
+    private final Decryptor decryptor;
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final BlockingQueue<DataFlowRequestKeyMaterial> pool;
+    private final ExecutorService refiller;
+    private final AtomicBoolean refilling = new AtomicBoolean();
+    private final Counter misses;
+
+    public KeyMaterialPool(Decryptor decryptor, int lowWatermark, int highWatermark, MeterRegistry meterRegistry) {
+        this.decryptor = decryptor;
+        this.lowWatermark = Math.max(lowWatermark, 0);
+        this.highWatermark = Math.max(highWatermark, this.lowWatermark);
+        this.pool = new LinkedBlockingQueue<>(Math.max(this.highWatermark, 1));
+        this.refiller = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("key-material-refill").setDaemon(true).build());
+        meterRegistry.gauge("hiu.key.material.pool.size", pool, BlockingQueue::size);
+        this.misses = Counter.builder("hiu.key.material.pool.misses")
+                .description("Key material generated on the caller's thread as the pool was empty")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        refillIfLow();
+    }
+
+    public DataFlowRequestKeyMaterial take() throws Exception {
+        DataFlowRequestKeyMaterial keyMaterial = pool.poll();
+        refillIfLow();
+        if (keyMaterial != null) {
+            return keyMaterial;
+        }
+        misses.increment();
+        return generate();
+    }
+
+    @PreDestroy
+    public void stop() {
+        refiller.shutdownNow();
+        pool.clear();
+    }
+
+    private void refillIfLow() {
+        if (pool.size() >= lowWatermark || highWatermark == 0 || !refilling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refiller.execute(this::refill);
+        } catch (RejectedExecutionException e) {
+            refilling.set(false);
+        }
+    }
+
+    private void refill() {
+        try {
+            while (pool.size() < highWatermark && !Thread.currentThread().isInterrupted()) {
+                if (!pool.offer(generate())) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Could not generate key material for the pool", e);
+            refilling.set(false);
+            return;
+        }
+        refilling.set(false);
+        // key material taken while the refill was finishing
+        refillIfLow();
+    }
+
+    private DataFlowRequestKeyMaterial generate() throws Exception {
+        var keyPair = decryptor.generateKeyPair();
+        var privateKey = decryptor.getBase64String(decryptor.getEncodedPrivateKey(keyPair.getPrivate()));
+        var publicKey = decryptor.getBase64String(decryptor.getEncodedPublicKey(keyPair.getPublic()));
+        return DataFlowRequestKeyMaterial.builder()
+                .privateKey(privateKey)
+                .publicKey(publicKey)
+                .randomKey(decryptor.generateRandomKey())
+                .build();
+    }
+}
@@ -1,63 +1,77 @@
 package in.org.projecteka.hiu.dataflow;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
-import in.org.projecteka.hiu.dataflow.model.DataNotificationRequest;
+import in.org.projecteka.hiu.dataflow.model.SegmentReference;
+import lombok.AllArgsConstructor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousFileChannel;
-import java.nio.channels.CompletionHandler;
+import java.io.InputStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.util.Comparator;
-import java.util.Optional;
 import java.util.stream.Stream;
 
-import static com.fasterxml.jackson.databind.SerializationFeature.WRITE_DATES_AS_TIMESTAMPS;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 
-public class LocalDataStore {
+/**
+ * Keeps each data part as its own file under the consent request and transaction directories.
+ */
+@AllArgsConstructor
+public class LocalDataStore implements DataPartStore {
     private static final Logger logger = LoggerFactory.getLogger(LocalDataStore.class);
+    private final SpoolWriter spoolWriter;
 
-    public Mono<Void> serializeDataToFile(DataNotificationRequest dataNotificationRequest, Path outFileName) {
-        return Mono.create(monoSink ->
-                contentFromRequest(dataNotificationRequest)
-                        .ifPresentOrElse(
-                                bytes -> {
-                                    ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
-                                    //TODO: find location from application properties.
-                                    // also create the filename under a directory that's relevant to transaction
-                                    try {
-                                        createParentDirectoriesIfNotExists(outFileName);
-                                        var channel = AsynchronousFileChannel.open(outFileName,
-                                                StandardOpenOption.CREATE,
-                                                StandardOpenOption.WRITE);
-                                        channel.write(byteBuffer, 0, byteBuffer, new CompletionHandler<>() {
-                                            @Override
-                                            public void completed(Integer result, ByteBuffer attachment) {
-                                                monoSink.success();
-                                            }
+    /**
+     * Moves a fully written spool file to its place in the store. The spool directory lives under the same
+     * storage path, so the move is a rename and readers never see a partially written data part. The content is
+     * committed to disk before the rename, so a crash can not leave a part that was stored before replaced by an
+     * empty or partial file, and the directory after it. Completes once the file is on disk at its new place.
+     */
+    public Mono<Void> moveToStore(Path spoolFile, Path outFileName) {
+        return spoolWriter.commitContent(spoolFile)
+                .then(Mono.<Void>fromCallable(() -> {
+                    createParentDirectoriesIfNotExists(outFileName);
+                    Files.move(spoolFile, outFileName, ATOMIC_MOVE, REPLACE_EXISTING);
+                    return null;
+                }).subscribeOn(Schedulers.boundedElastic()))
+                .then(Mono.defer(() -> spoolWriter.commitDirectory(outFileName.getParent())));
+    }
+
+    @Override
+    public Mono<SegmentReference> store(Path spoolFile, Path pathToFile, String transactionId, int partNumber) {
+        return moveToStore(spoolFile, pathToFile).then(Mono.empty());
+    }
+
+    @Override
+    public InputStream open(String transactionId, int partNumber, SegmentReference reference) throws IOException {
+        throw new NoSuchFileException(String.format("Part %d of %s is stored as a file, not in a segment",
+                partNumber, transactionId));
+    }
 
-                                            @Override
-                                            public void failed(Throwable exc, ByteBuffer attachment) {
-                                                monoSink.error(exc);
-                                            }
-                                        });
-                                    } catch (IOException e) {
-                                        logger.error(e.getMessage());
-                                        monoSink.error(e);
-                                    }
-                                },
-                                () -> monoSink.error(new Exception("Not able to process the request"))));
+    @Override
+    public void deleteTransaction(String transactionId, Path transactionDirectory) {
+        deleteExpiredConsentData(transactionDirectory);
+    }
+
+    @Override
+    public void discard(Path spoolFile) {
+        try {
+            Files.deleteIfExists(spoolFile);
+        } catch (IOException e) {
+            logger.error(e.getMessage());
+        }
     }
 
     public void deleteExpiredConsentData(Path pathToTransactionDirectory) {
         logger.info(String.format("Deleting the health information from: %s", pathToTransactionDirectory.toString()));
+        if (!Files.exists(pathToTransactionDirectory)) {
+            return;
+        }
         try (Stream<Path> paths = Files.walk(pathToTransactionDirectory).sorted(Comparator.reverseOrder())) {
             paths.forEach(path -> {
                 try {
@@ -74,17 +88,4 @@ public class LocalDataStore {
     private void createParentDirectoriesIfNotExists(Path outFileName) throws IOException {
         Files.createDirectories(outFileName.getParent());
     }
-
-    private static Optional<byte[]> contentFromRequest(DataNotificationRequest dataNotificationRequest) {
-        ObjectMapper objectMapper = new ObjectMapper()
-                .registerModule(new JavaTimeModule())
-                .configure(WRITE_DATES_AS_TIMESTAMPS, false);
-
-        try {
-            return Optional.ofNullable(objectMapper.writeValueAsBytes(dataNotificationRequest));
-        } catch (JsonProcessingException e) {
-            logger.error(e.getMessage());
-            return Optional.empty();
-        }
-    }
 }
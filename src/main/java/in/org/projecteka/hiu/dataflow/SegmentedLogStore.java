@@ -0,0 +1,408 @@
+package in.org.projecteka.hiu.dataflow;
+
+import com.google.common.io.ByteStreams;
+import in.org.projecteka.hiu.common.storage.StorageFiles;
+import in.org.projecteka.hiu.dataflow.model.SegmentReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Appends data parts to rolling segment files instead of keeping a file (and two directories) per part.
+ * <p>
+ * A part is copied from its spool file, as stored, to the end of the active segment, and a line naming its
+ * transaction, part number, segment, offset and length is appended to the index log. The index is held in memory
+ * and rebuilt from the log on start. Deleting a transaction appends a tombstone; the bytes stay in their segment
+ * until compaction copies the live parts out of sealed segments that have mostly been deleted or replaced, rewrites
+ * the index log from memory and removes those segments.
+ * <p>
+ * Attachments are still written under the transaction's directory, which is only created when a part has one.
+ * <p>
+ * The index lives in the memory of the one instance writing the log, so the log is not shared: a lock on its
+ * directory keeps a second instance on the same storage volume from starting. Run a single HIU instance with this
+ * engine; replicas need the files engine.
+ */
+public class SegmentedLogStore implements DataPartStore {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentedLogStore.class);
+    private static final Pattern SEGMENT_FILE = Pattern.compile("segment-(\\d+)\\.log");
+    private static final String INDEX_FILE = "index.log";
+    private static final String COMPACTED_INDEX_FILE = "index.log.compacting";
+    private static final String LOCK_FILE = "lock";
+    private static final String PUT = "P";
+    private static final String DELETE = "D";
+    private static final String SEPARATOR = "\t";
+
+    private final Path directory;
+    private final long segmentSize;
+    private final double compactionThreshold;
+    private final Duration compactionInterval;
+    private final SpoolWriter spoolWriter;
+    private final LocalDataStore localDataStore;
+    private final Map<String, Map<Integer, SegmentReference>> index = new ConcurrentHashMap<>();
+    private final Map<Long, Long> liveBytes = new HashMap<>();
+    private FileChannel activeSegment;
+    private long activeSegmentId;
+    private FileChannel indexLog;
+    private Disposable compaction;
+    private FileChannel lockFile;
+
+    public SegmentedLogStore(Path directory,
+                             long segmentSize,
+                             double compactionThreshold,
+                             Duration compactionInterval,
+                             SpoolWriter spoolWriter,
+                             LocalDataStore localDataStore) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.compactionThreshold = compactionThreshold;
+        this.compactionInterval = compactionInterval;
+        this.spoolWriter = spoolWriter;
+        this.localDataStore = localDataStore;
+    }
+
+    @PostConstruct
+    public synchronized void start() throws IOException {
+        Files.createDirectories(directory);
+        lock();
+        recoverIndex();
+        indexLog = FileChannel.open(indexPath(), CREATE, WRITE, APPEND);
+        endIndexWithNewLine();
+        rollTo(segmentIds().stream().mapToLong(Long::longValue).max().orElse(0) + 1);
+        if (!compactionInterval.isZero()) {
+            compaction = Flux.interval(compactionInterval, Schedulers.boundedElastic())
+                    .subscribe(tick -> compactQuietly());
+        }
+    }
+
+    @PreDestroy
+    public synchronized void stop() throws IOException {
+        if (compaction != null) {
+            compaction.dispose();
+        }
+        activeSegment.close();
+        indexLog.close();
+        lockFile.close();
+    }
+
+    @Override
+    public Mono<SegmentReference> store(Path spoolFile, Path pathToFile, String transactionId, int partNumber) {
+        return Mono.fromCallable(() -> append(spoolFile, transactionId, partNumber))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(reference -> Mono.when(
+                        // Compaction forces what it moves before removing a segment, so a segment gone by now
+                        // has nothing left to commit.
+                        spoolWriter.commit(segmentPath(reference.getSegment()))
+                                .onErrorResume(NoSuchFileException.class, e -> Mono.empty()),
+                        spoolWriter.commit(indexPath()))
+                        .then(Mono.fromRunnable(() -> discard(spoolFile)))
+                        .thenReturn(reference));
+    }
+
+    /**
+     * Segments are only appended to, and removed whole once compacted, so the part is read at its reference as long
+     * as its segment is there, and looked up in the index only after compaction moved it.
+     */
+    @Override
+    public InputStream open(String transactionId, int partNumber, SegmentReference reference) throws IOException {
+        if (reference != null) {
+            try {
+                return read(reference);
+            } catch (NoSuchFileException e) {
+                logger.debug("Segment {} of part {} of {} is compacted, looking it up in the index",
+                        reference.getSegment(), partNumber, transactionId);
+            }
+        }
+        for (int attempt = 0; ; attempt++) {
+            SegmentReference moved = index.getOrDefault(transactionId, Map.of()).get(partNumber);
+            if (moved == null) {
+                throw new NoSuchFileException(String.format("No part %d of %s in the segment log",
+                        partNumber, transactionId));
+            }
+            try {
+                return read(moved);
+            } catch (NoSuchFileException e) {
+                // Compacted away between the lookup and the open; the index already points to the new place.
+                if (attempt > 0) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void deleteTransaction(String transactionId, Path transactionDirectory) {
+        synchronized (this) {
+            if (index.containsKey(transactionId)) {
+                try {
+                    writeIndex(String.join(SEPARATOR, DELETE, transactionId));
+                    removeTransaction(transactionId);
+                } catch (IOException e) {
+                    logger.error("Could not delete {} from the segment log", transactionId, e);
+                }
+            }
+        }
+        localDataStore.deleteExpiredConsentData(transactionDirectory);
+    }
+
+    @Override
+    public void discard(Path spoolFile) {
+        localDataStore.discard(spoolFile);
+    }
+
+    /**
+     * Moves the live parts out of sealed segments whose live share fell below the compaction threshold.
+     */
+    public synchronized void compact() throws IOException {
+        List<Long> compactable = new ArrayList<>();
+        for (long segment : segmentIds()) {
+            long size = Files.size(segmentPath(segment));
+            if (segment != activeSegmentId
+                    && (size == 0 || liveBytes.getOrDefault(segment, 0L) < size * compactionThreshold)) {
+                compactable.add(segment);
+            }
+        }
+        if (compactable.isEmpty()) {
+            return;
+        }
+        Map<Long, FileChannel> sources = new HashMap<>();
+        try {
+            for (var transaction : index.entrySet()) {
+                for (var part : transaction.getValue().entrySet()) {
+                    SegmentReference reference = part.getValue();
+                    if (!compactable.contains(reference.getSegment())) {
+                        continue;
+                    }
+                    FileChannel source = sources.get(reference.getSegment());
+                    if (source == null) {
+                        source = FileChannel.open(segmentPath(reference.getSegment()), READ);
+                        sources.put(reference.getSegment(), source);
+                    }
+                    put(transaction.getKey(), part.getKey(),
+                            copyToActiveSegment(source, reference.getOffset(), reference.getLength()));
+                }
+            }
+        } finally {
+            for (FileChannel source : sources.values()) {
+                source.close();
+            }
+        }
+        activeSegment.force(true);
+        rewriteIndex();
+        for (long segment : compactable) {
+            Files.deleteIfExists(segmentPath(segment));
+            liveBytes.remove(segment);
+        }
+        logger.info("Compacted segments {} into segment {}", compactable, activeSegmentId);
+    }
+
+    private InputStream read(SegmentReference reference) throws IOException {
+        FileChannel channel = FileChannel.open(segmentPath(reference.getSegment()), READ);
+        channel.position(reference.getOffset());
+        return StorageFiles.decode(ByteStreams.limit(Channels.newInputStream(channel), reference.getLength()));
+    }
+
+    private void lock() throws IOException {
+        lockFile = FileChannel.open(directory.resolve(LOCK_FILE), CREATE, WRITE);
+        FileLock lock;
+        try {
+            lock = lockFile.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            lockFile.close();
+            throw new IllegalStateException(String.format("The segment log at %s is in use by another instance",
+                    directory));
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (IOException e) {
+            logger.error("Could not compact the segment log", e);
+        }
+    }
+
+    private synchronized SegmentReference append(Path spoolFile, String transactionId, int partNumber)
+            throws IOException {
+        SegmentReference reference;
+        try (FileChannel source = FileChannel.open(spoolFile, READ)) {
+            reference = copyToActiveSegment(source, 0, source.size());
+        }
+        writeIndex(String.join(SEPARATOR,
+                PUT,
+                transactionId,
+                String.valueOf(partNumber),
+                String.valueOf(reference.getSegment()),
+                String.valueOf(reference.getOffset()),
+                String.valueOf(reference.getLength())));
+        put(transactionId, partNumber, reference);
+        return reference;
+    }
+
+    private SegmentReference copyToActiveSegment(FileChannel source, long position, long length) throws IOException {
+        if (activeSegment.size() >= segmentSize) {
+            rollTo(activeSegmentId + 1);
+        }
+        long offset = activeSegment.size();
+        long transferred = 0;
+        while (transferred < length) {
+            transferred += source.transferTo(position + transferred, length - transferred, activeSegment);
+        }
+        return new SegmentReference(activeSegmentId, offset, length);
+    }
+
+    private void rollTo(long segment) throws IOException {
+        if (activeSegment != null) {
+            activeSegment.force(true);
+            activeSegment.close();
+        }
+        activeSegment = FileChannel.open(segmentPath(segment), CREATE, WRITE, APPEND);
+        activeSegmentId = segment;
+    }
+
+    private void put(String transactionId, int partNumber, SegmentReference reference) {
+        SegmentReference previous = index.computeIfAbsent(transactionId, id -> new ConcurrentHashMap<>())
+                .put(partNumber, reference);
+        liveBytes.merge(reference.getSegment(), reference.getLength(), Long::sum);
+        if (previous != null) {
+            liveBytes.merge(previous.getSegment(), -previous.getLength(), Long::sum);
+        }
+    }
+
+    private void removeTransaction(String transactionId) {
+        Map<Integer, SegmentReference> parts = index.remove(transactionId);
+        if (parts != null) {
+            parts.values().forEach(reference ->
+                    liveBytes.merge(reference.getSegment(), -reference.getLength(), Long::sum));
+        }
+    }
+
+    private void recoverIndex() throws IOException {
+        if (!Files.exists(indexPath())) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(indexPath(), UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR);
+                try {
+                    if (PUT.equals(fields[0]) && fields.length == 6) {
+                        put(fields[1], Integer.parseInt(fields[2]), new SegmentReference(Long.parseLong(fields[3]),
+                                Long.parseLong(fields[4]),
+                                Long.parseLong(fields[5])));
+                    } else if (DELETE.equals(fields[0]) && fields.length == 2) {
+                        removeTransaction(fields[1]);
+                    } else {
+                        logger.warn("Skipping unreadable segment index entry: {}", line);
+                    }
+                } catch (NumberFormatException e) {
+                    logger.warn("Skipping unreadable segment index entry: {}", line);
+                }
+            }
+        }
+    }
+
+    // A crash can leave half a line at the end of the index; the next entry must not be glued to it.
+    private void endIndexWithNewLine() throws IOException {
+        long size = indexLog.size();
+        if (size == 0) {
+            return;
+        }
+        ByteBuffer last = ByteBuffer.allocate(1);
+        indexLog.read(last, size - 1);
+        if (last.get(0) != '\n') {
+            writeIndex("");
+        }
+    }
+
+    private void writeIndex(String line) throws IOException {
+        ByteBuffer entry = UTF_8.encode(line + "\n");
+        while (entry.hasRemaining()) {
+            indexLog.write(entry);
+        }
+    }
+
+    private void rewriteIndex() throws IOException {
+        Path compactedIndex = directory.resolve(COMPACTED_INDEX_FILE);
+        try (FileChannel out = FileChannel.open(compactedIndex, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            var writer = Channels.newWriter(out, UTF_8);
+            for (var transaction : index.entrySet()) {
+                for (var part : transaction.getValue().entrySet()) {
+                    SegmentReference reference = part.getValue();
+                    writer.write(String.join(SEPARATOR,
+                            PUT,
+                            transaction.getKey(),
+                            String.valueOf(part.getKey()),
+                            String.valueOf(reference.getSegment()),
+                            String.valueOf(reference.getOffset()),
+                            String.valueOf(reference.getLength())));
+                    writer.write('\n');
+                }
+            }
+            writer.flush();
+            out.force(true);
+        }
+        indexLog.close();
+        Files.move(compactedIndex, indexPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+        indexLog = FileChannel.open(indexPath(), WRITE, APPEND);
+        try (FileChannel directoryChannel = FileChannel.open(directory, READ)) {
+            directoryChannel.force(true);
+        }
+    }
+
+    private List<Long> segmentIds() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> SEGMENT_FILE.matcher(file.getFileName().toString()))
+                    .filter(Matcher::matches)
+                    .map(matcher -> Long.parseLong(matcher.group(1)))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private Path segmentPath(long segment) {
+        return directory.resolve(String.format("segment-%020d.log", segment));
+    }
+
+    private Path indexPath() {
+        return directory.resolve(INDEX_FILE);
+    }
+}
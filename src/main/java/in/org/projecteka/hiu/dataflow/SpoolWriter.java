@@ -0,0 +1,197 @@
+package in.org.projecteka.hiu.dataflow;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Makes stored data parts durable before a transfer is acknowledged.
+ * <p>
+ * Files are handed over once they are closed, and directories once the files they should hold are moved in. A
+ * single flusher thread takes whatever has been handed over within the commit window (up to a batch), forces each
+ * file and then each directory once, and completes the whole batch together. Concurrent transfers share the flush instead of each paying for its own.
+ */
+public class SpoolWriter {
+    private static final Logger logger = LoggerFactory.getLogger(SpoolWriter.class);
+
+    private final BlockingQueue<CommitRequest> pending = new LinkedBlockingQueue<>();
+    private final Duration commitWindow;
+    private final int maxBatchSize;
+    private final Timer queueLatency;
+    private final Timer flushDuration;
+    private final DistributionSummary batchSize;
+    private volatile boolean running;
+    private Thread flusher;
+
+    public SpoolWriter(Duration commitWindow, int maxBatchSize, MeterRegistry meterRegistry) {
+        this.commitWindow = commitWindow;
+        this.maxBatchSize = Math.max(maxBatchSize, 1);
+        this.queueLatency = Timer.builder("hiu.spool.commit.queue.latency")
+                .description("Time a stored data part waits for the next flush")
+                .register(meterRegistry);
+        this.flushDuration = Timer.builder("hiu.spool.commit.flush")
+                .description("Time taken to flush one batch of stored data parts")
+                .register(meterRegistry);
+        this.batchSize = DistributionSummary.builder("hiu.spool.commit.batch.size")
+                .register(meterRegistry);
+        meterRegistry.gaugeCollectionSize("hiu.spool.commit.pending", Tags.empty(), pending);
+    }
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        flusher = new Thread(this::flushContinuously, "spool-writer");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        if (flusher != null) {
+            flusher.interrupt();
+            flusher.join(commitWindow.toMillis() + 1000);
+        }
+        List<CommitRequest> abandoned = new ArrayList<>();
+        pending.drainTo(abandoned);
+        abandoned.forEach(request -> request.sink.error(new IllegalStateException("Spool writer has stopped")));
+    }
+
+    /**
+     * Completes once the file and the directory entry pointing to it are on disk.
+     */
+    public Mono<Void> commit(Path file) {
+        return commit(file, file.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Completes once the content of the file is on disk, so that it can be renamed into place.
+     */
+    public Mono<Void> commitContent(Path file) {
+        return commit(file, null);
+    }
+
+    /**
+     * Completes once the entries of the directory, as of files just renamed into it, are on disk.
+     */
+    public Mono<Void> commitDirectory(Path directory) {
+        return commit(null, directory.toAbsolutePath());
+    }
+
+    private Mono<Void> commit(Path file, Path directory) {
+        return Mono.<Void>create(sink -> {
+            if (!running) {
+                sink.error(new IllegalStateException("Spool writer is not running"));
+                return;
+            }
+            pending.add(new CommitRequest(file, directory, sink, System.nanoTime()));
+        }).publishOn(Schedulers.boundedElastic());
+    }
+
+    private void flushContinuously() {
+        List<CommitRequest> batch = new ArrayList<>(maxBatchSize);
+        while (running) {
+            try {
+                batch.add(pending.take());
+                collect(batch);
+            } catch (InterruptedException e) {
+                // Only stop() interrupts; whatever was collected so far is still flushed below.
+            }
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void collect(List<CommitRequest> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + commitWindow.toNanos();
+        while (batch.size() < maxBatchSize) {
+            long remaining = deadline - System.nanoTime();
+            CommitRequest next = remaining > 0 ? pending.poll(remaining, NANOSECONDS) : pending.poll();
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    private void flush(List<CommitRequest> batch) {
+        long started = System.nanoTime();
+        batch.forEach(request -> queueLatency.record(started - request.enqueuedAt, NANOSECONDS));
+        Map<Path, IOException> failures = new HashMap<>();
+        Set<Path> directories = new LinkedHashSet<>();
+        for (CommitRequest request : batch) {
+            if (request.file != null) {
+                force(request.file, failures);
+            }
+            if (request.directory != null) {
+                directories.add(request.directory);
+            }
+        }
+        directories.forEach(directory -> force(directory, failures));
+        for (CommitRequest request : batch) {
+            IOException failure = request.file == null ? null : failures.get(request.file);
+            if (failure == null && request.directory != null) {
+                failure = failures.get(request.directory);
+            }
+            if (failure == null) {
+                request.sink.success();
+            } else {
+                request.sink.error(failure);
+            }
+        }
+        flushDuration.record(System.nanoTime() - started, NANOSECONDS);
+        batchSize.record(batch.size());
+    }
+
+    private static void force(Path path, Map<Path, IOException> failures) {
+        if (failures.containsKey(path)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            logger.error("Could not flush {}", path, e);
+            failures.put(path, e);
+        }
+    }
+
+    private static class CommitRequest {
+        private final Path file;
+        private final Path directory;
+        private final MonoSink<Void> sink;
+        private final long enqueuedAt;
+
+        CommitRequest(Path file, Path directory, MonoSink<Void> sink, long enqueuedAt) {
+            this.file = file;
+            this.directory = directory;
+            this.sink = sink;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package in.org.projecteka.hiu.dataflow;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import in.org.projecteka.hiu.dataflow.model.TransactionContext;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+
+/**
+ * Transaction contexts kept in memory, so that the parts of a transaction are processed without reading them again.
+ * <p>
+ * A context is kept only once it is complete, that is once the keys of its data flow request are added; until then
+ * every lookup reads it from the database. Contexts are dropped past maximumSize, or expiry after their last use.
+ */
+public class TransactionContexts {
+    private final DataFlowRepository dataFlowRepository;
+    private final Cache<String, TransactionContext> contexts;
+
+    public TransactionContexts(DataFlowRepository dataFlowRepository, long maximumSize, Duration expiry) {
+        this.dataFlowRepository = dataFlowRepository;
+        this.contexts = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(expiry)
+                .build();
+    }
+
+    /**
+     * @return empty when there is no data flow request for the transaction
+     */
+    public Mono<TransactionContext> get(String transactionId) {
+        return Mono.defer(() -> {
+            TransactionContext context = contexts.getIfPresent(transactionId);
+            return context != null ? Mono.just(context) : load(transactionId);
+        });
+    }
+
+    /**
+     * Reads the context of the transaction from the database, and keeps it if it is complete.
+     */
+    public Mono<TransactionContext> load(String transactionId) {
+        return dataFlowRepository.getTransactionContext(transactionId)
+                .doOnNext(context -> {
+                    if (context.isComplete()) {
+                        contexts.put(transactionId, context);
+                    }
+                });
+    }
+}
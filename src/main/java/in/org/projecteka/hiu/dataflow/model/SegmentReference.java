@@ -0,0 +1,31 @@
+package in.org.projecteka.hiu.dataflow.model;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+/**
+ * Where a data part sits in the segmented log: segment id, byte offset and length, written as
+ * {@code segment:offset:length}.
+ */
+@Getter
+@AllArgsConstructor
+@EqualsAndHashCode
+public class SegmentReference {
+    private final long segment;
+    private final long offset;
+    private final long length;
+
+    public static SegmentReference parse(String reference) {
+        String[] parts = reference.split(":");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException(String.format("Not a segment reference: %s", reference));
+        }
+        return new SegmentReference(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d:%d:%d", segment, offset, length);
+    }
+}
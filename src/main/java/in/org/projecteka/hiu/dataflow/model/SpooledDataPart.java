@@ -0,0 +1,28 @@
+package in.org.projecteka.hiu.dataflow.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+
+import java.nio.file.Path;
+import java.util.List;
+
+@Builder
+@AllArgsConstructor
+@Data
+public class SpooledDataPart {
+    private String transactionId;
+    private int pageNumber;
+    private int pageCount;
+    private int numberOfEntries;
+    private long sizeInBytes;
+    /**
+     * Hash of the checksums of all entries, in order; null when an entry came without a checksum.
+     */
+    private String entriesChecksum;
+    /**
+     * Positions of the entries whose content does not match their checksum.
+     */
+    private List<Integer> rejectedEntries;
+    private Path spoolFile;
+}
@@ -0,0 +1,22 @@
+package in.org.projecteka.hiu.dataflow.model;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * What the data parts of a transaction are processed and acknowledged with. None of it changes once the keys of the
+ * data flow request are added.
+ */
+@Value
+@Builder
+public class TransactionContext {
+    String transactionId;
+    String consentId;
+    String hipId;
+    String consentManagerId;
+    DataFlowRequestKeyMaterial keyMaterial;
+
+    public boolean isComplete() {
+        return consentId != null && hipId != null && consentManagerId != null && keyMaterial != null;
+    }
+}
@@ -1,25 +1,24 @@
 package in.org.projecteka.hiu.dataprocessor;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
+import in.org.projecteka.hiu.common.storage.StorageCodec;
+import in.org.projecteka.hiu.common.storage.StorageFiles;
 import org.hl7.fhir.r4.model.Attachment;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 public class AttachmentDataTypeProcessor {
@@ -36,55 +35,94 @@ public class AttachmentDataTypeProcessor {
             "VIDEO/MPEG", ".mpeg");
     public static final String DEFAULT_FILE_EXTENSION = ".txt";
 
+    private final StorageCodec storageCodec;
+    private final AttachmentDownloader attachmentDownloader;
+
+    public AttachmentDataTypeProcessor(StorageCodec storageCodec, AttachmentDownloader attachmentDownloader) {
+        this.storageCodec = storageCodec;
+        this.attachmentDownloader = attachmentDownloader;
+    }
+
     public static String getFileExtension(String mimeType) {
         return MEDIA_TO_FILE_EXTENSION.get(mimeType);
     }
 
+    /**
+     * @return where the attachment is saved, or null when it could not be downloaded and keeps its link
+     */
     public Path process(Attachment attachment, Path localStorePath) {
-        if (hasLink(attachment)) {
-            return downloadAndSaveFile(attachment, localStorePath);
-        } else {
-            return saveAttachmentAsFile(attachment, localStorePath);
-        }
+        return processAll(List.of(attachment), localStorePath).get(0);
     }
 
-    private Path saveAttachmentAsFile(Attachment attachment, Path localStorePath) throws RuntimeException {
-        if (attachment.getData() != null) {
-            byte[] data = Base64.getDecoder().decode(attachment.getDataElement().getValueAsString());
-            Path attachmentFilePath = getFileAttachmentPath(attachment, localStorePath);
-            try (FileChannel channel = (FileChannel) Files.newByteChannel(attachmentFilePath,
-                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
-                ByteBuffer buffer = ByteBuffer.allocate(data.length);
-                buffer.put(data);
-                buffer.flip();
-                channel.write(buffer);
-            } catch (IOException ex) {
-                logger.error(ex.getMessage(), ex);
-                throw new RuntimeException(ex);
+    /**
+     * Same as {@link #process(Attachment, Path)}, with the linked attachments downloaded in parallel.
+     */
+    public List<Path> processAll(List<Attachment> attachments, Path localStorePath) {
+        List<Path> savedPaths = new ArrayList<>(attachments.size());
+        Map<Attachment, AttachmentDownloader.Download> downloads = new IdentityHashMap<>();
+        for (Attachment attachment : attachments) {
+            if (hasLink(attachment) || attachment.getData() == null) {
+                AttachmentDownloader.Download download = downloadOf(attachment, localStorePath);
+                if (download != null) {
+                    downloads.put(attachment, download);
+                }
+                savedPaths.add(null);
+            } else {
+                savedPaths.add(saveAttachmentAsFile(attachment, localStorePath));
             }
-            attachment.setData(null);
-            attachment.setUrl(referenceWebUrl(attachmentFilePath));
-            return attachmentFilePath;
-        } else {
-            return downloadAndSaveFile(attachment, localStorePath);
         }
+        if (downloads.isEmpty()) {
+            return savedPaths;
+        }
+        if (attachmentDownloader == null) {
+            logger.warn("No attachment downloader, keeping the links of {} attachments", downloads.size());
+            return savedPaths;
+        }
+        Set<AttachmentDownloader.Download> downloaded = new HashSet<>(
+                attachmentDownloader.downloadAll(new ArrayList<>(downloads.values()), storageCodec));
+        for (int i = 0; i < attachments.size(); i++) {
+            AttachmentDownloader.Download download = downloads.get(attachments.get(i));
+            if (download != null && downloaded.contains(download)) {
+                attachments.get(i).setUrl(referenceWebUrl(download.getTarget()));
+                savedPaths.set(i, download.getTarget());
+            }
+        }
+        return savedPaths;
     }
 
-    private Path downloadAndSaveFile(Attachment attachment, Path localStorePath) {
+    private Path saveAttachmentAsFile(Attachment attachment, Path localStorePath) throws RuntimeException {
+        byte[] data = Base64.getDecoder().decode(attachment.getDataElement().getValueAsString());
         Path attachmentFilePath = getFileAttachmentPath(attachment, localStorePath);
-        HttpGet request = new HttpGet(URI.create(attachment.getUrl()));
-        try (CloseableHttpClient client = HttpClientBuilder.create().build();
-             CloseableHttpResponse response = client.execute(request)) {
-            HttpEntity entity = response.getEntity();
-            InputStream inputStream = entity.getContent();
-            Files.copy(inputStream, attachmentFilePath);
-        } catch (IOException e) {
-            logger.error(e.getMessage(), e);
+        try (OutputStream out = StorageFiles.newOutputStream(storageCodec, attachmentFilePath,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            out.write(data);
+        } catch (IOException ex) {
+            logger.error(ex.getMessage(), ex);
+            throw new RuntimeException(ex);
         }
+        attachment.setData(null);
         attachment.setUrl(referenceWebUrl(attachmentFilePath));
         return attachmentFilePath;
     }
 
+    private AttachmentDownloader.Download downloadOf(Attachment attachment, Path localStorePath) {
+        if (!hasLink(attachment)) {
+            logger.warn("Attachment has neither data nor a link");
+            return null;
+        }
+        try {
+            URI link = URI.create(attachment.getUrl().trim());
+            if (!"http".equalsIgnoreCase(link.getScheme()) && !"https".equalsIgnoreCase(link.getScheme())) {
+                logger.warn("Not downloading attachment from {}, not an http link", attachment.getUrl());
+                return null;
+            }
+            return new AttachmentDownloader.Download(link, getFileAttachmentPath(attachment, localStorePath));
+        } catch (IllegalArgumentException e) {
+            logger.warn("Not downloading attachment from {}, invalid link", attachment.getUrl());
+            return null;
+        }
+    }
+
     private Path getFileAttachmentPath(Attachment attachment, Path localStorePath) {
         String randomFileName = UUID.randomUUID().toString() + getFileExtension(attachment);
         return Paths.get(localStorePath.toString(), randomFileName);
@@ -0,0 +1,30 @@
+package in.org.projecteka.hiu.dataprocessor;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * How attachments HIPs send as links are downloaded, see {@link AttachmentDownloader}.
+ */
+@Configuration
+@ConfigurationProperties(prefix = "hiu.dataflowservice.attachmentdownload")
+@Getter
+@Setter
+@NoArgsConstructor(access = AccessLevel.PACKAGE)
+@AllArgsConstructor
+public class AttachmentDownloadProperties {
+    private int maxConcurrentDownloads = 32;
+    private int maxConcurrentDownloadsPerHost = 6;
+    private int maxParallelDownloadsPerBundle = 4;
+    private int connectTimeoutSeconds = 10;
+    private int responseTimeoutSeconds = 30;
+    private int downloadTimeoutSeconds = 300;
+    private int maxAttempts = 3;
+    private int retryBackoffMillis = 500;
+    private long maxBytes = 104857600;
+}
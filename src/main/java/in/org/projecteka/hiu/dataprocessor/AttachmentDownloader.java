@@ -0,0 +1,337 @@
+package in.org.projecteka.hiu.dataprocessor;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import in.org.projecteka.hiu.common.storage.PlainStorageCodec;
+import in.org.projecteka.hiu.common.storage.StorageCodec;
+import in.org.projecteka.hiu.common.storage.StorageFiles;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static in.org.projecteka.hiu.common.Constants.CORRELATION_ID;
+
+/**
+ * Downloads the attachments HIPs send as links, for {@link AttachmentDataTypeProcessor}.
+ * <p>
+ * One HTTP/2 capable client is shared by every download, so the connections to a HIP are reused across attachments
+ * and parts instead of a handshake per attachment. Downloads run on a pool of maxConcurrentDownloads threads, with at
+ * most maxConcurrentDownloadsPerHost of them to the same host and maxParallelDownloadsPerBundle for the attachments
+ * handed over at once, which are those of one resource of a bundle.
+ * <p>
+ * A body is streamed to a partial file next to its target, and stored with the storage codec once complete. A
+ * transfer broken off midway is tried again up to maxAttempts times, resuming with a range request where the server
+ * supports it. Bodies larger than maxBytes are refused, and a download still running after downloadTimeoutSeconds,
+ * retries included, is abandoned.
+ */
+public class AttachmentDownloader {
+    private static final Logger logger = LoggerFactory.getLogger(AttachmentDownloader.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final AttachmentDownloadProperties properties;
+    private final HttpClient client;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService watchdog;
+    private final Map<String, Semaphore> hostSlots = new ConcurrentHashMap<>();
+    private final Timer succeeded;
+    private final Timer failed;
+    private final DistributionSummary downloadedBytes;
+    private final Counter retried;
+    private final Counter resumed;
+
+    public AttachmentDownloader(AttachmentDownloadProperties properties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofSeconds(properties.getConnectTimeoutSeconds()))
+                .build();
+        this.executor = Executors.newFixedThreadPool(Math.max(properties.getMaxConcurrentDownloads(), 1),
+                new ThreadFactoryBuilder().setNameFormat("attachment-download-%d").setDaemon(true).build());
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("attachment-download-watchdog").setDaemon(true).build());
+        this.succeeded = Timer.builder("hiu.attachment.download")
+                .description("Time to download an attachment, retries included")
+                .tag("outcome", "succeeded")
+                .register(meterRegistry);
+        this.failed = Timer.builder("hiu.attachment.download")
+                .description("Time to download an attachment, retries included")
+                .tag("outcome", "failed")
+                .register(meterRegistry);
+        this.downloadedBytes = DistributionSummary.builder("hiu.attachment.download.size")
+                .description("Size of the attachments downloaded, over the download time gives the throughput")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.retried = meterRegistry.counter("hiu.attachment.download.retries");
+        this.resumed = meterRegistry.counter("hiu.attachment.download.resumed");
+    }
+
+    /**
+     * Downloads every link to its target, stored with the given codec, and returns the downloads that succeeded.
+     * Blocks until all of them are done; a failed download leaves no file behind.
+     */
+    public List<Download> downloadAll(List<Download> downloads, StorageCodec codec) {
+        Semaphore bundleSlots = new Semaphore(Math.max(properties.getMaxParallelDownloadsPerBundle(), 1));
+        String correlationId = MDC.get(CORRELATION_ID);
+        List<Future<Boolean>> results = new ArrayList<>(downloads.size());
+        try {
+            for (Download download : downloads) {
+                bundleSlots.acquire();
+                Semaphore slots = slotsOf(download.getLink());
+                try {
+                    slots.acquire();
+                } catch (InterruptedException e) {
+                    bundleSlots.release();
+                    throw e;
+                }
+                results.add(submit(download, codec, correlationId, () -> {
+                    slots.release();
+                    bundleSlots.release();
+                }));
+            }
+            List<Download> downloaded = new ArrayList<>(downloads.size());
+            for (int i = 0; i < results.size(); i++) {
+                if (succeeded(results.get(i))) {
+                    downloaded.add(downloads.get(i));
+                }
+            }
+            return downloaded;
+        } catch (InterruptedException e) {
+            results.forEach(result -> result.cancel(true));
+            Thread.currentThread().interrupt();
+            return List.of();
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        watchdog.shutdownNow();
+        executor.shutdownNow();
+        executor.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    private Semaphore slotsOf(URI link) {
+        return hostSlots.computeIfAbsent(String.format("%s:%d", link.getHost(), link.getPort()),
+                host -> new Semaphore(Math.max(properties.getMaxConcurrentDownloadsPerHost(), 1)));
+    }
+
+    private Future<Boolean> submit(Download download, StorageCodec codec, String correlationId, Runnable done) {
+        try {
+            return executor.submit(() -> {
+                if (correlationId != null) {
+                    MDC.put(CORRELATION_ID, correlationId);
+                }
+                Deadline deadline = new Deadline(Thread.currentThread());
+                ScheduledFuture<?> timeout = watchdog.schedule(deadline,
+                        properties.getDownloadTimeoutSeconds(),
+                        TimeUnit.SECONDS);
+                Timer.Sample sample = Timer.start();
+                try {
+                    long size = download(download, codec);
+                    sample.stop(succeeded);
+                    downloadedBytes.record(size);
+                    return true;
+                } catch (IOException | InterruptedException | RuntimeException e) {
+                    sample.stop(failed);
+                    logger.error("Could not download attachment from {}, keeping the link: {}",
+                            download.getLink(), deadline.expired() ? "timed out" : e.getMessage(), e);
+                    return false;
+                } finally {
+                    deadline.disarm();
+                    timeout.cancel(false);
+                    MDC.remove(CORRELATION_ID);
+                    done.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            done.run();
+            throw e;
+        }
+    }
+
+    private static boolean succeeded(Future<Boolean> result) throws InterruptedException {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    private long download(Download download, StorageCodec codec) throws IOException, InterruptedException {
+        Path target = download.getTarget();
+        Path partial = target.resolveSibling(target.getFileName() + ".part");
+        Files.createDirectories(partial.toAbsolutePath().getParent());
+        try {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    fetch(download.getLink(), partial);
+                    break;
+                } catch (RefusedDownloadException e) {
+                    throw e;
+                } catch (IOException e) {
+                    if (attempt >= properties.getMaxAttempts() || Thread.currentThread().isInterrupted()) {
+                        throw e;
+                    }
+                    retried.increment();
+                    logger.warn("Download of attachment from {} broke off at attempt {}: {}, trying again",
+                            download.getLink(), attempt, e.getMessage());
+                    Thread.sleep((long) properties.getRetryBackoffMillis() * attempt);
+                }
+            }
+            long size = Files.size(partial);
+            store(partial, target, codec);
+            return size;
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+
+    /**
+     * Fetches the link into the partial file, carrying on from what an earlier attempt left in it when the server
+     * sends the rest of the body, and starting over otherwise.
+     */
+    private void fetch(URI link, Path partial) throws IOException, InterruptedException {
+        long resumeFrom = Files.exists(partial) ? Files.size(partial) : 0;
+        HttpRequest.Builder request = HttpRequest.newBuilder(link)
+                .timeout(Duration.ofSeconds(properties.getResponseTimeoutSeconds()))
+                .GET();
+        if (resumeFrom > 0) {
+            request.header("Range", String.format("bytes=%d-", resumeFrom));
+        }
+        HttpResponse<InputStream> response = client.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+        try (InputStream body = response.body()) {
+            int status = response.statusCode();
+            boolean resuming = resumeFrom > 0 && status == 206 && response.headers()
+                    .firstValue("Content-Range")
+                    .filter(range -> range.startsWith(String.format("bytes %d-", resumeFrom)))
+                    .isPresent();
+            if (status != 200 && !resuming) {
+                if (status == 206 || status == 416) {
+                    Files.deleteIfExists(partial);
+                    throw new IOException(String.format("Range request answered with %d, starting over", status));
+                }
+                if (status == 429 || status >= 500) {
+                    throw new IOException(String.format("Server answered with %d", status));
+                }
+                throw new RefusedDownloadException(String.format("Server answered with %d", status));
+            }
+            long offset = resuming ? resumeFrom : 0;
+            long length = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+            if (length >= 0 && offset + length > properties.getMaxBytes()) {
+                throw new RefusedDownloadException(String.format("Attachment of %d bytes is larger than %d bytes",
+                        offset + length, properties.getMaxBytes()));
+            }
+            if (resuming) {
+                resumed.increment();
+            }
+            long received = copy(body, partial, offset);
+            if (length >= 0 && received < length) {
+                throw new IOException(String.format("Connection closed after %d of %d bytes", received, length));
+            }
+        }
+    }
+
+    private long copy(InputStream body, Path partial, long offset) throws IOException {
+        long received = 0;
+        try (OutputStream out = Files.newOutputStream(partial,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                offset > 0 ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                received += read;
+                if (offset + received > properties.getMaxBytes()) {
+                    throw new RefusedDownloadException(String.format("Attachment is larger than %d bytes",
+                            properties.getMaxBytes()));
+                }
+                out.write(buffer, 0, read);
+            }
+        }
+        return received;
+    }
+
+    private static void store(Path partial, Path target, StorageCodec codec) throws IOException {
+        if (PlainStorageCodec.NAME.equals(codec.getName())) {
+            Files.move(partial, target);
+            return;
+        }
+        try (InputStream in = Files.newInputStream(partial);
+             OutputStream out = StorageFiles.newOutputStream(codec, target,
+                     StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            in.transferTo(out);
+        }
+    }
+
+    @Value
+    public static class Download {
+        URI link;
+        Path target;
+    }
+
+    // Not worth another attempt, like a client error or a body over the size limit.
+    private static class RefusedDownloadException extends IOException {
+        RefusedDownloadException(String message) {
+            super(message);
+        }
+    }
+
+    // Interrupts the download thread when the download runs out of time, unless the download is over by then.
+    private static class Deadline implements Runnable {
+        private final Thread worker;
+        private boolean armed = true;
+        private boolean expired;
+
+        Deadline(Thread worker) {
+            this.worker = worker;
+        }
+
+        @Override
+        public synchronized void run() {
+            if (armed) {
+                expired = true;
+                worker.interrupt();
+            }
+        }
+
+        synchronized boolean expired() {
+            return expired;
+        }
+
+        synchronized void disarm() {
+            armed = false;
+            // clears an interrupt that came in after the download was over
+            Thread.interrupted();
+        }
+    }
+}
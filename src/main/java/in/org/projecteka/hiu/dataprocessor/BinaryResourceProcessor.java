@@ -1,5 +1,6 @@
 package in.org.projecteka.hiu.dataprocessor;
 
+import in.org.projecteka.hiu.common.storage.StorageFiles;
 import in.org.projecteka.hiu.dataprocessor.model.BundleContext;
 import in.org.projecteka.hiu.dataprocessor.model.DataContext;
 import in.org.projecteka.hiu.dataprocessor.model.ProcessContext;
@@ -10,9 +11,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.file.Files;
+import java.io.OutputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
@@ -38,12 +37,9 @@ public class BinaryResourceProcessor implements HITypeResourceProcessor {
         byte[] data = Base64.getDecoder().decode(binaryResource.getContentAsBase64());
         String randomFileName = UUID.randomUUID().toString() + getFileExtension(binaryResource.getContentType());
         Path localPath = Paths.get(localStoragePath.toString(), randomFileName);
-        try (FileChannel channel = (FileChannel) Files.newByteChannel(localPath,
+        try (OutputStream out = StorageFiles.newOutputStream(dataContext.getStorageCodec(), localPath,
                 StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
-            ByteBuffer buffer = ByteBuffer.allocate(data.length);
-            buffer.put(data);
-            buffer.flip();
-            channel.write(buffer);
+            out.write(data);
         } catch (IOException ex) {
             logger.error(ex.getMessage(), ex);
             throw new RuntimeException(ex);
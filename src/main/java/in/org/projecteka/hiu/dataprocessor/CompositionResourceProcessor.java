@@ -38,6 +38,10 @@ public class CompositionResourceProcessor implements HITypeResourceProcessor {
     private void processCompositionEntry(Reference entry, DataContext dataContext, BundleContext bundleContext, ProcessContext compositionContext) {
         IBaseResource entryResource = entry.getResource();
         if (entryResource == null) {
+            if (bundleContext.awaitReference(entry, resource ->
+                    processSectionEntry(resource, dataContext, bundleContext, compositionContext))) {
+                return;
+            }
             logger.warn(String.format("Composition section entry not found. Composition id: %s, Entry reference: %s",
                     compositionContext.getContextResourceId(), entry.getReference()));
         }
@@ -46,7 +50,10 @@ public class CompositionResourceProcessor implements HITypeResourceProcessor {
                     compositionContext.getContextResourceId(), entry.getReference()));
             return;
         }
-        Resource sectionEntryResource = (Resource) entryResource;
+        processSectionEntry((Resource) entryResource, dataContext, bundleContext, compositionContext);
+    }
+
+    private void processSectionEntry(Resource sectionEntryResource, DataContext dataContext, BundleContext bundleContext, ProcessContext compositionContext) {
         HITypeResourceProcessor resProcessor = bundleContext.findResourceProcessor(sectionEntryResource.getResourceType());
         if (resProcessor != null) {
             resProcessor.process(sectionEntryResource, dataContext, bundleContext, compositionContext);
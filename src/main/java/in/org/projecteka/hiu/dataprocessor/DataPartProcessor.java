@@ -0,0 +1,197 @@
+package in.org.projecteka.hiu.dataprocessor;
+
+import in.org.projecteka.hiu.HiuProperties;
+import in.org.projecteka.hiu.clients.HealthInformationClient;
+import in.org.projecteka.hiu.common.Gateway;
+import in.org.projecteka.hiu.common.storage.StorageCodec;
+import in.org.projecteka.hiu.dataflow.DataAvailabilityPublisher;
+import in.org.projecteka.hiu.dataflow.DataFlowRepository;
+import in.org.projecteka.hiu.dataflow.DataPartDeduplicator;
+import in.org.projecteka.hiu.dataflow.DataPartStore;
+import in.org.projecteka.hiu.dataflow.Decryptor;
+import in.org.projecteka.hiu.dataflow.TransactionContexts;
+import in.org.projecteka.hiu.dataprocessor.model.DataAvailableMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.util.context.Context;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static in.org.projecteka.hiu.common.Constants.CORRELATION_ID;
+
+/**
+ * Processes received data parts, either for the process queue listener or inline, right after a small part has
+ * been stored.
+ * <p>
+ * Only so many parts are processed inline at a time. A part above the size threshold, or one arriving while that
+ * many are in progress, is left to the process queue. Both paths run the same {@link HealthDataProcessor}, so the
+ * data part goes through the same statuses either way.
+ * <p>
+ * A part that fails inline, or is still in progress when the service stops, is published to the process queue, so
+ * it is not left received but never processed.
+ * <p>
+ * The processor and its resource processors hold no state of their own between parts, so one of each serves every
+ * message.
+ */
+public class DataPartProcessor {
+    private static final Logger logger = LoggerFactory.getLogger(DataPartProcessor.class);
+
+    private static final Duration SEND_TO_QUEUE_TIMEOUT = Duration.ofSeconds(10);
+
+    private final HealthDataProcessor healthDataProcessor;
+    private final DataAvailabilityPublisher dataAvailabilityPublisher;
+    private final long inlineThresholdBytes;
+    private final int inlineConcurrency;
+    private final AtomicInteger inlineInProgress = new AtomicInteger();
+    private final Set<InlinePart> inlineParts = ConcurrentHashMap.newKeySet();
+    private volatile boolean stopped;
+    private final Counter processedInline;
+    private final Counter sentToQueue;
+
+    public DataPartProcessor(HealthDataRepository healthDataRepository,
+                             DataFlowRepository dataFlowRepository,
+                             Decryptor decryptor,
+                             ResourceProcessorRegistry resourceProcessors,
+                             HealthInformationClient healthInformationClient,
+                             Gateway gateway,
+                             HiuProperties hiuProperties,
+                             TransactionContexts transactionContexts,
+                             StorageCodec storageCodec,
+                             AttachmentDownloader attachmentDownloader,
+                             DataPartStore dataPartStore,
+                             DataPartDeduplicator dataPartDeduplicator,
+                             FhirParsingEngine fhirParsingEngine,
+                             EntryProcessingPool entryProcessingPool,
+                             long streamingBundleThresholdBytes,
+                             boolean notifyThroughOutbox,
+                             DataAvailabilityPublisher dataAvailabilityPublisher,
+                             long inlineThresholdBytes,
+                             int inlineConcurrency,
+                             MeterRegistry meterRegistry) {
+        this.healthDataProcessor = new HealthDataProcessor(
+                healthDataRepository,
+                dataFlowRepository,
+                decryptor,
+                resourceProcessors,
+                healthInformationClient,
+                gateway,
+                hiuProperties,
+                transactionContexts,
+                storageCodec,
+                attachmentDownloader,
+                dataPartStore,
+                dataPartDeduplicator,
+                fhirParsingEngine,
+                entryProcessingPool,
+                streamingBundleThresholdBytes,
+                notifyThroughOutbox);
+        this.dataAvailabilityPublisher = dataAvailabilityPublisher;
+        this.inlineThresholdBytes = inlineThresholdBytes;
+        this.inlineConcurrency = Math.max(inlineConcurrency, 1);
+        this.processedInline = meterRegistry.counter("hiu.data.part.dispatched", "path", "inline");
+        this.sentToQueue = meterRegistry.counter("hiu.data.part.dispatched", "path", "queue");
+    }
+
+    public Mono<Void> process(DataAvailableMessage message) {
+        return healthDataProcessor.process(message);
+    }
+
+    /**
+     * @param contentRef what is published to the process queue should the part fail inline
+     * @return false when the part has to go through the process queue instead
+     */
+    public boolean tryProcessInline(DataAvailableMessage message, Map<String, String> contentRef, long sizeInBytes) {
+        if (stopped || inlineThresholdBytes <= 0 || sizeInBytes > inlineThresholdBytes || !reserveInlineSlot()) {
+            sentToQueue.increment();
+            return false;
+        }
+        String correlationId = MDC.get(CORRELATION_ID);
+        var inlinePart = new InlinePart(contentRef, correlationId);
+        inlineParts.add(inlinePart);
+        inlinePart.processing = process(message)
+                .doFinally(signal -> {
+                    inlineParts.remove(inlinePart);
+                    inlineInProgress.decrementAndGet();
+                })
+                .contextWrite(correlationId == null ? Context.empty() : Context.of(CORRELATION_ID, correlationId))
+                .subscribe(null,
+                        exception -> {
+                            logger.error("Could not process data part {} of transaction {} inline, sending it to "
+                                    + "the process queue", message.getPartNumber(), message.getTransactionId(),
+                                    exception);
+                            sendToQueue(contentRef, correlationId)
+                                    .subscribe(null, error -> logger.error("Could not send data part {} of "
+                                                    + "transaction {} to the process queue",
+                                            message.getPartNumber(), message.getTransactionId(), error));
+                        },
+                        processedInline::increment);
+        return true;
+    }
+
+    /**
+     * Runs before the entry processing pool and the process queue publisher are stopped, so the parts still in
+     * progress are abandoned and published to the process queue while both are still around.
+     */
+    @PreDestroy
+    public void stop() {
+        stopped = true;
+        for (InlinePart inlinePart : Set.copyOf(inlineParts)) {
+            Disposable processing = inlinePart.processing;
+            if (processing != null) {
+                processing.dispose();
+            }
+            try {
+                sendToQueue(inlinePart.contentRef, inlinePart.correlationId).block(SEND_TO_QUEUE_TIMEOUT);
+            } catch (RuntimeException e) {
+                logger.error("Could not send data part {} interrupted by shutdown to the process queue",
+                        inlinePart.contentRef, e);
+            }
+        }
+    }
+
+    private Mono<Void> sendToQueue(Map<String, String> contentRef, String correlationId) {
+        return Mono.defer(() -> {
+            // The publisher reads the correlation id off the MDC of the thread it is called on.
+            if (correlationId != null) {
+                MDC.put(CORRELATION_ID, correlationId);
+            }
+            try {
+                return dataAvailabilityPublisher.broadcastDataAvailability(contentRef);
+            } finally {
+                MDC.remove(CORRELATION_ID);
+            }
+        }).doOnSuccess(ignored -> sentToQueue.increment());
+    }
+
+    private boolean reserveInlineSlot() {
+        int inProgress;
+        do {
+            inProgress = inlineInProgress.get();
+            if (inProgress >= inlineConcurrency) {
+                return false;
+            }
+        } while (!inlineInProgress.compareAndSet(inProgress, inProgress + 1));
+        return true;
+    }
+
+    private static class InlinePart {
+        private final Map<String, String> contentRef;
+        private final String correlationId;
+        private volatile Disposable processing;
+
+        private InlinePart(Map<String, String> contentRef, String correlationId) {
+            this.contentRef = contentRef;
+            this.correlationId = correlationId;
+        }
+    }
+}
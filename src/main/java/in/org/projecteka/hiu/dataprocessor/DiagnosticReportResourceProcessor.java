@@ -15,8 +15,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.stream.Collectors;
 
 public class DiagnosticReportResourceProcessor implements HITypeResourceProcessor {
 
@@ -59,8 +61,8 @@ public class DiagnosticReportResourceProcessor implements HITypeResourceProcesso
             return;
         }
         DiagnosticReport diagnosticReport = (DiagnosticReport) resource;
-        processPresentedForm(diagnosticReport, dataContext.getLocalStoragePath());
-        processMedia(diagnosticReport, dataContext.getLocalStoragePath(), bundleContext);
+        processPresentedForm(diagnosticReport, dataContext);
+        processMedia(diagnosticReport, dataContext, bundleContext);
         processResults(diagnosticReport, dataContext, bundleContext, processContext);
         bundleContext.doneProcessing(diagnosticReport);
         Date reportDate = getReportDate(diagnosticReport, bundleContext, processContext);
@@ -78,21 +80,28 @@ public class DiagnosticReportResourceProcessor implements HITypeResourceProcesso
             diagnosticReport.getResult().stream().forEach(ref -> {
                 IBaseResource resource = ref.getResource();
                 if (resource == null) {
+                    if (bundleContext.awaitReference(ref, result ->
+                            processResult(result, dataContext, bundleContext, reportProcessCtx))) {
+                        return;
+                    }
                     logger.warn(String.format("Diagnostic results not found. diagnosticReport id: %s, result reference: %s",
                             diagnosticReport.getId(), ref.getReference()));
                 }
                 if (!(resource instanceof Resource)) {
                     return;
                 }
-                Resource bundleResource = (Resource) resource;
-                HITypeResourceProcessor resProcessor = bundleContext.findResourceProcessor(bundleResource.getResourceType());
-                if (resProcessor != null) {
-                    resProcessor.process(bundleResource, dataContext, bundleContext, reportProcessCtx);
-                }
+                processResult((Resource) resource, dataContext, bundleContext, reportProcessCtx);
             });
         }
     }
 
+    private void processResult(Resource bundleResource, DataContext dataContext, BundleContext bundleContext, ProcessContext reportProcessCtx) {
+        HITypeResourceProcessor resProcessor = bundleContext.findResourceProcessor(bundleResource.getResourceType());
+        if (resProcessor != null) {
+            resProcessor.process(bundleResource, dataContext, bundleContext, reportProcessCtx);
+        }
+    }
+
     private ProcessContext getReportContext(DiagnosticReport diagnosticReport, BundleContext bundleContext) {
         return new ProcessContext(
                () -> getReportDate(diagnosticReport, bundleContext, null),
@@ -110,43 +119,66 @@ public class DiagnosticReportResourceProcessor implements HITypeResourceProcesso
         return date;
     }
 
-    private void processMedia(DiagnosticReport diagnosticReport, Path localStoragePath, BundleContext bundleContext) {
+    /**
+     * The media already in the bundle are saved together, so that their linked content is downloaded in parallel;
+     * media further down the bundle are saved as they come.
+     */
+    private void processMedia(DiagnosticReport diagnosticReport, DataContext dataContext, BundleContext bundleContext) {
         List<DiagnosticReport.DiagnosticReportMediaComponent> mediaList = diagnosticReport.getMedia();
         if (mediaList.isEmpty()) {
             return;
         }
+        List<Media> resolvedMedia = new ArrayList<>();
         for (DiagnosticReport.DiagnosticReportMediaComponent media : mediaList) {
             if (!media.hasLink()) {
                 continue;
             }
             Media mediaResource = (Media) media.getLink().getResource();
             if (mediaResource == null) {
+                bundleContext.awaitReference(media.getLink(), resource -> {
+                    if (resource instanceof Media) {
+                        processMedia(List.of((Media) resource), dataContext, bundleContext);
+                    }
+                });
                 continue;
             }
-            if (bundleContext.isProcessed(mediaResource)) {
-                continue;
-            }
-            processDiagnosticReportMedia(mediaResource, localStoragePath);
-            bundleContext.doneProcessing(mediaResource);
+            resolvedMedia.add(mediaResource);
         }
+        processMedia(resolvedMedia, dataContext, bundleContext);
     }
 
-    private void processDiagnosticReportMedia(Media media, Path localStoragePath) {
-        Path savedAttachmentPath = new AttachmentDataTypeProcessor().process(media.getContent(), localStoragePath);
-        if (isRadiologyFile(media.getContent())) {
-            uploadToLocalDicomServer(media.getContent(), savedAttachmentPath);
+    private void processMedia(List<Media> mediaResources, DataContext dataContext, BundleContext bundleContext) {
+        List<Media> unprocessed = new ArrayList<>(mediaResources.size());
+        for (Media mediaResource : mediaResources) {
+            if (!bundleContext.isProcessed(mediaResource)) {
+                bundleContext.doneProcessing(mediaResource);
+                unprocessed.add(mediaResource);
+            }
+        }
+        if (unprocessed.isEmpty()) {
+            return;
+        }
+        List<Attachment> contents = unprocessed.stream().map(Media::getContent).collect(Collectors.toList());
+        List<Path> savedAttachmentPaths = attachmentProcessor(dataContext)
+                .processAll(contents, dataContext.getLocalStoragePath());
+        for (int i = 0; i < contents.size(); i++) {
+            if (savedAttachmentPaths.get(i) != null && isRadiologyFile(contents.get(i))) {
+                uploadToLocalDicomServer(contents.get(i), savedAttachmentPaths.get(i));
+            }
         }
     }
 
-    private void processPresentedForm(DiagnosticReport diagnosticReport, Path localStorePath) {
+    private void processPresentedForm(DiagnosticReport diagnosticReport, DataContext dataContext) {
         if (diagnosticReport.hasPresentedForm()) {
-            List<Attachment> presentedForm = diagnosticReport.getPresentedForm();
-            for (Attachment attachment : presentedForm) {
-                new AttachmentDataTypeProcessor().process(attachment, localStorePath);
-            }
+            attachmentProcessor(dataContext)
+                    .processAll(diagnosticReport.getPresentedForm(), dataContext.getLocalStoragePath());
         }
     }
 
+    private AttachmentDataTypeProcessor attachmentProcessor(DataContext dataContext) {
+        return new AttachmentDataTypeProcessor(dataContext.getStorageCodec(), dataContext.getAttachmentDownloader());
+    }
+
     private boolean isRadiologyFile(Attachment attachment) {
         String extension = AttachmentDataTypeProcessor.getFileExtension(attachment.getContentType().toUpperCase());
         return (extension != null) && extension.equals(".dcm");
@@ -3,6 +3,7 @@ package in.org.projecteka.hiu.dataprocessor;
 import in.org.projecteka.hiu.dataprocessor.model.BundleContext;
 import in.org.projecteka.hiu.dataprocessor.model.DataContext;
 import in.org.projecteka.hiu.dataprocessor.model.ProcessContext;
+import org.hl7.fhir.r4.model.Attachment;
 import org.hl7.fhir.r4.model.DocumentReference;
 import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.ResourceType;
@@ -10,6 +11,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
+import java.util.stream.Collectors;
 
 public class DocumentReferenceResourceProcessor implements HITypeResourceProcessor {
 
@@ -26,12 +28,12 @@ public class DocumentReferenceResourceProcessor implements HITypeResourceProcess
             return;
         }
         DocumentReference docRef = (DocumentReference) resource;
-        List<DocumentReference.DocumentReferenceContentComponent> contents = docRef.getContent();
-        for (DocumentReference.DocumentReferenceContentComponent content : contents) {
-            if (content.hasAttachment()) {
-                new AttachmentDataTypeProcessor().process(content.getAttachment(), dataContext.getLocalStoragePath());
-            }
-        }
+        List<Attachment> attachments = docRef.getContent().stream()
+                .filter(DocumentReference.DocumentReferenceContentComponent::hasAttachment)
+                .map(DocumentReference.DocumentReferenceContentComponent::getAttachment)
+                .collect(Collectors.toList());
+        new AttachmentDataTypeProcessor(dataContext.getStorageCodec(), dataContext.getAttachmentDownloader())
+                .processAll(attachments, dataContext.getLocalStoragePath());
         bundleContext.doneProcessing(docRef);
         if (processContext != null) {
             //if processed as part of composition or other parent resource context, we do not need to track individual docReference
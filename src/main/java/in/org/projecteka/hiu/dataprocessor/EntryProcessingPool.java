@@ -0,0 +1,84 @@
+package in.org.projecteka.hiu.dataprocessor;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.MDC;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static in.org.projecteka.hiu.common.Constants.CORRELATION_ID;
+
+/**
+ * Runs the CPU heavy work of data part entries (decrypt, parse, resource processing) on a fixed pool shared by all
+ * parts, sized to the CPUs unless configured otherwise.
+ * <p>
+ * The entries of a part are processed concurrently, up to the size of the pool, but their results come back in the
+ * order of the entries whatever order they finish in, so the statuses and errors built from them do not depend on
+ * timing. The correlation id is taken from the subscriber context, as the work hops threads. Work that blocks on
+ * I/O is handed to the bounded elastic scheduler instead, see {@link #runBlocking}.
+ */
+public class EntryProcessingPool {
+    private final ExecutorService executor;
+    private final Scheduler scheduler;
+    private final int concurrency;
+    private final Timer entryTimer;
+
+    public EntryProcessingPool(int threads, MeterRegistry meterRegistry) {
+        this.concurrency = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.executor = Executors.newFixedThreadPool(concurrency,
+                new ThreadFactoryBuilder().setNameFormat("data-entry-%d").setDaemon(true).build());
+        this.scheduler = Schedulers.fromExecutorService(executor, "data-entry");
+        this.entryTimer = Timer.builder("hiu.data.entry.processing")
+                .description("Time to fetch, decrypt, parse, process and save one entry of a data part")
+                .register(meterRegistry);
+    }
+
+    public <T, R> Flux<R> map(List<T> entries, Function<T, Mono<R>> process) {
+        return Flux.fromIterable(entries)
+                .flatMapSequential(entry -> Mono.defer(() -> {
+                    Timer.Sample sample = Timer.start();
+                    return process.apply(entry).doFinally(signal -> sample.stop(entryTimer));
+                }), concurrency);
+    }
+
+    public <R> Mono<R> run(Callable<R> task) {
+        return withCorrelationId(task).subscribeOn(scheduler);
+    }
+
+    /**
+     * Runs work of an entry that blocks on I/O, like downloading attachments, on the bounded elastic scheduler
+     * rather than on the pool, so that it does not hold up the CPU heavy work of other entries.
+     */
+    public <R> Mono<R> runBlocking(Callable<R> task) {
+        return withCorrelationId(task).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private static <R> Mono<R> withCorrelationId(Callable<R> task) {
+        return Mono.deferContextual(context -> Mono.fromCallable(() -> {
+            context.<String>getOrEmpty(CORRELATION_ID).ifPresent(id -> MDC.put(CORRELATION_ID, id));
+            try {
+                return task.call();
+            } finally {
+                MDC.remove(CORRELATION_ID);
+            }
+        }));
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        scheduler.dispose();
+        executor.shutdown();
+        executor.awaitTermination(30, TimeUnit.SECONDS);
+    }
+}
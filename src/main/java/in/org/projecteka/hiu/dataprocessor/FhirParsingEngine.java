@@ -0,0 +1,136 @@
+package in.org.projecteka.hiu.dataprocessor;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Supplier;
+
+import static in.org.projecteka.hiu.dataprocessor.HealthDataProcessor.MEDIA_APPLICATION_FHIR_JSON;
+import static in.org.projecteka.hiu.dataprocessor.HealthDataProcessor.MEDIA_APPLICATION_FHIR_XML;
+
+/**
+ * The one {@link FhirContext} of the application, with a pool of its parsers.
+ * <p>
+ * A context scans the FHIR model on first use, which takes hundreds of milliseconds, so it is built once and warmed
+ * up at startup by parsing and encoding a representative bundle in both formats; readiness reports the service
+ * down until that is done. Parsers are not thread safe and are leased for the duration of one entry.
+ */
+public class FhirParsingEngine {
+    private static final Logger logger = LoggerFactory.getLogger(FhirParsingEngine.class);
+    private static final String WARM_UP_BUNDLE = "/fhir/warm-up-bundle.json";
+
+    private final FhirContext fhirContext;
+    private final BlockingQueue<IParser> jsonParsers;
+    private final BlockingQueue<IParser> xmlParsers;
+    private volatile boolean ready;
+
+    public FhirParsingEngine(int parserPoolSize) {
+        fhirContext = FhirContext.forR4();
+        jsonParsers = new ArrayBlockingQueue<>(Math.max(parserPoolSize, 1));
+        xmlParsers = new ArrayBlockingQueue<>(Math.max(parserPoolSize, 1));
+    }
+
+    @PostConstruct
+    public void start() {
+        Thread warmUp = new Thread(this::warmUp, "fhir-warm-up");
+        warmUp.setDaemon(true);
+        warmUp.start();
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @return empty when the media type is not one of the FHIR formats
+     */
+    public Optional<Lease> lease(String media) {
+        if (MEDIA_APPLICATION_FHIR_JSON.equalsIgnoreCase(media)) {
+            return Optional.of(new Lease(jsonParsers, fhirContext::newJsonParser));
+        }
+        if (MEDIA_APPLICATION_FHIR_XML.equalsIgnoreCase(media)) {
+            return Optional.of(new Lease(xmlParsers, fhirContext::newXmlParser));
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Whether processing the resource downloads attachments, see {@link AttachmentDataTypeProcessor}: whether it
+     * has an attachment with an http link.
+     */
+    public boolean hasLinkedAttachments(IBaseResource resource) {
+        return fhirContext.newTerser().getAllPopulatedChildElementsOfType(resource, Attachment.class).stream()
+                .map(Attachment::getUrl)
+                .filter(Objects::nonNull)
+                .map(url -> url.trim().toLowerCase())
+                .anyMatch(url -> url.startsWith("http://") || url.startsWith("https://"));
+    }
+
+    void warmUp() {
+        long startedAt = System.nanoTime();
+        try {
+            String json = readWarmUpBundle();
+            String xml;
+            try (Lease lease = lease(MEDIA_APPLICATION_FHIR_JSON).orElseThrow()) {
+                xml = fhirContext.newXmlParser()
+                        .encodeResourceToString(lease.getParser().parseResource(Bundle.class, json));
+            }
+            try (Lease lease = lease(MEDIA_APPLICATION_FHIR_XML).orElseThrow()) {
+                lease.getParser().encodeResourceToString(lease.getParser().parseResource(Bundle.class, xml));
+            }
+            logger.info("FHIR parsing engine warmed up in {} ms", (System.nanoTime() - startedAt) / 1_000_000);
+        } catch (RuntimeException e) {
+            logger.error("Could not warm up the FHIR parsing engine, first messages will be parsed cold", e);
+        } finally {
+            ready = true;
+        }
+    }
+
+    private static String readWarmUpBundle() {
+        try (InputStream bundle = FhirParsingEngine.class.getResourceAsStream(WARM_UP_BUNDLE)) {
+            if (bundle == null) {
+                throw new IllegalStateException("Missing " + WARM_UP_BUNDLE);
+            }
+            return new String(bundle.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static class Lease implements AutoCloseable {
+        private final BlockingQueue<IParser> pool;
+        private final IParser parser;
+
+        private Lease(BlockingQueue<IParser> pool, Supplier<IParser> newParser) {
+            this.pool = pool;
+            IParser pooled = pool.poll();
+            this.parser = pooled != null ? pooled : newParser.get();
+        }
+
+        public IParser getParser() {
+            return parser;
+        }
+
+        /**
+         * Returns the parser to the pool, or lets it go when the pool is already full.
+         */
+        @Override
+        public void close() {
+            pool.offer(parser);
+        }
+    }
+}
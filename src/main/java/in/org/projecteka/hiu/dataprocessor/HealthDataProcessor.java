@@ -1,30 +1,42 @@
 package in.org.projecteka.hiu.dataprocessor;
 
-import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
 import ca.uhn.fhir.parser.IParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.google.common.base.Throwables;
 import in.org.projecteka.hiu.HiuProperties;
 import in.org.projecteka.hiu.clients.HealthInformationClient;
 import in.org.projecteka.hiu.common.Gateway;
-import in.org.projecteka.hiu.consent.ConsentRepository;
+import in.org.projecteka.hiu.common.storage.StorageCodec;
+import in.org.projecteka.hiu.common.storage.StorageFiles;
 import in.org.projecteka.hiu.dataflow.DataFlowRepository;
+import in.org.projecteka.hiu.dataflow.DataPartDeduplicator;
+import in.org.projecteka.hiu.dataflow.DataPartStore;
 import in.org.projecteka.hiu.dataflow.Decryptor;
+import in.org.projecteka.hiu.dataflow.TransactionContexts;
 import in.org.projecteka.hiu.dataflow.model.DataFlowRequestKeyMaterial;
 import in.org.projecteka.hiu.dataflow.model.DataNotificationRequest;
 import in.org.projecteka.hiu.dataflow.model.Entry;
 import in.org.projecteka.hiu.dataflow.model.HealthInfoStatus;
+import in.org.projecteka.hiu.dataflow.model.SegmentReference;
+import in.org.projecteka.hiu.dataflow.model.TransactionContext;
 import in.org.projecteka.hiu.dataprocessor.model.BundleContext;
 import in.org.projecteka.hiu.dataprocessor.model.DataAvailableMessage;
 import in.org.projecteka.hiu.dataprocessor.model.DataContext;
+import in.org.projecteka.hiu.dataprocessor.model.EntryStatus;
 import in.org.projecteka.hiu.dataprocessor.model.HealthInfoNotificationRequest;
+import in.org.projecteka.hiu.dataprocessor.model.HealthInformationRecord;
 import in.org.projecteka.hiu.dataprocessor.model.HiStatus;
 import in.org.projecteka.hiu.dataprocessor.model.Notification;
+import in.org.projecteka.hiu.dataprocessor.model.NotificationOutboxEntry;
 import in.org.projecteka.hiu.dataprocessor.model.Notifier;
 import in.org.projecteka.hiu.dataprocessor.model.ProcessedEntry;
 import in.org.projecteka.hiu.dataprocessor.model.SessionStatus;
 import in.org.projecteka.hiu.dataprocessor.model.StatusNotification;
 import in.org.projecteka.hiu.dataprocessor.model.StatusResponse;
+import in.org.projecteka.hiu.dataprocessor.model.TrackedResourceReference;
 import in.org.projecteka.hiu.dataprocessor.model.Type;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Identifier;
@@ -32,28 +44,40 @@ import org.hl7.fhir.r4.model.Organization;
 import org.hl7.fhir.r4.model.ResourceType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.slf4j.MDC;
 import org.springframework.data.util.Pair;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
+import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static com.fasterxml.jackson.databind.DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES;
 import static com.fasterxml.jackson.databind.SerializationFeature.WRITE_DATES_AS_TIMESTAMPS;
-import static in.org.projecteka.hiu.common.Constants.CORRELATION_ID;
+import static in.org.projecteka.hiu.ClientError.dbOperationFailure;
 import static in.org.projecteka.hiu.dataflow.model.HealthInfoStatus.ERRORED;
 import static in.org.projecteka.hiu.dataflow.model.HealthInfoStatus.PARTIAL;
 import static java.util.stream.Collectors.joining;
@@ -62,142 +86,370 @@ public class HealthDataProcessor {
     public static final String MEDIA_APPLICATION_FHIR_JSON = "application/fhir+json";
     public static final String MEDIA_APPLICATION_FHIR_XML = "application/fhir+xml";
     private static final Logger logger = LoggerFactory.getLogger(HealthDataProcessor.class);
+    private static final ObjectMapper DATA_FILE_MAPPER = new ObjectMapper()
+            .registerModule(new JavaTimeModule())
+            .configure(WRITE_DATES_AS_TIMESTAMPS, false)
+            .configure(FAIL_ON_UNKNOWN_PROPERTIES, false);
     private static final String COULD_NOT_RECEIVE_DATA = "Couldn't receive data";
+    private static final String CHECKSUM_MISMATCH = "Checksum does not match the content";
+    private static final Set<HealthInfoStatus> TERMINAL_PART_STATUSES =
+            EnumSet.of(HealthInfoStatus.SUCCEEDED, HealthInfoStatus.PARTIAL, HealthInfoStatus.ERRORED);
     private final HealthDataRepository healthDataRepository;
     private final DataFlowRepository dataFlowRepository;
     private final Decryptor decryptor;
     private final HealthInformationClient healthInformationClient;
     private final Gateway gateway;
     private final HiuProperties hiuProperties;
-    private final ConsentRepository consentRepository;
-    private final FhirContext fhirContext = FhirContext.forR4();
-    private final List<HITypeResourceProcessor> resourceProcessors = new ArrayList<>();
+    private final TransactionContexts transactionContexts;
+    private final StorageCodec storageCodec;
+    private final AttachmentDownloader attachmentDownloader;
+    private final DataPartStore dataPartStore;
+    private final DataPartDeduplicator dataPartDeduplicator;
+    private final FhirParsingEngine fhirParsingEngine;
+    private final EntryProcessingPool entryProcessingPool;
+    private final ResourceProcessorRegistry resourceProcessors;
+    private final StreamingBundleProcessor streamingBundleProcessor;
+    private final long streamingBundleThresholdBytes;
+    private final boolean notifyThroughOutbox;
 
     public HealthDataProcessor(HealthDataRepository healthDataRepository,
                                DataFlowRepository dataFlowRepository,
                                Decryptor decryptor,
-                               List<HITypeResourceProcessor> hiTypeResourceProcessors,
+                               ResourceProcessorRegistry resourceProcessors,
                                HealthInformationClient healthInformationClient,
                                Gateway gateway,
                                HiuProperties hiuProperties,
-                               ConsentRepository consentRepository) {
+                               TransactionContexts transactionContexts,
+                               StorageCodec storageCodec,
+                               AttachmentDownloader attachmentDownloader,
+                               DataPartStore dataPartStore,
+                               DataPartDeduplicator dataPartDeduplicator,
+                               FhirParsingEngine fhirParsingEngine,
+                               EntryProcessingPool entryProcessingPool,
+                               long streamingBundleThresholdBytes,
+                               boolean notifyThroughOutbox) {
         this.healthDataRepository = healthDataRepository;
         this.dataFlowRepository = dataFlowRepository;
         this.decryptor = decryptor;
         this.healthInformationClient = healthInformationClient;
-        this.resourceProcessors.addAll(hiTypeResourceProcessors);
         this.gateway = gateway;
         this.hiuProperties = hiuProperties;
-        this.consentRepository = consentRepository;
+        this.resourceProcessors = resourceProcessors;
+        this.transactionContexts = transactionContexts;
+        this.storageCodec = storageCodec;
+        this.attachmentDownloader = attachmentDownloader;
+        this.dataPartStore = dataPartStore;
+        this.dataPartDeduplicator = dataPartDeduplicator;
+        this.fhirParsingEngine = fhirParsingEngine;
+        this.entryProcessingPool = entryProcessingPool;
+        this.streamingBundleProcessor = new StreamingBundleProcessor(resourceProcessors);
+        this.streamingBundleThresholdBytes = streamingBundleThresholdBytes;
+        this.notifyThroughOutbox = notifyThroughOutbox;
     }
 
-    public void process(DataAvailableMessage message) {
-        DataContext context = createDataContext(message);
-        if (context != null && context.getNotifiedData() != null) {
-            processEntries(context);
-        } else {
-            // TODO: this should never happen, unless someone sends empty response.
-            // TODO: Noop. this can be a valid scenario.
-        }
+    /**
+     * Completes once the part is processed and its status saved, along with the notification of its entries to the
+     * outbox when notifying through it, see {@link NotificationRelay}, or else once the HIP is notified, when due.
+     * Database and gateway calls stay on their own event loops, reading the
+     * part file happens on the bounded elastic scheduler and the decrypt/parse/process work of each entry on the
+     * {@link EntryProcessingPool}, bar the processing that downloads attachments.
+     * <p>
+     * A part already saved, as one redelivered after its processing was cut short past the save, is skipped, so its
+     * entries are not stored and notified again.
+     */
+    public Mono<Void> process(DataAvailableMessage message) {
+        return dataFlowRepository.getStatusesOfDataPart(message.getTransactionId(), message.getPartNumber())
+                .filter(statuses -> {
+                    boolean saved = !statuses.isEmpty() && TERMINAL_PART_STATUSES.containsAll(statuses);
+                    if (saved) {
+                        logger.info("Part {} of transaction {} is already processed, skipping it",
+                                message.getPartNumber(), message.getTransactionId());
+                    }
+                    return !saved;
+                })
+                .flatMap(ignored -> createDataContext(message))
+                .filter(context -> context.getNotifiedData() != null)
+                .flatMap(this::processEntries);
     }
 
-    private void processEntries(DataContext context) {
-        try {
-            logger.info(String.format(
-                    "Received data from HIP for transaction: %s. Number of entries: %d. Trying to process data.",
-                    context.getTransactionId(), context.getNumberOfEntries()));
-            updateDataProcessStatus(context, "", HealthInfoStatus.PROCESSING, null);
-            String transactionId = context.getTransactionId();
-            DataFlowRequestKeyMaterial keyMaterial = blockPublisher(dataFlowRepository.getKeys(transactionId));
-            List<String> dataErrors = new ArrayList<>();
-            List<StatusResponse> statusResponses = new ArrayList<>();
-            context.getNotifiedData().getEntries().forEach(entry -> {
-                var entryToProcess = entry;
-                String dataPartNumber = context.getDataPartNumber();
-                if (!hasContent(entry)) {
-                    var healthInformation = blockPublisher(healthInformationClient.informationFrom(entry.getLink()));
-                    if (healthInformation == null) {
-                        dataErrors.add("Health Information not found");
-                        blockPublisher(healthDataRepository
-                                .insertErrorFor(transactionId, dataPartNumber, entryToProcess.getCareContextReference()));
-                        statusResponses.add(getStatusResponse(entry, HiStatus.ERRORED, COULD_NOT_RECEIVE_DATA));
-                        return;
+    private Mono<Void> processEntries(DataContext context) {
+        logger.info(String.format(
+                "Received data from HIP for transaction: %s. Number of entries: %d. Trying to process data.",
+                context.getTransactionId(), context.getNumberOfEntries()));
+        List<Entry> rejectedEntries = new ArrayList<>();
+        List<RepeatedEntry> repeatedEntries = new ArrayList<>();
+        List<Entry> entries = entriesToProcess(context, rejectedEntries, repeatedEntries);
+        return updateDataProcessStatus(context, "", HealthInfoStatus.PROCESSING, null)
+                .then(keyMaterialOf(context))
+                .flatMap(keyMaterial -> Flux.fromIterable(rejectedEntries)
+                        .map(entry -> EntryOutcome.failed(List.of(CHECKSUM_MISMATCH),
+                                getStatusResponse(entry, HiStatus.ERRORED, CHECKSUM_MISMATCH),
+                                entry.getCareContextReference()))
+                        .concatWith(entryProcessingPool.map(entries,
+                                entry -> processEntry(context, entry, keyMaterial)))
+                        .collectList())
+                .flatMap(outcomes -> {
+                    List<String> dataErrors = new ArrayList<>();
+                    List<StatusResponse> statusResponses = new ArrayList<>();
+                    List<HealthInformationRecord> records = new ArrayList<>();
+                    outcomes.forEach(outcome -> {
+                        dataErrors.addAll(outcome.errors);
+                        statusResponses.add(outcome.statusResponse);
+                        records.add(outcome.record);
+                        context.addTrackedResources(outcome.trackedResources);
+                    });
+                    repeatedEntries.forEach(repeated -> {
+                        var original = outcomes.get(rejectedEntries.size() + repeated.original).statusResponse;
+                        statusResponses.add(getStatusResponse(repeated.entry, original.getHiStatus(),
+                                original.getDescription()));
+                    });
+                    if (dataErrors.isEmpty()) {
+                        return saveDataPart(context, records, "", HealthInfoStatus.SUCCEEDED,
+                                statusResponses, SessionStatus.TRANSFERRED);
                     }
-                    entryToProcess = Entry.builder()
-                            .content(healthInformation.getContent())
-                            .checksum(entry.getChecksum())
-                            .media(entry.getMedia())
-                            .careContextReference(entry.getCareContextReference())
-                            .build();
-                }
-                var result = processEntryContent(context, entryToProcess, keyMaterial);
-                if (result.hasErrors()) {
-                    dataErrors.addAll(result.getErrors());
-                    blockPublisher(healthDataRepository
-                            .insertErrorFor(transactionId, dataPartNumber, entryToProcess.getCareContextReference()));
-                    statusResponses.add(getStatusResponse(entry, HiStatus.ERRORED, COULD_NOT_RECEIVE_DATA));
-                    return;
-                }
-                context.addTrackedResources(result.getTrackedResources());
-                Optional<Pair<String, String>> originIdAndName = identifyOrigin(result.getOrigins());
-                String originId = originIdAndName.isPresent() ? originIdAndName.get().getFirst() : context.getHipId();
-                blockPublisher(healthDataRepository.insertDataFor(transactionId,
-                        dataPartNumber,
-                        result.getResource(),
-                        result.latestResourceDate(),
-                        entryToProcess.getCareContextReference(),
-                        result.getUniqueResourceId(),
-                        result.getDocumentType(),
-                        originId));
-                statusResponses.add(getStatusResponse(entry, HiStatus.OK, "Data received successfully"));
-            });
+                    var status = dataErrors.size() == entries.size() + rejectedEntries.size()
+                                 ? HealthInfoStatus.ERRORED
+                                 : PARTIAL;
+                    var errors = dataErrors.stream().map("[ERROR]"::concat).collect(joining());
+                    var allErrors = "[ERROR]".concat(errors);
+                    logger.error("Error occurred while processing data from HIP. Transaction id: {}. Errors: {}",
+                            context.getTransactionId(), allErrors);
+                    return saveDataPart(context, records, allErrors, status, statusResponses, SessionStatus.FAILED);
+                })
+                .onErrorResume(ex -> {
+                    logger.error("Error occurred while processing data from HIP. Transaction id: {}.",
+                            context.getTransactionId());
+                    logger.error(ex.getMessage(), ex);
+                    List<StatusResponse> statusResponses = new ArrayList<>();
+                    List<HealthInformationRecord> records = new ArrayList<>();
+                    rejectedEntries.forEach(entry -> {
+                        statusResponses.add(getStatusResponse(entry, HiStatus.ERRORED, CHECKSUM_MISMATCH));
+                        records.add(HealthInformationRecord.errored(entry.getCareContextReference()));
+                    });
+                    entries.forEach(entry -> {
+                        statusResponses.add(getStatusResponse(entry, HiStatus.ERRORED, COULD_NOT_RECEIVE_DATA));
+                        records.add(HealthInformationRecord.errored(entry.getCareContextReference()));
+                    });
+                    repeatedEntries.forEach(repeated -> statusResponses.add(
+                            getStatusResponse(repeated.entry, HiStatus.ERRORED, COULD_NOT_RECEIVE_DATA)));
+                    return saveDataPart(context, records, ex.getMessage(), ERRORED,
+                            statusResponses, SessionStatus.FAILED);
+                });
+    }
 
-            var status = dataErrors.size() == context.getNumberOfEntries() ? HealthInfoStatus.ERRORED : PARTIAL;
-
-            if (!dataErrors.isEmpty()) {
-                var errors = dataErrors.stream().map("[ERROR]"::concat).collect(joining());
-                var allErrors = "[ERROR]".concat(errors);
-                logger.error("Error occurred while processing data from HIP. Transaction id: {}. Errors: {}",
-                        context.getTransactionId(), allErrors);
-                updateDataProcessStatus(context, allErrors, status, context.latestResourceDate());
-                notifyHealthInfoStatus(context, statusResponses, SessionStatus.FAILED);
-            } else {
-                updateDataProcessStatus(context, "", HealthInfoStatus.SUCCEEDED, context.latestResourceDate());
-                notifyHealthInfoStatus(context, statusResponses, SessionStatus.TRANSFERRED);
+    private Mono<EntryOutcome> processEntry(DataContext context,
+                                            Entry entry,
+                                            DataFlowRequestKeyMaterial keyMaterial) {
+        Mono<Entry> entryToProcess = hasContent(entry)
+                                     ? Mono.just(entry)
+                                     : healthInformationClient.informationFrom(entry.getLink())
+                                             .map(healthInformation -> Entry.builder()
+                                                     .content(healthInformation.getContent())
+                                                     .checksum(entry.getChecksum())
+                                                     .media(entry.getMedia())
+                                                     .careContextReference(entry.getCareContextReference())
+                                                     .build());
+        return entryToProcess
+                .flatMap(toProcess -> processEntryContent(context, toProcess, keyMaterial)
+                        .map(result -> {
+                            if (result.hasErrors()) {
+                                return EntryOutcome.failed(result.getErrors(),
+                                        getStatusResponse(entry, HiStatus.ERRORED, COULD_NOT_RECEIVE_DATA),
+                                        toProcess.getCareContextReference());
+                            }
+                            Optional<Pair<String, String>> originIdAndName = identifyOrigin(result.getOrigins());
+                            String originId = originIdAndName.isPresent()
+                                              ? originIdAndName.get().getFirst()
+                                              : context.getHipId();
+                            return new EntryOutcome(List.of(),
+                                    getStatusResponse(entry, HiStatus.OK, "Data received successfully"),
+                                    result.getTrackedResources(),
+                                    HealthInformationRecord.builder()
+                                            .data(result.getResource())
+                                            .status(EntryStatus.SUCCEEDED)
+                                            .latestResourceDate(result.latestResourceDate())
+                                            .careContextReference(toProcess.getCareContextReference())
+                                            .docOrigin(originId)
+                                            .docId(result.getUniqueResourceId())
+                                            .docType(result.getDocumentType())
+                                            .build());
+                        }))
+                .defaultIfEmpty(EntryOutcome.failed(List.of("Health Information not found"),
+                        getStatusResponse(entry, HiStatus.ERRORED, COULD_NOT_RECEIVE_DATA),
+                        entry.getCareContextReference()));
+    }
+
+    /**
+     * Leaves out the entries rejected on receipt, which are collected into rejectedEntries instead, and entries
+     * repeated within the part, collected into repeatedEntries: HIPs retrying a transfer sometimes send an entry
+     * twice, only the first entry with a given care context and checksum is processed and the repeats are reported
+     * with its status. Entries without a checksum are all kept.
+     */
+    private static List<Entry> entriesToProcess(DataContext context,
+                                                List<Entry> rejectedEntries,
+                                                List<RepeatedEntry> repeatedEntries) {
+        Map<String, Integer> firstByChecksum = new HashMap<>();
+        List<Entry> entries = new ArrayList<>();
+        List<Entry> notifiedEntries = context.getNotifiedData().getEntries();
+        for (int position = 0; position < notifiedEntries.size(); position++) {
+            Entry entry = notifiedEntries.get(position);
+            if (context.getRejectedEntries().contains(position)) {
+                rejectedEntries.add(entry);
+                continue;
+            }
+            String checksum = entry.getChecksum();
+            if (checksum != null && !checksum.isBlank()) {
+                Integer original = firstByChecksum.putIfAbsent(entry.getCareContextReference() + ":" + checksum,
+                        entries.size());
+                if (original != null) {
+                    logger.info("Skipping repeated entry of care context {} with checksum {} in part {} of " +
+                                    "transaction {}", entry.getCareContextReference(), checksum,
+                            context.getDataPartNumber(), context.getTransactionId());
+                    repeatedEntries.add(new RepeatedEntry(entry, original));
+                    continue;
+                }
             }
-        } catch (Exception ex) {
-            logger.error("Error occurred while processing data from HIP. Transaction id: {}.", context.getTransactionId());
-            logger.error(ex.getMessage(), ex);
-            updateDataProcessStatus(context, ex.getMessage(), ERRORED, context.latestResourceDate());
+            entries.add(entry);
         }
+        return entries;
     }
 
-    private <T> T blockPublisher(Mono<T> publisher) {
-        // block() clears the context, we should put correlationId back again in context.
-        // https://github.com/reactor/reactor-core/issues/1667
+    private static Mono<DataFlowRequestKeyMaterial> keyMaterialOf(DataContext context) {
+        return Mono.justOrEmpty(context.getDataFlowRequestKeyMaterial())
+                .switchIfEmpty(Mono.error(() -> dbOperationFailure("Failed to fetch encryption keys")));
+    }
 
-        String correlationId = MDC.get(CORRELATION_ID);
-        T result = publisher.block();
-        MDC.put(CORRELATION_ID, correlationId);
-        return result;
+    private static <T> Mono<Optional<T>> optional(Mono<T> publisher) {
+        return publisher.map(Optional::of).defaultIfEmpty(Optional.empty());
     }
 
     private StatusResponse getStatusResponse(Entry entry, HiStatus hiStatus, String msg) {
+        return statusResponseFor(entry.getCareContextReference(), hiStatus, msg);
+    }
+
+    private StatusResponse statusResponseFor(String careContextReference, HiStatus hiStatus, String msg) {
         return StatusResponse.builder()
-                .careContextReference(entry.getCareContextReference())
+                .careContextReference(careContextReference)
                 .hiStatus(hiStatus)
                 .description(msg)
                 .build();
     }
 
-    private void notifyHealthInfoStatus(DataContext context,
-                                        List<StatusResponse> statusResponses,
-                                        SessionStatus sessionStatus) {
+    /**
+     * The entries of a part are saved together with its status, only once all of them are processed. When notifying
+     * through the outbox, the status of its entries goes to the outbox in the same transaction, for the
+     * {@link NotificationRelay} to notify once every part of the transfer is processed. Otherwise the HIP is notified
+     * right after, see {@link #notifyWhenTransferComplete}.
+     * <p>
+     * A part that failed processing is released by the {@link DataPartDeduplicator}, so that the HIP pushing it again
+     * has it processed again rather than ignored as a duplicate.
+     */
+    private Mono<Void> saveDataPart(DataContext context,
+                                    List<HealthInformationRecord> records,
+                                    String allErrors,
+                                    HealthInfoStatus status,
+                                    List<StatusResponse> statusResponses,
+                                    SessionStatus sessionStatus) {
+        Mono<Void> saved = saveAndNotify(context, records, allErrors, status, statusResponses, sessionStatus);
+        if (status != ERRORED) {
+            return saved;
+        }
+        return saved.then(Mono.defer(() -> dataPartDeduplicator.release(context.getTransactionId(),
+                        Integer.parseInt(context.getDataPartNumber()),
+                        context.getEntriesChecksum()))
+                .onErrorResume(e -> {
+                    logger.error("Could not release part {} of transaction {} for the HIP to push it again",
+                            context.getDataPartNumber(), context.getTransactionId(), e);
+                    return Mono.empty();
+                }));
+    }
+
+    private Mono<Void> saveAndNotify(DataContext context,
+                                     List<HealthInformationRecord> records,
+                                     String allErrors,
+                                     HealthInfoStatus status,
+                                     List<StatusResponse> statusResponses,
+                                     SessionStatus sessionStatus) {
+        if (!notifyThroughOutbox) {
+            return healthDataRepository.saveDataPart(context.getTransactionId(),
+                    context.getDataPartNumber(),
+                    records,
+                    allErrors,
+                    status,
+                    context.latestResourceDate(),
+                    null)
+                    .flatMap(partStatuses -> notifyWhenTransferComplete(context, partStatuses, statusResponses,
+                            sessionStatus)
+                            .onErrorResume(e -> {
+                                logger.error("Could not notify health information status of transaction: {}",
+                                        context.getTransactionId(), e);
+                                return Mono.empty();
+                            }));
+        }
+        return healthDataRepository.saveDataPart(context.getTransactionId(),
+                context.getDataPartNumber(),
+                records,
+                allErrors,
+                status,
+                context.latestResourceDate(),
+                NotificationOutboxEntry.builder()
+                        .transactionId(context.getTransactionId())
+                        .partNumber(Integer.parseInt(context.getDataPartNumber()))
+                        .pageCount(context.getPageCount())
+                        .consentId(context.getConsentId())
+                        .consentManagerId(context.getConsentManagerId())
+                        .statusNotification(StatusNotification.builder()
+                                .sessionStatus(sessionStatus)
+                                .hipId(context.getHipId())
+                                .statusResponses(statusResponses)
+                                .build())
+                        .build())
+                .then();
+    }
+
+    /**
+     * A multi-part transfer is notified once, after the last of its parts reaches a terminal status. The part
+     * statuses are those committed along with this part, see {@link HealthDataRepository#saveDataPart}, so of parts
+     * processed concurrently only the one committed last finds them all processed.
+     * The notification then carries the status of every entry received across all parts, and the decryption keys
+     * derived for the transaction are no longer needed.
+     */
+    private Mono<Void> notifyWhenTransferComplete(DataContext context,
+                                                  List<HealthInfoStatus> partStatuses,
+                                                  List<StatusResponse> statusResponses,
+                                                  SessionStatus sessionStatus) {
+        if (!context.isMultiPart()) {
+            return notifyHealthInfoStatus(context, statusResponses, sessionStatus);
+        }
+        String transactionId = context.getTransactionId();
+        long processedParts = partStatuses.stream().filter(TERMINAL_PART_STATUSES::contains).count();
+        if (processedParts < context.getPageCount()) {
+            logger.info("Processed {} of {} parts for transaction: {}. Deferring status notification.",
+                    processedParts, context.getPageCount(), transactionId);
+            return Mono.empty();
+        }
+        var transferStatus = partStatuses.stream().allMatch(HealthInfoStatus.SUCCEEDED::equals)
+                             ? SessionStatus.TRANSFERRED
+                             : SessionStatus.FAILED;
+        return healthDataRepository.getEntryStatuses(transactionId)
+                .map(entryStatus -> entryStatus.getValue() == EntryStatus.SUCCEEDED
+                        ? statusResponseFor(entryStatus.getKey(), HiStatus.OK, "Data received successfully")
+                        : statusResponseFor(entryStatus.getKey(), HiStatus.ERRORED, COULD_NOT_RECEIVE_DATA))
+                .collectList()
+                .flatMap(allStatusResponses -> notifyHealthInfoStatus(context, allStatusResponses, transferStatus));
+    }
+
+    private Mono<Void> notifyHealthInfoStatus(DataContext context,
+                                              List<StatusResponse> statusResponses,
+                                              SessionStatus sessionStatus) {
         HealthInfoNotificationRequest healthInfoNotificationRequest =
                 getHealthInfoNotificationRequest(context, statusResponses, sessionStatus);
-        String token = blockPublisher(gateway.token());
-        String consentManagerId = fetchCMId(healthInfoNotificationRequest.getNotification().getConsentId());
-        blockPublisher(healthInformationClient.notifyHealthInfo(healthInfoNotificationRequest, token, consentManagerId));
+        return optional(gateway.token())
+                .flatMap(token -> healthInformationClient.notifyHealthInfo(
+                        healthInfoNotificationRequest,
+                        token.orElse(null),
+                        context.getConsentManagerId()))
+                .doFinally(signal -> decryptor.forget(context.getTransactionId()));
     }
 
     private HealthInfoNotificationRequest getHealthInfoNotificationRequest(DataContext context,
@@ -223,100 +475,224 @@ public class HealthDataProcessor {
                 .build();
     }
 
-    private String fetchCMId(String consentId) {
-        return blockPublisher(consentRepository.getConsentMangerId(consentId));
-    }
-
-    private void updateDataProcessStatus(DataContext context, String allErrors, HealthInfoStatus status, LocalDateTime latestResourceDate) {
-        blockPublisher(dataFlowRepository.updateDataFlowWithStatus(context.getTransactionId(),
+    private Mono<Void> updateDataProcessStatus(DataContext context,
+                                               String allErrors,
+                                               HealthInfoStatus status,
+                                               LocalDateTime latestResourceDate) {
+        return dataFlowRepository.updateDataFlowWithStatus(context.getTransactionId(),
                 context.getDataPartNumber(),
                 allErrors,
                 status,
-                latestResourceDate));
+                latestResourceDate);
     }
 
-    private DataContext createDataContext(DataAvailableMessage message) {
+    private Mono<DataContext> createDataContext(DataAvailableMessage message) {
         Path dataFilePath = Paths.get(message.getPathToFile());
-        try (InputStream inputStream = Files.newInputStream(dataFilePath)) {
-            var objectMapper = new ObjectMapper()
-                    .registerModule(new JavaTimeModule())
-                    .configure(WRITE_DATES_AS_TIMESTAMPS, false)
-                    .configure(FAIL_ON_UNKNOWN_PROPERTIES, false);
-
-            DataNotificationRequest dataNotificationRequest = objectMapper.readValue(inputStream,
-                    DataNotificationRequest.class);
-            String consentId = blockPublisher(dataFlowRepository.getConsentId(dataNotificationRequest.getTransactionId()));
-            String hipId = blockPublisher(consentRepository.getHipId(consentId));
-            return DataContext.builder()
-                    .notifiedData(dataNotificationRequest)
-                    .dataFilePath(dataFilePath)
-                    .dataPartNumber(message.getPartNumber())
-                    .trackedResources(new ArrayList<>())
-                    .hipId(hipId)
-                    .consentId(consentId)
-                    .build();
-        } catch (Exception e) {
-            logger.error("Could not create context from data file path", e);
-            throw new RuntimeException(e);
-        }
+        return Mono.fromCallable(() -> message.getSegmentReference() == null
+                                       ? readDataNotification(dataFilePath)
+                                       : readSegmentedDataNotification(message))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(dataNotificationRequest ->
+                        optional(transactionContexts.get(dataNotificationRequest.getTransactionId()))
+                                .map(transactionContext -> DataContext.builder()
+                                        .notifiedData(dataNotificationRequest)
+                                        .dataFilePath(dataFilePath)
+                                        .dataPartNumber(message.getPartNumber())
+                                        .pageCount(Math.max(message.getPageCount(), 1))
+                                        .trackedResources(new ArrayList<>())
+                                        .hipId(transactionContext.map(TransactionContext::getHipId).orElse(null))
+                                        .consentId(transactionContext
+                                                .map(TransactionContext::getConsentId)
+                                                .orElse(null))
+                                        .consentManagerId(transactionContext
+                                                .map(TransactionContext::getConsentManagerId)
+                                                .orElse(null))
+                                        .dataFlowRequestKeyMaterial(transactionContext
+                                                .map(TransactionContext::getKeyMaterial)
+                                                .orElse(null))
+                                        .storageCodec(storageCodec)
+                                        .attachmentDownloader(attachmentDownloader)
+                                        .rejectedEntries(message.getRejectedEntryPositions())
+                                        .entriesChecksum(message.getEntriesChecksum())
+                                        .build()))
+                .doOnError(e -> logger.error("Could not create context from data file path", e));
     }
 
-    private ProcessedEntry processEntryContent(DataContext context,
-                                               Entry entry,
-                                               DataFlowRequestKeyMaterial keyMaterial) {
-        logger.info("Process entry for care-context: {}", entry.getCareContextReference());
-        var mayBeParser = getEntryParser(entry.getMedia());
+    private DataNotificationRequest readSegmentedDataNotification(DataAvailableMessage message) throws IOException {
+        try (InputStream inputStream = dataPartStore.open(message.getTransactionId(),
+                Integer.parseInt(message.getPartNumber()),
+                SegmentReference.parse(message.getSegmentReference()))) {
+            return DATA_FILE_MAPPER.readValue(inputStream, DataNotificationRequest.class);
+        }
+    }
 
-        return mayBeParser.map(parser -> {
-            ProcessedEntry result = new ProcessedEntry();
-            String decryptedContent;
-            try {
-                decryptedContent = decryptor.decrypt(context.getKeyMaterial(), keyMaterial, entry.getContent());
-            } catch (Exception e) {
-                logger.error("Error while decrypting {exception}", e);
-                result.addError("Could not read encrypted content from file");
-                return result;
+    /**
+     * Plain part files are written as received, so they are mapped and parsed in place rather than copied through a
+     * stream buffer. Encoded files, and files too large for a single mapping, are read as a stream.
+     */
+    private static DataNotificationRequest readDataNotification(Path dataFilePath) throws IOException {
+        if (StorageFiles.isEncoded(dataFilePath)) {
+            try (InputStream inputStream = StorageFiles.newInputStream(dataFilePath)) {
+                return DATA_FILE_MAPPER.readValue(inputStream, DataNotificationRequest.class);
             }
-            Bundle bundle = parser.parseResource(Bundle.class, decryptedContent);
-            if (!isValidBundleType(bundle)) {
-                result.addError("Can not process entry content, invalid envelope." +
-                        "Entry content is either not a FHIR Bundle type COLLECTION or DOCUMENT. " +
-                        "For Document bundle type (e.g Discharge Summary), the first entry must be composition.");
-                return result;
+        }
+        try (FileChannel channel = FileChannel.open(dataFilePath, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                try (InputStream inputStream = Channels.newInputStream(channel)) {
+                    return DATA_FILE_MAPPER.readValue(inputStream, DataNotificationRequest.class);
+                }
             }
-            Function<ResourceType, HITypeResourceProcessor> resourceProcessor = this::identifyResourceProcessor;
-            BundleContext bundleContext = new BundleContext(bundle, resourceProcessor);
-            try {
-                logger.info("Processing bundle id: {}", bundle.getId());
-                bundle.getEntry().forEach(bundleEntry -> {
-                    ResourceType resourceType = bundleEntry.getResource().getResourceType();
-                    logger.info("bundle entry resource type:  {}", resourceType);
-                    HITypeResourceProcessor processor = identifyResourceProcessor(resourceType);
-                    if (processor != null) {
-                        processor.process(bundleEntry.getResource(), context, bundleContext, null);
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return DATA_FILE_MAPPER.readValue(new ByteBufferBackedInputStream(mapped), DataNotificationRequest.class);
+        }
+    }
+
+    /**
+     * Decrypting and parsing an entry, and processing its resources, runs on the {@link EntryProcessingPool}, unless
+     * processing downloads attachments: a download blocks for as long as the HIP takes to serve it, so the resources
+     * of a bundle linking attachments are processed on the bounded elastic scheduler once the bundle is parsed, as
+     * are streamed entries, whose resources are processed while they are parsed.
+     */
+    private Mono<ProcessedEntry> processEntryContent(DataContext context,
+                                                     Entry entry,
+                                                     DataFlowRequestKeyMaterial keyMaterial) {
+        logger.info("Process entry for care-context: {}", entry.getCareContextReference());
+        if (isStreamed(entry)) {
+            return entryProcessingPool.runBlocking(() -> withParser(entry, parser ->
+                    ParsedEntry.processed(processStreamedEntryContent(context, entry, keyMaterial, parser))))
+                    .map(ParsedEntry::getProcessed);
+        }
+        return entryProcessingPool.run(() -> withParser(entry, parser -> {
+                    ParsedEntry parsed = parseEntryContent(context, entry, keyMaterial, parser);
+                    if (parsed.getProcessed() != null || fhirParsingEngine.hasLinkedAttachments(parsed.getBundle())) {
+                        return parsed;
                     }
+                    return ParsedEntry.processed(processBundle(context, parsed.getBundle(), parser));
+                }))
+                .flatMap(parsed -> parsed.getProcessed() != null
+                                   ? Mono.just(parsed)
+                                   : entryProcessingPool.runBlocking(() -> withParser(entry, parser ->
+                                           ParsedEntry.processed(processBundle(context, parsed.getBundle(), parser)))))
+                .map(ParsedEntry::getProcessed);
+    }
+
+    private ParsedEntry withParser(Entry entry, Function<IParser, ParsedEntry> process) {
+        return fhirParsingEngine.lease(entry.getMedia())
+                .map(lease -> {
+                    try (lease) {
+                        return process.apply(lease.getParser());
+                    }
+                })
+                .orElseGet(() -> {
+                    ProcessedEntry result = new ProcessedEntry();
+                    result.addError("Can't process entry content. Unknown media type.");
+                    return ParsedEntry.processed(result);
                 });
-                result.setEncoded(parser.encodeResourceToString(bundle));
-                result.setUniqueResourceId(bundleContext.getBundleUniqueId());
-                result.setDocumentType(bundleContext.getDocumentType());
-                result.setOrigins(bundleContext.getOrigins());
-                result.addTrackedResources(bundleContext.getTrackedResources(), bundleContext.getBundleDate());
-                return result;
-            } catch (Exception e) {
-                logger.error("Could not process bundle {exception}", e);
-                result.addError(String.format("Could not process bundle with id: %s, error-message: %s",
-                        bundle.getId(), e.getMessage()));
-                return result;
+    }
+
+    /**
+     * JSON entries from the threshold on are processed as a stream, see {@link StreamingBundleProcessor}, so that
+     * the memory they take depends on their largest resource rather than on their size. As the resource processors
+     * save attachments and upload images to the DICOM server, their content is decrypted once first to check its
+     * authentication tag, and only an authentic entry is decrypted again to be processed.
+     */
+    private boolean isStreamed(Entry entry) {
+        return streamingBundleThresholdBytes > 0
+                && MEDIA_APPLICATION_FHIR_JSON.equalsIgnoreCase(entry.getMedia())
+                && entry.getContent().length() >= streamingBundleThresholdBytes;
+    }
+
+    private ProcessedEntry processStreamedEntryContent(DataContext context,
+                                                       Entry entry,
+                                                       DataFlowRequestKeyMaterial keyMaterial,
+                                                       IParser parser) {
+        try (InputStream authenticatedContent = decryptor.decryptStream(context.getTransactionId(),
+                context.getKeyMaterial(),
+                keyMaterial,
+                entry.getContent())) {
+            authenticatedContent.transferTo(OutputStream.nullOutputStream());
+        } catch (Exception e) {
+            logger.error("Error while decrypting {exception}", e);
+            ProcessedEntry result = new ProcessedEntry();
+            result.addError("Could not read encrypted content from file");
+            return result;
+        }
+        try (InputStream decryptedContent = decryptor.decryptStream(context.getTransactionId(),
+                context.getKeyMaterial(),
+                keyMaterial,
+                entry.getContent())) {
+            ProcessedEntry result = streamingBundleProcessor.process(
+                    new InputStreamReader(decryptedContent, StandardCharsets.UTF_8), parser, context);
+            decryptedContent.transferTo(OutputStream.nullOutputStream());
+            return result;
+        } catch (Exception e) {
+            if (e instanceof DataFormatException
+                    && Throwables.getCausalChain(e).stream().noneMatch(IOException.class::isInstance)) {
+                throw (DataFormatException) e;
             }
-        }).orElseGet(() -> {
+            logger.error("Error while decrypting {exception}", e);
             ProcessedEntry result = new ProcessedEntry();
-            result.addError("Can't process entry content. Unknown media type.");
+            result.addError("Could not read encrypted content from file");
             return result;
-        });
+        }
     }
 
-    private HITypeResourceProcessor identifyResourceProcessor(ResourceType resourceType) {
-        return resourceProcessors.stream().filter(p -> p.supports(resourceType)).findAny().orElse(null);
+    private ParsedEntry parseEntryContent(DataContext context,
+                                          Entry entry,
+                                          DataFlowRequestKeyMaterial keyMaterial,
+                                          IParser parser) {
+        ProcessedEntry result = new ProcessedEntry();
+        Bundle bundle;
+        try (InputStream decryptedContent = decryptor.decryptStream(context.getTransactionId(),
+                context.getKeyMaterial(),
+                keyMaterial,
+                entry.getContent())) {
+            bundle = parser.parseResource(Bundle.class,
+                    new InputStreamReader(decryptedContent, StandardCharsets.UTF_8));
+            // the parser may stop at the end of the bundle, short of the authentication tag
+            decryptedContent.transferTo(OutputStream.nullOutputStream());
+        } catch (Exception e) {
+            if (e instanceof DataFormatException
+                    && Throwables.getCausalChain(e).stream().noneMatch(IOException.class::isInstance)) {
+                throw (DataFormatException) e;
+            }
+            logger.error("Error while decrypting {exception}", e);
+            result.addError("Could not read encrypted content from file");
+            return ParsedEntry.processed(result);
+        }
+        if (!isValidBundleType(bundle)) {
+            result.addError(StreamingBundleProcessor.INVALID_ENVELOPE);
+            return ParsedEntry.processed(result);
+        }
+        return ParsedEntry.parsed(bundle);
+    }
+
+    private ProcessedEntry processBundle(DataContext context, Bundle bundle, IParser parser) {
+        ProcessedEntry result = new ProcessedEntry();
+        BundleContext bundleContext = new BundleContext(bundle, resourceProcessors::get);
+        try {
+            logger.info("Processing bundle id: {}", bundle.getId());
+            bundle.getEntry().forEach(bundleEntry -> {
+                ResourceType resourceType = bundleEntry.getResource().getResourceType();
+                logger.info("bundle entry resource type:  {}", resourceType);
+                HITypeResourceProcessor processor = resourceProcessors.get(resourceType);
+                if (processor != null) {
+                    processor.process(bundleEntry.getResource(), context, bundleContext, null);
+                }
+            });
+            result.setEncoded(parser.encodeResourceToString(bundle));
+            result.setUniqueResourceId(bundleContext.getBundleUniqueId());
+            result.setDocumentType(bundleContext.getDocumentType());
+            result.setOrigins(bundleContext.getOrigins());
+            result.addTrackedResources(bundleContext.getTrackedResources(), bundleContext.getBundleDate());
+            return result;
+        } catch (Exception e) {
+            logger.error("Could not process bundle {exception}", e);
+            result.addError(String.format("Could not process bundle with id: %s, error-message: %s",
+                    bundle.getId(), e.getMessage()));
+            return result;
+        }
     }
 
     private boolean isValidBundleType(Bundle bundle) {
@@ -334,16 +710,6 @@ public class HealthDataProcessor {
         return firstEntry.getResource().getResourceType().equals(ResourceType.Composition);
     }
 
-    private Optional<IParser> getEntryParser(String media) {
-        if (media.equalsIgnoreCase(MEDIA_APPLICATION_FHIR_JSON)) {
-            return Optional.of(fhirContext.newJsonParser());
-        }
-        if (media.equalsIgnoreCase(MEDIA_APPLICATION_FHIR_XML)) {
-            return Optional.of(fhirContext.newXmlParser());
-        }
-        return Optional.empty();
-    }
-
     private boolean hasContent(Entry entry) {
         return (entry.getContent() != null) && !entry.getContent().isBlank();
     }
@@ -384,4 +750,67 @@ public class HealthDataProcessor {
         Optional<Identifier> identifier = getAffinityDomainIdentifier(hfrAffinityDomains, organization);
         return  identifier.isPresent() ? Optional.of(Pair.of(identifier.get().getValue(), organization.getName())) : Optional.empty();
     }
+
+    /**
+     * An entry either parsed, with its resources still to be processed, or done with.
+     */
+    private static class ParsedEntry {
+        private final Bundle bundle;
+        private final ProcessedEntry processed;
+
+        private ParsedEntry(Bundle bundle, ProcessedEntry processed) {
+            this.bundle = bundle;
+            this.processed = processed;
+        }
+
+        private static ParsedEntry parsed(Bundle bundle) {
+            return new ParsedEntry(bundle, null);
+        }
+
+        private static ParsedEntry processed(ProcessedEntry processed) {
+            return new ParsedEntry(null, processed);
+        }
+
+        private Bundle getBundle() {
+            return bundle;
+        }
+
+        private ProcessedEntry getProcessed() {
+            return processed;
+        }
+    }
+
+    private static class RepeatedEntry {
+        private final Entry entry;
+        private final int original;
+
+        private RepeatedEntry(Entry entry, int original) {
+            this.entry = entry;
+            this.original = original;
+        }
+    }
+
+    private static class EntryOutcome {
+        private final List<String> errors;
+        private final StatusResponse statusResponse;
+        private final List<TrackedResourceReference> trackedResources;
+        private final HealthInformationRecord record;
+
+        private EntryOutcome(List<String> errors,
+                             StatusResponse statusResponse,
+                             List<TrackedResourceReference> trackedResources,
+                             HealthInformationRecord record) {
+            this.errors = errors;
+            this.statusResponse = statusResponse;
+            this.trackedResources = trackedResources;
+            this.record = record;
+        }
+
+        private static EntryOutcome failed(List<String> errors,
+                                           StatusResponse statusResponse,
+                                           String careContextReference) {
+            return new EntryOutcome(errors, statusResponse, List.of(),
+                    HealthInformationRecord.errored(careContextReference));
+        }
+    }
 }
@@ -1,17 +1,28 @@
 package in.org.projecteka.hiu.dataprocessor;
 
+import in.org.projecteka.hiu.dataflow.DataFlowRepository;
+import in.org.projecteka.hiu.dataflow.model.HealthInfoStatus;
 import in.org.projecteka.hiu.dataprocessor.model.EntryStatus;
+import in.org.projecteka.hiu.dataprocessor.model.HealthInformationRecord;
+import in.org.projecteka.hiu.dataprocessor.model.NotificationOutboxEntry;
+import io.vertx.core.Future;
 import io.vertx.pgclient.PgPool;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.RowSet;
+import io.vertx.sqlclient.SqlConnection;
 import io.vertx.sqlclient.Tuple;
 import lombok.AllArgsConstructor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.time.LocalDateTime;
-
-import static in.org.projecteka.hiu.dataprocessor.model.EntryStatus.ERRORED;
-import static in.org.projecteka.hiu.dataprocessor.model.EntryStatus.SUCCEEDED;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 @AllArgsConstructor
 public class HealthDataRepository {
@@ -24,39 +35,183 @@ public class HealthDataRepository {
             "(transaction_id, part_number, data, status, latest_res_date, care_context_reference, doc_origin, doc_id, doc_type) " +
             "VALUES ($1, $2, $3, $4, $5, $6, $7, $8, $9)";
 
+    private static final String BULK_INSERT_HEALTH_DATA
+            = "INSERT INTO health_information " +
+            "(transaction_id, part_number, data, status, latest_res_date, care_context_reference, doc_origin, doc_id, doc_type) " +
+            "SELECT $1, $2, data, status, latest_res_date, care_context_reference, doc_origin, doc_id, doc_type " +
+            "FROM unnest($3::text[], $4::text[], $5::timestamp[], $6::text[], $7::text[], $8::text[], $9::text[]) " +
+            "AS records(data, status, latest_res_date, care_context_reference, doc_origin, doc_id, doc_type)";
+
+    private static final String DELETE_HEALTH_DATA_OF_PART = "DELETE FROM health_information " +
+            "WHERE transaction_id = $1 AND part_number = $2";
+
+    private static final String SELECT_ENTRY_STATUSES = "SELECT care_context_reference, status " +
+            "FROM health_information WHERE transaction_id = $1 ORDER BY part_number";
+
     private final PgPool readWriteClient;
+    private final int bulkLoadThresholdRows;
+    private final int bulkLoadChunkRows;
+
+    /**
+     * Writes the entries of a data part, the status of the part and, unless it is null, its notification to the
+     * outbox in one transaction, so that readers see the part either as it was before processing or with all of its
+     * entries, and the HIP is notified of exactly the entries committed. The committed status is the checkpoint of
+     * the part: a part is either loaded whole or not at all, and a reload resumes from the parts not yet committed.
+     * Entries a previous save of the part left behind are replaced, so a part processed again is not stored twice.
+     * <p>
+     * Completes with the statuses of every part of the transaction, this one included, as of the commit. The status
+     * updates of the parts of a transaction are serialized on its data flow request, so that of the parts saved
+     * concurrently only the last one to commit sees them all processed.
+     * <p>
+     * Parts with at least bulkLoadThresholdRows entries, as the parts a consent reload brings, are bulk loaded with
+     * one multi-row insert per bulkLoadChunkRows entries. Should the bulk load fail, the part is written again as a
+     * batch of single-row inserts, as smaller parts are.
+     */
+    public Mono<List<HealthInfoStatus>> saveDataPart(String transactionId,
+                                                     String dataPartNumber,
+                                                     List<HealthInformationRecord> records,
+                                                     String allErrors,
+                                                     HealthInfoStatus status,
+                                                     LocalDateTime latestResourceDate,
+                                                     NotificationOutboxEntry notification) {
+        if (bulkLoadThresholdRows <= 0 || records.size() < bulkLoadThresholdRows) {
+            return insertDataPart(transactionId, dataPartNumber, records, allErrors, status, latestResourceDate,
+                    notification);
+        }
+        return bulkLoadDataPart(transactionId, dataPartNumber, records, allErrors, status, latestResourceDate,
+                notification)
+                .onErrorResume(error -> {
+                    logger.warn("Bulk load of part {} for transaction {} failed, inserting its {} entries in a batch",
+                            dataPartNumber, transactionId, records.size());
+                    return insertDataPart(transactionId, dataPartNumber, records, allErrors, status,
+                            latestResourceDate, notification);
+                });
+    }
+
+    private Mono<List<HealthInfoStatus>> insertDataPart(String transactionId,
+                                                        String dataPartNumber,
+                                                        List<HealthInformationRecord> records,
+                                                        String allErrors,
+                                                        HealthInfoStatus status,
+                                                        LocalDateTime latestResourceDate,
+                                                        NotificationOutboxEntry notification) {
+        List<Tuple> rows = records.stream()
+                .map(record -> Tuple.of(transactionId, dataPartNumber, record.getData(),
+                        record.getStatus().toString(), record.getLatestResourceDate(), record.getCareContextReference(),
+                        record.getDocOrigin(), record.getDocId(), record.getDocType()))
+                .collect(Collectors.toList());
+        return Mono.create(monoSink -> readWriteClient.withTransaction(connection -> {
+                    Future<RowSet<Row>> inserted = deletePart(connection, transactionId, dataPartNumber)
+                            .compose(ignored -> rows.isEmpty()
+                                                ? Future.succeededFuture()
+                                                : connection.preparedQuery(INSERT_HEALTH_DATA).executeBatch(rows));
+                    return inserted.compose(ignored -> saveStatus(connection, transactionId, dataPartNumber,
+                            allErrors, status, latestResourceDate, notification));
+                },
+                handler -> {
+                    if (handler.failed()) {
+                        logger.error(handler.cause().getMessage(), handler.cause());
+                        monoSink.error(new Exception("Failed to insert health information"));
+                        return;
+                    }
+                    monoSink.success(handler.result());
+                }));
+    }
+
+    private Mono<List<HealthInfoStatus>> bulkLoadDataPart(String transactionId,
+                                                          String dataPartNumber,
+                                                          List<HealthInformationRecord> records,
+                                                          String allErrors,
+                                                          HealthInfoStatus status,
+                                                          LocalDateTime latestResourceDate,
+                                                          NotificationOutboxEntry notification) {
+        int chunkRows = bulkLoadChunkRows > 0 ? bulkLoadChunkRows : records.size();
+        List<Tuple> chunks = new ArrayList<>();
+        for (int from = 0; from < records.size(); from += chunkRows) {
+            chunks.add(toColumns(transactionId, dataPartNumber,
+                    records.subList(from, Math.min(from + chunkRows, records.size()))));
+        }
+        return Mono.create(monoSink -> readWriteClient.withTransaction(connection -> {
+                    Future<Void> inserted = deletePart(connection, transactionId, dataPartNumber).mapEmpty();
+                    for (Tuple chunk : chunks) {
+                        inserted = inserted.compose(ignored -> connection.preparedQuery(BULK_INSERT_HEALTH_DATA)
+                                .execute(chunk)
+                                .<Void>mapEmpty());
+                    }
+                    return inserted.compose(ignored -> saveStatus(connection, transactionId, dataPartNumber,
+                            allErrors, status, latestResourceDate, notification));
+                },
+                handler -> {
+                    if (handler.failed()) {
+                        logger.error(handler.cause().getMessage(), handler.cause());
+                        monoSink.error(new Exception("Failed to bulk load health information"));
+                        return;
+                    }
+                    logger.info("Bulk loaded {} entries of part {} for transaction {}",
+                            records.size(), dataPartNumber, transactionId);
+                    monoSink.success(handler.result());
+                }));
+    }
+
+    private static Future<RowSet<Row>> deletePart(SqlConnection connection,
+                                                  String transactionId,
+                                                  String dataPartNumber) {
+        return connection.preparedQuery(DELETE_HEALTH_DATA_OF_PART).execute(Tuple.of(transactionId, dataPartNumber));
+    }
 
-    private Mono<Void> insertHealthData(String transactionId,
-                                        String dataPartNumber,
-                                        String resource,
-                                        EntryStatus entryStatus, LocalDateTime latestResourceDate, String careContextReference,
-                                        String docOrigin, String docId, String docType) {
-        return Mono.create(monoSink ->
-                readWriteClient.preparedQuery(INSERT_HEALTH_DATA)
-                        .execute(Tuple.of(transactionId, dataPartNumber, resource,
-                                entryStatus.toString(), latestResourceDate, careContextReference,
-                                docOrigin, docId, docType),
-                                handler -> {
-                                    if (handler.failed()) {
-                                        logger.error(handler.cause().getMessage(), handler.cause());
-                                        monoSink.error(new Exception("Failed to insert health information"));
-                                        return;
-                                    }
-                                    monoSink.success();
-                                }));
+    private static Future<List<HealthInfoStatus>> saveStatus(SqlConnection connection,
+                                                             String transactionId,
+                                                             String dataPartNumber,
+                                                             String allErrors,
+                                                             HealthInfoStatus status,
+                                                             LocalDateTime latestResourceDate,
+                                                             NotificationOutboxEntry notification) {
+        return DataFlowRepository.lockDataFlowRequest(connection, transactionId)
+                .compose(ignored -> DataFlowRepository.updateDataPartStatus(connection,
+                        transactionId, dataPartNumber, allErrors, status, latestResourceDate))
+                .compose(ignored -> notification == null
+                                    ? Future.<RowSet<Row>>succeededFuture()
+                                    : NotificationOutboxRepository.enqueue(connection, notification))
+                .compose(ignored -> DataFlowRepository.getDataPartStatuses(connection, transactionId));
     }
 
-    public Mono<Void> insertErrorFor(String transactionId, String dataPartNumber, String careContextReference) {
-        return insertHealthData(transactionId, dataPartNumber, "",
-                ERRORED, null, careContextReference,
-                null, null, null);
+    private static Tuple toColumns(String transactionId, String dataPartNumber, List<HealthInformationRecord> records) {
+        int size = records.size();
+        String[] data = new String[size];
+        String[] statuses = new String[size];
+        LocalDateTime[] latestResourceDates = new LocalDateTime[size];
+        String[] careContextReferences = new String[size];
+        String[] docOrigins = new String[size];
+        String[] docIds = new String[size];
+        String[] docTypes = new String[size];
+        for (int i = 0; i < size; i++) {
+            HealthInformationRecord record = records.get(i);
+            data[i] = record.getData();
+            statuses[i] = record.getStatus().toString();
+            latestResourceDates[i] = record.getLatestResourceDate();
+            careContextReferences[i] = record.getCareContextReference();
+            docOrigins[i] = record.getDocOrigin();
+            docIds[i] = record.getDocId();
+            docTypes[i] = record.getDocType();
+        }
+        return Tuple.of(transactionId, dataPartNumber, data, statuses, latestResourceDates, careContextReferences,
+                docOrigins, docIds, docTypes);
     }
 
-    public Mono<Void> insertDataFor(String transactionId, String dataPartNumber,
-                                    String resource, LocalDateTime latestResourceDate, String careContextReference,
-                                    String resourceId, String docType, String docOrigin) {
-        return insertHealthData(transactionId, dataPartNumber, resource,
-                SUCCEEDED, latestResourceDate, careContextReference,
-                docOrigin, resourceId, docType);
+    public Flux<Map.Entry<String, EntryStatus>> getEntryStatuses(String transactionId) {
+        return Flux.create(fluxSink -> readWriteClient.preparedQuery(SELECT_ENTRY_STATUSES)
+                .execute(Tuple.of(transactionId),
+                        handler -> {
+                            if (handler.failed()) {
+                                logger.error(handler.cause().getMessage(), handler.cause());
+                                fluxSink.error(new Exception("Failed to fetch health information statuses"));
+                                return;
+                            }
+                            for (Row row : handler.result()) {
+                                fluxSink.next(new SimpleEntry<>(row.getString("care_context_reference"),
+                                        EntryStatus.valueOf(row.getString("status"))));
+                            }
+                            fluxSink.complete();
+                        }));
     }
 }
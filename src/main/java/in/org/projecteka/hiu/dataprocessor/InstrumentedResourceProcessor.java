@@ -0,0 +1,44 @@
+package in.org.projecteka.hiu.dataprocessor;
+
+import in.org.projecteka.hiu.dataprocessor.model.BundleContext;
+import in.org.projecteka.hiu.dataprocessor.model.DataContext;
+import in.org.projecteka.hiu.dataprocessor.model.ProcessContext;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+
+/**
+ * Times every invocation of the processor it wraps. The time of a processor includes the resources it processes
+ * through other processors, like the results of a DiagnosticReport.
+ */
+class InstrumentedResourceProcessor implements HITypeResourceProcessor {
+    private final HITypeResourceProcessor resourceProcessor;
+    private final Timer timer;
+
+    InstrumentedResourceProcessor(HITypeResourceProcessor resourceProcessor, MeterRegistry meterRegistry) {
+        this.resourceProcessor = resourceProcessor;
+        this.timer = Timer.builder("hiu.resource.processing")
+                .description("Time to process one resource of a bundle")
+                .tag("processor", resourceProcessor.getClass().getSimpleName())
+                .register(meterRegistry);
+    }
+
+    @Override
+    public boolean supports(ResourceType type) {
+        return resourceProcessor.supports(type);
+    }
+
+    @Override
+    public void process(Resource resource,
+                        DataContext dataContext,
+                        BundleContext bundleContext,
+                        ProcessContext processContext) {
+        timer.record(() -> resourceProcessor.process(resource, dataContext, bundleContext, processContext));
+    }
+
+    @Override
+    public String toString() {
+        return resourceProcessor.getClass().getSimpleName();
+    }
+}
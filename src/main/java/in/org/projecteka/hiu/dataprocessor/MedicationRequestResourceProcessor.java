@@ -46,21 +46,28 @@ public class MedicationRequestResourceProcessor implements HITypeResourceProcess
                 ProcessContext requestCtx = processContext != null ? processContext : getMedRequestContext(medicationRequest, bundleContext);
                 IBaseResource resource = reference.getResource();
                 if (resource == null) {
+                    if (bundleContext.awaitReference(reference, reason ->
+                            processReason(reason, dataContext, bundleContext, requestCtx))) {
+                        continue;
+                    }
                     logger.warn(String.format("Medication reference not found. diagnosticReport id: %s, result reference: %s",
                             medicationRequest.getId(), reference.getReference()));
                 }
                 if (!(resource instanceof Resource)) {
                     return;
                 }
-                Resource bundleResource = (Resource) resource;
-                HITypeResourceProcessor resProcessor = bundleContext.findResourceProcessor(bundleResource.getResourceType());
-                if (resProcessor != null) {
-                    resProcessor.process(bundleResource, dataContext, bundleContext, requestCtx);
-                }
+                processReason((Resource) resource, dataContext, bundleContext, requestCtx);
             }
         }
     }
 
+    private void processReason(Resource bundleResource, DataContext dataContext, BundleContext bundleContext, ProcessContext requestCtx) {
+        HITypeResourceProcessor resProcessor = bundleContext.findResourceProcessor(bundleResource.getResourceType());
+        if (resProcessor != null) {
+            resProcessor.process(bundleResource, dataContext, bundleContext, requestCtx);
+        }
+    }
+
     private ProcessContext getMedRequestContext(MedicationRequest request, BundleContext bundleContext) {
         return new ProcessContext(
                 () -> getPrescribedDate(request, bundleContext, null),
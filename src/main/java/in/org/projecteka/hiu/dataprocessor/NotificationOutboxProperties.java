@@ -0,0 +1,32 @@
+package in.org.projecteka.hiu.dataprocessor;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Whether health information notifications go through the outbox, and how they are relayed from it to the gateway.
+ * The outbox needs the health_info_notification_outbox table, see {@link NotificationOutboxRepository}; without it,
+ * the HIP is notified while the data part is processed.
+ */
+@Configuration
+@ConfigurationProperties(prefix = "hiu.dataflowservice.notificationoutbox")
+@Getter
+@Setter
+@NoArgsConstructor(access = AccessLevel.PACKAGE)
+@AllArgsConstructor
+public class NotificationOutboxProperties {
+    private boolean enabled;
+    private boolean relayEnabled = true;
+    private int pollIntervalMillis = 1000;
+    private int batchSize = 100;
+    private int concurrency = 8;
+    private int leaseSeconds = 60;
+    private int maxAttempts = 10;
+    private int initialBackoffSeconds = 5;
+    private int maxBackoffSeconds = 900;
+}
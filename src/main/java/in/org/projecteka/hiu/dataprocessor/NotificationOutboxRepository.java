@@ -0,0 +1,203 @@
+package in.org.projecteka.hiu.dataprocessor;
+
+import in.org.projecteka.hiu.dataprocessor.model.NotificationOutboxEntry;
+import in.org.projecteka.hiu.dataprocessor.model.PendingNotification;
+import in.org.projecteka.hiu.dataprocessor.model.StatusNotification;
+import io.vertx.core.Future;
+import io.vertx.pgclient.PgPool;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.RowSet;
+import io.vertx.sqlclient.SqlClient;
+import io.vertx.sqlclient.Tuple;
+import lombok.AllArgsConstructor;
+import lombok.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static in.org.projecteka.hiu.common.Serializer.from;
+import static in.org.projecteka.hiu.common.Serializer.to;
+
+/**
+ * Health information notifications waiting to be sent to the gateway, one row per processed data part, in the table
+ * notification-outbox.sql creates:
+ * <pre>
+ * CREATE TABLE health_info_notification_outbox (
+ *     transaction_id      text        NOT NULL,
+ *     part_number         integer     NOT NULL,
+ *     page_count          integer     NOT NULL,
+ *     consent_id          text,
+ *     consent_manager_id  text,
+ *     status_notification jsonb       NOT NULL,
+ *     enqueued_at         timestamptz NOT NULL,
+ *     attempts            integer     NOT NULL DEFAULT 0,
+ *     next_attempt_at     timestamptz NOT NULL,
+ *     PRIMARY KEY (transaction_id, part_number)
+ * );
+ * </pre>
+ * A transaction is due once as many of its parts as it has pages are processed, as data_flow_parts records them,
+ * and none of its rows waits for a later attempt. Rows are deleted once delivered, so the parts are counted in
+ * data_flow_parts rather than in the outbox: a part processed again after its transaction was notified is then due on
+ * its own.
+ */
+@AllArgsConstructor
+public class NotificationOutboxRepository {
+    private static final Logger logger = LoggerFactory.getLogger(NotificationOutboxRepository.class);
+
+    private static final String ENQUEUE = "INSERT INTO health_info_notification_outbox " +
+            "(transaction_id, part_number, page_count, consent_id, consent_manager_id, status_notification, " +
+            "enqueued_at, attempts, next_attempt_at) VALUES ($1, $2, $3, $4, $5, $6, now(), 0, now()) " +
+            "ON CONFLICT (transaction_id, part_number) DO UPDATE SET page_count = EXCLUDED.page_count, " +
+            "consent_id = EXCLUDED.consent_id, consent_manager_id = EXCLUDED.consent_manager_id, " +
+            "status_notification = EXCLUDED.status_notification, enqueued_at = EXCLUDED.enqueued_at, " +
+            "attempts = 0, next_attempt_at = EXCLUDED.next_attempt_at";
+    private static final String PROCESSED_PARTS = "(SELECT count(*) FROM data_flow_parts parts " +
+            "WHERE parts.transaction_id = outbox.transaction_id " +
+            "AND parts.status IN ('SUCCEEDED', 'PARTIAL', 'ERRORED'))";
+    private static final String DUE_TRANSACTIONS = "SELECT outbox.transaction_id " +
+            "FROM health_info_notification_outbox outbox GROUP BY outbox.transaction_id " +
+            "HAVING " + PROCESSED_PARTS + " >= max(outbox.page_count) AND max(outbox.next_attempt_at) <= now() " +
+            "ORDER BY min(outbox.enqueued_at)";
+    private static final String CLAIM_DUE = "UPDATE health_info_notification_outbox " +
+            "SET attempts = attempts + 1, next_attempt_at = now() + $2::integer * interval '1 second' " +
+            "WHERE transaction_id IN (" + DUE_TRANSACTIONS + " LIMIT $1) AND next_attempt_at <= now() " +
+            "RETURNING transaction_id, part_number, consent_id, consent_manager_id, status_notification, " +
+            "enqueued_at, attempts";
+    private static final String DELETE_DELIVERED = "DELETE FROM health_info_notification_outbox " +
+            "WHERE transaction_id = $1 AND enqueued_at <= $2";
+    private static final String RESCHEDULE = "UPDATE health_info_notification_outbox " +
+            "SET next_attempt_at = now() + $2::integer * interval '1 second' WHERE transaction_id = $1";
+    private static final String SELECT_BACKLOG = "SELECT count(*) AS transactions, min(enqueued_at) AS oldest " +
+            "FROM (SELECT outbox.transaction_id, min(outbox.enqueued_at) AS enqueued_at " +
+            "FROM health_info_notification_outbox outbox GROUP BY outbox.transaction_id " +
+            "HAVING " + PROCESSED_PARTS + " >= max(outbox.page_count)) complete";
+
+    private final PgPool readWriteClient;
+
+    /**
+     * Written along with the status of the part, see {@link HealthDataRepository#saveDataPart}. A part processed again
+     * replaces its earlier entry.
+     */
+    public static Future<RowSet<Row>> enqueue(SqlClient client, NotificationOutboxEntry entry) {
+        return client.preparedQuery(ENQUEUE)
+                .execute(Tuple.of(entry.getTransactionId(),
+                        entry.getPartNumber(),
+                        entry.getPageCount(),
+                        entry.getConsentId(),
+                        entry.getConsentManagerId(),
+                        from(entry.getStatusNotification())));
+    }
+
+    /**
+     * Claims up to limit due transactions, which are not due again for the lease unless rescheduled or delivered.
+     */
+    public Flux<PendingNotification> claimDue(int limit, Duration lease) {
+        return Flux.create(fluxSink -> readWriteClient.preparedQuery(CLAIM_DUE)
+                .execute(Tuple.of(limit, (int) lease.toSeconds()),
+                        handler -> {
+                            if (handler.failed()) {
+                                logger.error(handler.cause().getMessage(), handler.cause());
+                                fluxSink.error(new Exception("Failed to claim health information notifications"));
+                                return;
+                            }
+                            Map<String, List<Row>> rowsByTransaction = new LinkedHashMap<>();
+                            for (Row row : handler.result()) {
+                                rowsByTransaction.computeIfAbsent(row.getString("transaction_id"),
+                                        transactionId -> new ArrayList<>()).add(row);
+                            }
+                            rowsByTransaction.forEach((transactionId, rows) ->
+                                    fluxSink.next(toPendingNotification(transactionId, rows)));
+                            fluxSink.complete();
+                        }));
+    }
+
+    /**
+     * Removes the entries of the transaction enqueued up to the given time; a part processed again since it was
+     * claimed is notified on its own.
+     */
+    public Mono<Void> delete(String transactionId, OffsetDateTime enqueuedUpTo) {
+        return Mono.create(monoSink -> readWriteClient.preparedQuery(DELETE_DELIVERED)
+                .execute(Tuple.of(transactionId, enqueuedUpTo),
+                        handler -> {
+                            if (handler.failed()) {
+                                logger.error(handler.cause().getMessage(), handler.cause());
+                                monoSink.error(new Exception("Failed to delete health information notification"));
+                                return;
+                            }
+                            monoSink.success();
+                        }));
+    }
+
+    public Mono<Void> reschedule(String transactionId, Duration delay) {
+        return Mono.create(monoSink -> readWriteClient.preparedQuery(RESCHEDULE)
+                .execute(Tuple.of(transactionId, (int) delay.toSeconds()),
+                        handler -> {
+                            if (handler.failed()) {
+                                logger.error(handler.cause().getMessage(), handler.cause());
+                                monoSink.error(new Exception("Failed to reschedule health information notification"));
+                                return;
+                            }
+                            monoSink.success();
+                        }));
+    }
+
+    /**
+     * Transactions with every part processed, whether due now or waiting for a later attempt.
+     */
+    public Mono<Backlog> getBacklog() {
+        return Mono.create(monoSink -> readWriteClient.query(SELECT_BACKLOG)
+                .execute(handler -> {
+                    if (handler.failed()) {
+                        logger.error(handler.cause().getMessage(), handler.cause());
+                        monoSink.error(new Exception("Failed to fetch health information notification backlog"));
+                        return;
+                    }
+                    Row row = handler.result().iterator().next();
+                    monoSink.success(new Backlog(row.getLong("transactions"), row.getOffsetDateTime("oldest")));
+                }));
+    }
+
+    private static PendingNotification toPendingNotification(String transactionId, List<Row> rows) {
+        rows.sort(Comparator.comparing(row -> row.getInteger("part_number")));
+        Row first = rows.get(0);
+        List<StatusNotification> parts = new ArrayList<>(rows.size());
+        OffsetDateTime firstEnqueuedAt = null;
+        OffsetDateTime lastEnqueuedAt = null;
+        int attempts = 0;
+        for (Row row : rows) {
+            parts.add(to(row.getValue("status_notification").toString(), StatusNotification.class));
+            OffsetDateTime enqueuedAt = row.getOffsetDateTime("enqueued_at");
+            firstEnqueuedAt = firstEnqueuedAt == null || enqueuedAt.isBefore(firstEnqueuedAt)
+                              ? enqueuedAt
+                              : firstEnqueuedAt;
+            lastEnqueuedAt = lastEnqueuedAt == null || enqueuedAt.isAfter(lastEnqueuedAt)
+                             ? enqueuedAt
+                             : lastEnqueuedAt;
+            attempts = Math.max(attempts, row.getInteger("attempts"));
+        }
+        return PendingNotification.builder()
+                .transactionId(transactionId)
+                .consentId(first.getString("consent_id"))
+                .consentManagerId(first.getString("consent_manager_id"))
+                .parts(parts)
+                .attempts(attempts)
+                .firstEnqueuedAt(firstEnqueuedAt)
+                .lastEnqueuedAt(lastEnqueuedAt)
+                .build();
+    }
+
+    @Value
+    public static class Backlog {
+        long transactions;
+        OffsetDateTime oldestEnqueuedAt;
+    }
+}
@@ -0,0 +1,188 @@
+package in.org.projecteka.hiu.dataprocessor;
+
+import in.org.projecteka.hiu.HiuProperties;
+import in.org.projecteka.hiu.clients.HealthInformationClient;
+import in.org.projecteka.hiu.common.Gateway;
+import in.org.projecteka.hiu.dataflow.Decryptor;
+import in.org.projecteka.hiu.dataprocessor.model.HealthInfoNotificationRequest;
+import in.org.projecteka.hiu.dataprocessor.model.Notification;
+import in.org.projecteka.hiu.dataprocessor.model.Notifier;
+import in.org.projecteka.hiu.dataprocessor.model.PendingNotification;
+import in.org.projecteka.hiu.dataprocessor.model.StatusNotification;
+import in.org.projecteka.hiu.dataprocessor.model.StatusResponse;
+import in.org.projecteka.hiu.dataprocessor.model.Type;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Sends the health information notifications of the outbox to the gateway, apart from the processing of data parts.
+ * <p>
+ * Each poll claims the transactions whose parts are all processed and notifies them concurrently, with one
+ * notification per transaction carrying the status of the entries of every part. A failed notification is tried
+ * again after a backoff doubling with each attempt, and dropped after maxAttempts. Claims are leased, so a relay
+ * stopping mid-delivery leaves the transaction to be claimed again, and several instances can relay at once.
+ */
+public class NotificationRelay {
+    private static final Logger logger = LoggerFactory.getLogger(NotificationRelay.class);
+
+    private final NotificationOutboxRepository outboxRepository;
+    private final HealthInformationClient healthInformationClient;
+    private final Gateway gateway;
+    private final HiuProperties hiuProperties;
+    private final Decryptor decryptor;
+    private final NotificationOutboxProperties properties;
+    private final AtomicLong pendingTransactions;
+    private final AtomicLong lagSeconds;
+    private final Timer deliveryDelay;
+    private final Counter delivered;
+    private final Counter retried;
+    private final Counter dropped;
+    private Disposable polling;
+
+    public NotificationRelay(NotificationOutboxRepository outboxRepository,
+                             HealthInformationClient healthInformationClient,
+                             Gateway gateway,
+                             HiuProperties hiuProperties,
+                             Decryptor decryptor,
+                             NotificationOutboxProperties properties,
+                             MeterRegistry meterRegistry) {
+        this.outboxRepository = outboxRepository;
+        this.healthInformationClient = healthInformationClient;
+        this.gateway = gateway;
+        this.hiuProperties = hiuProperties;
+        this.decryptor = decryptor;
+        this.properties = properties;
+        this.pendingTransactions = meterRegistry.gauge("hiu.notification.outbox.pending", new AtomicLong());
+        this.lagSeconds = meterRegistry.gauge("hiu.notification.outbox.lag.seconds", new AtomicLong());
+        this.deliveryDelay = Timer.builder("hiu.notification.outbox.delivery.delay")
+                .description("Time from the last part of a transaction being processed to its notification")
+                .register(meterRegistry);
+        this.delivered = meterRegistry.counter("hiu.notification.outbox.relayed", "outcome", "delivered");
+        this.retried = meterRegistry.counter("hiu.notification.outbox.relayed", "outcome", "retried");
+        this.dropped = meterRegistry.counter("hiu.notification.outbox.relayed", "outcome", "dropped");
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!properties.isEnabled() || !properties.isRelayEnabled()) {
+            return;
+        }
+        polling = Flux.interval(Duration.ofMillis(properties.getPollIntervalMillis()), Schedulers.boundedElastic())
+                .onBackpressureDrop()
+                .concatMap(tick -> relay(), 1)
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (polling != null) {
+            polling.dispose();
+        }
+    }
+
+    Mono<Void> relay() {
+        return outboxRepository.claimDue(properties.getBatchSize(), Duration.ofSeconds(properties.getLeaseSeconds()))
+                .flatMap(this::deliver, Math.max(properties.getConcurrency(), 1))
+                .then(Mono.defer(this::refreshBacklog))
+                .onErrorResume(e -> {
+                    logger.error("Could not relay health information notifications", e);
+                    return Mono.empty();
+                });
+    }
+
+    private Mono<Void> deliver(PendingNotification pending) {
+        HealthInfoNotificationRequest request = notificationRequest(pending);
+        return gateway.token()
+                .map(Optional::of)
+                .defaultIfEmpty(Optional.empty())
+                .flatMap(token -> healthInformationClient.notifyHealthInfo(request,
+                        token.orElse(null),
+                        pending.getConsentManagerId()))
+                .then(Mono.defer(() ->
+                        outboxRepository.delete(pending.getTransactionId(), pending.getLastEnqueuedAt())))
+                .doOnSuccess(ignored -> {
+                    delivered.increment();
+                    deliveryDelay.record(Duration.between(pending.getLastEnqueuedAt(), OffsetDateTime.now()));
+                    decryptor.forget(pending.getTransactionId());
+                })
+                .onErrorResume(e -> {
+                    logger.error("Could not notify health information status of transaction: {}, attempt: {}",
+                            pending.getTransactionId(), pending.getAttempts(), e);
+                    return failed(pending);
+                });
+    }
+
+    private Mono<Void> failed(PendingNotification pending) {
+        if (pending.getAttempts() >= properties.getMaxAttempts()) {
+            logger.error("Dropping health information notification of transaction: {} after {} attempts",
+                    pending.getTransactionId(), pending.getAttempts());
+            dropped.increment();
+            return outboxRepository.delete(pending.getTransactionId(), pending.getLastEnqueuedAt())
+                    .onErrorResume(e -> Mono.empty());
+        }
+        retried.increment();
+        return outboxRepository.reschedule(pending.getTransactionId(), backoff(pending.getAttempts()))
+                .onErrorResume(e -> Mono.empty());
+    }
+
+    Duration backoff(int attempts) {
+        long factor = 1L << Math.min(Math.max(attempts - 1, 0), 20);
+        return Duration.ofSeconds(Math.min(properties.getInitialBackoffSeconds() * factor,
+                properties.getMaxBackoffSeconds()));
+    }
+
+    private Mono<Void> refreshBacklog() {
+        return outboxRepository.getBacklog()
+                .doOnNext(backlog -> {
+                    pendingTransactions.set(backlog.getTransactions());
+                    lagSeconds.set(backlog.getOldestEnqueuedAt() == null
+                                   ? 0
+                                   : Duration.between(backlog.getOldestEnqueuedAt(), OffsetDateTime.now())
+                                           .getSeconds());
+                })
+                .then();
+    }
+
+    private HealthInfoNotificationRequest notificationRequest(PendingNotification pending) {
+        List<StatusResponse> statusResponses = pending.getParts().stream()
+                .flatMap(part -> part.getStatusResponses().stream())
+                .collect(Collectors.toList());
+        return HealthInfoNotificationRequest.builder()
+                .requestId(UUID.randomUUID())
+                .timestamp(LocalDateTime.now(ZoneOffset.UTC))
+                .notification(Notification.builder()
+                        .consentId(pending.getConsentId())
+                        .transactionId(pending.getTransactionId())
+                        .doneAt(LocalDateTime.now(ZoneOffset.UTC))
+                        .notifier(Notifier.builder()
+                                .type(Type.HIU)
+                                .id(hiuProperties.getId())
+                                .build())
+                        .statusNotification(StatusNotification.builder()
+                                .sessionStatus(pending.getSessionStatus())
+                                .hipId(pending.getParts().get(0).getHipId())
+                                .statusResponses(statusResponses)
+                                .build())
+                        .build())
+                .build();
+    }
+}
@@ -0,0 +1,46 @@
+package in.org.projecteka.hiu.dataprocessor;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@link HITypeResourceProcessor} of each resource type, looked up once when the registry is built.
+ * <p>
+ * Processors are the HITypeResourceProcessor beans of the application, so a processor for another resource type is
+ * added by declaring its bean. When more than one supports a type, the first one is used. Each processor is
+ * instrumented with its invocation count and time.
+ */
+public class ResourceProcessorRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(ResourceProcessorRegistry.class);
+
+    private final Map<ResourceType, HITypeResourceProcessor> processors = new EnumMap<>(ResourceType.class);
+
+    public ResourceProcessorRegistry(List<HITypeResourceProcessor> resourceProcessors, MeterRegistry meterRegistry) {
+        for (HITypeResourceProcessor resourceProcessor : resourceProcessors) {
+            var instrumented = new InstrumentedResourceProcessor(resourceProcessor, meterRegistry);
+            for (ResourceType resourceType : ResourceType.values()) {
+                if (!resourceProcessor.supports(resourceType)) {
+                    continue;
+                }
+                HITypeResourceProcessor registered = processors.putIfAbsent(resourceType, instrumented);
+                if (registered != null) {
+                    logger.warn("{} already processes {}, ignoring {} for it",
+                            registered, resourceType, instrumented);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return null when no processor supports the resource type
+     */
+    public HITypeResourceProcessor get(ResourceType resourceType) {
+        return processors.get(resourceType);
+    }
+}
@@ -0,0 +1,249 @@
+package in.org.projecteka.hiu.dataprocessor;
+
+import ca.uhn.fhir.parser.IParser;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import in.org.projecteka.hiu.dataprocessor.model.BundleContext;
+import in.org.projecteka.hiu.dataprocessor.model.DataContext;
+import in.org.projecteka.hiu.dataprocessor.model.ProcessedEntry;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.fasterxml.jackson.databind.DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS;
+
+/**
+ * Processes a FHIR JSON bundle entry by entry, as it is read, instead of parsing the whole bundle first.
+ * <p>
+ * Each entry is read as a JSON tree on its own. Its resource is parsed into the FHIR model only when a resource
+ * processor handles its type, or when a resource processed before refers to it; only Binary, DiagnosticReport,
+ * DocumentReference and Media resources are encoded back, as processing may have changed their attachments. Every
+ * other entry is written out as it was read. So at most one resource is held at a time, besides the first
+ * Composition and the resources awaiting references to entries further down the bundle.
+ * <p>
+ * References are resolved only to entries further down the bundle, which holds for document bundles where the
+ * Composition comes first. A Media entry coming before the DiagnosticReport referring to it keeps its attachment in
+ * the bundle, and titles taken from a referenced resource, like the Medication of a MedicationRequest, are left out.
+ */
+class StreamingBundleProcessor {
+    private static final Logger logger = LoggerFactory.getLogger(StreamingBundleProcessor.class);
+    private static final ObjectMapper BUNDLE_MAPPER = new ObjectMapper()
+            .enable(USE_BIG_DECIMAL_FOR_FLOATS)
+            .setNodeFactory(JsonNodeFactory.withExactBigDecimals(true));
+    private static final Set<ResourceType> ENCODED_AFTER_PROCESSING = EnumSet.of(ResourceType.Binary,
+            ResourceType.DiagnosticReport,
+            ResourceType.DocumentReference,
+            ResourceType.Media);
+    static final String INVALID_ENVELOPE = "Can not process entry content, invalid envelope." +
+            "Entry content is either not a FHIR Bundle type COLLECTION or DOCUMENT. " +
+            "For Document bundle type (e.g Discharge Summary), the first entry must be composition.";
+
+    private final ResourceProcessorRegistry resourceProcessors;
+
+    StreamingBundleProcessor(ResourceProcessorRegistry resourceProcessors) {
+        this.resourceProcessors = resourceProcessors;
+    }
+
+    /**
+     * @throws IOException when the content can not be read, or is not JSON
+     */
+    ProcessedEntry process(Reader content, IParser parser, DataContext context) throws IOException {
+        ProcessedEntry result = new ProcessedEntry();
+        Bundle bundle = new Bundle();
+        BundleContext bundleContext = BundleContext.streamed(bundle, resourceProcessors::get);
+        StringWriter encoded = new StringWriter();
+        try (JsonParser in = BUNDLE_MAPPER.getFactory().createParser(content);
+             JsonGenerator out = BUNDLE_MAPPER.getFactory().createGenerator(encoded)) {
+            // the decrypted content is read to its end, and closed, by the caller
+            in.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            out.enable(JsonGenerator.Feature.WRITE_BIGDECIMAL_AS_PLAIN);
+            if (in.nextToken() != JsonToken.START_OBJECT) {
+                result.addError(INVALID_ENVELOPE);
+                return result;
+            }
+            logger.info("Processing streamed bundle");
+            out.writeStartObject();
+            int entries = 0;
+            ResourceType firstEntryType = null;
+            while (in.nextToken() == JsonToken.FIELD_NAME) {
+                String field = in.getCurrentName();
+                in.nextToken();
+                out.writeFieldName(field);
+                if (!"entry".equals(field) || in.currentToken() != JsonToken.START_ARRAY) {
+                    JsonNode value = BUNDLE_MAPPER.readTree(in);
+                    readBundleField(bundle, field, value);
+                    BUNDLE_MAPPER.writeTree(out, value);
+                    continue;
+                }
+                out.writeStartArray();
+                while (in.nextToken() != JsonToken.END_ARRAY) {
+                    if (!isValidBundleType(bundle, entries, firstEntryType, false)) {
+                        result.addError(INVALID_ENVELOPE);
+                        return result;
+                    }
+                    ResourceType type = processEntry(BUNDLE_MAPPER.readTree(in), parser, context, bundleContext, out);
+                    if (entries++ == 0) {
+                        firstEntryType = type;
+                    }
+                }
+                out.writeEndArray();
+            }
+            out.writeEndObject();
+            if (!isValidBundleType(bundle, entries, firstEntryType, true)) {
+                result.addError(INVALID_ENVELOPE);
+                return result;
+            }
+        } catch (ResourceProcessingException e) {
+            logger.error("Could not process bundle {exception}", e.getCause());
+            result.addError(String.format("Could not process bundle with id: %s, error-message: %s",
+                    bundle.getId(), e.getCause().getMessage()));
+            return result;
+        }
+        if (!bundleContext.getAwaitedReferences().isEmpty()) {
+            logger.warn("References not found in bundle id: {}, references: {}",
+                    bundle.getId(), bundleContext.getAwaitedReferences());
+        }
+        result.setEncoded(encoded.toString());
+        result.setUniqueResourceId(bundleContext.getBundleUniqueId());
+        result.setDocumentType(bundleContext.getDocumentType());
+        result.setOrigins(bundleContext.getOrigins());
+        result.addTrackedResources(bundleContext.getTrackedResources(), bundleContext.getBundleDate());
+        return result;
+    }
+
+    private ResourceType processEntry(JsonNode entry,
+                                      IParser parser,
+                                      DataContext context,
+                                      BundleContext bundleContext,
+                                      JsonGenerator out) throws IOException {
+        JsonNode resourceNode = entry.path("resource");
+        ResourceType resourceType = resourceTypeOf(resourceNode);
+        if (resourceType == null) {
+            BUNDLE_MAPPER.writeTree(out, entry);
+            return null;
+        }
+        String fullUrl = entry.path("fullUrl").asText(null);
+        List<String> references = referencesTo(fullUrl, resourceType, resourceNode.path("id").asText(null));
+        HITypeResourceProcessor processor = resourceProcessors.get(resourceType);
+        boolean composition = resourceType.equals(ResourceType.Composition);
+        if (processor == null && !composition && !bundleContext.isAwaited(references)) {
+            BUNDLE_MAPPER.writeTree(out, entry);
+            return resourceType;
+        }
+        Resource resource = (Resource) parser.parseResource(BUNDLE_MAPPER.writeValueAsString(resourceNode));
+        if (fullUrl != null) {
+            // as the bundle parser does, see FhirParsingEngine
+            resource.setIdElement(new IdType(fullUrl));
+        }
+        try {
+            bundleContext.received(resource, references);
+            if (processor != null) {
+                processor.process(resource, context, bundleContext, null);
+            }
+        } catch (RuntimeException e) {
+            throw new ResourceProcessingException(e);
+        }
+        if (ENCODED_AFTER_PROCESSING.contains(resourceType)) {
+            ((ObjectNode) entry).set("resource", BUNDLE_MAPPER.readTree(parser.encodeResourceToString(resource)));
+        }
+        BUNDLE_MAPPER.writeTree(out, entry);
+        bundleContext.release(resource);
+        return resourceType;
+    }
+
+    private static ResourceType resourceTypeOf(JsonNode resource) {
+        if (!resource.hasNonNull("resourceType")) {
+            return null;
+        }
+        try {
+            return ResourceType.fromCode(resource.get("resourceType").asText());
+        } catch (FHIRException e) {
+            return null;
+        }
+    }
+
+    private static List<String> referencesTo(String fullUrl, ResourceType resourceType, String id) {
+        List<String> references = new ArrayList<>(2);
+        if (fullUrl != null) {
+            references.add(fullUrl);
+        }
+        if (id != null) {
+            references.add(resourceType.name() + "/" + id);
+        }
+        return references;
+    }
+
+    private static void readBundleField(Bundle bundle, String field, JsonNode value) {
+        switch (field) {
+            case "id":
+                bundle.setId(value.asText());
+                break;
+            case "type":
+                bundle.setType(bundleTypeOf(value.asText()));
+                break;
+            case "timestamp":
+                bundle.setTimestampElement(new InstantType(value.asText()));
+                break;
+            case "meta":
+                if (value.hasNonNull("versionId")) {
+                    bundle.getMeta().setVersionId(value.get("versionId").asText());
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static Bundle.BundleType bundleTypeOf(String code) {
+        try {
+            return Bundle.BundleType.fromCode(code);
+        } catch (FHIRException e) {
+            return Bundle.BundleType.NULL;
+        }
+    }
+
+    /**
+     * Checked as the bundle is read, the bundle type may come after the entries.
+     * @param complete whether the whole bundle is read
+     */
+    private static boolean isValidBundleType(Bundle bundle, int entries, ResourceType firstEntryType, boolean complete) {
+        Bundle.BundleType bundleType = bundle.getType();
+        if (bundleType == null) {
+            return !complete;
+        }
+        if (bundleType.equals(Bundle.BundleType.COLLECTION)) {
+            return true;
+        }
+        if (!bundleType.equals(Bundle.BundleType.DOCUMENT)) {
+            return false;
+        }
+        if (entries == 0) {
+            return !complete;
+        }
+        return ResourceType.Composition.equals(firstEntryType);
+    }
+
+    private static class ResourceProcessingException extends RuntimeException {
+        ResourceProcessingException(RuntimeException cause) {
+            super(cause);
+        }
+    }
+}
@@ -6,6 +6,7 @@ import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Composition;
 import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.ResourceType;
 
@@ -14,16 +15,27 @@ import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
 public class BundleContext {
     private Bundle bundle;
     private Function<ResourceType, HITypeResourceProcessor> resourceProcessor;
-    private List<Resource> processedResList = new ArrayList<>();
+    private Set<Resource> processedResources = Collections.newSetFromMap(new IdentityHashMap<>());
     private List<TrackedResourceReference> trackedResources = new ArrayList<>();
+    private Map<ResourceType, List<Resource>> resourcesByType = new EnumMap<>(ResourceType.class);
+    private Map<String, Resource> resourcesByFullUrl = new HashMap<>();
+    private Composition composition;
+    private final boolean streamed;
+    private Map<String, List<Consumer<Resource>>> awaitedReferences = new HashMap<>();
 
     private static final String VERSION_UNKNOWN = "UNKNOWN";
 
@@ -32,12 +44,106 @@ public class BundleContext {
     }
 
     public BundleContext(Bundle bundle, Function<ResourceType, HITypeResourceProcessor> resourceProcessor) {
+        this(bundle, resourceProcessor, false);
+        indexEntries();
+    }
+
+    private BundleContext(Bundle bundle,
+                          Function<ResourceType, HITypeResourceProcessor> resourceProcessor,
+                          boolean streamed) {
         this.bundle = bundle;
         this.resourceProcessor = resourceProcessor;
+        this.streamed = streamed;
+    }
+
+    /**
+     * Context of a bundle read entry by entry. The given bundle carries the bundle fields but no entries; resources
+     * are passed to {@link #received(Resource, List)} as they are read and are not kept, except for the first
+     * Composition. References to entries further down the bundle are resolved as those entries are received.
+     */
+    public static BundleContext streamed(Bundle bundle,
+                                         Function<ResourceType, HITypeResourceProcessor> resourceProcessor) {
+        return new BundleContext(bundle, resourceProcessor, true);
+    }
+
+    /**
+     * Indexes the entries of the bundle once, so that lookups while processing do not rescan the bundle.
+     */
+    private void indexEntries() {
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            Resource resource = entry.getResource();
+            if (resource == null) {
+                continue;
+            }
+            resourcesByType.computeIfAbsent(resource.getResourceType(), type -> new ArrayList<>()).add(resource);
+            if (entry.hasFullUrl()) {
+                resourcesByFullUrl.putIfAbsent(entry.getFullUrl(), resource);
+            }
+            indexComposition(resource);
+        }
+    }
+
+    private void indexComposition(Resource resource) {
+        if (composition != null || !resource.getResourceType().equals(ResourceType.Composition)) {
+            return;
+        }
+        composition = (Composition) resource;
+        if (streamed) {
+            composition.getAttester().stream()
+                    .filter(Composition.CompositionAttesterComponent::hasParty)
+                    .forEach(attester -> awaitReference(attester.getParty(), attester.getParty()::setResource));
+            composition.getAuthor().forEach(author -> awaitReference(author, author::setResource));
+        }
+    }
+
+    /**
+     * Streamed bundles only: hands a resource read from the bundle to those awaiting it.
+     * @param resource the resource of an entry
+     * @param references what the entry is referred to by - its fullUrl and its type/id
+     */
+    public void received(Resource resource, List<String> references) {
+        indexComposition(resource);
+        for (String reference : references) {
+            List<Consumer<Resource>> awaiting = awaitedReferences.remove(reference);
+            if (awaiting != null) {
+                awaiting.forEach(consumer -> consumer.accept(resource));
+            }
+        }
+    }
+
+    /**
+     * Streamed bundles only: whether any resource processed so far refers to one of the given references.
+     */
+    public boolean isAwaited(List<String> references) {
+        return references.stream().anyMatch(awaitedReferences::containsKey);
+    }
+
+    /**
+     * @return the references left unresolved when the whole of a streamed bundle is read
+     */
+    public Set<String> getAwaitedReferences() {
+        return awaitedReferences.keySet();
+    }
+
+    /**
+     * When a reference is not resolved in a streamed bundle, the resource it refers to may be in an entry not read
+     * yet. The consumer is then called with that resource once it is received.
+     * @return false when the reference can not be resolved anymore
+     */
+    public boolean awaitReference(Reference reference, Consumer<Resource> consumer) {
+        if (reference.getResource() instanceof Resource) {
+            consumer.accept((Resource) reference.getResource());
+            return true;
+        }
+        if (!streamed || !reference.hasReference()) {
+            return false;
+        }
+        awaitedReferences.computeIfAbsent(reference.getReference(), ref -> new ArrayList<>()).add(consumer);
+        return true;
     }
 
     public boolean isProcessed(Resource resource) {
-        return processedResList.contains(resource);
+        return processedResources.contains(resource);
     }
 
     /**
@@ -50,10 +156,28 @@ public class BundleContext {
      * The intent is to ensure that resources in the bundle are not double processed by
      * the {@link in.org.projecteka.hiu.dataprocessor.HITypeResourceProcessor}. For example,
      * if a DocumentReference is already processed than it need to be processed again if associated with a Composition.
+     * Resources are tracked by identity, as the same resource instance is reached both from the bundle entry and
+     * from the references resolved to it.
      * @param resource FHIR resource that is already processed by a HITypeResourceProcessor
      */
     public void doneProcessing(Resource resource) {
-        processedResList.add(resource);
+        processedResources.add(resource);
+    }
+
+    /**
+     * Streamed bundles only: forgets a resource once its entry is written out, so that it is not held until the end
+     * of the bundle.
+     */
+    public void release(Resource resource) {
+        processedResources.remove(resource);
+    }
+
+    public List<Resource> getResources(ResourceType resourceType) {
+        return resourcesByType.getOrDefault(resourceType, Collections.emptyList());
+    }
+
+    public Optional<Resource> getResource(String fullUrl) {
+        return Optional.ofNullable(resourcesByFullUrl.get(fullUrl));
     }
 
     public void trackResource(ResourceType resourceType, String resourceId, Date date, String title) {
@@ -84,13 +208,9 @@ public class BundleContext {
     }
 
     public String getDocumentType() {
-        Optional<Bundle.BundleEntryComponent> entryComponent
-                = bundle.getEntry().stream().filter(e ->
-                e.getResource().getResourceType().equals(ResourceType.Composition)).findFirst();
-        if (entryComponent.isEmpty()) {
+        if (composition == null) {
             return "";
         }
-        Composition composition = (Composition) entryComponent.get().getResource();
         CodeableConcept concept = composition.getType();
         Optional<String> hiType = concept.getCoding().stream().map(c -> FHIRUtils.getHiTypeForCode(c.getCode()))
                 .filter(type -> !"".equals(type))
@@ -99,13 +219,9 @@ public class BundleContext {
     }
 
     public List<Organization> getOrigins() {
-        Optional<Bundle.BundleEntryComponent> entryComponent
-                = bundle.getEntry().stream().filter(e ->
-                e.getResource().getResourceType().equals(ResourceType.Composition)).findFirst();
-        if (entryComponent.isEmpty()) {
+        if (composition == null) {
             return Collections.emptyList();
         }
-        Composition composition = (Composition) entryComponent.get().getResource();
         List<Organization> organizations = identifyOrgFromAttester(composition);
         if (organizations.isEmpty()) {
             organizations = identifyOrgFromAuthor(composition);
@@ -1,10 +1,15 @@
 package in.org.projecteka.hiu.dataprocessor.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
+
 @Getter
 @Setter
 @AllArgsConstructor
@@ -13,4 +18,43 @@ public class DataAvailableMessage {
     private String transactionId;
     private String pathToFile;
     private String partNumber;
+    private int pageCount;
+    /**
+     * Set when the part was appended to the segmented log, in which case pathToFile only names the transaction's
+     * directory for attachments.
+     */
+    private String segmentReference;
+    /**
+     * Comma separated positions of the entries that were rejected on receipt because of a checksum mismatch.
+     */
+    private String rejectedEntries;
+    /**
+     * Checksum over the entries of the part, which the part was claimed with on receipt, see
+     * {@link in.org.projecteka.hiu.dataflow.DataPartDeduplicator}.
+     */
+    private String entriesChecksum;
+
+    public DataAvailableMessage(String transactionId, String pathToFile, String partNumber) {
+        this(transactionId, pathToFile, partNumber, 1);
+    }
+
+    public DataAvailableMessage(String transactionId, String pathToFile, String partNumber, int pageCount) {
+        this(transactionId, pathToFile, partNumber, pageCount, null, null, null);
+    }
+
+    @JsonIgnore
+    public boolean isMultiPart() {
+        return pageCount > 1;
+    }
+
+    @JsonIgnore
+    public Set<Integer> getRejectedEntryPositions() {
+        if (rejectedEntries == null || rejectedEntries.isBlank()) {
+            return Set.of();
+        }
+        return Arrays.stream(rejectedEntries.split(","))
+                .map(String::trim)
+                .map(Integer::valueOf)
+                .collect(Collectors.toSet());
+    }
 }
@@ -1,7 +1,11 @@
 package in.org.projecteka.hiu.dataprocessor.model;
 
+import in.org.projecteka.hiu.common.storage.PlainStorageCodec;
+import in.org.projecteka.hiu.common.storage.StorageCodec;
+import in.org.projecteka.hiu.dataflow.model.DataFlowRequestKeyMaterial;
 import in.org.projecteka.hiu.dataflow.model.DataNotificationRequest;
 import in.org.projecteka.hiu.dataflow.model.KeyMaterial;
+import in.org.projecteka.hiu.dataprocessor.AttachmentDownloader;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.Setter;
@@ -11,6 +15,7 @@ import org.slf4j.LoggerFactory;
 import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 @Builder
@@ -20,9 +25,18 @@ public class DataContext {
     private DataNotificationRequest notifiedData;
     private Path dataFilePath;
     private String dataPartNumber;
+    private int pageCount;
     private List<TrackedResourceReference> trackedResources;
     private String hipId;
     private String consentId;
+    private String consentManagerId;
+    private DataFlowRequestKeyMaterial dataFlowRequestKeyMaterial;
+    @Builder.Default
+    private StorageCodec storageCodec = new PlainStorageCodec();
+    private AttachmentDownloader attachmentDownloader;
+    @Builder.Default
+    private Set<Integer> rejectedEntries = Set.of();
+    private String entriesChecksum;
     private static final Logger logger = LoggerFactory.getLogger(DataContext.class);
 
     public Path getLocalStoragePath() {
@@ -50,6 +64,10 @@ public class DataContext {
         return dateTimes.isEmpty() ?  null : dateTimes.stream().max(LocalDateTime::compareTo).get();
     }
 
+    public boolean isMultiPart() {
+        return pageCount > 1;
+    }
+
     public int getNumberOfEntries() {
         if (notifiedData == null) {
             logger.info("There are no notified data in this transaction.");
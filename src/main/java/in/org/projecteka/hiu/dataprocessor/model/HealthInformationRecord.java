@@ -0,0 +1,29 @@
+package in.org.projecteka.hiu.dataprocessor.model;
+
+import lombok.Builder;
+import lombok.Value;
+
+import java.time.LocalDateTime;
+
+/**
+ * A health_information row of a processed entry, written along with the other entries of its data part.
+ */
+@Value
+@Builder
+public class HealthInformationRecord {
+    String data;
+    EntryStatus status;
+    LocalDateTime latestResourceDate;
+    String careContextReference;
+    String docOrigin;
+    String docId;
+    String docType;
+
+    public static HealthInformationRecord errored(String careContextReference) {
+        return HealthInformationRecord.builder()
+                .data("")
+                .status(EntryStatus.ERRORED)
+                .careContextReference(careContextReference)
+                .build();
+    }
+}
@@ -0,0 +1,18 @@
+package in.org.projecteka.hiu.dataprocessor.model;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * The status of the entries of a processed data part, to be notified once every part of the transaction is processed.
+ */
+@Value
+@Builder
+public class NotificationOutboxEntry {
+    String transactionId;
+    int partNumber;
+    int pageCount;
+    String consentId;
+    String consentManagerId;
+    StatusNotification statusNotification;
+}
@@ -0,0 +1,28 @@
+package in.org.projecteka.hiu.dataprocessor.model;
+
+import lombok.Builder;
+import lombok.Value;
+
+import java.time.OffsetDateTime;
+import java.util.List;
+
+/**
+ * A transaction claimed for notification, with the outbox entries of all of its parts in part order.
+ */
+@Value
+@Builder
+public class PendingNotification {
+    String transactionId;
+    String consentId;
+    String consentManagerId;
+    List<StatusNotification> parts;
+    int attempts;
+    OffsetDateTime firstEnqueuedAt;
+    OffsetDateTime lastEnqueuedAt;
+
+    public SessionStatus getSessionStatus() {
+        return parts.stream().allMatch(part -> part.getSessionStatus() == SessionStatus.TRANSFERRED)
+               ? SessionStatus.TRANSFERRED
+               : SessionStatus.FAILED;
+    }
+}
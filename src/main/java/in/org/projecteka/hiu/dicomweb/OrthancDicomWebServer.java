@@ -3,9 +3,12 @@ package in.org.projecteka.hiu.dicomweb;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import in.org.projecteka.hiu.LocalDicomServerProperties;
+import in.org.projecteka.hiu.common.storage.StorageFiles;
 import org.springframework.util.Base64Utils;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
@@ -62,7 +65,7 @@ public class OrthancDicomWebServer {
         HttpRequest request = requestBuilder
                 .uri(studyInstanceURI())
                 .header("Content-Type", "application/octet-stream")
-                .POST(HttpRequest.BodyPublishers.ofFile(savedFilePath))
+                .POST(HttpRequest.BodyPublishers.ofInputStream(() -> openStoredFile(savedFilePath)))
                 .build();
         HttpResponse<String> response = HttpClient.newHttpClient().send(request,
                 HttpResponse.BodyHandlers.ofString());
@@ -73,6 +76,14 @@ public class OrthancDicomWebServer {
         return objectMapper.readValue(response.body(), DicomInstance.class);
     }
 
+    private static InputStream openStoredFile(Path savedFilePath) {
+        try {
+            return StorageFiles.newInputStream(savedFilePath);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     private URI instanceStudyURI(String studyUuid) {
         return URI.create(String.format("%s/studies/%s", properties.getUrl(), studyUuid));
     }
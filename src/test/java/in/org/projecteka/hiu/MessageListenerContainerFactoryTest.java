@@ -0,0 +1,43 @@
+package in.org.projecteka.hiu;
+
+import in.org.projecteka.hiu.ListenerProperties.ConsumerProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.springframework.test.util.ReflectionTestUtils.getField;
+
+class MessageListenerContainerFactoryTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final MessageListenerContainerFactory factory = new MessageListenerContainerFactory(
+            mock(ConnectionFactory.class),
+            new Jackson2JsonMessageConverter(),
+            Map.of("process-queue", new ConsumerProperties(2, 8, 16, 5, 20, 1000, 5000)),
+            meterRegistry);
+
+    @Test
+    void shouldApplyTheConsumersConfiguredForTheQueue() {
+        var container = factory.createMessageListenerContainer("process-queue");
+
+        assertThat(getField(container, "concurrentConsumers")).isEqualTo(2);
+        assertThat(getField(container, "maxConcurrentConsumers")).isEqualTo(8);
+        assertThat(getField(container, "prefetchCount")).isEqualTo(16);
+        assertThat(meterRegistry.get("hiu.queue.consumers.active").tag("queue", "process-queue").gauge().value())
+                .isZero();
+        assertThat(meterRegistry.get("hiu.queue.consumers.utilisation").tag("queue", "process-queue").gauge().value())
+                .isZero();
+    }
+
+    @Test
+    void shouldUseOneConsumerForQueuesWithoutConfiguration() {
+        var container = factory.createMessageListenerContainer("other-queue");
+
+        assertThat(getField(container, "concurrentConsumers")).isEqualTo(1);
+        assertThat(getField(container, "maxConcurrentConsumers")).isEqualTo(1);
+    }
+}
@@ -0,0 +1,107 @@
+package in.org.projecteka.hiu.common.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class StorageFilesTest {
+    @TempDir
+    Path storage;
+
+    @Test
+    void shouldRoundTripContentSpanningSeveralBlocks() throws IOException {
+        byte[] content = randomBase64(10_000);
+        Path file = storage.resolve("part.json");
+
+        try (OutputStream out = StorageFiles.newOutputStream(new DeflateStorageCodec(Deflater.BEST_SPEED, 1024),
+                file, CREATE_NEW, WRITE)) {
+            out.write(content, 0, 10);
+            out.write(content[10]);
+            out.write(content, 11, content.length - 11);
+        }
+
+        assertThat(StorageFiles.isEncoded(file)).isTrue();
+        assertThat(Files.size(file)).isLessThan(content.length);
+        try (InputStream in = StorageFiles.newInputStream(file)) {
+            assertThat(in.readAllBytes()).isEqualTo(content);
+        }
+    }
+
+    @Test
+    void shouldReadFilesWrittenWithoutCodecAsTheyAre() throws IOException {
+        byte[] content = "{\"transactionId\":\"123\"}".getBytes();
+        Path file = storage.resolve("part.json");
+        Files.write(file, content);
+
+        assertThat(StorageFiles.isEncoded(file)).isFalse();
+        try (InputStream in = StorageFiles.newInputStream(file)) {
+            assertThat(in.readAllBytes()).isEqualTo(content);
+        }
+    }
+
+    @Test
+    void shouldReadEmptyPlainFile() throws IOException {
+        Path file = storage.resolve("empty.txt");
+        Files.write(file, new byte[0]);
+
+        try (InputStream in = StorageFiles.newInputStream(file)) {
+            assertThat(in.read()).isEqualTo(-1);
+        }
+    }
+
+    @Test
+    void shouldFailOnTruncatedCompressedFile() throws IOException {
+        Path file = storage.resolve("part.json");
+        try (OutputStream out = StorageFiles.newOutputStream(new DeflateStorageCodec(Deflater.BEST_SPEED, 1024),
+                file, CREATE_NEW, WRITE)) {
+            out.write(randomBase64(5_000));
+        }
+        byte[] stored = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(stored, stored.length - 20));
+
+        try (InputStream in = StorageFiles.newInputStream(file)) {
+            assertThrows(IOException.class, in::readAllBytes);
+        }
+    }
+
+    @Test
+    void shouldCloseTheUnderlyingStreamWhenTheLastBlockCanNotBeWritten() throws IOException {
+        var closed = new boolean[1];
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("disk full");
+            }
+
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        OutputStream out = new DeflateStorageCodec(Deflater.BEST_SPEED, 1024).encoder(failing);
+        out.write(randomBase64(100));
+
+        assertThrows(IOException.class, out::close);
+        assertThat(closed[0]).isTrue();
+    }
+
+    private static byte[] randomBase64(int length) {
+        byte[] random = new byte[length * 3 / 4];
+        new Random(42).nextBytes(random);
+        return Base64.getEncoder().encode(random);
+    }
+}
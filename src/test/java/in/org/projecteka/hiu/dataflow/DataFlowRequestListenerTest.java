@@ -14,6 +14,7 @@ import in.org.projecteka.hiu.common.cache.CacheAdapter;
 import in.org.projecteka.hiu.consent.ConsentRepository;
 import in.org.projecteka.hiu.dataflow.model.DataFlowRequestKeyMaterial;
 import in.org.projecteka.hiu.dataflow.model.GatewayDataFlowRequest;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Answers;
@@ -74,13 +75,13 @@ class DataFlowRequestListenerTest {
     @BeforeEach
     void init() {
         MockitoAnnotations.initMocks(this);
-        var decryptor = new Decryptor();
+        var keyMaterialPool = new KeyMaterialPool(new Decryptor(), 1, 2, new SimpleMeterRegistry());
         queueNames = new RabbitQueueNames("");
         dataFlowRequestListener = new DataFlowRequestListener(messageListenerContainerFactory,
                 destinationsConfig,
                 dataFlowClient,
                 dataFlowRepository,
-                decryptor,
+                keyMaterialPool,
                 dataFlowProperties,
                 gateway,
                 dataFlowCache,
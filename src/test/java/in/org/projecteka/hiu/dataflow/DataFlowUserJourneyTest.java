@@ -144,7 +144,7 @@ class DataFlowUserJourneyTest {
                 .thenReturn(Mono.empty());
         when(dataFlowRepository.retrieveDataFlowRequest(transactionId)).thenReturn(Mono.just(flowRequestMap));
         when(dataAvailabilityPublisher.broadcastDataAvailability(any())).thenReturn(Mono.empty());
-        when(localDataStore.serializeDataToFile(any(), any())).thenReturn(Mono.empty());
+        when(localDataStore.store(any(), any(), eq(transactionId), eq(1))).thenReturn(Mono.empty());
 
         webTestClient
                 .post()
@@ -305,6 +305,34 @@ class DataFlowUserJourneyTest {
                 .json(errorResponseJson);
     }
 
+    @Test
+    void shouldThrowBadRequestErrorIfPageNumberIsBeyondPageCount() throws JsonProcessingException {
+        var entry = entry().build();
+        entry.setLink(null);
+        var dataNotificationRequest = DataNotificationRequest.builder()
+                .transactionId("transactionId")
+                .pageNumber(11)
+                .pageCount(10)
+                .entries(List.of(entry))
+                .build();
+        var errorResponse = new ErrorRepresentation(new Error(
+                ErrorCode.INVALID_REQUEST,
+                "Page number must be between 1 and page count."));
+        var errorResponseJson = new ObjectMapper().writeValueAsString(errorResponse);
+
+        webTestClient
+                .post()
+                .uri(Constants.PATH_DATA_TRANSFER)
+                .contentType(APPLICATION_JSON)
+                .bodyValue(dataNotificationRequest)
+                .accept(APPLICATION_JSON)
+                .exchange()
+                .expectStatus()
+                .isBadRequest()
+                .expectBody()
+                .json(errorResponseJson);
+    }
+
     @Test
     void shouldUpdateDataFlowRequest() {
         var token = string();
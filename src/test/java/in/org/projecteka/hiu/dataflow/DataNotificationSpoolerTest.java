@@ -0,0 +1,269 @@
+package in.org.projecteka.hiu.dataflow;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import in.org.projecteka.hiu.ClientError;
+import in.org.projecteka.hiu.common.storage.DeflateStorageCodec;
+import in.org.projecteka.hiu.common.storage.PlainStorageCodec;
+import in.org.projecteka.hiu.common.storage.StorageFiles;
+import in.org.projecteka.hiu.dataflow.model.DataNotificationRequest;
+import in.org.projecteka.hiu.dataflow.model.Entry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static com.fasterxml.jackson.databind.SerializationFeature.WRITE_DATES_AS_TIMESTAMPS;
+import static in.org.projecteka.hiu.dataflow.TestBuilders.entry;
+import static in.org.projecteka.hiu.dataflow.TestBuilders.keyMaterial;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DataNotificationSpoolerTest {
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .registerModule(new JavaTimeModule())
+            .configure(WRITE_DATES_AS_TIMESTAMPS, false);
+    private final DataNotificationSpooler spooler = new DataNotificationSpooler(false, new PlainStorageCodec());
+    private final DataNotificationSpooler rawSpooler = new DataNotificationSpooler(true, new PlainStorageCodec());
+
+    @TempDir
+    Path storage;
+
+    @Test
+    void shouldSpoolBodyReceivedInChunks() throws Exception {
+        var firstEntry = entry().link(null).build();
+        var secondEntry = entry().content(null).build();
+        var dataNotificationRequest = DataNotificationRequest.builder()
+                .transactionId("transactionId")
+                .pageNumber(2)
+                .pageCount(3)
+                .entries(List.of(firstEntry, secondEntry))
+                .keyMaterial(keyMaterial().build())
+                .build();
+        var spoolFile = storage.resolve(".spool").resolve("part.json");
+
+        StepVerifier.create(spooler.spool(chunksOf(objectMapper.writeValueAsBytes(dataNotificationRequest), 7),
+                spoolFile))
+                .assertNext(dataPart -> {
+                    assertThat(dataPart.getTransactionId()).isEqualTo("transactionId");
+                    assertThat(dataPart.getPageNumber()).isEqualTo(2);
+                    assertThat(dataPart.getPageCount()).isEqualTo(3);
+                    assertThat(dataPart.getNumberOfEntries()).isEqualTo(2);
+                    assertThat(dataPart.getSpoolFile()).isEqualTo(spoolFile);
+                })
+                .verifyComplete();
+        assertThat(objectMapper.readValue(spoolFile.toFile(), DataNotificationRequest.class))
+                .isEqualTo(dataNotificationRequest);
+    }
+
+    @Test
+    void shouldSpoolBodyAsReceivedInRawMode() throws Exception {
+        var dataNotificationRequest = DataNotificationRequest.builder()
+                .transactionId("transactionId")
+                .entries(List.of(entry().link(null).build()))
+                .keyMaterial(keyMaterial().build())
+                .build();
+        byte[] body = objectMapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(dataNotificationRequest);
+        var spoolFile = storage.resolve("part.json");
+
+        StepVerifier.create(rawSpooler.spool(chunksOf(body, 5), spoolFile))
+                .assertNext(dataPart -> {
+                    assertThat(dataPart.getTransactionId()).isEqualTo("transactionId");
+                    assertThat(dataPart.getNumberOfEntries()).isEqualTo(1);
+                })
+                .verifyComplete();
+        assertThat(Files.readAllBytes(spoolFile)).isEqualTo(body);
+    }
+
+    @Test
+    void shouldSpoolBodyWithConfiguredCodec() throws Exception {
+        var deflateSpooler = new DataNotificationSpooler(true, new DeflateStorageCodec(Deflater.BEST_SPEED, 64));
+        var dataNotificationRequest = DataNotificationRequest.builder()
+                .transactionId("transactionId")
+                .entries(List.of(entry().link(null).build(), entry().content(null).build()))
+                .keyMaterial(keyMaterial().build())
+                .build();
+        byte[] body = objectMapper.writeValueAsBytes(dataNotificationRequest);
+        var spoolFile = storage.resolve("part.json");
+
+        StepVerifier.create(deflateSpooler.spool(chunksOf(body, 9), spoolFile))
+                .expectNextCount(1)
+                .verifyComplete();
+        assertThat(StorageFiles.isEncoded(spoolFile)).isTrue();
+        try (InputStream stored = StorageFiles.newInputStream(spoolFile)) {
+            assertThat(stored.readAllBytes()).isEqualTo(body);
+        }
+    }
+
+    @Test
+    void shouldHashEntryChecksumsWhateverTheChunking() throws Exception {
+        var dataNotificationRequest = DataNotificationRequest.builder()
+                .transactionId("transactionId")
+                .entries(List.of(entry().link(null).checksum("first").build(),
+                        entry().content(null).checksum("second").build()))
+                .keyMaterial(keyMaterial().build())
+                .build();
+        byte[] body = objectMapper.writeValueAsBytes(dataNotificationRequest);
+
+        var first = rawSpooler.spool(chunksOf(body, 3), storage.resolve("first.json")).block();
+        var second = spooler.spool(chunksOf(body, 11), storage.resolve("second.json")).block();
+
+        assertThat(first.getEntriesChecksum()).isNotNull().isEqualTo(second.getEntriesChecksum());
+    }
+
+    @Test
+    void shouldNotHashEntriesWhenAnEntryHasNoChecksum() throws Exception {
+        var dataNotificationRequest = DataNotificationRequest.builder()
+                .transactionId("transactionId")
+                .entries(List.of(entry().link(null).checksum("first").build(),
+                        entry().content(null).checksum(null).build()))
+                .keyMaterial(keyMaterial().build())
+                .build();
+
+        StepVerifier.create(rawSpooler.spool(chunksOf(objectMapper.writeValueAsBytes(dataNotificationRequest), 8),
+                storage.resolve("part.json")))
+                .assertNext(dataPart -> assertThat(dataPart.getEntriesChecksum()).isNull())
+                .verifyComplete();
+    }
+
+    @Test
+    void shouldReportEntriesWhoseContentDoesNotMatchTheChecksum() throws Exception {
+        var dataNotificationRequest = DataNotificationRequest.builder()
+                .transactionId("transactionId")
+                .entries(List.of(
+                        entry().content("abc").link(null).checksum("900150983cd24fb0d6963f7d28e17f72").build(),
+                        entry().content("abd").link(null).checksum("900150983cd24fb0d6963f7d28e17f72").build(),
+                        entry().content("abc").link(null)
+                                .checksum("sha256:ungWv48Bz+pBQUDeXa4iI7ADYaOWF3qctBD/YfIAFa0=").build(),
+                        entry().content("abc").link(null).checksum("not a checksum").build()))
+                .keyMaterial(keyMaterial().build())
+                .build();
+
+        StepVerifier.create(rawSpooler.spool(chunksOf(objectMapper.writeValueAsBytes(dataNotificationRequest), 4),
+                storage.resolve("part.json")))
+                .assertNext(dataPart -> {
+                    assertThat(dataPart.getNumberOfEntries()).isEqualTo(4);
+                    assertThat(dataPart.getRejectedEntries()).containsExactly(1);
+                })
+                .verifyComplete();
+    }
+
+    @Test
+    void shouldVerifyTheChecksumWhetherItComesBeforeOrAfterTheContent() throws Exception {
+        var content = "\u00e9".repeat(10000);
+        var body = String.format("{\"transactionId\":\"transactionId\",\"entries\":["
+                        + "{\"checksum\":\"900150983cd24fb0d6963f7d28e17f72\",\"content\":\"abd\"},"
+                        + "{\"checksum\":\"sha256:ungWv48Bz+pBQUDeXa4iI7ADYaOWF3qctBD/YfIAFa0=\",\"content\":\"abc\"},"
+                        + "{\"content\":\"%1$s\",\"checksum\":\"%2$s\"},"
+                        + "{\"content\":\"%1$s\",\"checksum\":\"900150983cd24fb0d6963f7d28e17f72\"},"
+                        + "{\"content\":\"%1$s\"}]}",
+                content,
+                "3877d08990923f37e0442507f6aca03d1cc011fc4bb6860762f9cf0db0d13deb")
+                .getBytes(UTF_8);
+
+        StepVerifier.create(rawSpooler.spool(chunksOf(body, 1024), storage.resolve("part.json")))
+                .assertNext(dataPart -> {
+                    assertThat(dataPart.getNumberOfEntries()).isEqualTo(5);
+                    assertThat(dataPart.getRejectedEntries()).containsExactly(0, 3);
+                })
+                .verifyComplete();
+    }
+
+    @Test
+    void shouldRejectInvalidEntryInRawMode() throws Exception {
+        var dataNotificationRequest = DataNotificationRequest.builder()
+                .transactionId("transactionId")
+                .entries(List.of(new Entry()))
+                .build();
+        var spoolFile = storage.resolve("part.json");
+
+        StepVerifier.create(rawSpooler.spool(chunksOf(objectMapper.writeValueAsBytes(dataNotificationRequest), 16),
+                spoolFile))
+                .expectError(ClientError.class)
+                .verify();
+        assertThat(Files.exists(spoolFile)).isFalse();
+    }
+
+    @Test
+    void shouldRejectEntryWithoutContentOrLinkAndDiscardSpoolFile() throws Exception {
+        var dataNotificationRequest = DataNotificationRequest.builder()
+                .transactionId("transactionId")
+                .entries(List.of(entry().build(), Entry.builder().content(" ").build()))
+                .build();
+        var spoolFile = storage.resolve("part.json");
+
+        StepVerifier.create(spooler.spool(chunksOf(objectMapper.writeValueAsBytes(dataNotificationRequest), 16),
+                spoolFile))
+                .expectErrorSatisfies(error -> {
+                    assertThat(error).isInstanceOf(ClientError.class);
+                    assertThat(((ClientError) error).getError().getError().getMessage())
+                            .isEqualTo("Entry must either have content or provide a link.");
+                })
+                .verify();
+        assertThat(Files.exists(spoolFile)).isFalse();
+    }
+
+    @Test
+    void shouldRejectTruncatedBody() throws Exception {
+        var dataNotificationRequest = DataNotificationRequest.builder()
+                .transactionId("transactionId")
+                .entries(List.of(entry().build()))
+                .build();
+        byte[] body = objectMapper.writeValueAsBytes(dataNotificationRequest);
+        var spoolFile = storage.resolve("part.json");
+
+        StepVerifier.create(spooler.spool(chunksOf(Arrays.copyOf(body, body.length / 2), 16), spoolFile))
+                .expectError(ClientError.class)
+                .verify();
+        assertThat(Files.exists(spoolFile)).isFalse();
+    }
+
+    @Test
+    void shouldStopSpoolingWhenObserverRejectsTransfer() throws Exception {
+        var dataNotificationRequest = DataNotificationRequest.builder()
+                .transactionId("transactionId")
+                .entries(List.of(entry().build()))
+                .keyMaterial(keyMaterial().build())
+                .build();
+        var spoolFile = storage.resolve("part.json");
+        List<String> transactionIds = new ArrayList<>();
+        var observer = new DataNotificationSpooler.Observer() {
+            @Override
+            public void onBytesReceived(int bytes) {
+            }
+
+            @Override
+            public Mono<Void> onTransactionId(String transactionId) {
+                transactionIds.add(transactionId);
+                return Mono.error(ClientError.dataTransferThrottled(30));
+            }
+        };
+
+        StepVerifier.create(rawSpooler.spool(chunksOf(objectMapper.writeValueAsBytes(dataNotificationRequest), 16),
+                spoolFile, observer))
+                .expectError(ClientError.class)
+                .verify();
+        assertThat(transactionIds).containsExactly("transactionId");
+        assertThat(Files.exists(spoolFile)).isFalse();
+    }
+
+    private Flux<DataBuffer> chunksOf(byte[] body, int chunkSize) {
+        var bufferFactory = new DefaultDataBufferFactory();
+        List<DataBuffer> chunks = new ArrayList<>();
+        for (int offset = 0; offset < body.length; offset += chunkSize) {
+            chunks.add(bufferFactory.wrap(Arrays.copyOfRange(body, offset, Math.min(body.length, offset + chunkSize))));
+        }
+        return Flux.fromIterable(chunks);
+    }
+}
@@ -0,0 +1,72 @@
+package in.org.projecteka.hiu.dataflow;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import in.org.projecteka.hiu.common.cache.LoadingCacheGenericAdapter;
+import in.org.projecteka.hiu.dataflow.model.SpooledDataPart;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DataPartDeduplicatorTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final DataPartDeduplicator deduplicator = new DataPartDeduplicator(
+            new LoadingCacheGenericAdapter<>(CacheBuilder.newBuilder().build(new CacheLoader<String, String>() {
+                public String load(String key) {
+                    return "";
+                }
+            }), ""),
+            meterRegistry);
+
+    @Test
+    void shouldClaimAPartOnlyOnce() {
+        var dataPart = part("transactionId", "checksum");
+
+        StepVerifier.create(deduplicator.claim(dataPart, 1)).expectNext(true).verifyComplete();
+        StepVerifier.create(deduplicator.claim(dataPart, 1)).expectNext(false).verifyComplete();
+        StepVerifier.create(deduplicator.claim(dataPart, 2)).expectNext(true).verifyComplete();
+        StepVerifier.create(deduplicator.claim(part("transactionId", "changed"), 1)).expectNext(true).verifyComplete();
+        assertThat(meterRegistry.counter("hiu.data.part.duplicates").count()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldLetOnlyOneOfConcurrentPushesOfAPartClaimIt() {
+        var dataPart = part("transactionId", "checksum");
+
+        var claimed = Flux.range(0, 16)
+                .flatMap(push -> deduplicator.claim(dataPart, 1).subscribeOn(Schedulers.parallel()))
+                .filter(Boolean::booleanValue)
+                .count()
+                .block();
+
+        assertThat(claimed).isEqualTo(1);
+        assertThat(meterRegistry.counter("hiu.data.part.duplicates").count()).isEqualTo(15);
+    }
+
+    @Test
+    void shouldClaimAPartAgainAfterItIsReleased() {
+        var dataPart = part("transactionId", "checksum");
+
+        StepVerifier.create(deduplicator.claim(dataPart, 1)
+                .then(deduplicator.release(dataPart, 1))
+                .then(deduplicator.claim(dataPart, 1)))
+                .expectNext(true)
+                .verifyComplete();
+    }
+
+    @Test
+    void shouldAlwaysClaimPartsWithoutEntryChecksums() {
+        var dataPart = part("transactionId", null);
+
+        StepVerifier.create(deduplicator.claim(dataPart, 1)).expectNext(true).verifyComplete();
+        StepVerifier.create(deduplicator.claim(dataPart, 1)).expectNext(true).verifyComplete();
+    }
+
+    private static SpooledDataPart part(String transactionId, String entriesChecksum) {
+        return SpooledDataPart.builder().transactionId(transactionId).entriesChecksum(entriesChecksum).build();
+    }
+}
@@ -0,0 +1,121 @@
+package in.org.projecteka.hiu.dataflow;
+
+import in.org.projecteka.hiu.ClientError;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.QueueInformation;
+import org.springframework.http.HttpStatus;
+import reactor.test.StepVerifier;
+
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+class DataTransferAdmissionTest {
+    private static final String PROCESS_QUEUE = "hiu.dataflow.process";
+
+    @Mock
+    private AmqpAdmin amqpAdmin;
+
+    @TempDir
+    Path storage;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setUp() {
+        initMocks(this);
+        meterRegistry = new SimpleMeterRegistry();
+    }
+
+    @Test
+    void shouldThrottleTransfersBeyondGlobalLimitUntilOneIsReleased() {
+        var admission = admissionWith(new AdmissionProperties(2, 0, 0, 0, 0, 0, 5, 30));
+        var first = admission.admit(0).block();
+        admission.admit(0).block();
+
+        StepVerifier.create(admission.admit(0))
+                .expectErrorSatisfies(error -> {
+                    assertThat(((ClientError) error).getHttpStatus()).isEqualTo(HttpStatus.TOO_MANY_REQUESTS);
+                    assertThat(((ClientError) error).getRetryAfterSeconds()).isEqualTo(30);
+                })
+                .verify();
+        assertThat(rejected(DataTransferAdmission.TRANSFERS)).isEqualTo(1);
+
+        first.release();
+        StepVerifier.create(admission.admit(0)).expectNextCount(1).verifyComplete();
+    }
+
+    @Test
+    void shouldReserveBytesAsTheyAreReceived() throws ClientError {
+        var admission = admissionWith(new AdmissionProperties(0, 100, 0, 0, 0, 0, 5, 30));
+        var first = admission.admit(60).block();
+        var second = admission.admit(0).block();
+
+        first.onBytesReceived(60);
+        second.onBytesReceived(40);
+        assertThatThrownBy(() -> second.onBytesReceived(1)).isInstanceOf(ClientError.class);
+        assertThat(rejected(DataTransferAdmission.BYTES)).isEqualTo(1);
+
+        first.release();
+        second.onBytesReceived(1);
+    }
+
+    @Test
+    void shouldAdmitSingleTransferLargerThanByteLimit() {
+        var admission = admissionWith(new AdmissionProperties(0, 100, 0, 0, 0, 0, 5, 30));
+
+        StepVerifier.create(admission.admit(500)).expectNextCount(1).verifyComplete();
+        StepVerifier.create(admission.admit(1)).expectError(ClientError.class).verify();
+    }
+
+    @Test
+    void shouldThrottleTransfersOfAHipBeyondItsLimit() throws ClientError {
+        var admission = admissionWith(new AdmissionProperties(0, 0, 1, 0, 0, 0, 5, 30));
+        var first = admission.admit(0).block();
+        var second = admission.admit(0).block();
+        var third = admission.admit(0).block();
+
+        first.assignHip("hip-1");
+        third.assignHip("hip-2");
+        assertThatThrownBy(() -> second.assignHip("hip-1")).isInstanceOf(ClientError.class);
+        assertThat(rejected(DataTransferAdmission.HIP_TRANSFERS)).isEqualTo(1);
+
+        first.release();
+        second.assignHip("hip-1");
+    }
+
+    @Test
+    void shouldRejectTransfersWhileProcessQueueIsAboveWatermark() {
+        var admission = admissionWith(new AdmissionProperties(0, 0, 0, 0, 10, 0, 5, 15));
+        when(amqpAdmin.getQueueInfo(PROCESS_QUEUE)).thenReturn(new QueueInformation(PROCESS_QUEUE, 10, 1));
+        admission.refreshWatermarks();
+
+        StepVerifier.create(admission.admit(0))
+                .expectErrorSatisfies(error -> {
+                    assertThat(((ClientError) error).getHttpStatus()).isEqualTo(HttpStatus.SERVICE_UNAVAILABLE);
+                    assertThat(((ClientError) error).getRetryAfterSeconds()).isEqualTo(15);
+                })
+                .verify();
+        assertThat(rejected(DataTransferAdmission.QUEUE_DEPTH)).isEqualTo(1);
+
+        when(amqpAdmin.getQueueInfo(PROCESS_QUEUE)).thenReturn(new QueueInformation(PROCESS_QUEUE, 9, 1));
+        admission.refreshWatermarks();
+        StepVerifier.create(admission.admit(0)).expectNextCount(1).verifyComplete();
+    }
+
+    private DataTransferAdmission admissionWith(AdmissionProperties properties) {
+        return new DataTransferAdmission(properties, amqpAdmin, PROCESS_QUEUE, storage, meterRegistry);
+    }
+
+    private double rejected(String reason) {
+        return meterRegistry.counter(DataTransferAdmission.REJECTED_TRANSFERS, "reason", reason).count();
+    }
+}
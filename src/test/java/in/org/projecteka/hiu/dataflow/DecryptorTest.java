@@ -3,18 +3,25 @@ package in.org.projecteka.hiu.dataflow;
 import in.org.projecteka.hiu.dataflow.model.DataFlowRequestKeyMaterial;
 import in.org.projecteka.hiu.dataflow.model.KeyMaterial;
 import in.org.projecteka.hiu.dataflow.model.KeyStructure;
+import org.bouncycastle.crypto.io.InvalidCipherTextIOException;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.Security;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 public class DecryptorTest {
+    private static final String ENCRYPTED_STRING = "cMTT+FiiDMVXdK1nbBXmnNXP2doSbWQ11Sl8rs1d5SzVDA==";
+    private static final String SENDER_PUBLIC_KEY = "MIIBMTCB6gYHKoZIzj0CATCB3gIBATArBgcqhkjOPQEBAiB/////////////////////////////////////////7TBEBCAqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqYSRShRAQge0Je0Je0Je0Je0Je0Je0Je0Je0Je0Je0JgtenHcQyGQEQQQqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqqq0kWiCuGaG4oIa04B7dLHdI0UySPU1+bXxhsinpxaJ+ztPZAiAQAAAAAAAAAAAAAAAAAAAAFN753qL3nNZYEmMaXPXT7QIBCANCAARfpkcbh0Y6Z1xcck4D2pNKLQ2DwLOxI9bO2sy8zlbJ4391xJpwYNG2STnmP9cwz0+V74B3mbcykl5J1gsXtNe+";
+
     private Decryptor decryptor;
 
     @BeforeEach
@@ -62,5 +69,50 @@ public class DecryptorTest {
                 .isEqualTo("\"This is a string\"");
     }
 
+    @Test
+    public void shouldDecryptEntriesOfATransactionWithTheKeyDerivedOnce() throws Exception {
+        assertThat(decryptor.decrypt("transactionId", receivedKeyMaterial(), savedKeyMaterial(), ENCRYPTED_STRING))
+                .isEqualTo("\"This is a string\"");
+        assertThat(decryptor.decrypt("transactionId", receivedKeyMaterial(), savedKeyMaterial(), ENCRYPTED_STRING))
+                .isEqualTo("\"This is a string\"");
+        decryptor.forget("transactionId");
+        assertThat(decryptor.decrypt("transactionId", receivedKeyMaterial(), savedKeyMaterial(), ENCRYPTED_STRING))
+                .isEqualTo("\"This is a string\"");
+    }
+
+    @Test
+    public void shouldDecryptDataAsItIsRead() throws Exception {
+        try (InputStream decrypted = decryptor.decryptStream("transactionId",
+                receivedKeyMaterial(),
+                savedKeyMaterial(),
+                ENCRYPTED_STRING)) {
+            assertThat(new String(decrypted.readAllBytes(), StandardCharsets.UTF_8))
+                    .isEqualTo("\"This is a string\"");
+        }
+    }
 
+    @Test
+    public void shouldFailTheReadOfTamperedDataAtItsEnd() throws Exception {
+        String tampered = "d" + ENCRYPTED_STRING.substring(1);
+        try (InputStream decrypted = decryptor.decryptStream("transactionId",
+                receivedKeyMaterial(),
+                savedKeyMaterial(),
+                tampered)) {
+            assertThatThrownBy(decrypted::readAllBytes).isInstanceOf(InvalidCipherTextIOException.class);
+        }
+    }
+
+    private static KeyMaterial receivedKeyMaterial() {
+        return KeyMaterial.builder()
+                .dhPublicKey(KeyStructure.builder().keyValue(SENDER_PUBLIC_KEY).build())
+                .nonce("xXrM6PfCsBX0Q238uxZCP8YBpPXxsiZvbE++jX5GV5c=")
+                .build();
+    }
+
+    private static DataFlowRequestKeyMaterial savedKeyMaterial() {
+        return DataFlowRequestKeyMaterial.builder()
+                .randomKey("pk5xT1Xk+KUlf/LC1LZawKECPNvOvIzhZNEyIdh7oJE=")
+                .privateKey("DrDDUf+HIXB59/ym4GxrM/TfeULHyiUVzHWkq9rFkJI=")
+                .build();
+    }
 }
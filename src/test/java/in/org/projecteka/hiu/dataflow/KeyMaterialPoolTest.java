@@ -0,0 +1,66 @@
+package in.org.projecteka.hiu.dataflow;
+
+import in.org.projecteka.hiu.dataflow.model.DataFlowRequestKeyMaterial;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class KeyMaterialPoolTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final Decryptor decryptor = new Decryptor();
+
+    @Test
+    void shouldRefillUpToTheHighWatermark() throws Exception {
+        var keyMaterialPool = new KeyMaterialPool(decryptor, 2, 4, meterRegistry);
+
+        keyMaterialPool.start();
+
+        awaitPoolSize(4);
+        keyMaterialPool.take();
+        keyMaterialPool.take();
+        keyMaterialPool.take();
+        awaitPoolSize(4);
+        assertThat(meterRegistry.counter("hiu.key.material.pool.misses").count()).isZero();
+        keyMaterialPool.stop();
+    }
+
+    @Test
+    void shouldNeverHandOutTheSameKeyMaterialTwice() throws Exception {
+        var keyMaterialPool = new KeyMaterialPool(decryptor, 2, 4, meterRegistry);
+        keyMaterialPool.start();
+        Set<String> privateKeys = new HashSet<>();
+
+        for (int i = 0; i < 10; i++) {
+            DataFlowRequestKeyMaterial keyMaterial = keyMaterialPool.take();
+            assertThat(privateKeys.add(keyMaterial.getPrivateKey())).isTrue();
+        }
+        keyMaterialPool.stop();
+    }
+
+    @Test
+    void shouldGenerateKeyMaterialWhenThePoolIsEmpty() throws Exception {
+        var keyMaterialPool = new KeyMaterialPool(decryptor, 0, 0, meterRegistry);
+
+        DataFlowRequestKeyMaterial keyMaterial = keyMaterialPool.take();
+
+        assertThat(keyMaterial.getPrivateKey()).isNotBlank();
+        assertThat(keyMaterial.getPublicKey()).isNotBlank();
+        assertThat(keyMaterial.getRandomKey()).isNotBlank();
+        assertThat(meterRegistry.counter("hiu.key.material.pool.misses").count()).isEqualTo(1);
+    }
+
+    private void awaitPoolSize(int size) throws InterruptedException {
+        for (int attempt = 0; attempt < 100 && poolSize() < size; attempt++) {
+            Thread.sleep(50);
+        }
+        assertThat(poolSize()).isEqualTo(size);
+    }
+
+    private double poolSize() {
+        return meterRegistry.get("hiu.key.material.pool.size").gauge().value();
+    }
+}
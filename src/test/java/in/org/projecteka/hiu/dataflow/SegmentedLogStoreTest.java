@@ -0,0 +1,118 @@
+package in.org.projecteka.hiu.dataflow;
+
+import in.org.projecteka.hiu.dataflow.model.SegmentReference;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SegmentedLogStoreTest {
+    private SpoolWriter spoolWriter;
+    private SegmentedLogStore store;
+
+    @TempDir
+    Path storage;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        spoolWriter = new SpoolWriter(Duration.ZERO, 16, new SimpleMeterRegistry());
+        spoolWriter.start();
+        store = newStore();
+        store.start();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        store.stop();
+        spoolWriter.stop();
+    }
+
+    @Test
+    void shouldAppendPartsAndReadThemBack() throws IOException {
+        var first = store.store(spool("{\"part\":1}"), storage.resolve("txn_1.json"), "txn", 1).block();
+        var second = store.store(spool("{\"part\":2}"), storage.resolve("txn_2.json"), "txn", 2).block();
+
+        assertThat(second.getOffset()).isEqualTo(first.getOffset() + first.getLength());
+        assertThat(read("txn", 1, first)).isEqualTo("{\"part\":1}");
+        assertThat(read("txn", 2, second)).isEqualTo("{\"part\":2}");
+        assertThat(SegmentReference.parse(second.toString())).isEqualTo(second);
+        try (Stream<Path> spooled = Files.list(storage.resolve(".spool"))) {
+            assertThat(spooled).isEmpty();
+        }
+    }
+
+    @Test
+    void shouldRecoverIndexWithTombstonesOnRestart() throws IOException {
+        store.store(spool("{\"part\":1}"), storage.resolve("a_1.json"), "a", 1).block();
+        store.store(spool("{\"part\":1}"), storage.resolve("b_1.json"), "b", 1).block();
+        store.deleteTransaction("a", storage.resolve("a"));
+
+        store.stop();
+        store = newStore();
+        store.start();
+
+        assertThatThrownBy(() -> store.open("a", 1, null)).isInstanceOf(NoSuchFileException.class);
+        assertThat(read("b", 1, null)).isEqualTo("{\"part\":1}");
+    }
+
+    @Test
+    void shouldCompactSegmentsHoldingMostlyDeletedParts() throws IOException {
+        store.store(spool("{\"deleted\":true}"), storage.resolve("a_1.json"), "a", 1).block();
+        var keptPart = store.store(spool("{\"kept\":true}"), storage.resolve("b_1.json"), "b", 1).block();
+        var deletedPart = store.store(spool("{\"deleted\":true}"), storage.resolve("c_1.json"), "c", 1).block();
+        store.deleteTransaction("a", storage.resolve("a"));
+        store.deleteTransaction("c", storage.resolve("c"));
+        store.store(spool("{\"later\":true}"), storage.resolve("d_1.json"), "d", 1).block();
+
+        store.compact();
+
+        assertThat(Files.exists(segments().resolve(String.format("segment-%020d.log", deletedPart.getSegment()))))
+                .isFalse();
+        assertThat(read("b", 1, keptPart)).isEqualTo("{\"kept\":true}");
+        assertThat(read("d", 1, null)).isEqualTo("{\"later\":true}");
+
+        store.stop();
+        store = newStore();
+        store.start();
+        assertThat(read("b", 1, null)).isEqualTo("{\"kept\":true}");
+    }
+
+    @Test
+    void shouldNotStartASecondInstanceOnTheSameDirectory() {
+        var secondInstance = newStore();
+
+        assertThatThrownBy(secondInstance::start).isInstanceOf(IllegalStateException.class);
+    }
+
+    private SegmentedLogStore newStore() {
+        return new SegmentedLogStore(segments(), 32, 0.5, Duration.ZERO, spoolWriter, new LocalDataStore(spoolWriter));
+    }
+
+    private Path segments() {
+        return storage.resolve(".segments");
+    }
+
+    private Path spool(String content) throws IOException {
+        Path spoolFile = storage.resolve(".spool").resolve(System.nanoTime() + ".json");
+        Files.createDirectories(spoolFile.getParent());
+        return Files.writeString(spoolFile, content);
+    }
+
+    private String read(String transactionId, int partNumber, SegmentReference reference) throws IOException {
+        try (InputStream in = store.open(transactionId, partNumber, reference)) {
+            return new String(in.readAllBytes());
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package in.org.projecteka.hiu.dataflow;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SpoolWriterTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private SpoolWriter spoolWriter;
+
+    @TempDir
+    Path storage;
+
+    @BeforeEach
+    void setUp() {
+        spoolWriter = new SpoolWriter(Duration.ofMillis(50), 64, meterRegistry);
+        spoolWriter.start();
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        spoolWriter.stop();
+    }
+
+    @Test
+    void shouldCommitConcurrentFilesInSharedFlushes() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            Files.writeString(storage.resolve(i + ".json"), "{}");
+        }
+
+        StepVerifier.create(Flux.range(0, 10).flatMap(i -> spoolWriter.commit(storage.resolve(i + ".json"))))
+                .verifyComplete();
+
+        var batchSize = meterRegistry.summary("hiu.spool.commit.batch.size");
+        assertThat(batchSize.totalAmount()).isEqualTo(10);
+        assertThat(batchSize.count()).isLessThan(10);
+        assertThat(meterRegistry.timer("hiu.spool.commit.queue.latency").count()).isEqualTo(10);
+    }
+
+    @Test
+    void shouldFailOnlyTheCommitOfAMissingFile() throws IOException {
+        Files.writeString(storage.resolve("present.json"), "{}");
+
+        StepVerifier.create(spoolWriter.commit(storage.resolve("missing.json")))
+                .expectError(NoSuchFileException.class)
+                .verify();
+        StepVerifier.create(spoolWriter.commit(storage.resolve("present.json")))
+                .verifyComplete();
+    }
+
+    @Test
+    void shouldCommitTheContentOfAFileApartFromItsDirectory() throws IOException {
+        Files.writeString(storage.resolve("part.json"), "{}");
+
+        StepVerifier.create(spoolWriter.commitContent(storage.resolve("part.json"))
+                .then(spoolWriter.commitDirectory(storage)))
+                .verifyComplete();
+        StepVerifier.create(spoolWriter.commitDirectory(storage.resolve("missing")))
+                .expectError(NoSuchFileException.class)
+                .verify();
+        assertThat(meterRegistry.summary("hiu.spool.commit.batch.size").totalAmount()).isEqualTo(3);
+    }
+
+    @Test
+    void shouldRejectCommitsAfterStop() throws Exception {
+        Files.writeString(storage.resolve("part.json"), "{}");
+        spoolWriter.stop();
+
+        StepVerifier.create(spoolWriter.commit(storage.resolve("part.json")))
+                .expectError(IllegalStateException.class)
+                .verify();
+    }
+}
@@ -0,0 +1,70 @@
+package in.org.projecteka.hiu.dataflow;
+
+import in.org.projecteka.hiu.dataflow.model.TransactionContext;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+
+import static in.org.projecteka.hiu.dataflow.TestBuilders.dataFlowRequestKeyMaterial;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+class TransactionContextsTest {
+    @Mock
+    private DataFlowRepository dataFlowRepository;
+
+    private TransactionContexts transactionContexts;
+
+    @BeforeEach
+    void setUp() {
+        initMocks(this);
+        transactionContexts = new TransactionContexts(dataFlowRepository, 10, Duration.ofMinutes(1));
+    }
+
+    @Test
+    void shouldReadACompleteContextOnce() {
+        var context = contextBuilder().keyMaterial(dataFlowRequestKeyMaterial().build()).build();
+        when(dataFlowRepository.getTransactionContext("transactionId")).thenReturn(Mono.just(context));
+
+        StepVerifier.create(transactionContexts.get("transactionId")).expectNext(context).verifyComplete();
+        StepVerifier.create(transactionContexts.get("transactionId")).expectNext(context).verifyComplete();
+
+        verify(dataFlowRepository, times(1)).getTransactionContext("transactionId");
+    }
+
+    @Test
+    void shouldReadTheContextAgainUntilTheKeysAreAdded() {
+        var context = contextBuilder().build();
+        when(dataFlowRepository.getTransactionContext("transactionId")).thenReturn(Mono.just(context));
+
+        StepVerifier.create(transactionContexts.get("transactionId")).expectNext(context).verifyComplete();
+        StepVerifier.create(transactionContexts.get("transactionId")).expectNext(context).verifyComplete();
+
+        verify(dataFlowRepository, times(2)).getTransactionContext("transactionId");
+    }
+
+    @Test
+    void shouldKeepTheContextLoadedOnceTheKeysAreAdded() {
+        var context = contextBuilder().keyMaterial(dataFlowRequestKeyMaterial().build()).build();
+        when(dataFlowRepository.getTransactionContext("transactionId")).thenReturn(Mono.just(context));
+
+        StepVerifier.create(transactionContexts.load("transactionId")).expectNext(context).verifyComplete();
+        StepVerifier.create(transactionContexts.get("transactionId")).expectNext(context).verifyComplete();
+
+        verify(dataFlowRepository, times(1)).getTransactionContext("transactionId");
+    }
+
+    private static TransactionContext.TransactionContextBuilder contextBuilder() {
+        return TransactionContext.builder()
+                .transactionId("transactionId")
+                .consentId("consentId")
+                .hipId("hipId")
+                .consentManagerId("ncg");
+    }
+}
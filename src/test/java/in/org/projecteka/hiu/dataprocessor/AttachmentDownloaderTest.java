@@ -0,0 +1,171 @@
+package in.org.projecteka.hiu.dataprocessor;
+
+import in.org.projecteka.hiu.common.storage.DeflateStorageCodec;
+import in.org.projecteka.hiu.common.storage.PlainStorageCodec;
+import in.org.projecteka.hiu.common.storage.StorageFiles;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AttachmentDownloaderTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final AttachmentDownloadProperties properties = new AttachmentDownloadProperties();
+    private MockWebServer server;
+    private AttachmentDownloader downloader;
+
+    @TempDir
+    Path localStoragePath;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        properties.setRetryBackoffMillis(10);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException, InterruptedException {
+        if (downloader != null) {
+            downloader.stop();
+        }
+        server.shutdown();
+    }
+
+    @Test
+    void shouldStoreTheDownloadedAttachmentWithTheStorageCodec() throws IOException {
+        downloader = new AttachmentDownloader(properties, meterRegistry);
+        server.enqueue(new MockResponse().setBody("report"));
+        var download = download("report.pdf");
+
+        var downloaded = downloader.downloadAll(List.of(download),
+                new DeflateStorageCodec(Deflater.DEFAULT_COMPRESSION));
+
+        assertThat(downloaded).containsExactly(download);
+        assertThat(read(download.getTarget())).isEqualTo("report");
+        assertThat(StorageFiles.isEncoded(download.getTarget())).isTrue();
+        assertThat(localStoragePath.resolve("report.pdf.part")).doesNotExist();
+        assertThat(meterRegistry.get("hiu.attachment.download").tag("outcome", "succeeded").timer().count())
+                .isEqualTo(1);
+        assertThat(meterRegistry.get("hiu.attachment.download.size").summary().totalAmount()).isEqualTo(6);
+    }
+
+    @Test
+    void shouldCarryOnWithATransferBrokenOffMidway() throws IOException {
+        downloader = new AttachmentDownloader(properties, meterRegistry);
+        String content = "0123456789".repeat(50_000);
+        AtomicInteger requests = new AtomicInteger();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if (requests.getAndIncrement() == 0) {
+                    return new MockResponse().setBody(content)
+                            .setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY);
+                }
+                String range = request.getHeader("Range");
+                if (range == null) {
+                    return new MockResponse().setBody(content);
+                }
+                int from = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+                return new MockResponse().setResponseCode(206)
+                        .setHeader("Content-Range",
+                                String.format("bytes %d-%d/%d", from, content.length() - 1, content.length()))
+                        .setBody(content.substring(from));
+            }
+        });
+        var download = download("image.dcm");
+
+        var downloaded = downloader.downloadAll(List.of(download), new PlainStorageCodec());
+
+        assertThat(downloaded).containsExactly(download);
+        assertThat(read(download.getTarget())).isEqualTo(content);
+        assertThat(requests.get()).isEqualTo(2);
+        assertThat(meterRegistry.get("hiu.attachment.download.retries").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldRefuseAnAttachmentLargerThanTheLimit() {
+        properties.setMaxBytes(10);
+        downloader = new AttachmentDownloader(properties, meterRegistry);
+        server.enqueue(new MockResponse().setBody("a report longer than ten bytes"));
+        var download = download("report.pdf");
+
+        var downloaded = downloader.downloadAll(List.of(download), new PlainStorageCodec());
+
+        assertThat(downloaded).isEmpty();
+        assertThat(download.getTarget()).doesNotExist();
+        assertThat(localStoragePath.resolve("report.pdf.part")).doesNotExist();
+        assertThat(server.getRequestCount()).isEqualTo(1);
+        assertThat(meterRegistry.get("hiu.attachment.download").tag("outcome", "failed").timer().count())
+                .isEqualTo(1);
+    }
+
+    @Test
+    void shouldNotTryAgainWhenTheAttachmentIsNotFound() {
+        downloader = new AttachmentDownloader(properties, meterRegistry);
+        server.enqueue(new MockResponse().setResponseCode(404));
+        server.enqueue(new MockResponse().setBody("report"));
+
+        var downloaded = downloader.downloadAll(List.of(download("report.pdf")), new PlainStorageCodec());
+
+        assertThat(downloaded).isEmpty();
+        assertThat(server.getRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldDownloadAllAttachmentsWithinTheLimitPerHost() throws IOException {
+        properties.setMaxConcurrentDownloadsPerHost(2);
+        properties.setMaxParallelDownloadsPerBundle(6);
+        downloader = new AttachmentDownloader(properties, meterRegistry);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                Thread.sleep(50);
+                inFlight.decrementAndGet();
+                return new MockResponse().setBody(request.getPath());
+            }
+        });
+        var downloads = IntStream.range(0, 6)
+                .mapToObj(i -> new AttachmentDownloader.Download(server.url("/image/" + i).uri(),
+                        localStoragePath.resolve(i + ".jpeg")))
+                .collect(Collectors.toList());
+
+        var downloaded = downloader.downloadAll(downloads, new PlainStorageCodec());
+
+        assertThat(downloaded).containsExactlyElementsOf(downloads);
+        assertThat(read(downloads.get(3).getTarget())).isEqualTo("/image/3");
+        assertThat(maxInFlight.get()).isBetween(1, 2);
+    }
+
+    private AttachmentDownloader.Download download(String fileName) {
+        return new AttachmentDownloader.Download(server.url("/attachments/" + fileName).uri(),
+                localStoragePath.resolve(fileName));
+    }
+
+    private static String read(Path path) throws IOException {
+        try (InputStream in = StorageFiles.newInputStream(path)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package in.org.projecteka.hiu.dataprocessor;
+
+import in.org.projecteka.hiu.HiuProperties;
+import in.org.projecteka.hiu.clients.HealthInformationClient;
+import in.org.projecteka.hiu.common.Gateway;
+import in.org.projecteka.hiu.common.storage.PlainStorageCodec;
+import in.org.projecteka.hiu.dataflow.DataAvailabilityPublisher;
+import in.org.projecteka.hiu.dataflow.DataFlowRepository;
+import in.org.projecteka.hiu.dataflow.DataPartDeduplicator;
+import in.org.projecteka.hiu.dataflow.DataPartStore;
+import in.org.projecteka.hiu.dataflow.Decryptor;
+import in.org.projecteka.hiu.dataflow.TransactionContexts;
+import in.org.projecteka.hiu.dataprocessor.model.DataAvailableMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import reactor.core.publisher.Mono;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+class DataPartProcessorTest {
+    @Mock
+    private HealthDataRepository healthDataRepository;
+    @Mock
+    private DataFlowRepository dataFlowRepository;
+    @Mock
+    private HealthInformationClient healthInformationClient;
+    @Mock
+    private Gateway gateway;
+    @Mock
+    private HiuProperties hiuProperties;
+    @Mock
+    private TransactionContexts transactionContexts;
+    @Mock
+    private DataPartStore dataPartStore;
+    @Mock
+    private DataPartDeduplicator dataPartDeduplicator;
+    @Mock
+    private DataAvailabilityPublisher dataAvailabilityPublisher;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setUp() {
+        initMocks(this);
+        meterRegistry = new SimpleMeterRegistry();
+        when(dataAvailabilityPublisher.broadcastDataAvailability(any())).thenReturn(Mono.empty());
+        when(dataFlowRepository.getStatusesOfDataPart(any(), any())).thenReturn(Mono.just(List.of()));
+    }
+
+    @Test
+    void shouldLeavePartsAboveThresholdToTheQueue() {
+        var processor = processorWith(1024);
+        var message = new DataAvailableMessage("transactionId", "/tmp/transactionId_1.json", "1");
+
+        assertThat(processor.tryProcessInline(message, Map.of(), 2048)).isFalse();
+        assertThat(dispatched("queue")).isEqualTo(1);
+
+        assertThat(processor.tryProcessInline(message, Map.of(), 512)).isTrue();
+    }
+
+    @Test
+    void shouldSendAPartThatFailsInlineToTheProcessQueue() {
+        var processor = processorWith(1024);
+        var message = new DataAvailableMessage("transactionId", "/tmp/missing/transactionId_1.json", "1");
+        var contentRef = Map.of("transactionId", "transactionId", "partNumber", "1");
+
+        assertThat(processor.tryProcessInline(message, contentRef, 512)).isTrue();
+
+        verify(dataAvailabilityPublisher, timeout(5000)).broadcastDataAvailability(contentRef);
+        assertThat(dispatched("inline")).isZero();
+    }
+
+    @Test
+    void shouldSendAPartStillInProgressToTheProcessQueueOnStop() throws IOException {
+        var processor = processorWith(1024);
+        var message = new DataAvailableMessage("transactionId", "/tmp/transactionId", "1", 1, "1:0:30", null, null);
+        var contentRef = Map.of("transactionId", "transactionId", "partNumber", "1");
+        when(dataPartStore.open(eq("transactionId"), eq(1), any())).thenReturn(new ByteArrayInputStream(
+                "{\"transactionId\":\"transactionId\"}".getBytes(StandardCharsets.UTF_8)));
+        when(transactionContexts.get("transactionId")).thenReturn(Mono.never());
+        assertThat(processor.tryProcessInline(message, contentRef, 512)).isTrue();
+
+        processor.stop();
+
+        verify(dataAvailabilityPublisher).broadcastDataAvailability(contentRef);
+        assertThat(processor.tryProcessInline(message, contentRef, 512)).isFalse();
+        assertThat(dispatched("inline")).isZero();
+    }
+
+    @Test
+    void shouldNotProcessInlineWhenThresholdIsNotSet() {
+        var processor = processorWith(0);
+
+        assertThat(processor.tryProcessInline(new DataAvailableMessage("transactionId", "path", "1"), Map.of(), 1))
+                .isFalse();
+    }
+
+    private DataPartProcessor processorWith(long thresholdBytes) {
+        return new DataPartProcessor(healthDataRepository,
+                dataFlowRepository,
+                new Decryptor(),
+                new ResourceProcessorRegistry(List.of(), meterRegistry),
+                healthInformationClient,
+                gateway,
+                hiuProperties,
+                transactionContexts,
+                new PlainStorageCodec(),
+                new AttachmentDownloader(new AttachmentDownloadProperties(), meterRegistry),
+                dataPartStore,
+                dataPartDeduplicator,
+                new FhirParsingEngine(1),
+                new EntryProcessingPool(1, meterRegistry),
+                0,
+                true,
+                dataAvailabilityPublisher,
+                thresholdBytes,
+                1,
+                meterRegistry);
+    }
+
+    private double dispatched(String path) {
+        return meterRegistry.counter("hiu.data.part.dispatched", "path", path).count();
+    }
+}
@@ -0,0 +1,65 @@
+package in.org.projecteka.hiu.dataprocessor;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.MDC;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+import reactor.util.context.Context;
+
+import java.time.Duration;
+import java.util.List;
+
+import static in.org.projecteka.hiu.common.Constants.CORRELATION_ID;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EntryProcessingPoolTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final EntryProcessingPool entryProcessingPool = new EntryProcessingPool(4, meterRegistry);
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        entryProcessingPool.stop();
+    }
+
+    @Test
+    void shouldReturnResultsInEntryOrder() {
+        StepVerifier.create(entryProcessingPool.map(List.of(40, 10, 30, 0),
+                delay -> Mono.just(delay).delayElement(Duration.ofMillis(delay))))
+                .expectNext(40, 10, 30, 0)
+                .verifyComplete();
+
+        assertThat(meterRegistry.timer("hiu.data.entry.processing").count()).isEqualTo(4);
+    }
+
+    @Test
+    void shouldFailWithTheErrorOfAFailedEntry() {
+        StepVerifier.create(entryProcessingPool.map(List.of("valid", "invalid"),
+                entry -> entry.equals("invalid")
+                         ? Mono.<String>error(new IllegalArgumentException(entry))
+                         : Mono.just(entry)))
+                .expectNext("valid")
+                .expectErrorMessage("invalid")
+                .verify();
+    }
+
+    @Test
+    void shouldRunTasksOnThePoolWithTheCorrelationId() {
+        var task = entryProcessingPool.run(() -> Thread.currentThread().getName() + ":" + MDC.get(CORRELATION_ID));
+
+        StepVerifier.create(task.contextWrite(Context.of(CORRELATION_ID, "correlation")))
+                .assertNext(result -> assertThat(result).startsWith("data-entry-").endsWith(":correlation"))
+                .verifyComplete();
+    }
+
+    @Test
+    void shouldRunBlockingTasksOffThePoolWithTheCorrelationId() {
+        var task = entryProcessingPool.runBlocking(() ->
+                Thread.currentThread().getName() + ":" + MDC.get(CORRELATION_ID));
+
+        StepVerifier.create(task.contextWrite(Context.of(CORRELATION_ID, "correlation")))
+                .assertNext(result -> assertThat(result).startsWith("boundedElastic-").endsWith(":correlation"))
+                .verifyComplete();
+    }
+}
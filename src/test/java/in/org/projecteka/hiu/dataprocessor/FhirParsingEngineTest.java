@@ -0,0 +1,57 @@
+package in.org.projecteka.hiu.dataprocessor;
+
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.junit.jupiter.api.Test;
+
+import static in.org.projecteka.hiu.dataprocessor.HealthDataProcessor.MEDIA_APPLICATION_FHIR_JSON;
+import static in.org.projecteka.hiu.dataprocessor.HealthDataProcessor.MEDIA_APPLICATION_FHIR_XML;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FhirParsingEngineTest {
+    private final FhirParsingEngine fhirParsingEngine = new FhirParsingEngine(1);
+
+    @Test
+    void shouldBeReadyOnceWarmedUp() {
+        assertThat(fhirParsingEngine.isReady()).isFalse();
+
+        fhirParsingEngine.warmUp();
+
+        assertThat(fhirParsingEngine.isReady()).isTrue();
+    }
+
+    @Test
+    void shouldReuseReturnedParsers() {
+        FhirParsingEngine.Lease first = fhirParsingEngine.lease(MEDIA_APPLICATION_FHIR_JSON).orElseThrow();
+        FhirParsingEngine.Lease second = fhirParsingEngine.lease(MEDIA_APPLICATION_FHIR_JSON).orElseThrow();
+        assertThat(second.getParser()).isNotSameAs(first.getParser());
+        first.close();
+        second.close();
+
+        try (FhirParsingEngine.Lease reused = fhirParsingEngine.lease(MEDIA_APPLICATION_FHIR_JSON).orElseThrow()) {
+            assertThat(reused.getParser()).isSameAs(first.getParser());
+        }
+    }
+
+    @Test
+    void shouldNotLeaseParsersForOtherMediaTypes() {
+        assertThat(fhirParsingEngine.lease(MEDIA_APPLICATION_FHIR_XML.toUpperCase())).isPresent();
+        assertThat(fhirParsingEngine.lease("text/plain")).isEmpty();
+    }
+
+    @Test
+    void shouldTellBundlesLinkingAttachmentsApart() {
+        var report = new DiagnosticReport();
+        report.addPresentedForm(new Attachment().setContentType("application/pdf").setData(new byte[]{1}));
+        var bundle = new Bundle().setType(Bundle.BundleType.COLLECTION);
+        bundle.addEntry().setResource(report);
+
+        assertThat(fhirParsingEngine.hasLinkedAttachments(bundle)).isFalse();
+
+        report.addPresentedForm(new Attachment().setContentType("application/pdf")
+                .setUrl(" HTTPS://hip.example/report.pdf"));
+
+        assertThat(fhirParsingEngine.hasLinkedAttachments(bundle)).isTrue();
+    }
+}
@@ -5,23 +5,40 @@ import in.org.projecteka.hiu.HiuProperties;
 import in.org.projecteka.hiu.LocalDicomServerProperties;
 import in.org.projecteka.hiu.clients.HealthInformationClient;
 import in.org.projecteka.hiu.common.Gateway;
-import in.org.projecteka.hiu.consent.ConsentRepository;
+import in.org.projecteka.hiu.common.storage.PlainStorageCodec;
 import in.org.projecteka.hiu.dataflow.DataFlowRepository;
+import in.org.projecteka.hiu.dataflow.DataPartDeduplicator;
+import in.org.projecteka.hiu.dataflow.DataPartStore;
 import in.org.projecteka.hiu.dataflow.Decryptor;
+import in.org.projecteka.hiu.dataflow.TransactionContexts;
+import in.org.projecteka.hiu.dataflow.model.DataFlowRequestKeyMaterial;
 import in.org.projecteka.hiu.dataflow.model.DataNotificationRequest;
 import in.org.projecteka.hiu.dataflow.model.HealthInfoStatus;
+import in.org.projecteka.hiu.dataflow.model.TransactionContext;
 import in.org.projecteka.hiu.dataprocessor.model.DataAvailableMessage;
 import in.org.projecteka.hiu.dataprocessor.model.DataContext;
+import in.org.projecteka.hiu.dataprocessor.model.EntryStatus;
+import in.org.projecteka.hiu.dataprocessor.model.HealthInformationRecord;
+import in.org.projecteka.hiu.dataprocessor.model.NotificationOutboxEntry;
+import in.org.projecteka.hiu.dataprocessor.model.SessionStatus;
 import in.org.projecteka.hiu.dicomweb.OrthancDicomWebServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.ResourceType;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentMatcher;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -29,11 +46,17 @@ import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import static in.org.projecteka.hiu.dataflow.TestBuilders.dataFlowRequestKeyMaterial;
 import static in.org.projecteka.hiu.dataprocessor.TestBuilders.string;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -58,7 +81,18 @@ class HealthDataProcessorTest {
     private HiuProperties hiuProperties;
 
     @Mock
-    private ConsentRepository consentRepository;
+    private TransactionContexts transactionContexts;
+
+    @Mock
+    private DataPartStore dataPartStore;
+
+    @Mock
+    private DataPartDeduplicator dataPartDeduplicator;
+
+    private static final FhirParsingEngine fhirParsingEngine = new FhirParsingEngine(1);
+    private static final EntryProcessingPool entryProcessingPool = new EntryProcessingPool(2, new SimpleMeterRegistry());
+    private static final AttachmentDownloader attachmentDownloader =
+            new AttachmentDownloader(new AttachmentDownloadProperties(), new SimpleMeterRegistry());
 
     @AfterAll
     public static void cleanUp() throws IOException {
@@ -86,6 +120,9 @@ class HealthDataProcessorTest {
     @BeforeEach
     public void setUp() {
         MockitoAnnotations.initMocks(this);
+        when(dataPartDeduplicator.release(any(), anyInt(), any())).thenReturn(Mono.empty());
+        when(dataFlowRepository.getStatusesOfDataPart(any(), any()))
+                .thenReturn(Mono.just(List.of(HealthInfoStatus.RECEIVED)));
     }
 
     @Test
@@ -99,46 +136,213 @@ class HealthDataProcessorTest {
                 new DocumentReferenceResourceProcessor(),
                 new MedicationRequestResourceProcessor());
         HealthDataProcessor processor = new HealthDataProcessor(healthDataRepository, dataFlowRepository, decryptor,
-                resourceProcessors, healthInformationClient, gateway, hiuProperties, consentRepository);
+                new ResourceProcessorRegistry(resourceProcessors, new SimpleMeterRegistry()),
+                healthInformationClient, gateway, hiuProperties, transactionContexts,
+                new PlainStorageCodec(),
+                attachmentDownloader,
+                dataPartStore,
+                dataPartDeduplicator,
+                fhirParsingEngine,
+                entryProcessingPool,
+                0,
+                true);
         String transactionId = "123456";
         String partNumber = "1";
         DataAvailableMessage message = new DataAvailableMessage(transactionId, absolutePath, partNumber);
         var content = getFHIRResource(message).getNotifiedData().getEntries().get(0).getContent().replaceAll("\n","");
         var savedKeyMaterial = dataFlowRequestKeyMaterial().build();
-        String consentId = "consentId";
-        String cmId = "ncg";
-        String token = string();
 
-        when(healthDataRepository.insertDataFor(eq(transactionId), eq(partNumber), any(), any(), any(), eq("11123232324.UNKNOWN"), any(), any()))
-                .thenReturn(Mono.empty());
-        when(dataFlowRepository.getKeys("123456")).thenReturn(Mono.just(savedKeyMaterial));
-        when(dataFlowRepository.updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), eq(HealthInfoStatus.SUCCEEDED), any()))
+        when(healthDataRepository.saveDataPart(eq(transactionId), eq(partNumber), any(), any(), any(), any(), any()))
                 .thenReturn(Mono.empty());
+        when(transactionContexts.get(transactionId)).thenReturn(Mono.just(transactionContext(transactionId, savedKeyMaterial)));
         when(dataFlowRepository.updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), eq(HealthInfoStatus.PROCESSING), any()))
                 .thenReturn(Mono.empty());
-        when(decryptor.decrypt(any(), any(), any())).thenReturn(content);
-        when(gateway.token()).thenReturn(Mono.just(token));
-        when(hiuProperties.getId()).thenReturn(string());
-        when(dataFlowRepository.getConsentId(transactionId)).thenReturn(Mono.just(consentId));
-        when(consentRepository.getHipId(consentId)).thenReturn(Mono.just("10000005"));
-        when(consentRepository.getConsentMangerId(consentId)).thenReturn(Mono.just(cmId));
-        when(healthInformationClient.notifyHealthInfo(any(), eq(token),eq(cmId))).thenReturn(Mono.empty());
-
-        processor.process(message);
-
-        verify(healthInformationClient,times(1))
-                .notifyHealthInfo(any(),eq(token),eq(cmId));
-        verify(consentRepository,times(1))
-                .getHipId(eq(consentId));
-        verify(consentRepository,times(1))
-                .getConsentMangerId(eq(consentId));
-        verify(healthDataRepository, times(1)).insertDataFor(eq(transactionId), eq(partNumber), any(), any(), any(), eq("11123232324.UNKNOWN"), any(), eq("10000005"));
-        verify(dataFlowRepository, times(1))
-                .updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), eq(HealthInfoStatus.SUCCEEDED), any());
+        when(decryptor.decryptStream(any(), any(), any(), any()))
+                .thenAnswer(invocation -> new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+
+        processor.process(message).block();
+
+        verify(transactionContexts, times(1)).get(transactionId);
+        verify(healthDataRepository, times(1)).saveDataPart(eq(transactionId), eq(partNumber),
+                argThat(savedEntry("11123232324.UNKNOWN", "10000005")), eq(""), eq(HealthInfoStatus.SUCCEEDED), any(),
+                argThat(notification(SessionStatus.TRANSFERRED)));
         verify(dataFlowRepository, times(1))
                 .updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), eq(HealthInfoStatus.PROCESSING), any());
     }
 
+    @Test
+    public void shouldNotDecryptEntriesRejectedOnReceipt() throws Exception {
+        Path filePath = Paths.get("src", "test", "resources", "Transaction123456.json");
+        String absolutePath = filePath.toFile().getAbsolutePath();
+        HealthDataProcessor processor = new HealthDataProcessor(healthDataRepository,
+                dataFlowRepository,
+                decryptor,
+                new ResourceProcessorRegistry(List.of(new CompositionResourceProcessor()),
+                        new SimpleMeterRegistry()),
+                healthInformationClient,
+                gateway,
+                hiuProperties,
+                transactionContexts,
+                new PlainStorageCodec(),
+                attachmentDownloader,
+                dataPartStore,
+                dataPartDeduplicator,
+                fhirParsingEngine,
+                entryProcessingPool,
+                0,
+                true);
+        String transactionId = "123456";
+        String partNumber = "1";
+        DataAvailableMessage message = new DataAvailableMessage(transactionId, absolutePath, partNumber, 1, null, "0",
+                "entriesChecksum");
+
+        when(transactionContexts.get(transactionId))
+                .thenReturn(Mono.just(transactionContext(transactionId, dataFlowRequestKeyMaterial().build())));
+        when(dataFlowRepository.updateDataFlowWithStatus(eq(transactionId), eq(partNumber), any(), any(), any()))
+                .thenReturn(Mono.empty());
+        when(healthDataRepository.saveDataPart(eq(transactionId), eq(partNumber), any(), any(), any(), any(), any()))
+                .thenReturn(Mono.empty());
+
+        processor.process(message).block();
+
+        verify(decryptor, never()).decryptStream(any(), any(), any(), any());
+        verify(healthDataRepository, times(1)).saveDataPart(eq(transactionId), eq(partNumber),
+                argThat(records -> records.size() == 1 && records.get(0).getStatus() == EntryStatus.ERRORED),
+                any(), eq(HealthInfoStatus.ERRORED), any(), argThat(notification(SessionStatus.FAILED)));
+        verify(dataPartDeduplicator).release(transactionId, 1, "entriesChecksum");
+    }
+
+    @Test
+    public void shouldSaveErroredEntriesOfAPartThatFailsAsAWhole() {
+        Path filePath = Paths.get("src", "test", "resources", "Transaction123456.json");
+        HealthDataProcessor processor = new HealthDataProcessor(healthDataRepository,
+                dataFlowRepository,
+                decryptor,
+                new ResourceProcessorRegistry(List.of(new CompositionResourceProcessor()),
+                        new SimpleMeterRegistry()),
+                healthInformationClient,
+                gateway,
+                hiuProperties,
+                transactionContexts,
+                new PlainStorageCodec(),
+                attachmentDownloader,
+                dataPartStore,
+                dataPartDeduplicator,
+                fhirParsingEngine,
+                entryProcessingPool,
+                0,
+                true);
+        String transactionId = "123456";
+        String partNumber = "1";
+        DataAvailableMessage message = new DataAvailableMessage(transactionId, filePath.toFile().getAbsolutePath(),
+                partNumber);
+
+        when(transactionContexts.get(transactionId)).thenReturn(Mono.just(transactionContext(transactionId, null)));
+        when(dataFlowRepository.updateDataFlowWithStatus(eq(transactionId), eq(partNumber), any(), any(), any()))
+                .thenReturn(Mono.empty());
+        when(healthDataRepository.saveDataPart(eq(transactionId), eq(partNumber), any(), any(), any(), any(), any()))
+                .thenReturn(Mono.empty());
+
+        processor.process(message).block();
+
+        verify(decryptor, never()).decryptStream(any(), any(), any(), any());
+        verify(healthDataRepository, times(1)).saveDataPart(eq(transactionId), eq(partNumber),
+                argThat(records -> records.size() == 1 && records.get(0).getStatus() == EntryStatus.ERRORED),
+                any(), eq(HealthInfoStatus.ERRORED), any(), argThat(notification(SessionStatus.FAILED)));
+    }
+
+    @Test
+    public void shouldProcessEntriesOfDifferentCareContextsWithTheSameChecksum(@TempDir Path dataDirectory)
+            throws Exception {
+        Path fixture = Paths.get("src", "test", "resources", "Transaction123456.json");
+        var objectMapper = new ObjectMapper();
+        var dataNotification = objectMapper.readValue(fixture.toFile(), DataNotificationRequest.class);
+        var entry = dataNotification.getEntries().get(0);
+        dataNotification.setEntries(List.of(
+                entry.toBuilder().careContextReference("first").checksum("string").build(),
+                entry.toBuilder().careContextReference("second").checksum("string").build(),
+                entry.toBuilder().careContextReference("first").checksum("string").build()));
+        Path dataFile = dataDirectory.resolve("123456_1.json");
+        objectMapper.writeValue(dataFile.toFile(), dataNotification);
+        HealthDataProcessor processor = new HealthDataProcessor(healthDataRepository,
+                dataFlowRepository,
+                decryptor,
+                new ResourceProcessorRegistry(List.of(
+                        new CompositionResourceProcessor(),
+                        new DiagnosticReportResourceProcessor(
+                                new OrthancDicomWebServer(new LocalDicomServerProperties())),
+                        new DocumentReferenceResourceProcessor(),
+                        new MedicationRequestResourceProcessor()),
+                        new SimpleMeterRegistry()),
+                healthInformationClient,
+                gateway,
+                hiuProperties,
+                transactionContexts,
+                new PlainStorageCodec(),
+                attachmentDownloader,
+                dataPartStore,
+                dataPartDeduplicator,
+                fhirParsingEngine,
+                entryProcessingPool,
+                0,
+                true);
+        String transactionId = "123456";
+        String partNumber = "1";
+        var content = entry.getContent().replaceAll("\n", "");
+        when(transactionContexts.get(transactionId))
+                .thenReturn(Mono.just(transactionContext(transactionId, dataFlowRequestKeyMaterial().build())));
+        when(dataFlowRepository.updateDataFlowWithStatus(eq(transactionId), eq(partNumber), any(), any(), any()))
+                .thenReturn(Mono.empty());
+        when(healthDataRepository.saveDataPart(eq(transactionId), eq(partNumber), any(), any(), any(), any(), any()))
+                .thenReturn(Mono.empty());
+        when(decryptor.decryptStream(any(), any(), any(), any()))
+                .thenAnswer(invocation -> new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+
+        processor.process(new DataAvailableMessage(transactionId, dataFile.toString(), partNumber)).block();
+
+        verify(decryptor, times(2)).decryptStream(any(), any(), any(), any());
+        verify(healthDataRepository).saveDataPart(eq(transactionId), eq(partNumber),
+                argThat(records -> records.size() == 2
+                        && "first".equals(records.get(0).getCareContextReference())
+                        && "second".equals(records.get(1).getCareContextReference())),
+                eq(""), eq(HealthInfoStatus.SUCCEEDED), any(),
+                argThat(notification -> notification.getStatusNotification().getStatusResponses().size() == 3));
+    }
+
+    @Test
+    public void shouldSkipAPartThatIsAlreadyProcessed() {
+        Path filePath = Paths.get("src", "test", "resources", "Transaction123456.json");
+        HealthDataProcessor processor = new HealthDataProcessor(healthDataRepository,
+                dataFlowRepository,
+                decryptor,
+                new ResourceProcessorRegistry(List.of(new CompositionResourceProcessor()),
+                        new SimpleMeterRegistry()),
+                healthInformationClient,
+                gateway,
+                hiuProperties,
+                transactionContexts,
+                new PlainStorageCodec(),
+                attachmentDownloader,
+                dataPartStore,
+                dataPartDeduplicator,
+                fhirParsingEngine,
+                entryProcessingPool,
+                0,
+                false);
+        String transactionId = "123456";
+        String partNumber = "1";
+        DataAvailableMessage message = new DataAvailableMessage(transactionId, filePath.toFile().getAbsolutePath(),
+                partNumber);
+        when(dataFlowRepository.getStatusesOfDataPart(transactionId, partNumber))
+                .thenReturn(Mono.just(List.of(HealthInfoStatus.SUCCEEDED)));
+
+        processor.process(message).block();
+
+        verify(dataFlowRepository, never()).updateDataFlowWithStatus(any(), any(), any(), any(), any());
+        verify(healthDataRepository, never()).saveDataPart(any(), any(), any(), any(), any(), any(), any());
+        verify(gateway, never()).token();
+    }
+
     @Test
     public void shouldDownloadFileFromUrlInPresentedForm() throws Exception {
         Path filePath = Paths.get("src", "test", "resources", "Transaction789.json");
@@ -151,46 +355,39 @@ class HealthDataProcessorTest {
         HealthDataProcessor processor = new HealthDataProcessor(healthDataRepository,
                 dataFlowRepository,
                 decryptor,
-                resourceProcessors,
+                new ResourceProcessorRegistry(resourceProcessors, new SimpleMeterRegistry()),
                 healthInformationClient,
                 gateway,
                 hiuProperties,
-                consentRepository);
+                transactionContexts,
+                new PlainStorageCodec(),
+                attachmentDownloader,
+                dataPartStore,
+                dataPartDeduplicator,
+                fhirParsingEngine,
+                entryProcessingPool,
+                0,
+                true);
         String transactionId = "123456";
         String partNumber = "1";
         DataAvailableMessage message = new DataAvailableMessage(transactionId, absolutePath, partNumber);
         var content = getFHIRResource(message).getNotifiedData().getEntries().get(0).getContent().replaceAll("\n","");
         var savedKeyMaterial = dataFlowRequestKeyMaterial().build();
-        String consentId = "consentId";
-        String cmId = "ncg";
-        String token = string();
 
-        when(healthDataRepository.insertDataFor(eq(transactionId), eq(partNumber), any(), any(), any(), any(), any(), any())).thenReturn(Mono.empty());
-        when(dataFlowRepository.getKeys("123456")).thenReturn(Mono.just(savedKeyMaterial));
-        when(dataFlowRepository.updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), eq(HealthInfoStatus.SUCCEEDED), any()))
+        when(healthDataRepository.saveDataPart(eq(transactionId), eq(partNumber), any(), any(), any(), any(), any()))
                 .thenReturn(Mono.empty());
+        when(transactionContexts.get(transactionId)).thenReturn(Mono.just(transactionContext(transactionId, savedKeyMaterial)));
         when(dataFlowRepository.updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), eq(HealthInfoStatus.PROCESSING), any()))
                 .thenReturn(Mono.empty());
-        when(decryptor.decrypt(any(), any(), any())).thenReturn(content);
-        when(gateway.token()).thenReturn(Mono.just(token));
-        when(hiuProperties.getId()).thenReturn(string());
-        when(dataFlowRepository.getConsentId(transactionId)).thenReturn(Mono.just(consentId));
-        when(consentRepository.getHipId(consentId)).thenReturn(Mono.just("10000005"));
-        when(consentRepository.getConsentMangerId(consentId)).thenReturn(Mono.just(cmId));
-        when(healthInformationClient.notifyHealthInfo(any(), eq(token),eq(cmId))).thenReturn(Mono.empty());
-
-        processor.process(message);
-
-        verify(healthInformationClient,times(1))
-                .notifyHealthInfo(any(),eq(token),eq(cmId));
-        verify(consentRepository,times(1))
-                .getHipId(eq(consentId));
-        verify(consentRepository,times(1))
-                .getConsentMangerId(eq(consentId));
-        verify(healthDataRepository, times(1)).insertDataFor(eq(transactionId), eq(partNumber), any(), any(), any(),
-                eq("11123232324.UNKNOWN"), any(), eq("10000005"));
-        verify(dataFlowRepository, times(1))
-                .updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), eq(HealthInfoStatus.SUCCEEDED), any());
+        when(decryptor.decryptStream(any(), any(), any(), any()))
+                .thenAnswer(invocation -> new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+
+        processor.process(message).block();
+
+        verify(transactionContexts, times(1)).get(transactionId);
+        verify(healthDataRepository, times(1)).saveDataPart(eq(transactionId), eq(partNumber),
+                argThat(savedEntry("11123232324.UNKNOWN", "10000005")), eq(""), eq(HealthInfoStatus.SUCCEEDED), any(),
+                argThat(notification(SessionStatus.TRANSFERRED)));
         verify(dataFlowRepository, times(1))
                 .updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), eq(HealthInfoStatus.PROCESSING), any());
     }
@@ -207,46 +404,39 @@ class HealthDataProcessorTest {
         HealthDataProcessor processor = new HealthDataProcessor(healthDataRepository,
                 dataFlowRepository,
                 decryptor,
-                resourceProcessors,
+                new ResourceProcessorRegistry(resourceProcessors, new SimpleMeterRegistry()),
                 healthInformationClient,
                 gateway,
                 hiuProperties,
-                consentRepository);
+                transactionContexts,
+                new PlainStorageCodec(),
+                attachmentDownloader,
+                dataPartStore,
+                dataPartDeduplicator,
+                fhirParsingEngine,
+                entryProcessingPool,
+                0,
+                true);
         String transactionId = "123456";
         String partNumber = "1";
-        String consentId = "consentId";
-        String cmId = "ncg";
         DataAvailableMessage message = new DataAvailableMessage(transactionId, absolutePath, partNumber);
         var content = getFHIRResource(message).getNotifiedData().getEntries().get(0).getContent().replaceAll("\n","");
         var savedKeyMaterial = dataFlowRequestKeyMaterial().build();
-        String token = string();
 
-        when(healthDataRepository.insertDataFor(eq(transactionId), eq(partNumber), any(), any(), any(), any(), any(), any())).thenReturn(Mono.empty());
-        when(dataFlowRepository.getKeys("123456")).thenReturn(Mono.just(savedKeyMaterial));
-        when(dataFlowRepository.updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), eq(HealthInfoStatus.SUCCEEDED), any()))
+        when(healthDataRepository.saveDataPart(eq(transactionId), eq(partNumber), any(), any(), any(), any(), any()))
                 .thenReturn(Mono.empty());
+        when(transactionContexts.get(transactionId)).thenReturn(Mono.just(transactionContext(transactionId, savedKeyMaterial)));
         when(dataFlowRepository.updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), eq(HealthInfoStatus.PROCESSING), any()))
                 .thenReturn(Mono.empty());
-        when(decryptor.decrypt(any(), any(), any())).thenReturn(content);
-        when(gateway.token()).thenReturn(Mono.just(token));
-        when(hiuProperties.getId()).thenReturn(string());
-        when(dataFlowRepository.getConsentId(transactionId)).thenReturn(Mono.just(consentId));
-        when(consentRepository.getHipId(consentId)).thenReturn(Mono.just("10000005"));
-        when(consentRepository.getConsentMangerId(consentId)).thenReturn(Mono.just(cmId));
-        when(healthInformationClient.notifyHealthInfo(any(), eq(token),eq(cmId))).thenReturn(Mono.empty());
-
-        processor.process(message);
-
-        verify(healthInformationClient,times(1))
-                .notifyHealthInfo(any(),eq(token),eq(cmId));
-        verify(consentRepository,times(1))
-                .getHipId(eq(consentId));
-        verify(consentRepository,times(1))
-                .getConsentMangerId(eq(consentId));
-        verify(healthDataRepository, times(1)).insertDataFor(eq(transactionId), eq(partNumber), any(), any(), any(),
-                eq("11123232324.UNKNOWN"), any(), eq("10000005"));
-        verify(dataFlowRepository, times(1))
-                .updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), eq(HealthInfoStatus.SUCCEEDED), any());
+        when(decryptor.decryptStream(any(), any(), any(), any()))
+                .thenAnswer(invocation -> new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+
+        processor.process(message).block();
+
+        verify(transactionContexts, times(1)).get(transactionId);
+        verify(healthDataRepository, times(1)).saveDataPart(eq(transactionId), eq(partNumber),
+                argThat(savedEntry("11123232324.UNKNOWN", "10000005")), eq(""), eq(HealthInfoStatus.SUCCEEDED), any(),
+                argThat(notification(SessionStatus.TRANSFERRED)));
         verify(dataFlowRepository, times(1))
                 .updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), eq(HealthInfoStatus.PROCESSING), any());
     }
@@ -257,47 +447,87 @@ class HealthDataProcessorTest {
         String absolutePath = filePath.toFile().getAbsolutePath();
         List<HITypeResourceProcessor> resourceProcessors = Arrays.asList(new DocumentReferenceResourceProcessor());
         HealthDataProcessor processor = new HealthDataProcessor(healthDataRepository, dataFlowRepository, decryptor,
-                resourceProcessors, healthInformationClient, gateway, hiuProperties, consentRepository);
+                new ResourceProcessorRegistry(resourceProcessors, new SimpleMeterRegistry()),
+                healthInformationClient, gateway, hiuProperties, transactionContexts,
+                new PlainStorageCodec(),
+                attachmentDownloader,
+                dataPartStore,
+                dataPartDeduplicator,
+                fhirParsingEngine,
+                entryProcessingPool,
+                0,
+                true);
         String transactionId = "101";
         String partNumber = "1";
         DataAvailableMessage message = new DataAvailableMessage(transactionId, absolutePath, partNumber);
         var content = getFHIRResource(message).getNotifiedData().getEntries().get(0).getContent();
         var savedKeyMaterial = dataFlowRequestKeyMaterial().build();
-        String consentId = "consentId";
-        String cmId = "ncg";
-        String token = string();
 
-        when(healthDataRepository.insertDataFor(eq(transactionId), eq(partNumber), any(), any(), any(), any(), any(), any()))
-                .thenReturn(Mono.empty());
-        when(dataFlowRepository.getKeys("101")).thenReturn(Mono.just(savedKeyMaterial));
-        when(dataFlowRepository.updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), eq(HealthInfoStatus.SUCCEEDED), any()))
+        when(healthDataRepository.saveDataPart(eq(transactionId), eq(partNumber), any(), any(), any(), any(), any()))
                 .thenReturn(Mono.empty());
+        when(transactionContexts.get(transactionId)).thenReturn(Mono.just(transactionContext(transactionId, savedKeyMaterial)));
         when(dataFlowRepository.updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), eq(HealthInfoStatus.PROCESSING), any()))
                 .thenReturn(Mono.empty());
-        when(decryptor.decrypt(any(), any(), any())).thenReturn(content);
-        when(gateway.token()).thenReturn(Mono.just(token));
-        when(hiuProperties.getId()).thenReturn(string());
-        when(dataFlowRepository.getConsentId(transactionId)).thenReturn(Mono.just(consentId));
-        when(consentRepository.getHipId(consentId)).thenReturn(Mono.just("10000005"));
-        when(consentRepository.getConsentMangerId(consentId)).thenReturn(Mono.just(cmId));
-        when(healthInformationClient.notifyHealthInfo(any(), eq(token),eq(cmId))).thenReturn(Mono.empty());
-
-        processor.process(message);
-
-        verify(healthInformationClient,times(1))
-                .notifyHealthInfo(any(),eq(token),eq(cmId));
-        verify(consentRepository,times(1))
-                .getHipId(eq(consentId));
-        verify(consentRepository,times(1))
-                .getConsentMangerId(eq(consentId));
-        verify(healthDataRepository, times(1)).insertDataFor(eq(transactionId), eq(partNumber), any(), any(), any(),
-                eq("89fb2983-9cef-4f67-baa2-4304f37c8ec8.UNKNOWN"), any(), eq("10000005"));
-        verify(dataFlowRepository, times(1))
-                .updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), eq(HealthInfoStatus.SUCCEEDED), any());
+        when(decryptor.decryptStream(any(), any(), any(), any()))
+                .thenAnswer(invocation -> new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+
+        processor.process(message).block();
+
+        verify(transactionContexts, times(1)).get(transactionId);
+        verify(healthDataRepository, times(1)).saveDataPart(eq(transactionId), eq(partNumber),
+                argThat(savedEntry("89fb2983-9cef-4f67-baa2-4304f37c8ec8.UNKNOWN", "10000005")),
+                eq(""), eq(HealthInfoStatus.SUCCEEDED), any(),
+                argThat(notification(SessionStatus.TRANSFERRED)));
         verify(dataFlowRepository, times(1))
                 .updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), eq(HealthInfoStatus.PROCESSING), any());
     }
 
+    @Test
+    public void shouldNotProcessResourcesOfAStreamedEntryThatFailsAuthentication() throws Exception {
+        Path filePath = Paths.get("src", "test", "resources", "TransactionDocRef101.json");
+        String absolutePath = filePath.toFile().getAbsolutePath();
+        HITypeResourceProcessor resourceProcessor = mock(HITypeResourceProcessor.class);
+        when(resourceProcessor.supports(ResourceType.DocumentReference)).thenReturn(true);
+        HealthDataProcessor processor = new HealthDataProcessor(healthDataRepository, dataFlowRepository, decryptor,
+                new ResourceProcessorRegistry(List.of(resourceProcessor), new SimpleMeterRegistry()),
+                healthInformationClient, gateway, hiuProperties, transactionContexts,
+                new PlainStorageCodec(),
+                attachmentDownloader,
+                dataPartStore,
+                dataPartDeduplicator,
+                fhirParsingEngine,
+                entryProcessingPool,
+                1,
+                true);
+        String transactionId = "101";
+        String partNumber = "1";
+        DataAvailableMessage message = new DataAvailableMessage(transactionId, absolutePath, partNumber);
+        var content = getFHIRResource(message).getNotifiedData().getEntries().get(0).getContent();
+
+        when(healthDataRepository.saveDataPart(eq(transactionId), eq(partNumber), any(), any(), any(), any(), any()))
+                .thenReturn(Mono.empty());
+        when(transactionContexts.get(transactionId))
+                .thenReturn(Mono.just(transactionContext(transactionId, dataFlowRequestKeyMaterial().build())));
+        when(dataFlowRepository.updateDataFlowWithStatus(eq(transactionId), eq(partNumber), any(), any(), any()))
+                .thenReturn(Mono.empty());
+        when(decryptor.decryptStream(any(), any(), any(), any()))
+                .thenAnswer(invocation -> new SequenceInputStream(
+                        new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)),
+                        new InputStream() {
+                            @Override
+                            public int read() throws IOException {
+                                throw new IOException("mac check in GCM failed");
+                            }
+                        }));
+
+        processor.process(message).block();
+
+        verify(resourceProcessor, never()).process(any(), any(), any(), any());
+        verify(healthDataRepository, times(1)).saveDataPart(eq(transactionId), eq(partNumber),
+                argThat(records -> records.size() == 1 && records.get(0).getStatus() == EntryStatus.ERRORED),
+                any(), eq(HealthInfoStatus.ERRORED), any(), argThat(notification(SessionStatus.FAILED)));
+    }
+
     @Test
     public void shouldProcessCompositionForPrescriptionAndSaveAttachment() throws Exception {
         Path filePath = Paths.get("src", "test", "resources", "TransactionComposition102.json");
@@ -309,43 +539,36 @@ class HealthDataProcessorTest {
                 new MedicationRequestResourceProcessor(),
                 new BinaryResourceProcessor());
         HealthDataProcessor processor = new HealthDataProcessor(healthDataRepository, dataFlowRepository, decryptor,
-                resourceProcessors, healthInformationClient, gateway, hiuProperties, consentRepository);
+                new ResourceProcessorRegistry(resourceProcessors, new SimpleMeterRegistry()),
+                healthInformationClient, gateway, hiuProperties, transactionContexts,
+                new PlainStorageCodec(),
+                attachmentDownloader,
+                dataPartStore,
+                dataPartDeduplicator,
+                fhirParsingEngine,
+                entryProcessingPool,
+                0,
+                true);
         String transactionId = "102";
         String partNumber = "1";
         DataAvailableMessage message = new DataAvailableMessage(transactionId, absolutePath, partNumber);
         var content = getFHIRResource(message).getNotifiedData().getEntries().get(0).getContent();
         var savedKeyMaterial = dataFlowRequestKeyMaterial().build();
-        String consentId = "consentId";
-        String cmId = "ncg";
-        String token = string();
 
-        when(healthDataRepository.insertDataFor(eq(transactionId), eq(partNumber), any(), any(), any(), any(), any(), any()))
-                .thenReturn(Mono.empty());
-        when(dataFlowRepository.getKeys("102")).thenReturn(Mono.just(savedKeyMaterial));
-        when(dataFlowRepository.updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), eq(HealthInfoStatus.SUCCEEDED), any()))
+        when(healthDataRepository.saveDataPart(eq(transactionId), eq(partNumber), any(), any(), any(), any(), any()))
                 .thenReturn(Mono.empty());
+        when(transactionContexts.get(transactionId)).thenReturn(Mono.just(transactionContext(transactionId, savedKeyMaterial)));
         when(dataFlowRepository.updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), eq(HealthInfoStatus.PROCESSING), any()))
                 .thenReturn(Mono.empty());
-        when(decryptor.decrypt(any(), any(), any())).thenReturn(content);
-        when(gateway.token()).thenReturn(Mono.just(token));
-        when(hiuProperties.getId()).thenReturn(string());
-        when(dataFlowRepository.getConsentId(transactionId)).thenReturn(Mono.just(consentId));
-        when(consentRepository.getHipId(consentId)).thenReturn(Mono.just("10000005"));
-        when(consentRepository.getConsentMangerId(consentId)).thenReturn(Mono.just(cmId));
-        when(healthInformationClient.notifyHealthInfo(any(), eq(token),eq(cmId))).thenReturn(Mono.empty());
-
-        processor.process(message);
-
-        verify(healthInformationClient,times(1))
-                .notifyHealthInfo(any(),eq(token),eq(cmId));
-        verify(consentRepository,times(1))
-                .getHipId(eq(consentId));
-        verify(consentRepository,times(1))
-                .getConsentMangerId(eq(consentId));
-        verify(healthDataRepository, times(1)).insertDataFor(eq(transactionId), eq(partNumber), any(), any(), any(),
-                eq("bundle-01.UNKNOWN"), any(), eq("10000005"));
-        verify(dataFlowRepository, times(1))
-                .updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), eq(HealthInfoStatus.SUCCEEDED), any());
+        when(decryptor.decryptStream(any(), any(), any(), any()))
+                .thenAnswer(invocation -> new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+
+        processor.process(message).block();
+
+        verify(transactionContexts, times(1)).get(transactionId);
+        verify(healthDataRepository, times(1)).saveDataPart(eq(transactionId), eq(partNumber),
+                argThat(savedEntry("bundle-01.UNKNOWN", "10000005")), eq(""), eq(HealthInfoStatus.SUCCEEDED), any(),
+                argThat(notification(SessionStatus.TRANSFERRED)));
         verify(dataFlowRepository, times(1))
                 .updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), eq(HealthInfoStatus.PROCESSING), any());
     }
@@ -361,45 +584,251 @@ class HealthDataProcessorTest {
                 new MedicationRequestResourceProcessor(),
                 new BinaryResourceProcessor());
         HealthDataProcessor processor = new HealthDataProcessor(healthDataRepository, dataFlowRepository, decryptor,
-                resourceProcessors, healthInformationClient, gateway, hiuProperties, consentRepository);
+                new ResourceProcessorRegistry(resourceProcessors, new SimpleMeterRegistry()),
+                healthInformationClient, gateway, hiuProperties, transactionContexts,
+                new PlainStorageCodec(),
+                attachmentDownloader,
+                dataPartStore,
+                dataPartDeduplicator,
+                fhirParsingEngine,
+                entryProcessingPool,
+                0,
+                true);
         String transactionId = "103";
         String partNumber = "1";
         DataAvailableMessage message = new DataAvailableMessage(transactionId, absolutePath, partNumber);
         var content = getFHIRResource(message).getNotifiedData().getEntries().get(0).getContent();
         var savedKeyMaterial = dataFlowRequestKeyMaterial().build();
-        String consentId = "consentId";
+
+        when(healthDataRepository.saveDataPart(eq(transactionId), eq(partNumber), any(), any(), any(), any(), any()))
+                .thenReturn(Mono.empty());
+        when(transactionContexts.get(transactionId)).thenReturn(Mono.just(transactionContext(transactionId, savedKeyMaterial)));
+        when(dataFlowRepository.updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), eq(HealthInfoStatus.PROCESSING), any()))
+                .thenReturn(Mono.empty());
+        when(decryptor.decryptStream(any(), any(), any(), any()))
+                .thenAnswer(invocation -> new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+
+        processor.process(message).block();
+
+        verify(transactionContexts, times(1)).get(transactionId);
+        verify(healthDataRepository, times(1)).saveDataPart(eq(transactionId), eq(partNumber),
+                argThat(savedEntry("bundle-01.UNKNOWN", "10000005")), eq(""), eq(HealthInfoStatus.SUCCEEDED), any(),
+                argThat(notification(SessionStatus.TRANSFERRED)));
+        verify(dataFlowRepository, times(1))
+                .updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), eq(HealthInfoStatus.PROCESSING), any());
+    }
+
+    @Test
+    public void shouldLeaveTheNotificationOfAPartOfAMultiPartTransferToTheOutbox() throws Exception {
+        Path filePath = Paths.get("src", "test", "resources", "Transaction123456.json");
+        String absolutePath = filePath.toFile().getAbsolutePath();
+        List<HITypeResourceProcessor> resourceProcessors = Arrays.asList(
+                new CompositionResourceProcessor(),
+                new DiagnosticReportResourceProcessor(new OrthancDicomWebServer(new LocalDicomServerProperties())),
+                new DocumentReferenceResourceProcessor(),
+                new MedicationRequestResourceProcessor());
+        HealthDataProcessor processor = new HealthDataProcessor(healthDataRepository, dataFlowRepository, decryptor,
+                new ResourceProcessorRegistry(resourceProcessors, new SimpleMeterRegistry()),
+                healthInformationClient, gateway, hiuProperties, transactionContexts,
+                new PlainStorageCodec(),
+                attachmentDownloader,
+                dataPartStore,
+                dataPartDeduplicator,
+                fhirParsingEngine,
+                entryProcessingPool,
+                0,
+                true);
+        String transactionId = "123456";
+        String partNumber = "1";
+        DataAvailableMessage message = new DataAvailableMessage(transactionId, absolutePath, partNumber, 2);
+        var content = getFHIRResource(message).getNotifiedData().getEntries().get(0).getContent().replaceAll("\n","");
+        var savedKeyMaterial = dataFlowRequestKeyMaterial().build();
+
+        when(healthDataRepository.saveDataPart(eq(transactionId), eq(partNumber), any(), any(), any(), any(), any()))
+                .thenReturn(Mono.empty());
+        when(transactionContexts.get(transactionId)).thenReturn(Mono.just(transactionContext(transactionId, savedKeyMaterial)));
+        when(dataFlowRepository.updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), any(), any()))
+                .thenReturn(Mono.empty());
+        when(decryptor.decryptStream(any(), any(), any(), any()))
+                .thenAnswer(invocation -> new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+
+        processor.process(message).block();
+
+        verify(healthDataRepository, times(1))
+                .saveDataPart(eq(transactionId), eq(partNumber), any(), eq(""), eq(HealthInfoStatus.SUCCEEDED), any(),
+                        argThat(entry -> entry.getPartNumber() == 1
+                                && entry.getPageCount() == 2
+                                && entry.getStatusNotification().getSessionStatus() == SessionStatus.TRANSFERRED));
+        verify(healthInformationClient, never()).notifyHealthInfo(any(), any(), any());
+    }
+
+    @Test
+    public void shouldNotifyTheHipRightAfterSavingThePartWhenNotNotifyingThroughTheOutbox() throws Exception {
+        Path filePath = Paths.get("src", "test", "resources", "Transaction123456.json");
+        String absolutePath = filePath.toFile().getAbsolutePath();
+        List<HITypeResourceProcessor> resourceProcessors = Arrays.asList(
+                new CompositionResourceProcessor(),
+                new DiagnosticReportResourceProcessor(new OrthancDicomWebServer(new LocalDicomServerProperties())),
+                new DocumentReferenceResourceProcessor(),
+                new MedicationRequestResourceProcessor());
+        HealthDataProcessor processor = new HealthDataProcessor(healthDataRepository, dataFlowRepository, decryptor,
+                new ResourceProcessorRegistry(resourceProcessors, new SimpleMeterRegistry()),
+                healthInformationClient, gateway, hiuProperties, transactionContexts,
+                new PlainStorageCodec(),
+                attachmentDownloader,
+                dataPartStore,
+                dataPartDeduplicator,
+                fhirParsingEngine,
+                entryProcessingPool,
+                0,
+                false);
+        String transactionId = "123456";
+        String partNumber = "1";
+        DataAvailableMessage message = new DataAvailableMessage(transactionId, absolutePath, partNumber);
+        var content = getFHIRResource(message).getNotifiedData().getEntries().get(0).getContent().replaceAll("\n","");
+        var savedKeyMaterial = dataFlowRequestKeyMaterial().build();
         String cmId = "ncg";
         String token = string();
 
-        when(healthDataRepository.insertDataFor(eq(transactionId), eq(partNumber), any(), any(), any(), any(), any(), any()))
+        when(healthDataRepository.saveDataPart(eq(transactionId), eq(partNumber), any(), any(), any(), any(), any()))
+                .thenReturn(Mono.just(List.of(HealthInfoStatus.SUCCEEDED)));
+        when(transactionContexts.get(transactionId)).thenReturn(Mono.just(transactionContext(transactionId, savedKeyMaterial)));
+        when(dataFlowRepository.updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), eq(HealthInfoStatus.PROCESSING), any()))
                 .thenReturn(Mono.empty());
-        when(dataFlowRepository.getKeys(transactionId)).thenReturn(Mono.just(savedKeyMaterial));
-        when(dataFlowRepository.updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), eq(HealthInfoStatus.SUCCEEDED), any()))
+        when(decryptor.decryptStream(any(), any(), any(), any()))
+                .thenAnswer(invocation -> new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+        when(gateway.token()).thenReturn(Mono.just(token));
+        when(hiuProperties.getId()).thenReturn(string());
+        when(healthInformationClient.notifyHealthInfo(any(), eq(token), eq(cmId))).thenReturn(Mono.empty());
+
+        processor.process(message).block();
+
+        verify(healthDataRepository, times(1)).saveDataPart(eq(transactionId), eq(partNumber),
+                argThat(savedEntry("11123232324.UNKNOWN", "10000005")), eq(""), eq(HealthInfoStatus.SUCCEEDED), any(),
+                isNull());
+        verify(healthInformationClient, times(1)).notifyHealthInfo(any(), eq(token), eq(cmId));
+    }
+
+    @Test
+    public void shouldDeferNotificationUntilAllPartsOfMultiPartTransferAreProcessed() throws Exception {
+        Path filePath = Paths.get("src", "test", "resources", "Transaction123456.json");
+        String absolutePath = filePath.toFile().getAbsolutePath();
+        List<HITypeResourceProcessor> resourceProcessors = Arrays.asList(
+                new CompositionResourceProcessor(),
+                new DiagnosticReportResourceProcessor(new OrthancDicomWebServer(new LocalDicomServerProperties())),
+                new DocumentReferenceResourceProcessor(),
+                new MedicationRequestResourceProcessor());
+        HealthDataProcessor processor = new HealthDataProcessor(healthDataRepository, dataFlowRepository, decryptor,
+                new ResourceProcessorRegistry(resourceProcessors, new SimpleMeterRegistry()),
+                healthInformationClient, gateway, hiuProperties, transactionContexts,
+                new PlainStorageCodec(),
+                attachmentDownloader,
+                dataPartStore,
+                dataPartDeduplicator,
+                fhirParsingEngine,
+                entryProcessingPool,
+                0,
+                false);
+        String transactionId = "123456";
+        String partNumber = "1";
+        DataAvailableMessage message = new DataAvailableMessage(transactionId, absolutePath, partNumber, 2);
+        var content = getFHIRResource(message).getNotifiedData().getEntries().get(0).getContent().replaceAll("\n","");
+        var savedKeyMaterial = dataFlowRequestKeyMaterial().build();
+
+        when(healthDataRepository.saveDataPart(eq(transactionId), eq(partNumber), any(), any(), any(), any(), any()))
+                .thenReturn(Mono.just(List.of(HealthInfoStatus.SUCCEEDED, HealthInfoStatus.PROCESSING)));
+        when(transactionContexts.get(transactionId)).thenReturn(Mono.just(transactionContext(transactionId, savedKeyMaterial)));
+        when(dataFlowRepository.updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), any(), any()))
                 .thenReturn(Mono.empty());
-        when(dataFlowRepository.updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), eq(HealthInfoStatus.PROCESSING), any()))
+        when(decryptor.decryptStream(any(), any(), any(), any()))
+                .thenAnswer(invocation -> new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+
+        processor.process(message).block();
+
+        verify(healthDataRepository, times(1))
+                .saveDataPart(eq(transactionId), eq(partNumber), any(), eq(""), eq(HealthInfoStatus.SUCCEEDED), any(),
+                        isNull());
+        verify(healthInformationClient, never()).notifyHealthInfo(any(), any(), any());
+        verify(healthDataRepository, never()).getEntryStatuses(any());
+    }
+
+    @Test
+    public void shouldNotifyAllEntriesOfAMultiPartTransferWithTheLastPart() throws Exception {
+        Path filePath = Paths.get("src", "test", "resources", "Transaction123456.json");
+        String absolutePath = filePath.toFile().getAbsolutePath();
+        List<HITypeResourceProcessor> resourceProcessors = Arrays.asList(
+                new CompositionResourceProcessor(),
+                new DiagnosticReportResourceProcessor(new OrthancDicomWebServer(new LocalDicomServerProperties())),
+                new DocumentReferenceResourceProcessor(),
+                new MedicationRequestResourceProcessor());
+        HealthDataProcessor processor = new HealthDataProcessor(healthDataRepository, dataFlowRepository, decryptor,
+                new ResourceProcessorRegistry(resourceProcessors, new SimpleMeterRegistry()),
+                healthInformationClient, gateway, hiuProperties, transactionContexts,
+                new PlainStorageCodec(),
+                attachmentDownloader,
+                dataPartStore,
+                dataPartDeduplicator,
+                fhirParsingEngine,
+                entryProcessingPool,
+                0,
+                false);
+        String transactionId = "123456";
+        String partNumber = "1";
+        DataAvailableMessage message = new DataAvailableMessage(transactionId, absolutePath, partNumber, 2);
+        var content = getFHIRResource(message).getNotifiedData().getEntries().get(0).getContent().replaceAll("\n","");
+        var savedKeyMaterial = dataFlowRequestKeyMaterial().build();
+        String token = string();
+
+        when(healthDataRepository.saveDataPart(eq(transactionId), eq(partNumber), any(), any(), any(), any(), any()))
+                .thenReturn(Mono.just(List.of(HealthInfoStatus.SUCCEEDED, HealthInfoStatus.SUCCEEDED)));
+        when(transactionContexts.get(transactionId)).thenReturn(Mono.just(transactionContext(transactionId, savedKeyMaterial)));
+        when(dataFlowRepository.updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), any(), any()))
                 .thenReturn(Mono.empty());
-        when(decryptor.decrypt(any(), any(), any())).thenReturn(content);
+        when(decryptor.decryptStream(any(), any(), any(), any()))
+                .thenAnswer(invocation -> new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+        when(healthDataRepository.getEntryStatuses(transactionId))
+                .thenReturn(Flux.just(Map.entry("care-context-1", EntryStatus.SUCCEEDED),
+                        Map.entry("care-context-2", EntryStatus.SUCCEEDED)));
         when(gateway.token()).thenReturn(Mono.just(token));
         when(hiuProperties.getId()).thenReturn(string());
-        when(dataFlowRepository.getConsentId(transactionId)).thenReturn(Mono.just(consentId));
-        when(consentRepository.getHipId(consentId)).thenReturn(Mono.just("10000005"));
-        when(consentRepository.getConsentMangerId(consentId)).thenReturn(Mono.just(cmId));
-        when(healthInformationClient.notifyHealthInfo(any(), eq(token),eq(cmId))).thenReturn(Mono.empty());
-
-        processor.process(message);
-
-        verify(healthInformationClient,times(1))
-                .notifyHealthInfo(any(),eq(token),eq(cmId));
-        verify(consentRepository,times(1))
-                .getHipId(eq(consentId));
-        verify(consentRepository,times(1))
-                .getConsentMangerId(eq(consentId));
-        verify(healthDataRepository, times(1)).insertDataFor(eq(transactionId), eq(partNumber), any(), any(), any(),
-                eq("bundle-01.UNKNOWN"), any(), eq("10000005"));
-        verify(dataFlowRepository, times(1))
-                .updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), eq(HealthInfoStatus.SUCCEEDED), any());
-        verify(dataFlowRepository, times(1))
-                .updateDataFlowWithStatus(eq(transactionId), eq(partNumber), eq(""), eq(HealthInfoStatus.PROCESSING), any());
+        when(healthInformationClient.notifyHealthInfo(any(), eq(token), eq("ncg"))).thenReturn(Mono.empty());
+
+        processor.process(message).block();
+
+        verify(healthDataRepository, times(1))
+                .saveDataPart(eq(transactionId), eq(partNumber), any(), eq(""), eq(HealthInfoStatus.SUCCEEDED), any(),
+                        isNull());
+        verify(healthInformationClient, times(1)).notifyHealthInfo(
+                argThat(request -> request.getNotification().getStatusNotification().getStatusResponses().size() == 2
+                        && request.getNotification().getStatusNotification().getSessionStatus()
+                        == SessionStatus.TRANSFERRED),
+                eq(token),
+                eq("ncg"));
+    }
+
+    private static TransactionContext transactionContext(String transactionId,
+                                                         DataFlowRequestKeyMaterial keyMaterial) {
+        return TransactionContext.builder()
+                .transactionId(transactionId)
+                .consentId("consentId")
+                .hipId("10000005")
+                .consentManagerId("ncg")
+                .keyMaterial(keyMaterial)
+                .build();
+    }
+
+    private static ArgumentMatcher<NotificationOutboxEntry> notification(SessionStatus sessionStatus) {
+        return entry -> entry.getStatusNotification().getSessionStatus() == sessionStatus
+                && "consentId".equals(entry.getConsentId())
+                && "ncg".equals(entry.getConsentManagerId())
+                && "10000005".equals(entry.getStatusNotification().getHipId());
+    }
+
+    private static ArgumentMatcher<List<HealthInformationRecord>> savedEntry(String docId, String docOrigin) {
+        return records -> records.size() == 1
+                && records.get(0).getStatus() == EntryStatus.SUCCEEDED
+                && docId.equals(records.get(0).getDocId())
+                && docOrigin.equals(records.get(0).getDocOrigin());
     }
 
     private DataContext getFHIRResource(DataAvailableMessage message) {
@@ -0,0 +1,147 @@
+package in.org.projecteka.hiu.dataprocessor;
+
+import in.org.projecteka.hiu.HiuProperties;
+import in.org.projecteka.hiu.clients.HealthInformationClient;
+import in.org.projecteka.hiu.common.Gateway;
+import in.org.projecteka.hiu.dataflow.Decryptor;
+import in.org.projecteka.hiu.dataprocessor.model.HealthInfoNotificationRequest;
+import in.org.projecteka.hiu.dataprocessor.model.HiStatus;
+import in.org.projecteka.hiu.dataprocessor.model.PendingNotification;
+import in.org.projecteka.hiu.dataprocessor.model.SessionStatus;
+import in.org.projecteka.hiu.dataprocessor.model.StatusNotification;
+import in.org.projecteka.hiu.dataprocessor.model.StatusResponse;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+class NotificationRelayTest {
+    @Mock
+    private NotificationOutboxRepository outboxRepository;
+    @Mock
+    private HealthInformationClient healthInformationClient;
+    @Mock
+    private Gateway gateway;
+    @Mock
+    private HiuProperties hiuProperties;
+    @Mock
+    private Decryptor decryptor;
+
+    private SimpleMeterRegistry meterRegistry;
+    private NotificationRelay relay;
+
+    @BeforeEach
+    void setUp() {
+        initMocks(this);
+        meterRegistry = new SimpleMeterRegistry();
+        relay = new NotificationRelay(outboxRepository,
+                healthInformationClient,
+                gateway,
+                hiuProperties,
+                decryptor,
+                new NotificationOutboxProperties(true, false, 1000, 100, 8, 60, 10, 5, 900),
+                meterRegistry);
+        when(gateway.token()).thenReturn(Mono.just("token"));
+        when(hiuProperties.getId()).thenReturn("hiu");
+        when(outboxRepository.delete(any(), any())).thenReturn(Mono.empty());
+        when(outboxRepository.reschedule(any(), any())).thenReturn(Mono.empty());
+        when(outboxRepository.getBacklog())
+                .thenReturn(Mono.just(new NotificationOutboxRepository.Backlog(0, null)));
+    }
+
+    @Test
+    void shouldNotifyTheEntriesOfEveryPartOfATransactionAtOnce() {
+        var pending = pending(1,
+                part(SessionStatus.TRANSFERRED, "care-context-1"),
+                part(SessionStatus.FAILED, "care-context-2"));
+        var request = ArgumentCaptor.forClass(HealthInfoNotificationRequest.class);
+        when(outboxRepository.claimDue(eq(100), eq(Duration.ofSeconds(60)))).thenReturn(Flux.just(pending));
+        when(healthInformationClient.notifyHealthInfo(request.capture(), eq("token"), eq("ncg")))
+                .thenReturn(Mono.empty());
+
+        StepVerifier.create(relay.relay()).verifyComplete();
+
+        var notification = request.getValue().getNotification();
+        assertThat(notification.getTransactionId()).isEqualTo("transaction");
+        assertThat(notification.getStatusNotification().getSessionStatus()).isEqualTo(SessionStatus.FAILED);
+        assertThat(notification.getStatusNotification().getStatusResponses())
+                .extracting(StatusResponse::getCareContextReference)
+                .containsExactly("care-context-1", "care-context-2");
+        verify(outboxRepository).delete("transaction", pending.getLastEnqueuedAt());
+        verify(decryptor).forget("transaction");
+        assertThat(meterRegistry.get("hiu.notification.outbox.relayed").tag("outcome", "delivered").counter().count())
+                .isEqualTo(1);
+    }
+
+    @Test
+    void shouldRetryAFailedNotificationAfterABackoff() {
+        when(outboxRepository.claimDue(anyInt(), any()))
+                .thenReturn(Flux.just(pending(3, part(SessionStatus.TRANSFERRED, "care-context-1"))));
+        when(healthInformationClient.notifyHealthInfo(any(), any(), any()))
+                .thenReturn(Mono.error(new RuntimeException("gateway unavailable")));
+
+        StepVerifier.create(relay.relay()).verifyComplete();
+
+        verify(outboxRepository).reschedule("transaction", Duration.ofSeconds(20));
+        verify(outboxRepository, never()).delete(any(), any());
+        verify(decryptor, never()).forget(any());
+        assertThat(relay.backoff(1)).isEqualTo(Duration.ofSeconds(5));
+        assertThat(relay.backoff(20)).isEqualTo(Duration.ofSeconds(900));
+    }
+
+    @Test
+    void shouldDropANotificationFailingForMaxAttempts() {
+        var pending = pending(10, part(SessionStatus.TRANSFERRED, "care-context-1"));
+        when(outboxRepository.claimDue(anyInt(), any())).thenReturn(Flux.just(pending));
+        when(healthInformationClient.notifyHealthInfo(any(), any(), any()))
+                .thenReturn(Mono.error(new RuntimeException("gateway unavailable")));
+
+        StepVerifier.create(relay.relay()).verifyComplete();
+
+        verify(outboxRepository).delete("transaction", pending.getLastEnqueuedAt());
+        verify(outboxRepository, never()).reschedule(any(), any());
+        assertThat(meterRegistry.get("hiu.notification.outbox.relayed").tag("outcome", "dropped").counter().count())
+                .isEqualTo(1);
+    }
+
+    private static PendingNotification pending(int attempts, StatusNotification... parts) {
+        var enqueuedAt = OffsetDateTime.now().minusSeconds(5);
+        return PendingNotification.builder()
+                .transactionId("transaction")
+                .consentId("consent")
+                .consentManagerId("ncg")
+                .parts(List.of(parts))
+                .attempts(attempts)
+                .firstEnqueuedAt(enqueuedAt)
+                .lastEnqueuedAt(enqueuedAt.plusSeconds(1))
+                .build();
+    }
+
+    private static StatusNotification part(SessionStatus sessionStatus, String careContextReference) {
+        return StatusNotification.builder()
+                .sessionStatus(sessionStatus)
+                .hipId("hip")
+                .statusResponses(List.of(StatusResponse.builder()
+                        .careContextReference(careContextReference)
+                        .hiStatus(sessionStatus == SessionStatus.TRANSFERRED ? HiStatus.OK : HiStatus.ERRORED)
+                        .build()))
+                .build();
+    }
+}
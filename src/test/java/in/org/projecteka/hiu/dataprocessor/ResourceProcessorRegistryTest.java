@@ -0,0 +1,60 @@
+package in.org.projecteka.hiu.dataprocessor;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ResourceProcessorRegistryTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void shouldDispatchToTheProcessorOfTheResourceType() {
+        var registry = new ResourceProcessorRegistry(
+                List.of(new CompositionResourceProcessor(), new ConditionResourceProcessor()),
+                meterRegistry);
+
+        assertThat(registry.get(ResourceType.Composition)).hasToString("CompositionResourceProcessor");
+        assertThat(registry.get(ResourceType.Condition)).hasToString("ConditionResourceProcessor");
+        assertThat(registry.get(ResourceType.Procedure)).isNull();
+    }
+
+    @Test
+    void shouldUseTheFirstProcessorSupportingAResourceType() {
+        var first = mock(HITypeResourceProcessor.class);
+        var second = mock(HITypeResourceProcessor.class);
+        when(first.supports(ResourceType.Condition)).thenReturn(true);
+        when(second.supports(ResourceType.Condition)).thenReturn(true);
+        var registry = new ResourceProcessorRegistry(List.of(first, second), meterRegistry);
+
+        registry.get(ResourceType.Condition).process(new Condition(), null, null, null);
+
+        verify(first).process(any(), any(), any(), any());
+        verify(second, never()).process(any(), any(), any(), any());
+    }
+
+    @Test
+    void shouldTimeEveryInvocationOfAProcessor() {
+        var processor = mock(HITypeResourceProcessor.class);
+        when(processor.supports(ResourceType.Condition)).thenReturn(true);
+        var registry = new ResourceProcessorRegistry(List.of(processor), meterRegistry);
+
+        registry.get(ResourceType.Condition).process(new Condition(), null, null, null);
+        registry.get(ResourceType.Condition).process(new Condition(), null, null, null);
+
+        assertThat(meterRegistry.get("hiu.resource.processing")
+                .tag("processor", processor.getClass().getSimpleName())
+                .timer()
+                .count())
+                .isEqualTo(2);
+    }
+}
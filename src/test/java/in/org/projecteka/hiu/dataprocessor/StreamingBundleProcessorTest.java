@@ -0,0 +1,115 @@
+package in.org.projecteka.hiu.dataprocessor;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import in.org.projecteka.hiu.LocalDicomServerProperties;
+import in.org.projecteka.hiu.dataprocessor.model.BundleContext;
+import in.org.projecteka.hiu.dataprocessor.model.DataContext;
+import in.org.projecteka.hiu.dataprocessor.model.ProcessedEntry;
+import in.org.projecteka.hiu.dicomweb.OrthancDicomWebServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.Media;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StreamingBundleProcessorTest {
+    private static final IParser parser = FhirContext.forR4().newJsonParser();
+
+    private final ResourceProcessorRegistry resourceProcessors = new ResourceProcessorRegistry(
+            List.of(new CompositionResourceProcessor(),
+                    new ConditionResourceProcessor(),
+                    new DiagnosticReportResourceProcessor(new OrthancDicomWebServer(new LocalDicomServerProperties())),
+                    new MedicationRequestResourceProcessor(),
+                    new ObservationResourceProcessor()),
+            new SimpleMeterRegistry());
+    private final StreamingBundleProcessor processor = new StreamingBundleProcessor(resourceProcessors);
+
+    @TempDir
+    Path localStoragePath;
+
+    @Test
+    void shouldProcessADocumentAsWhenTheWholeBundleIsParsed() throws IOException {
+        String content = Files.readString(
+                Paths.get("src", "test", "resources", "MAXNCC1543DischargeSummaryDoc20190419.json"));
+        Bundle bundle = parser.parseResource(Bundle.class, content);
+        BundleContext bundleContext = new BundleContext(bundle, resourceProcessors::get);
+        bundle.getEntry().forEach(entry -> {
+            var resourceProcessor = resourceProcessors.get(entry.getResource().getResourceType());
+            if (resourceProcessor != null) {
+                resourceProcessor.process(entry.getResource(), dataContext(), bundleContext, null);
+            }
+        });
+
+        ProcessedEntry result = processor.process(new StringReader(content), parser, dataContext());
+
+        assertThat(result.hasErrors()).isFalse();
+        assertThat(result.getUniqueResourceId()).isEqualTo(bundleContext.getBundleUniqueId());
+        assertThat(result.getDocumentType()).isEqualTo("DischargeSummary");
+        assertThat(result.getOrigins()).hasSize(2);
+        assertThat(result.getTrackedResources())
+                .usingRecursiveFieldByFieldElementComparator()
+                .containsExactlyInAnyOrderElementsOf(bundleContext.getTrackedResources());
+        assertThat(parser.parseResource(Bundle.class, result.getResource()).getEntry()).hasSize(bundle.getEntry().size());
+    }
+
+    @Test
+    void shouldSaveTheMediaOfADiagnosticReportFurtherDownTheBundle() throws IOException {
+        var report = new DiagnosticReport();
+        report.setId("DiagnosticReport/1");
+        report.addMedia().setLink(new Reference("Media/1"));
+        var media = new Media();
+        media.setId("Media/1");
+        media.getContent().setContentType("application/pdf").setData("report".getBytes(StandardCharsets.UTF_8));
+        var patient = new Patient();
+        patient.setId("Patient/1");
+        patient.addName().setFamily("Doe");
+        var bundle = new Bundle().setType(Bundle.BundleType.COLLECTION);
+        bundle.setId("bundle");
+        bundle.addEntry().setFullUrl("DiagnosticReport/1").setResource(report);
+        bundle.addEntry().setFullUrl("Patient/1").setResource(patient);
+        bundle.addEntry().setFullUrl("Media/1").setResource(media);
+
+        ProcessedEntry result = processor.process(
+                new StringReader(parser.encodeResourceToString(bundle)), parser, dataContext());
+
+        assertThat(result.hasErrors()).isFalse();
+        Bundle processed = parser.parseResource(Bundle.class, result.getResource());
+        var processedMedia = (Media) processed.getEntry().get(2).getResource();
+        assertThat(processedMedia.getContent().hasData()).isFalse();
+        assertThat(processedMedia.getContent().getUrl()).startsWith("/attachments/");
+        assertThat(localStoragePath.resolve(processedMedia.getContent().getUrl().substring("/attachments/".length())))
+                .hasContent("report");
+        assertThat(((Patient) processed.getEntry().get(1).getResource()).getNameFirstRep().getFamily())
+                .isEqualTo("Doe");
+        assertThat(result.getTrackedResources()).extracting("resourceId").containsExactly("DiagnosticReport/1");
+    }
+
+    @Test
+    void shouldRejectADocumentNotStartingWithAComposition() throws IOException {
+        var bundle = new Bundle().setType(Bundle.BundleType.DOCUMENT);
+        bundle.addEntry().setFullUrl("Patient/1").setResource(new Patient());
+
+        ProcessedEntry result = processor.process(
+                new StringReader(parser.encodeResourceToString(bundle)), parser, dataContext());
+
+        assertThat(result.getErrors()).containsExactly(StreamingBundleProcessor.INVALID_ENVELOPE);
+    }
+
+    private DataContext dataContext() {
+        return DataContext.builder().dataFilePath(localStoragePath.resolve("part.json")).build();
+    }
+}
@@ -3,7 +3,9 @@ package in.org.projecteka.hiu.dataprocessor.model;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
 import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.ResourceType;
 import org.junit.Assert;
 import org.junit.jupiter.api.Test;
 
@@ -30,4 +32,31 @@ class BundleContextTest {
         Assert.assertEquals(2, organizations.size());
     }
 
-}
\ No newline at end of file
+    @Test
+    void shouldFindDocumentTypeAndResourcesOfBundle() throws IOException {
+        Path filePath = Paths.get("src", "test", "resources", "MAXNCC1543DischargeSummaryDoc20190419.json");
+        String content = Files.readString(filePath);
+        Bundle bundle = FhirContext.forR4().newJsonParser().parseResource(Bundle.class, content);
+        BundleContext bundleContext = new BundleContext(bundle, null);
+        Bundle.BundleEntryComponent firstEntry = bundle.getEntry().get(0);
+
+        Assert.assertEquals("DischargeSummary", bundleContext.getDocumentType());
+        Assert.assertSame(firstEntry.getResource(), bundleContext.getResources(ResourceType.Composition).get(0));
+        Assert.assertSame(firstEntry.getResource(), bundleContext.getResource(firstEntry.getFullUrl()).orElseThrow());
+        Assert.assertTrue(bundleContext.getResources(ResourceType.Immunization).isEmpty());
+        Assert.assertTrue(bundleContext.getResource("urn:uuid:unknown").isEmpty());
+    }
+
+    @Test
+    void shouldTrackProcessedResourcesByIdentity() {
+        Observation observation = new Observation();
+        observation.setId("Observation/1");
+        Observation copy = observation.copy();
+        BundleContext bundleContext = new BundleContext(new Bundle(), null);
+
+        bundleContext.doneProcessing(observation);
+
+        Assert.assertTrue(bundleContext.isProcessed(observation));
+        Assert.assertFalse(bundleContext.isProcessed(copy));
+    }
+}